@@ -20,8 +20,10 @@ import com.cplusedition.bot.core.IStepWatch.Companion.fmt
 import com.cplusedition.bot.core.IStepWatch.Companion.rate
 import java.io.Closeable
 import java.util.*
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantLock
-import kotlin.concurrent.schedule
 import kotlin.concurrent.withLock
 
 interface IStepWatch {
@@ -417,54 +419,62 @@ open class PerformanceWatch : StepWatch() {
     }
 }
 
+/// Calls callback() on timeout unless watch() is called within every timeout ms, or close() is called.
+/// All instances share a single scheduler thread, watch() only extends the deadline.
 class WatchDog(
     private val timeout: Long,
     private val callback: Fun00
 ) : Closeable {
-    private var timer: Timer? = null
-    private val start = DateUt.ms
+    companion object {
+        private val scheduler = ScheduledThreadPoolExecutor(1) { r ->
+            Thread(r, "WatchDog").also { it.isDaemon = true }
+        }.also { it.removeOnCancelPolicy = true }
+    }
+
+    @Volatile
+    private var deadline = DateUt.ms + timeout
+    private var future: ScheduledFuture<*>? = null
     private var closed = false
     private val lock = ReentrantLock()
 
     init {
-        Timer().also { timer = it }.schedule(timeout) {
-            timeout()
+        lock.withLock {
+            schedule(timeout)
         }
     }
 
-    fun watch(threshold: Long = timeout / 5) {
-        lock.withLock {
-            if (closed) return
-            val ms = DateUt.ms
-            if (ms - start < threshold) return
-            timer?.cancel()
-            Timer().also { timer = it }.schedule(timeout) {
-                timeout()
-            }
-        }
+    fun watch() {
+        deadline = DateUt.ms + timeout
     }
 
     override fun close() {
         lock.withLock {
-            closing()
+            if (closed) return
+            closed = true
+            future?.cancel(false)
+            future = null
         }
     }
 
-    private fun timeout() {
+    private fun schedule(delay: Long) {
+        future = scheduler.schedule(Runnable { check() }, delay, TimeUnit.MILLISECONDS)
+    }
+
+    private fun check() {
         lock.lock()
-        if (!closing()) {
+        if (closed) {
+            lock.unlock()
+            return
+        }
+        val remaining = deadline - DateUt.ms
+        if (remaining > 0) {
+            schedule(remaining)
             lock.unlock()
             return
         }
+        closed = true
+        future = null
         lock.unlock()
         callback()
     }
-
-    private fun closing(): Boolean {
-        if (closed) return false
-        closed = true
-        timer?.cancel()
-        timer = null
-        return true
-    }
 }
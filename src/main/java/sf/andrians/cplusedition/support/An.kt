@@ -266,7 +266,9 @@ public abstract class An {
 
     object FilepickerCmd {
         const val COPY = 9
+        const val COPY_CANCEL = 26
         const val COPY_INFO = 10
+        const val COPY_PROGRESS = 25
         const val DELETE = 11
         const val DELETE_ALL = 14
         const val DELETE_DIRSUBTREE = 13
@@ -616,6 +618,7 @@ public abstract class An {
         const val searchtext = "searchtext"
         const val seek = "seek"
         const val session = "s"
+        const val stream = "stream"
         const val t = "t"
         const val view = "view"
     }
@@ -904,6 +907,7 @@ object ServerKey {
     const val data = "XxXm0"
     const val headers = "XxXwd"
     const val ipc = "XxXr7"
+    const val length = "XxXbl"
     const val method = "XxXef"
     const val referrer = "XxXYI"
     const val serial = "XxXds"
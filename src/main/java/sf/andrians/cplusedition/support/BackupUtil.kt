@@ -71,6 +71,7 @@ import sf.andrians.cplusedition.support.media.MimeUtil
 import sf.andrians.cplusedition.support.media.MimeUtil.Suffix
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
+import java.io.Closeable
 import java.io.File
 import java.io.IOException
 import java.io.InputStream
@@ -91,13 +92,20 @@ import java.security.cert.Certificate
 import java.security.cert.CertificateFactory
 import java.security.interfaces.RSAPublicKey
 import java.util.*
+import java.util.concurrent.Callable
 import java.util.concurrent.ConcurrentLinkedDeque
 import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.ConcurrentSkipListSet
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantLock
+import java.util.zip.Deflater
 import java.util.zip.GZIPInputStream
 import java.util.zip.GZIPOutputStream
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
 import java.util.zip.ZipEntry
 import java.util.zip.ZipFile
 import java.util.zip.ZipInputStream
@@ -110,6 +118,7 @@ import javax.crypto.spec.GCMParameterSpec
 import javax.crypto.spec.IvParameterSpec
 import javax.crypto.spec.SecretKeySpec
 import kotlin.concurrent.withLock
+import kotlin.math.ln
 import kotlin.math.min
 
 class BackupUtil(
@@ -474,7 +483,15 @@ class BackupUtil(
             return BotResult.ok(Triple(dstfile, srcfile, readonlysrc))
         }
 
-        fun actionVerifyBackup1(st: IStorageAccessor, backupfile: IFileInfo): BackupRestoreResult {
+        /// Verify backupfile, or the backup and zip files under it if it is a directory.
+        /// @param structural See IStorage.verifyBackup().
+        /// @param progress To poll the progress and to cancel the verification from another thread.
+        fun actionVerifyBackup1(
+            st: IStorageReader,
+            backupfile: IFileInfo,
+            structural: Boolean = false,
+            progress: TaskProgress? = null
+        ): BackupRestoreResult {
             val fails = ConcurrentLinkedDeque<String>()
             val warns = ConcurrentLinkedDeque<String>()
             val oks = ConcurrentLinkedDeque<String>()
@@ -484,11 +501,12 @@ class BackupUtil(
                     val lcsuffix = Basepath.lcSuffix(file.name)
                     if (!MimeUtil.isBackupLcSuffix(lcsuffix)) return@walk3
                     pool.submit {
+                        if (progress?.cancelled == true) return@submit
                         try {
                             val result = if (lcsuffix == Suffix.ZIP) {
                                 BackupUtil.verifyZip(file)
                             } else if (lcsuffix == Suffix.BACKUP || lcsuffix == Suffix.IBACKUP) {
-                                st.verifyBackup(file)
+                                st.verifyBackup(file, structural, progress)
                             } else return@submit
                             if (result.fails.isNotEmpty()) fails.add(rpath) else oks.add(rpath)
                             warns.addAll(result.warns)
@@ -662,6 +680,7 @@ class BackupUtil(
             val incremental = backupfile.name.endsWith(Suffix.IBACKUP)
             val infos = getLastBackupInfos(backupfile) ?: TreeMap()
             val param = BackupParam(format, incremental, infos, srcdir)
+            if (incremental) readParentChunks(backupfile, param)
             backupData1(backupfile, ensureSlots(2, aliases), param)
             return BackupRestoreResult(
                 param.oks,
@@ -701,15 +720,23 @@ class BackupUtil(
         return backupfiles
     }
 
+    /// @param structural Only check the filelist and the records, and that the archive blocks decrypt and
+    /// authenticate, without decompressing and digesting the files.
     @Throws(SecureException::class)
-    fun verifyBackup(backupfile: IFileInfo): BackupRestoreResult {
+    fun verifyBackup(
+        backupfile: IFileInfo,
+        structural: Boolean = false,
+        progress: TaskProgress? = null
+    ): BackupRestoreResult {
         val backupfiles = collectBackupFiles(backupfile)
         return try {
-            if (backupfiles.size == 1) {
-                verifyBackup1(backupfiles.first())
+            val result = if (backupfiles.size == 1) {
+                verifyBackup1(backupfiles.first(), structural, progress)
             } else {
-                verifyBackup2(backupfiles)
+                verifyBackup2(backupfiles, structural, progress)
             }
+            if (progress?.cancelled == true) result.warns.add(rsrc.actionCancelled(R.string.BackupVerify))
+            result
         } catch (e: Throwable) {
             throw rsrc.secureException(e, rsrc.actionFailed(R.string.BackupVerify))
         }
@@ -1304,7 +1331,8 @@ class BackupUtil(
             val format = backupfileinfo.format
             val filelist = format.readFilelist(rsrc, directory)
             val (rpaths, fromdir) = getFilelist(filelist, from)
-            RestoreParam.RestoreParamBuilder(format, destdir, fromdir, sync).use { param ->
+            val parents = parentArchives(backupfile, format, directory)
+            RestoreParam.RestoreParamBuilder(format, destdir, fromdir, sync, parents).use { param ->
                 restoreData3(cis, param, rpaths, filelist)
                 BackupRestoreResult(
                     param.oks,
@@ -1334,7 +1362,8 @@ class BackupUtil(
         for (backupfile in backupfiles) {
             readBackupFile(backupfile) { cis, backupfileinfo, directory ->
                 val format = backupfileinfo.format
-                RestoreParamBuilder(format, destdir, fromdir, sync).use { param ->
+                val parents = parentArchives(backupfile, format, directory)
+                RestoreParamBuilder(format, destdir, fromdir, sync, parents).use { param ->
                     val filelist1 = format.readFilelist(rsrc, directory)
                     dstpaths1 = restoreData3(cis, param, TreeSet(rpaths), filelist1).also {
                         dstpaths.addAll(it)
@@ -1352,24 +1381,30 @@ class BackupUtil(
         return result
     }
 
-    private fun verifyBackup1(backupfile: IFileInfo): BackupRestoreResult {
+    private fun verifyBackup1(backupfile: IFileInfo, structural: Boolean, progress: TaskProgress?): BackupRestoreResult {
         return readBackupFile(backupfile) { cis, backupfileinfo, directory ->
             val format = backupfileinfo.format
             val filelist = format.readFilelist(rsrc, directory)
             val (rpaths) = getFilelist(filelist, "")
-            val param = VerifyParam(format)
-            val dirs = TreeMap<String, Info>()
-            verifyData3(dirs, cis, param, rpaths, filelist)
-            BackupRestoreResult(
-                param.oks,
-                param.fails,
-                param.warns,
-                param.ignores,
-            )
+            parentArchives(backupfile, format, directory).use { parents ->
+                val param = VerifyParam(format, structural, parents)
+                val dirs = TreeMap<String, Info>()
+                verifyData3(dirs, cis, param, rpaths, filelist, progress)
+                BackupRestoreResult(
+                    param.oks,
+                    param.fails,
+                    param.warns,
+                    param.ignores,
+                )
+            }
         }
     }
 
-    private fun verifyBackup2(backupfiles: MutableList<IFileInfo>): BackupRestoreResult {
+    private fun verifyBackup2(
+        backupfiles: MutableList<IFileInfo>,
+        structural: Boolean,
+        progress: TaskProgress?
+    ): BackupRestoreResult {
         val filelist = readBackupFilelist(
             backupfiles.lastOrNull()
                 ?: throw errorReadingBackup()
@@ -1378,12 +1413,15 @@ class BackupUtil(
         val result = BackupRestoreResult()
         val dirs = TreeMap<String, Info>()
         for (backupfile in backupfiles.reversed()) {
+            if (progress?.cancelled == true) break
             readBackupFile(backupfile) { cis, backupfileinfo, directory ->
                 val format = backupfileinfo.format
-                val param = VerifyParam(format)
-                val filelist1 = format.readFilelist(rsrc, directory)
-                verifyData3(dirs, cis, param, rpaths, filelist1)
-                result.add(param)
+                parentArchives(backupfile, format, directory).use { parents ->
+                    val param = VerifyParam(format, structural, parents)
+                    val filelist1 = format.readFilelist(rsrc, directory)
+                    verifyData3(dirs, cis, param, rpaths, filelist1, progress)
+                    result.add(param)
+                }
             }
         }
         return result
@@ -1485,16 +1523,17 @@ class BackupUtil(
                     fail(rpath, e)
                 }
             }
-            val lock = Any()
+            val readers = readerPool(input)
             val group = CountedTaskGroup(rpaths.size)
-            for (rpath in ArrayList(rpaths)) {
+            //// In archive order, so that the reads stay mostly sequential.
+            for (rpath in rpaths.sortedBy { filelist[it]?.offset ?: 0L }) {
                 val info = filelist[rpath]
                 if (info == null || info.offset == 0L || !info.isFile) {
                     group.leave(group.enter())
                     continue
                 }
                 workerThreadPool.submit(group) {
-                    ShadowSeekableInputStream(input, lock).use { sin ->
+                    readers.use { sin ->
                         try {
                             val dst = param.restoredir.fileInfo(rpath.substring(param.fromdir.length))
                             val stat = dst.stat()
@@ -1503,7 +1542,7 @@ class BackupUtil(
                                     param.bufPool.use { diffbuf ->
                                         if (stat != null
                                             && (!dorestore(param.sync, stat, info)
-                                                    || issame(stat, dst, info, tmpbuf, diffbuf, sin))
+                                                    || issame(stat, dst, info, tmpbuf, diffbuf, sin, param.parents))
                                         ) {
                                             param.ignore(rpath)
                                             if (info.timestamp != stat.lastModified) {
@@ -1533,18 +1572,22 @@ class BackupUtil(
                 }
             }
             group.awaitDone(1, TimeUnit.DAYS)
+            readers.clear()
         }
         return dstpaths
     }
 
+    /// The files are verified by the workers in archive order, but reported in filelist order.
     @Throws(Exception::class)
     private fun verifyData3(
         dirs: MutableMap<String, Info>,
         input: MySeekableInputStream,
         param: VerifyParam,
         rpaths: MutableCollection<String>,
-        filelist: MutableMap<String, Info>
+        filelist: MutableMap<String, Info>,
+        progress: TaskProgress?
     ) {
+        val files = ArrayList<Pair<String, Info>>()
         for (rpath in ArrayList(rpaths)) {
             val info = filelist[rpath] ?: continue
             if (info.isDir) {
@@ -1555,19 +1598,48 @@ class BackupUtil(
             if (!info.isFile) continue
             if (info.offset == 0L) continue
             rpaths.remove(rpath)
-            try {
-                input.setPosition(info.offset)
-                val actual = verifyFile(StayOpenInputStream(input), param) ?: continue
-                if (info.checksum != null && !actual.contentEquals(info.checksum))
-                    throw SecureException(rsrc.actionFailed(R.string.BackupVerify))
-                param.ok(rpath)
-            } catch (e: Exception) {
-                
-                param.fail(rpath)
+            files.add(Pair(rpath, info))
+            progress?.add(info.size)
+        }
+        //// null if skipped or cancelled.
+        val results = arrayOfNulls<Boolean>(files.size)
+        val readers = readerPool(input)
+        val group = CountedTaskGroup(files.size)
+        for (index in files.indices.sortedBy { files[it].second.offset }) {
+            val (rpath, info) = files[index]
+            workerThreadPool.submit(group) {
+                if (progress?.cancelled == true) return@submit
+                results[index] = readers.use { sin ->
+                    try {
+                        verifyFile(sin, param, info)
+                    } catch (e: Exception) {
+                        
+                        false
+                    }
+                }
+                progress?.done(info.size)
+            }
+        }
+        group.awaitDone(1, TimeUnit.DAYS)
+        readers.clear()
+        for ((index, file) in files.withIndex()) {
+            when (results[index]) {
+                true -> param.ok(file.first)
+                false -> param.fail(file.first)
+                null -> {}
             }
         }
     }
 
+    /// @return A pool of readers for the workers. An EncryptedInputStream is forked, so that each reader
+    /// decrypts on its own, otherwise the readers share the input under a lock.
+    private fun readerPool(input: MySeekableInputStream): ObjectPool<MySeekableInputStream> {
+        val lock = Any()
+        return ObjectPool {
+            (input as? EncryptedInputStream)?.fork() ?: ShadowSeekableInputStream(input, lock)
+        }
+    }
+
     private fun dorestore(sync: Boolean, stat: IFileStat, info: Info): Boolean {
         if (sync) return info.timestamp > stat.lastModified
         return (stat.lastModified != info.timestamp || stat.length != info.size)
@@ -1579,7 +1651,8 @@ class BackupUtil(
         info: Info,
         tmpbuf: ByteArray,
         diffbuf: ByteArray,
-        input: MySeekableInputStream
+        input: MySeekableInputStream,
+        parents: ParentArchives?
     ): Boolean {
         if (stat.length != info.size) return false
         val checksum = stat.checksumBytes
@@ -1591,7 +1664,7 @@ class BackupUtil(
             input.setPosition(info.offset)
             BU.readtag(rsrc, input)
             file.content().inputStream().use { b ->
-                BU.readBlocks(rsrc, tmpbuf, input) {
+                BU.readBlocks(rsrc, tmpbuf, input, parents) {
                     val bn = IOUt.readWhilePossible(b, diffbuf, 0, it)
                     if (it != bn || !StructUt.equals(tmpbuf, 0, it, diffbuf, 0, bn)) {
                         diff = true
@@ -1621,10 +1694,19 @@ class BackupUtil(
         }
     }
 
-    private fun verifyFile(input: InputStream, param: VerifyParam): ByteArray? {
+    /// @return null if the record is not a data file.
+    private fun verifyFile(input: MySeekableInputStream, param: VerifyParam, info: Info): Boolean? {
+        input.setPosition(info.offset)
         when (BU.readtag(rsrc, input)) {
             Kind.Data -> {
-                return BU.verifyBlocks(rsrc, param, input)
+                if (param.structural) {
+                    param.bufPool.use { tmpbuf ->
+                        BU.checkBlocks(rsrc, tmpbuf, input, param.parents)
+                    }
+                    return true
+                }
+                val actual = BU.verifyBlocks(rsrc, param, input)
+                return info.checksum == null || actual.contentEquals(info.checksum)
             }
 
             Kind.Etc -> {
@@ -1640,14 +1722,15 @@ class BackupUtil(
         offset: Long,
         input: MySeekableInputStream,
         format: IArchiveFormat,
-        checksum: ByteArray?
+        checksum: ByteArray?,
+        parents: ParentArchives? = null
     ): InputStream? {
         try {
             input.setPosition(offset)
-            val param = VerifyParam(format)
+            val param = VerifyParam(format, parents = parents)
             val digester = format.createDigester()
             return MyByteOutputStream().use { output ->
-                readFile(output, StayOpenInputStream(input), param, digester)
+                readFile(output, input, param, digester)
                 if (checksum != null && !digester.digest().contentEquals(checksum)) return null
                 output
             }.inputStream()
@@ -1662,7 +1745,7 @@ class BackupUtil(
             Kind.Data -> {
                 DigestOutputStream(output, digester).use { out ->
                     param.bufPool.use { tmpbuf ->
-                        BU.readBlocks(rsrc, tmpbuf, input) {
+                        BU.readBlocks(rsrc, tmpbuf, input, param.parents) {
                             out.write(tmpbuf, 0, it)
                             true
                         }
@@ -1674,6 +1757,46 @@ class BackupUtil(
         }
     }
 
+    /// Add the chunk index of the last incremental archive, which includes the chunks of the previous archives
+    /// it refers to, to param.chunks so that the chunks are not written again.
+    private fun readParentChunks(backupfile: IFileInfo, param: BackupParam) {
+        val chunks = param.chunks ?: return
+        val dir = backupfile.parent ?: return
+        if (!dir.exists) return
+        val lastibackup = BU.getLastBackupFile(dir, backupfile.name) ?: return
+        readBackupFile(lastibackup) { cis, backupfileinfo, directory ->
+            val info = BU.readChunks(backupfileinfo.format, directory) ?: return@readBackupFile
+            val archives = (listOf(lastibackup.name) + info.parents).map { param.parentOf(it) }
+            BU.readChunkIndex(rsrc, cis, info.offset) { k0, k1, archive, offset ->
+                chunks.put(k0, k1, BU.chunkRef(archives.getOrNull(archive) ?: throw errorReadingBackup(), offset))
+            }
+        }
+    }
+
+    /// @return The previous archives the given archive refers to, null if it does not refer to any.
+    internal fun parentArchives(backupfile: IFileInfo, format: IArchiveFormat, directory: ByteArray): ParentArchives? {
+        val parents = BU.readChunks(format, directory)?.parents
+        if (parents.isNullOrEmpty()) return null
+        val dir = backupfile.parent ?: throw errorReadingBackup()
+        for (name in parents) {
+            if (name.isEmpty() || name.contains(FS) || name == "." || name == ".." || !name.endsWith(Suffix.IBACKUP))
+                throw errorReadingBackup()
+        }
+        return ParentArchives(parents) { name -> openParentArchive(dir.fileInfo(name)) }
+    }
+
+    private fun openParentArchive(backupfile: IFileInfo): MySeekableInputStream {
+        val input = backupfile.content().seekableInputStream()
+            ?: throw rsrc.secureException(R.string.NotFound_, backupfile.name)
+        try {
+            val keypair = secUtil.invoke { it.getBackupKeyPair() }
+            return openBackupInputStream(input, keypair) { cis, _, _ -> cis }
+        } catch (e: Throwable) {
+            FileUt.closeAndIgnoreError(input)
+            throw e
+        }
+    }
+
     @Throws(SecureException::class)
     fun getLastBackupInfos(backupfile: IFileInfo): MutableMap<String, Info>? {
         if (!backupfile.name.endsWith(Suffix.IBACKUP)) return null
@@ -1773,7 +1896,12 @@ class BackupUtil(
         return BotResult.ok(Pair(dstfile, src))
     }
 
-    fun actionVerifyBackup1(st: IStorageAccessor, backupfile: IFileInfo): BackupRestoreResult {
+    fun actionVerifyBackup1(
+        st: IStorageReader,
+        backupfile: IFileInfo,
+        structural: Boolean = false,
+        progress: TaskProgress? = null
+    ): BackupRestoreResult {
         val fails = ConcurrentLinkedDeque<String>()
         val oks = ConcurrentLinkedDeque<String>()
         TaskUt.forkJoinTasks { pool ->
@@ -1782,12 +1910,13 @@ class BackupUtil(
                 val lcsuffix = Basepath.lcSuffix(file.name)
                 if (!MimeUtil.isBackupLcSuffix(lcsuffix)) return@walk3
                 pool.submit {
+                    if (progress?.cancelled == true) return@submit
                     try {
                         if (lcsuffix == Suffix.ZIP) {
                             val result = verifyZip(file)
                             if (result.fails.isNotEmpty()) fails.add(rpath) else oks.add(rpath)
                         } else if (lcsuffix == Suffix.BACKUP || lcsuffix == Suffix.IBACKUP) {
-                            val result = st.verifyBackup(file)
+                            val result = st.verifyBackup(file, structural, progress)
                             if (result.fails.isNotEmpty()) fails.add(rpath) else oks.add(rpath)
                         }
                     } catch (e: Throwable) {
@@ -1886,13 +2015,58 @@ private class BackupParam constructor(
 ) : ParamBase(K.BUFSIZE16) {
     val enableCompression = true
     val copybuf = ByteArray(K.BUFSIZE4)
+
+    /// Locations of the chunks written so far to this archive, and of the chunks of the previous archives
+    /// of an incremental backup, see BU.chunkRef(). null if the format has no chunks.
+    val chunks: ChunkIndex? = if (format.version() >= ArchiveFormat.V15) ChunkIndex(K.CHUNK_INDEX_MAX) else null
+
+    /// File names of the previous archives with chunks in the chunk index.
+    val parents = ArrayList<String>()
+
+    /// @return Index of the given previous archive, from 1, as in Tag.BlockRefParent.
+    fun parentOf(name: String): Int {
+        val index = parents.indexOf(name)
+        if (index >= 0) return index + 1
+        parents.add(name)
+        return parents.size
+    }
+}
+
+/// The previous archives an incremental archive refers to with Tag.BlockRefParent, opened on first use.
+internal class ParentArchives(
+    private val names: List<String>,
+    private val opener: Fun11<String, MySeekableInputStream>
+) : Closeable {
+    private val inputs = arrayOfNulls<MySeekableInputStream>(names.size)
+
+    val size get() = names.size
+
+    /// @param index From 1, as in Tag.BlockRefParent.
+    /// @return The decrypted archive, which must only be read with positional reads since it is shared.
+    @Throws(IOException::class)
+    fun input(index: Int): MySeekableInputStream {
+        if (index < 1 || index > names.size) throw IOException()
+        synchronized(inputs) {
+            return inputs[index - 1] ?: opener(names[index - 1]).also { inputs[index - 1] = it }
+        }
+    }
+
+    override fun close() {
+        synchronized(inputs) {
+            for (i in inputs.indices) {
+                inputs[i]?.let { FileUt.closeAndIgnoreError(it) }
+                inputs[i] = null
+            }
+        }
+    }
 }
 
 private class RestoreParam private constructor(
     val format: IArchiveFormat,
     val restoredir: IFileInfo,
     fromdir: String,
-    val sync: Boolean
+    val sync: Boolean,
+    val parents: ParentArchives?
 ) : ParamBase(K.BUFSIZE16), AutoCloseable {
     val fromdir = Basepath.cleanRpath(fromdir) ?: throw IOException()
     private val tmpdir = TmpUt.tmpdir(restoredir.root)
@@ -1901,9 +2075,10 @@ private class RestoreParam private constructor(
         format: IArchiveFormat,
         restoredir: IFileInfo,
         fromdir: String,
-        sync: Boolean
+        sync: Boolean,
+        parents: ParentArchives? = null
     ) {
-        private val param = RestoreParam(format, restoredir, fromdir, sync)
+        private val param = RestoreParam(format, restoredir, fromdir, sync, parents)
         fun <R> use(code: Fun11<RestoreParam, R>): R {
             return param.use(code)
         }
@@ -1917,16 +2092,24 @@ private class RestoreParam private constructor(
     })
 
     override fun close() {
+        FileUt.closeAndIgnoreError(parents)
         TmpUt.deleteTree(tmpdir)
     }
 }
 
 private class VerifyParam constructor(
-    val format: IArchiveFormat
+    val format: IArchiveFormat,
+    val structural: Boolean = false,
+    val parents: ParentArchives? = null
 ) : ParamBase(K.BUFSIZE16)
 
 private object BU {
 
+    /// A location in BackupParam.chunks is the archive index in the high bits and the offset in the low bits.
+    private const val OFFSET_BITS = 48
+    private const val OFFSET_MASK = (1L shl OFFSET_BITS) - 1
+    private const val ARCHIVE_MAX = 0x7fff
+
     fun serializeCipher(format: IArchiveFormat, key: SecretKey, cipher: Cipher): ByteArray {
         return MyByteOutputStream().use {
             format.writeCipher(it, key, cipher)
@@ -2094,7 +2277,7 @@ private object BU {
         var len = 0L
         while (true) {
             when (input.read()) {
-                Tag.Block.toInt(), Tag.BlockGz.toInt() -> {
+                Tag.Block.toInt(), Tag.BlockGz.toInt(), Tag.BlockDeflate.toInt() -> {
                     len += 1
                     len += U.skipInt32Bytes(input, K.BACKUP_BLOCKSIZE) + 1
                     len += U.skipU8Bytes(input) + 1
@@ -2151,6 +2334,7 @@ private object BU {
                         else param.ignore(root.name)
                     } else BU.backupData1(gos, cout, param, root)
                 }
+                if (param.incremental) param.chunks?.let { writeChunkIndex(gos, cout, param, it) }
                 IOUt.writeByte(gos, Tag.FilelistEnd)
             }
             bos
@@ -2304,18 +2488,20 @@ private object BU {
     @Throws(IOException::class)
     fun backupData1(filelist: OutputStream, out: PositionTrackingOutputStream, param: BackupParam, srcdir: IFileInfo) {
         if (param.incremental && srcdir.fileInfo(DEF.nobackup).exists) return
-        backupDataDir(filelist, out, param, srcdir, "")
+        BackupPipeline(filelist, out, param).use { pipeline ->
+            backupDataDir(pipeline, param, srcdir, "")
+            pipeline.finish()
+        }
     }
 
     @Throws(IOException::class)
     private fun backupDataDir(
-        filelist: OutputStream,
-        out: PositionTrackingOutputStream,
+        pipeline: BackupPipeline,
         param: BackupParam,
         dir: IFileInfo,
         dirpath: String
     ) {
-        val w = ByteWriter(filelist)
+        val w = ByteWriter(pipeline.filelist)
         for (info in FileInfoUtil.filesByName(dir)) {
             val stat = info.stat() ?: continue
             val rpath = Basepath.joinRpath(dirpath, info.name)
@@ -2325,21 +2511,17 @@ private object BU {
                     w.write(Tag.Dir)
                         .write32BEBytes(info.name.toByteArray())
                         .write63UV((stat.lastModified))
-                    backupDataDir(filelist, out, param, info, rpath)
+                    backupDataDir(pipeline, param, info, rpath)
                     w.write(Tag.DirEnd)
                 } else if (stat.isFile) {
-                    w.write(Tag.File2)
-                    w.write32BEBytes(info.name.toByteArray())
-                    w.write63UV((stat.lastModified))
-                    w.write63UV((stat.length))
                     val oinfo = param.oinfos.remove(rpath)
                     if (dobackup(param, oinfo, stat)) {
-                        val offset = out.getPosition()
-                        val checksum = writeBackupFile(out, param, Kind.Data, info)
-                        w.writeU8Bytes(checksum)
-                        w.write63UV((offset))
-                        param.ok(rpath)
+                        pipeline.add(rpath, info, stat)
                     } else {
+                        w.write(Tag.File2)
+                        w.write32BEBytes(info.name.toByteArray())
+                        w.write63UV((stat.lastModified))
+                        w.write63UV((stat.length))
                         w.writeU8Bytes(oinfo?.checksum ?: Empty.byteArray)
                         w.write63UV((0))
                         param.ignore(rpath)
@@ -2352,6 +2534,130 @@ private object BU {
         }
     }
 
+    /// A file record, either written out to data, or split into chunks for writeChunks().
+    private class Record(
+        val checksum: ByteArray,
+        val kind: Byte,
+        val data: MyByteOutputStream?,
+        val chunks: List<Chunk>?
+    )
+
+    /// A content defined chunk of a file, with the Tag.Block or Tag.BlockGz to write it as.
+    private class Chunk(val digest: ByteArray, val tag: Byte, val data: ByteArray)
+
+    /// Reads, checksums and compresses the files of a backup on the workerThreadPool, while the caller
+    /// thread, as the only writer, appends the records and their filelist entries in the order the files
+    /// are added. The records are encrypted by the BlockOutputStream as they are appended. Chunks are looked up
+    /// in and added to the chunk index by the writer only, in order, so it needs no locking. A filelist entry
+    /// is written only after its record, so a file that fails to read leaves no entry behind. Files larger
+    /// than PARALLEL_MAX, and all files if there is no core to spare, are written directly by the writer.
+    private class BackupPipeline(
+        private val output: OutputStream,
+        private val out: PositionTrackingOutputStream,
+        private val param: BackupParam,
+    ) : Closeable {
+
+        /// @param record null if the file is to be written by the writer.
+        private class Entry(
+            val rpath: String,
+            val file: IFileInfo,
+            val stat: IFileStat,
+            val record: Future<Record>?
+        ) {
+            /// Filelist output after this entry and before the next one.
+            val suffix = MyByteOutputStream()
+        }
+
+        private val pending = ArrayDeque<Entry>()
+        private var pendingBytes = 0L
+
+        /// Filelist output, held back while there are pending entries.
+        val filelist = object : OutputStream() {
+            override fun write(b: Int) {
+                (pending.peekLast()?.suffix ?: output).write(b)
+            }
+
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                (pending.peekLast()?.suffix ?: output).write(b, off, len)
+            }
+        }
+
+        fun add(rpath: String, file: IFileInfo, stat: IFileStat) {
+            if (!parallel || stat.length > PARALLEL_MAX) {
+                if (pending.isEmpty()) writeEntry(Entry(rpath, file, stat, null))
+                else pending.addLast(Entry(rpath, file, stat, null))
+                return
+            }
+            while (pending.size >= MAX_PENDING
+                || pending.isNotEmpty() && pendingBytes + stat.length > MAX_PENDING_BYTES
+            ) writeEntry(take())
+            pendingBytes += stat.length
+            pending.addLast(Entry(rpath, file, stat, workerThreadPool.submit(Callable {
+                if (param.chunks != null) readChunkedFile(param, Kind.Data, file)
+                else {
+                    val data = MyByteOutputStream()
+                    Record(writeBackupFile(data, param, Kind.Data, file), Kind.Data, data, null)
+                }
+            })))
+        }
+
+        /// Write out all the pending entries.
+        fun finish() {
+            while (pending.isNotEmpty()) writeEntry(take())
+        }
+
+        override fun close() {
+            for (entry in pending) entry.record?.cancel(false)
+            pending.clear()
+        }
+
+        private fun take(): Entry {
+            return pending.removeFirst().also {
+                if (it.record != null) pendingBytes -= it.stat.length
+            }
+        }
+
+        private fun writeEntry(entry: Entry) {
+            try {
+                val offset = out.getPosition()
+                val checksum = if (entry.record == null) {
+                    if (param.chunks != null) writeChunkedFile(out, param, Kind.Data, entry.file)
+                    else writeBackupFile(out, param, Kind.Data, entry.file)
+                } else {
+                    val record = try {
+                        entry.record.get()
+                    } catch (e: ExecutionException) {
+                        throw (e.cause as? IOException) ?: IOException(e.cause)
+                    }
+                    if (record.chunks != null) writeChunks(out, param, record.kind, record.chunks)
+                    else if (record.data != null) out.write(record.data.buffer(), 0, record.data.size())
+                    record.checksum
+                }
+                val w = ByteWriter(output)
+                w.write(Tag.File2)
+                w.write32BEBytes(entry.file.name.toByteArray())
+                w.write63UV((entry.stat.lastModified))
+                w.write63UV((entry.stat.length))
+                w.writeU8Bytes(checksum)
+                w.write63UV((offset))
+                param.ok(entry.rpath)
+            } catch (e: java.lang.Exception) {
+                
+                param.fail(entry.rpath)
+            }
+            output.write(entry.suffix.buffer(), 0, entry.suffix.size())
+        }
+
+        companion object {
+            private val parallel = Runtime.getRuntime().availableProcessors() > 1
+            /// Max. size of a file to be read ahead of the writer.
+            private const val PARALLEL_MAX = 1024 * 1024L
+            private val MAX_PENDING = Runtime.getRuntime().availableProcessors() * 4
+            /// Max. total size of the files read ahead of the writer.
+            private const val MAX_PENDING_BYTES = 16 * 1024 * 1024L
+        }
+    }
+
     private fun dobackup(param: BackupParam, oinfo: Info?, stat: IFileStat): Boolean {
         if (!param.incremental || oinfo == null) return true
         val checksum = stat.checksumBytes
@@ -2374,6 +2680,161 @@ private object BU {
         }
     }
 
+    /// @return The file split into chunks, to be written by writeChunks().
+    @Throws(IOException::class)
+    private fun readChunkedFile(param: BackupParam, kind: Byte, file: IFileInfo): Record {
+        return DigestInputStream(file.content().inputStream(), param.format.createDigester()).use { input ->
+            val compressor = compressorOf(param, file.cpath)
+            val chunks = ArrayList<Chunk>()
+            param.bufPool.use { buf ->
+                val chunker = Chunker(input)
+                while (true) {
+                    val n = chunker.next(buf)
+                    if (n <= 0) break
+                    chunks.add(chunkOf(compressor, buf, n))
+                }
+            }
+            Record(input.messageDigest.digest(), kind, null, chunks)
+        }
+    }
+
+    /// Same as writeBackupFile(), but split the file into chunks and write only the chunks not written before.
+    @Throws(IOException::class)
+    private fun writeChunkedFile(out: PositionTrackingOutputStream, param: BackupParam, kind: Byte, file: IFileInfo): ByteArray {
+        return DigestInputStream(file.content().inputStream(), param.format.createDigester()).use { input ->
+            val compressor = compressorOf(param, file.cpath)
+            IOUt.writeByte(out, kind)
+            IOUt.writeByte(out, Tag.Blocks)
+            param.bufPool.use { buf ->
+                val chunker = Chunker(input)
+                while (true) {
+                    val n = chunker.next(buf)
+                    if (n <= 0) break
+                    writeChunk(out, param, chunkOf(compressor, buf, n))
+                }
+            }
+            IOUt.writeByte(out, Tag.BlocksEnd)
+            input.messageDigest.digest()
+        }
+    }
+
+    private fun writeChunks(out: PositionTrackingOutputStream, param: BackupParam, kind: Byte, chunks: List<Chunk>) {
+        IOUt.writeByte(out, kind)
+        IOUt.writeByte(out, Tag.Blocks)
+        for (chunk in chunks) writeChunk(out, param, chunk)
+        IOUt.writeByte(out, Tag.BlocksEnd)
+    }
+
+    /// Write the chunk, or a Tag.BlockRef or Tag.BlockRefParent if the same chunk has been written before.
+    private fun writeChunk(out: PositionTrackingOutputStream, param: BackupParam, chunk: Chunk) {
+        val chunks = param.chunks ?: throw IOException()
+        val w = ByteWriter(out)
+        val ref = chunks.get(chunk.digest)
+        if (ref != null) {
+            val archive = archiveOf(ref)
+            if (archive == 0) {
+                w.write(Tag.BlockRef)
+            } else {
+                w.write(Tag.BlockRefParent)
+                w.write63UV(archive.toLong())
+            }
+            w.write63UV(offsetOf(ref))
+            return
+        }
+        chunks.put(chunk.digest, chunkRef(0, out.getPosition()))
+        w.write(chunk.tag)
+        w.write32BEBytes(chunk.data)
+    }
+
+    /// Write the chunk index for the next incremental archive, see Tag.Chunks.
+    private fun writeChunkIndex(filelist: OutputStream, out: PositionTrackingOutputStream, param: BackupParam, chunks: ChunkIndex) {
+        val offset = out.getPosition()
+        val w = ByteWriter(out)
+        w.write(Tag.Chunks)
+        w.write63UV(chunks.size.toLong())
+        chunks.forEach { k0, k1, ref ->
+            w.write64BE(k0)
+            w.write64BE(k1)
+            w.write63UV(archiveOf(ref).toLong())
+            w.write63UV(offsetOf(ref))
+        }
+        val f = ByteWriter(filelist)
+        f.write(Tag.Chunks)
+        f.write63UV(offset)
+        f.write63UV(param.parents.size.toLong())
+        for (name in param.parents) f.write32BEBytes(name.toByteArray())
+    }
+
+    /// @return The Tag.Chunks in the filelist, null if there is none.
+    @Throws(IOException::class)
+    fun readChunks(format: IArchiveFormat, directory: ByteArray): ArchiveChunks? {
+        if (format.version() < ArchiveFormat.V15) return null
+        var ret: ArchiveChunks? = null
+        UV10.readV10Filelist(directory, object : FilelistCallback {
+            override fun dir(rpath: List<String>, info: Info) {
+            }
+
+            override fun dirend(rpath: List<String>) {
+            }
+
+            override fun file(rpath: List<String>, info: Info) {
+            }
+
+            override fun chunks(offset: Long, parents: List<String>) {
+                ret = ArchiveChunks(offset, parents)
+            }
+        })
+        return ret
+    }
+
+    /// Read the chunk index at the given offset.
+    /// @param callback(k0, k1, archive, offset) Called on each entry, as written by writeChunkIndex().
+    @Throws(IOException::class)
+    fun readChunkIndex(rsrc: IResUtil, input: MySeekableInputStream, offset: Long, callback: (Long, Long, Int, Long) -> Unit) {
+        input.setPosition(offset)
+        if (readtag(rsrc, input) != Tag.Chunks)
+            throw rsrc.secureException(R.string.ErrorReadingBackup)
+        val r = ByteReader(input)
+        val count = r.read63UV()
+        if (count < 0 || count > K.CHUNK_INDEX_MAX)
+            throw rsrc.secureException(R.string.ErrorReadingBackup)
+        for (i in 0 until count) {
+            val k0 = r.read64BE()
+            val k1 = r.read64BE()
+            val archive = r.read63UV()
+            if (archive < 0 || archive > ARCHIVE_MAX)
+                throw rsrc.secureException(R.string.ErrorReadingBackup)
+            callback(k0, k1, archive.toInt(), r.read63UV())
+        }
+    }
+
+    /// @return A location in BackupParam.chunks.
+    /// @param archive 0 for this archive, otherwise the index, from 1, of a previous archive.
+    @Throws(IOException::class)
+    fun chunkRef(archive: Int, offset: Long): Long {
+        if (archive < 0 || archive > ARCHIVE_MAX || offset < 0 || offset > OFFSET_MASK) throw IOException()
+        return (archive.toLong() shl OFFSET_BITS) or offset
+    }
+
+    private fun archiveOf(ref: Long): Int {
+        return (ref ushr OFFSET_BITS).toInt()
+    }
+
+    private fun offsetOf(ref: Long): Long {
+        return ref and OFFSET_MASK
+    }
+
+    private fun chunkOf(compressor: BlockCompressor, buf: ByteArray, length: Int): Chunk {
+        val digest = U.sha256(buf, 0, length)
+        val (tag, data) = compressor.compress(buf, length)
+        return Chunk(digest, tag, data)
+    }
+
+    private fun compressorOf(param: BackupParam, path: String): BlockCompressor {
+        val adaptive = param.format.version() >= ArchiveFormat.V16
+        return BlockCompressor(adaptive, param.enableCompression && (adaptive || isCompressing(path)))
+    }
+
     private fun writeBackupZipEntry(
         out: OutputStream,
         param: BackupParam,
@@ -2398,7 +2859,31 @@ private object BU {
     fun writeBlocks(output: OutputStream, param: BackupParam, compressing: Boolean, kind: Byte, content: InputStream): Long {
         IOUt.writeByte(output, kind)
         IOUt.writeByte(output, Tag.Blocks)
-        return if (compressing) writeGzBlocks(output, param, content) else writeBlocks(output, param, content)
+        return if (param.format.version() >= ArchiveFormat.V16)
+            writeCompressedBlocks(output, param, BlockCompressor(true, param.enableCompression), content)
+        else if (compressing) writeGzBlocks(output, param, content) else writeBlocks(output, param, content)
+    }
+
+    @Throws(IOException::class)
+    private fun writeCompressedBlocks(out: OutputStream, param: BackupParam, compressor: BlockCompressor, input: InputStream): Long {
+        var size = 0L
+        param.bufPool.use { tmpbuf ->
+            val w = ByteWriter(out)
+            while (true) {
+                val n = IOUt.readWhilePossible(input, tmpbuf)
+                if (n > 0) {
+                    size += n
+                    val (tag, data) = compressor.compress(tmpbuf, n)
+                    w.write(tag)
+                    w.write32BEBytes(data)
+                }
+                if (n < tmpbuf.size) {
+                    w.write(Tag.BlocksEnd)
+                    break
+                }
+            }
+        }
+        return size
     }
 
     @Throws(IOException::class)
@@ -2484,7 +2969,7 @@ private object BU {
     fun copyBlocks(res: IResUtil, outfile: IFileInfo, param: RestoreParam, tmpbuf: ByteArray, input: InputStream): ByteArray {
         val digester = param.format.createDigester()
         outfile.content().outputStream().use { output ->
-            readBlocks(res, tmpbuf, input) {
+            readBlocks(res, tmpbuf, input, param.parents) {
                 output.write(tmpbuf, 0, it)
                 digester.update(tmpbuf, 0, it)
                 true
@@ -2498,8 +2983,15 @@ private object BU {
     /// The call parameters is the data and length of data read. The length may be anywhere from 0 to tmpbuf.size.
     /// If callback() return false, aborted immediately. Otherwise the blocks including Tag.BlockEnd
     /// would be consumed when the method returns.
+    /// @param parents The previous archives for Tag.BlockRefParent.
     @Throws(IOException::class)
-    fun readBlocks(rsrc: IResUtil, tmpbuf: ByteArray, input: InputStream, callback: Fun11<Int, Boolean>) {
+    fun readBlocks(
+        rsrc: IResUtil,
+        tmpbuf: ByteArray,
+        input: InputStream,
+        parents: ParentArchives?,
+        callback: Fun11<Int, Boolean>
+    ) {
         if (readtag(rsrc, input) != Tag.Blocks)
             throw rsrc.secureException(R.string.ErrorReadingBackup)
         val r = ByteReader(input)
@@ -2515,12 +3007,55 @@ private object BU {
                     if (!copyGzBlock(tmpbuf, input, len, callback)) return
                 }
 
+                Tag.BlockDeflate -> {
+                    val len = r.read32BE().toLong()
+                    if (!copyDeflateBlock(tmpbuf, input, len, callback)) return
+                }
+
+                Tag.BlockRef -> {
+                    val offset = r.read63UV()
+                    val seekable = input as? ISeekableInputStream ?: throw IOException()
+                    if (!readBlockAt(rsrc, tmpbuf, seekable, offset, callback)) return
+                }
+
+                Tag.BlockRefParent -> {
+                    val archive = r.read63UV()
+                    val offset = r.read63UV()
+                    if (parents == null || archive < 1 || archive > parents.size)
+                        throw rsrc.secureException(R.string.ErrorReadingBackup)
+                    if (!readBlockAt(rsrc, tmpbuf, parents.input(archive.toInt()), offset, callback)) return
+                }
+
                 Tag.BlocksEnd -> return
                 else -> throw IOException()
             }
         }
     }
 
+    /// Read the Tag.Block, Tag.BlockGz or Tag.BlockDeflate at the given offset, without moving the input position.
+    @Throws(IOException::class)
+    private fun readBlockAt(
+        rsrc: IResUtil,
+        tmpbuf: ByteArray,
+        input: ISeekableInputStream,
+        offset: Long,
+        callback: Fun11<Int, Boolean>
+    ): Boolean {
+        val head = ByteArray(5)
+        MySeekableInputStream.readFullyAt(input, offset, head, 0, head.size)
+        val len = IOUt.read32BE(head, 1)
+        if (len < 0 || len > Chunker.MAX * 2)
+            throw rsrc.secureException(R.string.ErrorReadingBackup)
+        val data = ByteArray(len)
+        MySeekableInputStream.readFullyAt(input, offset + head.size, data, 0, len)
+        return when (head[0]) {
+            Tag.Block -> IOUt.copyFor(tmpbuf, data.inputStream(), len.toLong(), callback)
+            Tag.BlockGz -> copyGzBlock(tmpbuf, data.inputStream(), len.toLong(), callback)
+            Tag.BlockDeflate -> copyDeflateBlock(tmpbuf, data.inputStream(), len.toLong(), callback)
+            else -> throw rsrc.secureException(R.string.ErrorReadingBackup)
+        }
+    }
+
     @Throws(IOException::class)
     fun copyGzBlock(tmpbuf: ByteArray, input: InputStream, length: Long, collector: Fun11<Int, Boolean>): Boolean {
         return StayOpenLimitedInputStream(input, length).use { sin ->
@@ -2530,11 +3065,56 @@ private object BU {
         }
     }
 
+    @Throws(IOException::class)
+    fun copyDeflateBlock(tmpbuf: ByteArray, input: InputStream, length: Long, collector: Fun11<Int, Boolean>): Boolean {
+        return Deflaters.inflater { inflater ->
+            StayOpenLimitedInputStream(input, length).use { sin ->
+                InflaterInputStream(sin, inflater).use { iis ->
+                    IOUt.copyWhile(tmpbuf, iis, collector)
+                }
+            }
+        }
+    }
+
+    /// Same as readBlocks(), but only read through the stored data, without decompressing it, so that the
+    /// archive blocks it is stored in are decrypted and authenticated.
+    @Throws(IOException::class)
+    fun checkBlocks(rsrc: IResUtil, tmpbuf: ByteArray, input: MySeekableInputStream, parents: ParentArchives?) {
+        if (readtag(rsrc, input) != Tag.Blocks)
+            throw rsrc.secureException(R.string.ErrorReadingBackup)
+        val r = ByteReader(input)
+        while (true) {
+            when (readtag(rsrc, input)) {
+                Tag.Block, Tag.BlockGz, Tag.BlockDeflate -> {
+                    val len = r.read32BE().toLong()
+                    if (len < 0 || !IOUt.copyFor(tmpbuf, input, len) { true })
+                        throw rsrc.secureException(R.string.ErrorReadingBackup)
+                }
+
+                Tag.BlockRef -> {
+                    val offset = r.read63UV()
+                    if (offset <= 0 || offset >= input.getPosition())
+                        throw rsrc.secureException(R.string.ErrorReadingBackup)
+                }
+
+                Tag.BlockRefParent -> {
+                    val archive = r.read63UV()
+                    val offset = r.read63UV()
+                    if (parents == null || archive < 1 || archive > parents.size || offset <= 0)
+                        throw rsrc.secureException(R.string.ErrorReadingBackup)
+                }
+
+                Tag.BlocksEnd -> return
+                else -> throw IOException()
+            }
+        }
+    }
+
     @Throws(IOException::class)
     fun verifyBlocks(res: IResUtil, param: VerifyParam, input: InputStream): ByteArray {
         val digester = param.format.createDigester()
         param.bufPool.use { tmpbuf ->
-            readBlocks(res, tmpbuf, input) {
+            readBlocks(res, tmpbuf, input, param.parents) {
                 digester.update(tmpbuf, 0, it)
                 true
             }
@@ -2777,6 +3357,9 @@ private object K {
     const val ENCRYPTED_BLOCK_SIZE = 16 * ENCRYPTED_BLOCK_SIZE_MULTIPIER
     const val SEEKABLE_POOL_SIZE = 5
     const val RESTORE_TMPDIR = ".restore"
+    /// Max. number of chunks deduplicated per archive, including the chunks of the previous incremental
+    /// archives, ie. about 64GB of unique content at the average chunk size, with a ChunkIndex of at most 48MB.
+    const val CHUNK_INDEX_MAX = 1024 * 1024
     val COMPRESSING = setOf("html", "css", "js", "svg", "pdf", "xml", "cf", "json", "properties")
 }
 
@@ -3194,6 +3777,8 @@ private object ArchiveFormat {
     const val V12 = 12
     const val V13 = 13
     const val V14 = 14
+    const val V15 = 15
+    const val V16 = 16
 
     const val SIG_SIZE = 512
 
@@ -3203,7 +3788,7 @@ private object ArchiveFormat {
     )
 
     fun latestArchiveVersion(): Int {
-        return V14
+        return V16
     }
 
     fun latestArchiveFormat(): IArchiveFormat {
@@ -3218,6 +3803,8 @@ private object ArchiveFormat {
             V12 -> true
             V13 -> true
             V14 -> true
+            V15 -> true
+            V16 -> true
             else -> false
         }
     }
@@ -3232,6 +3819,8 @@ private object ArchiveFormat {
             V12 -> ArchiveFormatV12.singleton
             V13 -> ArchiveFormatV13.singleton
             V14 -> ArchiveFormatV14.singleton
+            V15 -> ArchiveFormatV15.singleton
+            V16 -> ArchiveFormatV16.singleton
             else -> null
         }
     }
@@ -3270,6 +3859,24 @@ private object Tag {
     const val Data: Byte = 15
 
     const val File2: Byte = 16
+
+    /// Since V15, followed by the 63UV offset of the Tag.Block or Tag.BlockGz in the archive with the same content.
+    const val BlockRef: Byte = 17
+
+    /// Since V16, same as Tag.BlockGz but a raw deflate stream without the gzip header and trailer.
+    const val BlockDeflate: Byte = 18
+
+    /// Since V15, in an incremental archive, followed by the 63UV index, from 1, of a previous archive in the
+    /// Tag.Chunks of the filelist and the 63UV offset of the Tag.Block, Tag.BlockGz or Tag.BlockDeflate
+    /// in that archive with the same content.
+    const val BlockRefParent: Byte = 19
+
+    /// Since V15, in the filelist of an incremental archive before Tag.FilelistEnd, followed by the 63UV offset
+    /// of the chunk index in the archive, the 63UV number of previous archives with chunks in the index
+    /// and their file names as 32BE bytes. The chunk index is a Tag.Chunks followed by the 63UV number of
+    /// entries, each the first 128 bits of the chunk digest as two 64BE, the 63UV index of the archive,
+    /// 0 for this archive, and the 63UV offset of the chunk in that archive.
+    const val Chunks: Byte = 20
 }
 
 private abstract class ArchiveFormatBase : IArchiveFormat {
@@ -3345,6 +3952,33 @@ private abstract class ArchiveFormatBase : IArchiveFormat {
 
 //////////////////////////////////////////////////////////////////////
 
+/// Same as V15, except that blocks are compressed as Tag.BlockDeflate, with a level picked by probing the
+/// content of the first block of each file instead of by the file extension.
+private open class ArchiveFormatV16 : ArchiveFormatV15() {
+    companion object {
+        var singleton = ArchiveFormatV16()
+    }
+
+    override fun version(): Int {
+        return ArchiveFormat.V16
+    }
+}
+
+/// Same as V14, except that files are split into content defined chunks and each unique chunk in the
+/// archive is stored once, later copies are stored as a Tag.BlockRef to the first one. An incremental
+/// archive keeps the index of its chunks and the chunks of the previous archives, see Tag.Chunks, so that
+/// the next incremental archive stores a chunk of a previous archive as a Tag.BlockRefParent. Reading such
+/// an archive requires the previous archives it refers to in the same directory.
+private open class ArchiveFormatV15 : ArchiveFormatV14() {
+    companion object {
+        var singleton = ArchiveFormatV15()
+    }
+
+    override fun version(): Int {
+        return ArchiveFormat.V15
+    }
+}
+
 private open class ArchiveFormatV14 : ArchiveFormatBase() {
     companion object {
         var singleton = ArchiveFormatV14()
@@ -3670,6 +4304,15 @@ private object UV10 {
                     rpath.removeLast()
                 }
 
+                Tag.Chunks -> {
+                    val offset = r.read63UV()
+                    val count = r.read63UV()
+                    if (count < 0 || count > K.CHUNK_INDEX_MAX) throw IOException()
+                    val parents = ArrayList<String>()
+                    for (i in 0 until count) parents.add(r.read32BEUtf8(K.FILEPATH_BUFSIZE).toString())
+                    callback.chunks(offset, parents)
+                }
+
                 Tag.FilelistEnd -> {
                     return
                 }
@@ -3684,8 +4327,12 @@ private interface FilelistCallback {
     fun dir(rpath: List<String>, info: Info)
     fun dirend(rpath: List<String>)
     fun file(rpath: List<String>, info: Info)
+    fun chunks(offset: Long, parents: List<String>) {}
 }
 
+/// The Tag.Chunks in the filelist of an incremental archive.
+private class ArchiveChunks(val offset: Long, val parents: List<String>)
+
 //////////////////////////////////////////////////////////////////////
 
 class Info constructor(val timestamp: Long, val size: Long, val offset: Long = 0L, val checksum: ByteArray? = null) {
@@ -3797,10 +4444,12 @@ open class EncryptedFileInfo @JvmOverloads constructor(
         }
 
     override fun setLastModified(timestamp: Long): Boolean {
+        invalidate()
         return f.setLastModified(timestamp)
     }
 
     override fun setWritable(writable: Boolean): Boolean {
+        invalidate()
         return f.setWritable(writable)
     }
 
@@ -3821,19 +4470,23 @@ open class EncryptedFileInfo @JvmOverloads constructor(
         }
 
         override fun inputStream(): InputStream {
-            return EncryptedFileContent.openCipherInputStream(SeekableFileInputStream(file), info.root.key).first
+            val blocks = info.root.blockCache?.open(file)
+            return EncryptedFileContent.openCipherInputStream(SeekableFileInputStream(file), info.root.key, blocks).first
         }
 
         override fun seekableInputStream(): MySeekableInputStream? {
-            return EncryptedFileContent.openCipherSeekableInputStream(SeekableFileInputStream(file), info.root.key).first
+            val blocks = info.root.blockCache?.open(file)
+            return EncryptedFileContent.openCipherSeekableInputStream(SeekableFileInputStream(file), info.root.key, blocks).first
         }
 
         override fun outputStream(): OutputStream {
+            invalidate()
             val output = file.outputStream()
             return EncryptedOutputStream(output, info.root.key, info.root.format)
         }
 
         override fun seekableOutputStream(truncate: Boolean): ISeekableOutputStream? {
+            invalidate()
             return Without.throwableOrNull {
                 EncryptedFileContent.openCipherSeekableOutputStream(
                     RandomAccessFile(file, "rw"),
@@ -3851,31 +4504,27 @@ open class EncryptedFileInfo @JvmOverloads constructor(
         }
 
         override fun write(data: ByteArray, offset: Int, length: Int, timestamp: Long?) {
-            prepareToWrite()
-            this.outputStream().use { it.write(data, offset, length) }
-            file.setLastModified(timestamp ?: System.currentTimeMillis())
+            atomicWrite(timestamp) { it.write(data, offset, length) }
         }
 
         override fun write(data: CharArray, offset: Int, length: Int, timestamp: Long?, charset: Charset) {
-            prepareToWrite()
-            this.outputStream().bufferedWriter(charset).use { it.write(data, offset, length) }
-            file.setLastModified(timestamp ?: System.currentTimeMillis())
+            atomicWrite(timestamp) { output ->
+                output.bufferedWriter(charset).use { it.write(data, offset, length) }
+            }
         }
 
         override fun write(data: InputStream, timestamp: Long?) {
-            prepareToWrite()
-            this.outputStream().use { FileUt.copy(it, data) }
-            file.setLastModified(timestamp ?: System.currentTimeMillis())
+            atomicWrite(timestamp) { FileUt.copy(it, data) }
         }
 
         override fun write(data: Reader, timestamp: Long?, charset: Charset) {
-            prepareToWrite()
-            this.outputStream().bufferedWriter(charset).use { w ->
-                val tmpbuf = CharArray(IOUt.BUFSIZE)
-                IOUt.copyAll(tmpbuf, data) {
-                    w.write(tmpbuf, 0, it)
+            atomicWrite(timestamp) { output ->
+                output.bufferedWriter(charset).use { w ->
+                    val tmpbuf = CharArray(IOUt.BUFSIZE)
+                    IOUt.copyAll(tmpbuf, data) {
+                        w.write(tmpbuf, 0, it)
+                    }
                 }
-                file.setLastModified(timestamp ?: System.currentTimeMillis())
             }
         }
 
@@ -3901,6 +4550,8 @@ open class EncryptedFileInfo @JvmOverloads constructor(
         override fun renameTo(dst: IFileInfo, timestamp: Long?): Boolean {
             val dstcontent = dst.content()
             if (dstcontent is EncryptedFileContent) {
+                invalidate()
+                dstcontent.invalidate()
                 if (file.renameTo(dstcontent.file)) {
                     dstcontent.file.setLastModified(timestamp ?: System.currentTimeMillis())
                     return true
@@ -3913,19 +4564,29 @@ open class EncryptedFileInfo @JvmOverloads constructor(
             return false
         }
 
-        private fun prepareToWrite() {
-            if (file.exists()) {
-                if (!file.isFile || !file.delete())
-                    throw IOException()
-                return
+        private fun atomicWrite(timestamp: Long?, code: Fun10<OutputStream>) {
+            invalidate()
+            try {
+                AtomicFile.write(file, timestamp) { output ->
+                    EncryptedOutputStream(output, info.root.key, info.root.format).use(code)
+                }
+            } finally {
+                invalidate()
             }
-            file.mkparentOrNull()
-                ?: throw IOException()
+        }
+
+        private fun invalidate() {
+            info.invalidate()
+            info.root.blockCache?.invalidate(file)
         }
 
         companion object {
             @Throws(IOException::class)
-            fun openCipherInputStream(seekable: SeekableFileInputStream, key: SecretKey): Pair<InputStream, IFileFormat> {
+            fun openCipherInputStream(
+                seekable: SeekableFileInputStream,
+                key: SecretKey,
+                blocks: BlockCache.Blocks? = null
+            ): Pair<InputStream, IFileFormat> {
                 val magic = IOUt.readFully(seekable, ByteArray(FileFormat.MAGIC.size))
                 StructUt.equals(magic, FileFormat.MAGIC)
                         || throw SecureException()
@@ -3936,14 +4597,15 @@ open class EncryptedFileInfo @JvmOverloads constructor(
                 val cipher = format.readCipher(seekable, key)
                 return Pair(
                     (if (blocksize == 0) SimpleEncryptedInputStream(seekable, cipher, format, seekable.getSize())
-                    else EncryptedInputStream(seekable, key, format, blocksize, cipher, seekable.getPosition())), format
+                    else EncryptedInputStream(seekable, key, format, blocksize, cipher, seekable.getPosition(), blocks)), format
                 )
             }
 
             @Throws(IOException::class)
             fun openCipherSeekableInputStream(
                 seekable: SeekableFileInputStream,
-                key: SecretKey
+                key: SecretKey,
+                blocks: BlockCache.Blocks? = null
             ): Pair<MySeekableInputStream?, IFileFormat> {
                 val magic = IOUt.readFully(seekable, ByteArray(FileFormat.MAGIC.size))
                 StructUt.equals(magic, FileFormat.MAGIC)
@@ -3954,7 +4616,7 @@ open class EncryptedFileInfo @JvmOverloads constructor(
                 val blocksize = IOUt.readU8(seekable) * K.ENCRYPTED_BLOCK_SIZE_MULTIPIER
                 if (blocksize == 0) return Pair<MySeekableInputStream?, IFileFormat>(null, format)
                 val cipher = format.readCipher(seekable, key)
-                return Pair(EncryptedInputStream(seekable, key, format, blocksize, cipher, seekable.getPosition()), format)
+                return Pair(EncryptedInputStream(seekable, key, format, blocksize, cipher, seekable.getPosition(), blocks), format)
             }
 
             @Throws(IOException::class)
@@ -3991,6 +4653,9 @@ open class EncryptedRootInfo @JvmOverloads constructor(
 
     val format = FileFormat.latestFormat()
 
+    /// Decrypted blocks shared by the streams of the files of this root, disabled if null.
+    var blockCache: BlockCache? = null
+
     override val supportHistory = false
 
     override val file: File get() = f
@@ -4354,6 +5019,149 @@ private class LimitedSeekableInputStream(
     }
 }
 
+/// Compress the blocks of a file. Before V16, blocks of files with a compressing extension are gzipped.
+/// Since V16, the first block is probed instead. Content with a high byte entropy, or that does not deflate
+/// to below 90% of its size at the fastest level, is stored as is for the rest of the file. Content that
+/// deflates to below half its size is highly redundant and worth the default level. Each block is deflated
+/// with a pooled Deflater and stored as is if it does not get smaller.
+private class BlockCompressor(
+    private val adaptive: Boolean,
+    private val enabled: Boolean,
+) {
+    /// The deflate level, -1 until probed and 0 if not compressing.
+    private var level = if (enabled && adaptive) -1 else 0
+
+    /// @return The tag and the data to store the block as.
+    fun compress(buf: ByteArray, length: Int): Pair<Byte, ByteArray> {
+        if (!adaptive) {
+            if (!enabled) return Pair(Tag.Block, buf.copyOf(length))
+            val gzbuf = MyByteOutputStream().use { bos ->
+                GZIPOutputStream(bos).use { gos ->
+                    gos.write(buf, 0, length)
+                }
+                bos
+            }
+            return Pair(Tag.BlockGz, gzbuf.toByteArray())
+        }
+        if (level < 0) return probe(buf, length)
+        if (level > 0) {
+            Deflaters.deflate(level, buf, length, length)?.let {
+                return Pair(Tag.BlockDeflate, it)
+            }
+        }
+        return Pair(Tag.Block, buf.copyOf(length))
+    }
+
+    private fun probe(buf: ByteArray, length: Int): Pair<Byte, ByteArray> {
+        level = 0
+        if (entropyOf(buf, length) <= ENTROPY_STORE) {
+            Deflaters.deflate(Deflater.BEST_SPEED, buf, length, length - length / 10)?.let {
+                level = if (it.size < length / 2) Deflater.DEFAULT_COMPRESSION else Deflater.BEST_SPEED
+                return Pair(Tag.BlockDeflate, it)
+            }
+        }
+        return Pair(Tag.Block, buf.copyOf(length))
+    }
+
+    companion object {
+        private const val ENTROPY_STORE = 7.5
+        private val LN2 = ln(2.0)
+
+        /// @return The order 0 entropy in bits per byte.
+        private fun entropyOf(buf: ByteArray, length: Int): Double {
+            val counts = IntArray(256)
+            for (i in 0 until length) counts[buf[i].toInt() and 0xff] += 1
+            var ret = 0.0
+            for (count in counts) {
+                if (count == 0) continue
+                val p = count.toDouble() / length
+                ret -= p * ln(p)
+            }
+            return ret / LN2
+        }
+    }
+}
+
+/// Pools of raw Deflater and Inflater, which are costly to create and hold on to native memory until ended.
+private object Deflaters {
+    private val MAX = Runtime.getRuntime().availableProcessors() * 2
+    private val deflaters = ObjectPool(object : ObjectPoolDelegate<Deflater>() {
+        override fun ctor(): Deflater {
+            return Deflater(Deflater.DEFAULT_COMPRESSION, true)
+        }
+
+        override fun onunget(a: Deflater, size: Int): Deflater? {
+            if (size >= MAX) {
+                a.end()
+                return null
+            }
+            a.reset()
+            return a
+        }
+    })
+    private val inflaters = ObjectPool(object : ObjectPoolDelegate<Inflater>() {
+        override fun ctor(): Inflater {
+            return Inflater(true)
+        }
+
+        override fun onunget(a: Inflater, size: Int): Inflater? {
+            if (size >= MAX) {
+                a.end()
+                return null
+            }
+            a.reset()
+            return a
+        }
+    })
+
+    /// @return The raw deflated data, or null if it would be longer than limit.
+    fun deflate(level: Int, buf: ByteArray, length: Int, limit: Int): ByteArray? {
+        return deflaters.use { deflater ->
+            deflater.setLevel(level)
+            deflater.setInput(buf, 0, length)
+            deflater.finish()
+            val out = ByteArray(limit)
+            var n = 0
+            while (!deflater.finished()) {
+                if (n >= limit) return@use null
+                n += deflater.deflate(out, n, limit - n)
+            }
+            out.copyOf(n)
+        }
+    }
+
+    fun <T> inflater(code: Fun11<Inflater, T>): T {
+        return inflaters.use(code)
+    }
+}
+
+/// Shared pool for the encryption of the blocks of BlockOutputStream.
+private object BlockEncryptor {
+    private val PARALLELISM = Runtime.getRuntime().availableProcessors()
+    /// Max. bytes of plaintext pending encryption per stream.
+    private const val MAX_PENDING_BYTES = 16 * 1024 * 1024
+    private val pool = Executors.newFixedThreadPool(PARALLELISM) {
+        Thread(it, "block-encrypt").also { thread -> thread.isDaemon = true }
+    }
+
+    /// False if there is no core to spare, blocks are then encrypted on the caller thread.
+    val parallel = PARALLELISM > 1
+
+    /// @return Max. number of blocks pending encryption per stream.
+    fun maxPending(blocksize: Int): Int {
+        return maxOf(2, minOf(PARALLELISM * 2, MAX_PENDING_BYTES / maxOf(1, blocksize)))
+    }
+
+    fun <T> submit(task: Callable<T>): Future<T> {
+        return pool.submit(task)
+    }
+}
+
+/// Each block is encrypted independently with an IV of its own, so the full blocks of a large write are
+/// encrypted by the BlockEncryptor pool while the caller fills the next block. The blocks are written in
+/// order, with the same layout as encrypting them one at a time. The last block is encrypted on the caller
+/// thread, so a write that fits in one block is not handed off at all.
+/// NOTE: The output is closed with each block, it should be wrapped in a StayOpenOutputStream.
 private class BlockOutputStream(
     private val output: OutputStream,
     private val key: SecretKey,
@@ -4363,10 +5171,17 @@ private class BlockOutputStream(
     private val blocksize: Int = format.BLOCKSIZE
 ) : PositionTrackingOutputStream() {
 
+    /// An encrypted block, with the IV prefixed except for the first block.
+    private class Block(val iv: ByteArray, val data: ByteArray)
+
     private var closed = false
     private var position = 0L
-    private var remaining = blocksize
-    private var cout = format.createCipherOutputStream(output, cipher)
+    private var buffer = ByteArray(blocksize)
+    private var length = 0
+    private var index = 0L
+    private var lastIV: ByteArray? = null
+    private val pending = ArrayDeque<Future<Block>>()
+    private val maxPending = BlockEncryptor.maxPending(blocksize)
 
     override fun getPosition(): Long {
         return position
@@ -4375,10 +5190,9 @@ private class BlockOutputStream(
     override fun write(b: Int) {
         if (closed)
             throw IOException()
-        if (remaining == 0) flushnow()
-        cout.write(b)
+        if (length == blocksize) flushnow()
+        buffer[length++] = b.toByte()
         position += 1
-        remaining -= 1
     }
 
     override fun write(b: ByteArray) {
@@ -4391,11 +5205,11 @@ private class BlockOutputStream(
         var offset = off
         var length = len
         while (length > 0) {
-            if (remaining == 0) flushnow()
-            val n = if (remaining < length) remaining else length
-            cout.write(b, offset, n)
+            if (this.length == blocksize) flushnow()
+            val n = min(blocksize - this.length, length)
+            System.arraycopy(b, offset, buffer, this.length, n)
+            this.length += n
             position += n
-            remaining -= n
             offset += n
             length -= n
         }
@@ -4405,32 +5219,73 @@ private class BlockOutputStream(
     }
 
     override fun close() {
-        close1()
+        if (closed) return
+        while (pending.isNotEmpty()) writeBlock(take())
+        encryptnow()
         output.write(postfix)
         output.close()
         closed = true
     }
 
-    private fun close1() {
-        format.checksumBlock(cout)
-        cout.close()
+    /// Encrypt or hand off the full block, and start a new one.
+    private fun flushnow() {
+        if (!BlockEncryptor.parallel) {
+            encryptnow()
+        } else {
+            val data = buffer
+            val length = this.length
+            val cipher = cipherOf(index)
+            buffer = ByteArray(blocksize)
+            while (pending.size >= maxPending) writeBlock(take())
+            pending.addLast(BlockEncryptor.submit(Callable {
+                val out = MyByteOutputStream(length + format.OVERHEAD)
+                Block(encrypt(out, cipher, data, length), out.toByteArray())
+            }))
+        }
+        this.length = 0
+        this.index += 1
     }
 
-    private fun flushnow() {
-        val oiv = cipher.iv
-        close1()
-        reinit(oiv)
+    /// Encrypt the current block directly to the output.
+    private fun encryptnow() {
+        val cipher = cipherOf(index)
+        checkIV(cipher.iv)
+        encrypt(output, cipher, buffer, length)
     }
 
-    private fun reinit(oiv: ByteArray): OutputStream {
-        cipher.init(Cipher.ENCRYPT_MODE, key)
+    /// The IV of the first block is written by the caller with the cipher.
+    private fun cipherOf(index: Long): Cipher {
+        return if (index == 0L) cipher else format.createEncryptionCipher(key)
+    }
+
+    /// @return The IV.
+    private fun encrypt(out: OutputStream, cipher: Cipher, data: ByteArray, length: Int): ByteArray {
         val iv = cipher.iv
-        if (Arrays.equals(oiv, iv))
+        if (cipher !== this.cipher) out.write(BU.marshalSalt(iv))
+        format.createCipherOutputStream(out, cipher).use { cout ->
+            cout.write(data, 0, length)
+            format.checksumBlock(cout)
+        }
+        return iv
+    }
+
+    private fun take(): Block {
+        return try {
+            pending.removeFirst().get()
+        } catch (e: ExecutionException) {
+            throw (e.cause as? IOException) ?: IOException(e.cause)
+        }
+    }
+
+    private fun writeBlock(block: Block) {
+        checkIV(block.iv)
+        output.write(block.data)
+    }
+
+    private fun checkIV(iv: ByteArray) {
+        if (Arrays.equals(lastIV, iv))
             throw IOException()
-        output.write(BU.marshalSalt(iv))
-        cout = format.createCipherOutputStream(output, cipher)
-        remaining = blocksize
-        return cout
+        lastIV = iv
     }
 }
 
@@ -4475,14 +5330,16 @@ private class EncryptedOutputStream(
 
 private class EncryptedInputStream constructor(
     private val seekable: MySeekableInputStream,
-    key: SecretKey,
-    format: IFileFormat,
-    blocksize: Int,
+    private val key: SecretKey,
+    private val format: IFileFormat,
+    private val blocksize: Int,
     cipher: Cipher,
-    contentStart: Long
+    private val contentStart: Long,
+    /// The decrypted blocks cache of the file, if any.
+    blocks: BlockCache.Blocks? = null
 ) : MySeekableInputStream() {
 
-    private val pool = EncryptedInputStreamPool(seekable, key, format, cipher, blocksize, contentStart)
+    private val pool = EncryptedInputStreamPool(seekable, key, format, cipher, blocksize, contentStart, blocks)
 
     @Throws(IOException::class)
     override fun read(): Int {
@@ -4519,6 +5376,20 @@ private class EncryptedInputStream constructor(
         return pool.readAt(pos, b, off, size)
     }
 
+    /// @return A stream over the same content with a cipher and buffers of its own, so that it can be read
+    /// on another thread without contending for the lock of this stream. The underlying stream is shared
+    /// and must support concurrent readAt(). It is left open when the fork is closed.
+    fun fork(): EncryptedInputStream {
+        return EncryptedInputStream(
+            StayOpenSeekableInputStream(seekable),
+            key,
+            format,
+            blocksize,
+            format.createEncryptionCipher(key),
+            contentStart,
+        )
+    }
+
     private class BlockInputStream(
         private val pool: EncryptedInputStreamPool,
         private val size: Long,
@@ -4614,9 +5485,11 @@ private class EncryptedInputStream constructor(
         private val format: IFileFormat,
         private val cipher: Cipher,
         private val blocksize: Int,
-        private val contentStart: Long
+        private val contentStart: Long,
+        private val blocks: BlockCache.Blocks?
     ) {
         private var logicalSize: Long? = null
+        private var lastIndex = -1L
 
         init {
         }
@@ -4668,6 +5541,45 @@ private class EncryptedInputStream constructor(
         }
 
         fun readBlock(obuffer: ByteArray, blockstart: Long): Int {
+            val blocks = blocks ?: return decryptBlock(obuffer, blockstart)
+            lock.withLock {
+                val index = (blockstart - contentStart) / (OVERHEAD + blocksize)
+                var n = blocks.get(index, obuffer, PREFIX)
+                if (n < 0) {
+                    n = decryptBlock(obuffer, blockstart)
+                    if (n >= 0) blocks.put(index, obuffer, PREFIX, n)
+                }
+                if (index == lastIndex + 1 && n == blocksize) blocks.sequential(index, ::readahead)
+                lastIndex = index
+                return n
+            }
+        }
+
+        /// Decrypt the given blocks of the file into the cache, with a stream of its own.
+        private fun readahead(indexes: LongRange) {
+            val blocks = blocks ?: return
+            if (!blocks.isCurrent()) return
+            val ret = ArrayList<Pair<Long, ByteArray>>()
+            SeekableFileInputStream(blocks.file).use { seekable ->
+                seekable.setPosition(FileFormat.MAGIC.size + 2L)
+                val cipher = format.readCipher(seekable, key)
+                if (seekable.getPosition() != contentStart) return
+                val pool = EncryptedInputStreamPool(seekable, key, format, cipher, blocksize, contentStart, null)
+                val buffer = ByteArray(PREFIX + SUM + PADSIZE + blocksize)
+                for (index in indexes) {
+                    if (blocks.contains(index)) continue
+                    val n = pool.readBlock(buffer, contentStart + index * (OVERHEAD + blocksize))
+                    if (n < 0) break
+                    ret.add(Pair(index, buffer.copyOfRange(PREFIX, PREFIX + n)))
+                    if (n < blocksize) break
+                }
+            }
+            //// Discard if the file is modified while reading.
+            if (!blocks.isCurrent()) return
+            for ((index, block) in ret) blocks.prefetched(index, block, 0, block.size)
+        }
+
+        private fun decryptBlock(obuffer: ByteArray, blockstart: Long): Int {
             lock.withLock {
                 val n = input.readWhilePossibleAt(blockstart - IV, ibuffer, 0, OVERHEAD + blocksize)
                 if (n < OVERHEAD) return -1
@@ -4711,6 +5623,7 @@ class ReadOnlyBackupFileRoot private constructor(
     private val backupUtil: BackupUtil,
     private val seekable: MySeekableInputStream,
     private val archiveFormat: IArchiveFormat,
+    private val parents: ParentArchives?,
     jsontree: JSONObject
 ) : ReadOnlyJSONRoot(jsontree, "", ReadOnlyJSONRoot::createFileInfoTree), ICloseableRootInfo {
     companion object {
@@ -4727,7 +5640,8 @@ class ReadOnlyBackupFileRoot private constructor(
                 ) { cis, backupfileinfo, dir ->
                     val format = backupfileinfo.format
                     val filetree = format.readFiletree(backupUtil.rsrc, dir)
-                    ReadOnlyBackupFileRoot(backupUtil, cis, format, filetree)
+                    val parents = backupUtil.parentArchives(backupfile, format, dir)
+                    ReadOnlyBackupFileRoot(backupUtil, cis, format, parents, filetree)
                 }
             } catch (e: Throwable) {
                 return null
@@ -4742,11 +5656,12 @@ class ReadOnlyBackupFileRoot private constructor(
         if (offset <= 0)
             throw IOException()
         val checksum = json.stringOrNull(IFileInfo.Key.checksum)?.let { Hex.decode(it) }
-        return backupUtil.readFileAt(offset, seekable, archiveFormat, checksum)
+        return backupUtil.readFileAt(offset, seekable, archiveFormat, checksum, parents)
             ?: throw IOException()
     }
 
     override fun close() {
+        FileUt.closeAndIgnoreError(parents)
         FileUt.closeAndIgnoreError(seekable)
     }
 }
@@ -0,0 +1,188 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import com.cplusedition.bot.core.Fun00
+import com.cplusedition.bot.core.With
+import java.io.Closeable
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/// LRU of decrypted blocks shared by the streams of an EncryptedRootInfo, keyed by (file id, block index)
+/// and bounded by the total size of the blocks. The plaintext is only kept in memory. A file id is given
+/// per path and renewed when the file key, mtime or size of the file changes, or on invalidate(), so a
+/// stale block is never returned, it is just evicted eventually. Blocks following a sequential read are
+/// prefetched on a low priority background thread.
+class BlockCache constructor(
+    private val maxBytes: Long,
+    /// Number of blocks to read ahead of a sequential read, 0 to disable.
+    private val readahead: Int = READAHEAD,
+) : Closeable {
+
+    private data class BlockKey(val id: Long, val index: Long)
+
+    internal class FileId(val id: Long, val key: Any?, val mtime: Long, val length: Long)
+
+    /// Blocks of a file as of when it is opened.
+    inner class Blocks internal constructor(
+        val file: File,
+        private val fileid: FileId,
+    ) {
+        private val id = fileid.id
+
+        /// Highest block index requested to prefetch.
+        private var prefetched = -1L
+
+        /// Copy block index, if cached, to dst at offset.
+        /// @return Length of the block, -1 if not cached.
+        fun get(index: Long, dst: ByteArray, offset: Int): Int {
+            val block = lock.withLock { blocks[BlockKey(id, index)] }
+            if (block == null) {
+                _misses.increment()
+                return -1
+            }
+            _hits.increment()
+            System.arraycopy(block, 0, dst, offset, block.size)
+            return block.size
+        }
+
+        fun contains(index: Long): Boolean {
+            return lock.withLock { blocks.containsKey(BlockKey(id, index)) }
+        }
+
+        fun put(index: Long, src: ByteArray, offset: Int, length: Int) {
+            val block = src.copyOfRange(offset, offset + length)
+            lock.withLock {
+                blocks.put(BlockKey(id, index), block)?.let { bytes -= it.size }
+                bytes += block.size
+                val iterator = blocks.values.iterator()
+                while (bytes > maxBytes && iterator.hasNext()) {
+                    bytes -= iterator.next().size
+                    iterator.remove()
+                    _evictions.increment()
+                }
+            }
+        }
+
+        /// Called on each block read by a stream, in order.
+        /// @param load Load the given blocks that are not cached, in the background.
+        fun sequential(index: Long, load: (LongRange) -> Unit) {
+            if (readahead <= 0) return
+            val range = synchronized(this) {
+                if (index + readahead / 2 < prefetched) return
+                val first = maxOf(index + 1, prefetched + 1)
+                prefetched = index + readahead
+                first..prefetched
+            }
+            prefetch {
+                load(range)
+            }
+        }
+
+        fun prefetched(index: Long, src: ByteArray, offset: Int, length: Int) {
+            put(index, src, offset, length)
+            _prefetches.increment()
+        }
+
+        /// @return true if the file is not modified since it is opened.
+        fun isCurrent(): Boolean {
+            return fileIdOf(file, id).let { it.key == fileid.key && it.mtime == fileid.mtime && it.length == fileid.length }
+        }
+    }
+
+    private val lock = ReentrantLock()
+    private val blocks = LinkedHashMap<BlockKey, ByteArray>(256, 0.75f, true)
+    private val ids = HashMap<String, FileId>()
+    private var bytes = 0L
+    private var nextId = 1L
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor {
+        Thread(it, "block-prefetch").also { thread ->
+            thread.isDaemon = true
+            thread.priority = Thread.MIN_PRIORITY
+        }
+    }
+
+    private val _hits = LongAdder()
+    private val _misses = LongAdder()
+    private val _prefetches = LongAdder()
+    private val _evictions = LongAdder()
+
+    val hits: Long get() = _hits.sum()
+    val misses: Long get() = _misses.sum()
+    /// Number of blocks decrypted by read ahead.
+    val prefetches: Long get() = _prefetches.sum()
+    val evictions: Long get() = _evictions.sum()
+    /// Total size of the cached blocks.
+    val size: Long get() = lock.withLock { bytes }
+
+    /// @return The blocks of the current content of file.
+    fun open(file: File): Blocks {
+        val stat = fileIdOf(file, 0L)
+        val fileid = lock.withLock {
+            val current = ids[file.path]
+            if (current != null && current.key == stat.key && current.mtime == stat.mtime && current.length == stat.length) current
+            else FileId(nextId++, stat.key, stat.mtime, stat.length).also { ids[file.path] = it }
+        }
+        return Blocks(file, fileid)
+    }
+
+    /// Forget the blocks of file, eg. before it is modified.
+    fun invalidate(file: File) {
+        lock.withLock { ids.remove(file.path) }
+    }
+
+    fun clear() {
+        lock.withLock {
+            blocks.clear()
+            ids.clear()
+            bytes = 0
+        }
+    }
+
+    override fun close() {
+        executor.shutdownNow()
+        clear()
+    }
+
+    private fun prefetch(task: Fun00) {
+        //// Read ahead is best effort, a block not prefetched is read on demand.
+        With.exceptionOrNull {
+            executor.execute {
+                With.throwableOrNull(task)
+            }
+        }
+    }
+
+    companion object {
+        const val READAHEAD = 4
+
+        private fun fileIdOf(file: File, id: Long): FileId {
+            val attrs = try {
+                Files.readAttributes(file.toPath(), BasicFileAttributes::class.java)
+            } catch (e: Exception) {
+                null
+            }
+            return FileId(id, attrs?.fileKey(), attrs?.lastModifiedTime()?.toMillis() ?: 0L, attrs?.size() ?: -1L)
+        }
+    }
+}
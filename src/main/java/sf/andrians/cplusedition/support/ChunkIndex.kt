@@ -0,0 +1,111 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+/// Locations of the chunks written to an archive, keyed by the first 128 bits of their SHA-256 digests.
+/// A location is any non-negative long, eg. an offset in the archive.
+/// The entries are kept in an open addressing table of primitive longs, kept between 1/4 and 1/2 full,
+/// ie. 48 to 96 bytes per entry, instead of about 120 bytes per entry of a HashMap<ByteBuffer, Long>
+/// with the digests and the boxed offsets. Since the keys are digests, they are used as the hash codes as is.
+internal class ChunkIndex(
+    /// Max. number of entries, further put() are ignored.
+    private val max: Int
+) {
+    private var keys0 = LongArray(INITIAL)
+    private var keys1 = LongArray(INITIAL)
+    private var offsets = LongArray(INITIAL).also { it.fill(EMPTY) }
+
+    var size = 0
+        private set
+
+    /// @return The offset of the chunk with the given digest, null if not found.
+    fun get(digest: ByteArray): Long? {
+        val k0 = long(digest, 0)
+        val k1 = long(digest, 8)
+        val mask = offsets.size - 1
+        var i = slot(k0, k1, mask)
+        while (true) {
+            val offset = offsets[i]
+            if (offset == EMPTY) return null
+            if (keys0[i] == k0 && keys1[i] == k1) return offset
+            i = (i + 1) and mask
+        }
+    }
+
+    /// Add the chunk if it is not in the index yet.
+    /// @return false if the index is full and the chunk is not added.
+    fun put(digest: ByteArray, offset: Long): Boolean {
+        return put(long(digest, 0), long(digest, 8), offset)
+    }
+
+    /// Same as put(digest, offset) with the key as given by forEach().
+    fun put(k0: Long, k1: Long, offset: Long): Boolean {
+        if (offset < 0) throw IllegalArgumentException()
+        if (size >= max) return false
+        if ((size + 1) * 2 > offsets.size) grow()
+        return put1(k0, k1, offset)
+    }
+
+    /// @param callback(k0, k1, offset) Called on each entry, in no particular order.
+    fun forEach(callback: (Long, Long, Long) -> Unit) {
+        for (i in offsets.indices) {
+            if (offsets[i] != EMPTY) callback(keys0[i], keys1[i], offsets[i])
+        }
+    }
+
+    private fun put1(k0: Long, k1: Long, offset: Long): Boolean {
+        val mask = offsets.size - 1
+        var i = slot(k0, k1, mask)
+        while (offsets[i] != EMPTY) {
+            if (keys0[i] == k0 && keys1[i] == k1) return true
+            i = (i + 1) and mask
+        }
+        keys0[i] = k0
+        keys1[i] = k1
+        offsets[i] = offset
+        ++size
+        return true
+    }
+
+    private fun grow() {
+        val k0s = keys0
+        val k1s = keys1
+        val olds = offsets
+        keys0 = LongArray(olds.size * 2)
+        keys1 = LongArray(olds.size * 2)
+        offsets = LongArray(olds.size * 2).also { it.fill(EMPTY) }
+        size = 0
+        for (i in olds.indices) {
+            if (olds[i] != EMPTY) put1(k0s[i], k1s[i], olds[i])
+        }
+    }
+
+    companion object {
+        private const val INITIAL = 1024
+        private const val EMPTY = -1L
+
+        private fun slot(k0: Long, k1: Long, mask: Int): Int {
+            return (k0 xor k1).toInt() and mask
+        }
+
+        private fun long(b: ByteArray, off: Int): Long {
+            var ret = 0L
+            for (i in off until off + 8) ret = (ret shl 8) or (b[i].toLong() and 0xff)
+            return ret
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import java.io.IOException
+import java.io.InputStream
+
+/// Content defined chunking in the style of FastCDC. The cut points are picked by a gear rolling hash
+/// over the content, so an insertion or deletion only changes the chunks around it and the rest of the
+/// content is cut the same way as before. A harder mask is used before the average size and an easier
+/// one after it, to keep the chunk sizes close to the average.
+internal class Chunker(
+    private val input: InputStream,
+    private val min: Int = MIN,
+    private val avg: Int = AVG,
+    private val max: Int = MAX,
+) {
+    private val buf = ByteArray(max * 2)
+    private val maskS = mask(avg, 2)
+    private val maskL = mask(avg, -2)
+    private var start = 0
+    private var end = 0
+    private var eof = false
+
+    /// Copy the next chunk to ret, which must have room for max bytes.
+    /// @return Length of the chunk, 0 at end of input.
+    @Throws(IOException::class)
+    fun next(ret: ByteArray): Int {
+        fill()
+        val len = cut(start, end - start)
+        System.arraycopy(buf, start, ret, 0, len)
+        start += len
+        return len
+    }
+
+    private fun fill() {
+        if (eof || end - start >= max) return
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, end - start)
+            end -= start
+            start = 0
+        }
+        while (end < buf.size) {
+            val n = input.read(buf, end, buf.size - end)
+            if (n < 0) {
+                eof = true
+                break
+            }
+            end += n
+        }
+    }
+
+    /// @return Length of the chunk at buf[off].
+    private fun cut(off: Int, len: Int): Int {
+        if (len <= min) return len
+        val n = if (len > max) max else len
+        val normal = if (n > avg) avg else n
+        var hash = 0L
+        var i = min
+        while (i < normal) {
+            hash = (hash shl 1) + GEAR[buf[off + i].toInt() and 0xff]
+            if (hash and maskS == 0L) return i + 1
+            ++i
+        }
+        while (i < n) {
+            hash = (hash shl 1) + GEAR[buf[off + i].toInt() and 0xff]
+            if (hash and maskL == 0L) return i + 1
+            ++i
+        }
+        return n
+    }
+
+    companion object {
+        const val MIN = 16 * 1024
+        const val AVG = 64 * 1024
+        const val MAX = 256 * 1024
+
+        /// NOTE: The table must never change, otherwise the same content would no longer chunk the same way.
+        private val GEAR = LongArray(256).also {
+            var seed = 0x2545f4914f6cdd1dL
+            for (i in it.indices) {
+                seed += -0x61c8864680b583ebL
+                var z = seed
+                z = (z xor (z ushr 30)) * -0x40a7b892e31b1a47L
+                z = (z xor (z ushr 27)) * -0x6b2fb644ecceee15L
+                it[i] = z xor (z ushr 31)
+            }
+        }
+
+        /// @return A mask of the high bits, since the high bits of the gear hash depend on the most bytes.
+        private fun mask(avg: Int, delta: Int): Long {
+            val bits = 31 - Integer.numberOfLeadingZeros(avg) + delta
+            return -1L shl (64 - bits)
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import com.cplusedition.bot.core.FS
+import com.cplusedition.bot.core.FileUt
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/// Per directory file count, dir count, total bytes and newest file mtime of a FileRootInfo.
+/// A record is dropped, together with the records of its ancestors, when the DirCache reports
+/// a change under it, so only the changed directories are listed again. A record of a directory
+/// that is not watched, ie. evicted from the DirCache or loaded from disk, is revalidated against
+/// the directory mtime on use.
+class DirAggregates constructor(
+    private val root: FileRootInfo,
+    private val cache: DirCache,
+) : DirCache.IListener {
+
+    class Aggregate constructor(
+        val files: Long,
+        val dirs: Long,
+        val size: Long,
+        val newest: Long,
+    ) {
+        operator fun plus(other: Aggregate): Aggregate {
+            return Aggregate(files + other.files, dirs + other.dirs, size + other.size, maxOf(newest, other.newest))
+        }
+    }
+
+    private class Record constructor(
+        val mtime: Long,
+        /// Of the direct children only.
+        val direct: Aggregate,
+        val subdirs: List<String>,
+        /// Of the whole subtree, excluding the directory itself.
+        var total: Aggregate,
+        /// True while the directory is watched and nothing under it changed.
+        var verified: Boolean,
+    )
+
+    private val lock = ReentrantLock()
+    private val records = HashMap<String, Record>()
+    /// Bumped on every change, records computed across a change are not kept.
+    private var generation = 0L
+
+    init {
+        cache.addListener(this)
+    }
+
+    /// @return Pair(direct, total) aggregates of the given directory, null if not a directory of this root.
+    fun get(dir: IFileInfo): Pair<Aggregate, Aggregate>? {
+        if (dir.root !== root) return null
+        return record(dir)?.let { Pair(it.direct, it.total) }
+    }
+
+    override fun changed(file: File) {
+        var rpath = rpathOf(file) ?: return
+        lock.withLock {
+            ++generation
+            while (true) {
+                records.remove(rpath)
+                if (rpath.isEmpty()) break
+                rpath = rpath.substringBeforeLast(FS, "")
+            }
+        }
+    }
+
+    /// The totals of the ancestors include the subtree that is no longer watched, so they are
+    /// revalidated on use too.
+    override fun unwatched(dir: File) {
+        var rpath = rpathOf(dir) ?: return
+        lock.withLock {
+            while (true) {
+                records[rpath]?.verified = false
+                if (rpath.isEmpty()) break
+                rpath = rpath.substringBeforeLast(FS, "")
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    fun save(output: OutputStream) {
+        val snapshot = lock.withLock { HashMap(records) }
+        val out = DataOutputStream(output.buffered())
+        out.writeInt(VERSION)
+        out.writeInt(snapshot.size)
+        for ((rpath, record) in snapshot) {
+            out.writeUTF(rpath)
+            out.writeLong(record.mtime)
+            write(out, record.direct)
+            write(out, record.total)
+            out.writeInt(record.subdirs.size)
+            for (name in record.subdirs) out.writeUTF(name)
+        }
+        out.flush()
+    }
+
+    /// Records loaded are revalidated on use.
+    @Throws(IOException::class)
+    fun load(input: InputStream) {
+        val ret = HashMap<String, Record>()
+        val data = DataInputStream(input.buffered())
+        if (data.readInt() != VERSION) return
+        val count = data.readInt()
+        for (i in 0 until count) {
+            val rpath = data.readUTF()
+            val mtime = data.readLong()
+            val direct = read(data)
+            val total = read(data)
+            val subdirs = ArrayList<String>()
+            for (k in 0 until data.readInt()) subdirs.add(data.readUTF())
+            ret[rpath] = Record(mtime, direct, subdirs, total, false)
+        }
+        lock.withLock {
+            for ((rpath, record) in ret) records.putIfAbsent(rpath, record)
+        }
+    }
+
+    private fun record(dir: IFileInfo): Record? {
+        val file = dir.file ?: return null
+        val rpath = dir.rpath
+        val (record, start) = lock.withLock { Pair(records[rpath], generation) }
+        if (record != null && record.verified) return record
+        //// Not dir.stat(), the snapshot from a cached parent listing may predate the last change.
+        val stat = FileStat.of(file) ?: return null
+        if (!stat.isDir) return null
+        if (record != null && stat.lastModified == record.mtime) {
+            //// The entries are unchanged, but not necessarily the subtrees.
+            val total = combine(dir, record.direct, record.subdirs)
+            lock.withLock {
+                if (generation == start && records[rpath] === record) record.total = total
+            }
+            return Record(record.mtime, record.direct, record.subdirs, total, false)
+        }
+        var files = 0L
+        var dirs = 0L
+        var size = 0L
+        var newest = 0L
+        val subdirs = ArrayList<String>()
+        for (child in dir.readDir(ArrayList())) {
+            val childstat = child.stat() ?: continue
+            if (childstat.isDir) {
+                ++dirs
+                subdirs.add(child.name)
+            } else {
+                ++files
+                size += childstat.length
+                newest = maxOf(newest, childstat.lastModified)
+            }
+        }
+        val direct = Aggregate(files, dirs, size, newest)
+        val total = combine(dir, direct, subdirs)
+        return lock.withLock {
+            val ret = Record(stat.lastModified, direct, subdirs, total, cache.isCached(file))
+            if (generation == start) records[rpath] = ret
+            ret
+        }
+    }
+
+    private fun combine(dir: IFileInfo, direct: Aggregate, subdirs: List<String>): Aggregate {
+        var total = direct
+        for (name in subdirs) {
+            total += record(dir.fileInfo(name))?.total ?: continue
+        }
+        return total
+    }
+
+    private fun rpathOf(file: File): String? {
+        return FileUt.rpathOrNull(file, root.file)
+    }
+
+    companion object {
+        private const val VERSION = 1
+
+        private fun write(out: DataOutputStream, value: Aggregate) {
+            out.writeLong(value.files)
+            out.writeLong(value.dirs)
+            out.writeLong(value.size)
+            out.writeLong(value.newest)
+        }
+
+        private fun read(input: DataInputStream): Aggregate {
+            return Aggregate(input.readLong(), input.readLong(), input.readLong(), input.readLong())
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import com.cplusedition.bot.core.Fun20
+import com.cplusedition.bot.core.Without
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.FileSystems
+import java.nio.file.Path
+import java.nio.file.StandardWatchEventKinds
+import java.nio.file.WatchKey
+import java.nio.file.WatchService
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/// An LRU cache of directory listings with the attribute snapshots of the entries.
+/// External changes are picked up by a WatchService on each cached directory,
+/// changes made through FileInfoBase invalidate the affected listings directly.
+/// Attributes of subdirectories are read again on a hit, changes inside them are not reported to the parent.
+class DirCache constructor(
+    /// Max. total number of directory entries in the cached listings.
+    private val budget: Int,
+    name: String,
+) : Closeable {
+
+    interface IListener {
+        /// Called when the given file or directory is changed, or its listing may have changed.
+        fun changed(file: File)
+
+        /// Called when the given directory is no longer watched.
+        fun unwatched(dir: File)
+    }
+
+    private class Entry(val name: String, val stat: FileStat?)
+
+    private class Listing(val entries: List<Entry>, val key: WatchKey)
+
+    /// Listings being read, marked stale if invalidated before they are cached.
+    private class Loading {
+        var count = 0
+        var stale = false
+    }
+
+    private val lock = ReentrantLock()
+    private val listings = LinkedHashMap<Path, Listing>(16, 0.75f, true)
+    private val loading = HashMap<Path, Loading>()
+    private var size = 0
+    private val watcher: WatchService? = Without.exceptionOrNull { FileSystems.getDefault().newWatchService() }
+    private val listeners = CopyOnWriteArrayList<IListener>()
+
+    val hits = LongAdder()
+    val misses = LongAdder()
+    val invalidations = LongAdder()
+    val evictions = LongAdder()
+    val entries: Int get() = lock.withLock { size }
+
+    init {
+        if (watcher != null) {
+            Thread({ watch(watcher) }, "dircache-$name").also { it.isDaemon = true }.start()
+        }
+    }
+
+    /// Call callback with the name and attributes of each entry of the given directory.
+    @Throws(IOException::class)
+    fun readDir(dir: File, callback: Fun20<String, FileStat?>) {
+        val path = dir.toPath()
+        val cached = lock.withLock { listings[path] }
+        if (cached != null) {
+            hits.increment()
+            for (entry in cached.entries) {
+                val stat = entry.stat
+                //// A change inside a subdirectory updates its attributes without an event on this directory.
+                callback(entry.name, if (stat != null && stat.isDir) FileStat.of(File(dir, entry.name)) else stat)
+            }
+            return
+        }
+        misses.increment()
+        val entries = ArrayList<Entry>()
+        //// Register before reading so that no change after the read can be missed.
+        val state = lock.withLock { loading.getOrPut(path) { Loading() }.also { it.count += 1 } }
+        val key = watcher?.let { register(it, path) }
+        try {
+            FileStat.readDir(dir) { name, stat ->
+                entries.add(Entry(name, stat))
+            }
+        } catch (e: IOException) {
+            //// Do not cache a partial listing.
+            lock.withLock { state.stale = true }
+            throw e
+        } finally {
+            put(path, state, key, entries)
+        }
+        for (entry in entries) callback(entry.name, entry.stat)
+    }
+
+    fun addListener(listener: IListener) {
+        listeners.add(listener)
+    }
+
+    /// @return true if the listing of the given directory is cached, ie. changes to it are being watched.
+    fun isCached(dir: File): Boolean {
+        return lock.withLock { listings.containsKey(dir.toPath()) }
+    }
+
+    /// Drop the cached listing of the given directory.
+    fun invalidate(dir: File?) {
+        if (dir != null) invalidate(dir.toPath())
+    }
+
+    /// Drop the cached listings of the given directory and all its descendants, eg. after it is moved away.
+    fun invalidateTree(dir: File) {
+        val top = dir.toPath()
+        val dirs = lock.withLock {
+            for ((path, state) in loading) {
+                if (path.startsWith(top)) state.stale = true
+            }
+            listings.keys.filter { it.startsWith(top) }
+        }
+        for (path in dirs) invalidate(path)
+        if (top !in dirs) invalidate(top)
+    }
+
+    fun clear() {
+        val dirs = lock.withLock {
+            for (state in loading.values) state.stale = true
+            for (listing in listings.values) listing.key.cancel()
+            val ret = ArrayList(listings.keys)
+            listings.clear()
+            size = 0
+            ret
+        }
+        for (dir in dirs) unwatched(dir)
+    }
+
+    override fun close() {
+        clear()
+        Without.exceptionOrNull { watcher?.close() }
+    }
+
+    private fun register(watcher: WatchService, path: Path): WatchKey? {
+        return Without.exceptionOrNull {
+            path.register(
+                watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY
+            )
+        }
+    }
+
+    private fun put(path: Path, state: Loading, key: WatchKey?, entries: List<Entry>) {
+        val evicted = ArrayList<Path>()
+        lock.withLock {
+            if (--state.count == 0) loading.remove(path)
+            if (key == null) return
+            //// A cancelled key may have missed events.
+            if (state.stale || !key.isValid || entries.size > budget) {
+                if (listings[path]?.key !== key) key.cancel()
+                return
+            }
+            val listing = Listing(entries, key)
+            listings.put(path, listing)?.let { size -= it.entries.size }
+            size += listing.entries.size
+            val it = listings.entries.iterator()
+            while (size > budget && it.hasNext()) {
+                val eldest = it.next()
+                if (eldest.key == path) continue
+                it.remove()
+                eldest.value.key.cancel()
+                size -= eldest.value.entries.size
+                evictions.increment()
+                evicted.add(eldest.key)
+            }
+        }
+        for (dir in evicted) unwatched(dir)
+    }
+
+    private fun invalidate(path: Path) {
+        lock.withLock {
+            loading[path]?.stale = true
+            listings.remove(path)?.let {
+                it.key.cancel()
+                size -= it.entries.size
+                invalidations.increment()
+            }
+        }
+        if (listeners.isNotEmpty()) {
+            val file = path.toFile()
+            for (listener in listeners) listener.changed(file)
+        }
+    }
+
+    private fun unwatched(dir: Path) {
+        if (listeners.isEmpty()) return
+        val file = dir.toFile()
+        for (listener in listeners) listener.unwatched(file)
+    }
+
+    private fun watch(watcher: WatchService) {
+        while (true) {
+            val key = try {
+                watcher.take()
+            } catch (e: ClosedWatchServiceException) {
+                return
+            } catch (e: InterruptedException) {
+                return
+            }
+            val dir = key.watchable() as Path
+            val overflow = key.pollEvents().any { it.kind() == StandardWatchEventKinds.OVERFLOW }
+            if (overflow) clear() else {
+                invalidate(dir)
+                //// The parent listing holds the attributes of the directory itself.
+                dir.parent?.let { invalidate(it) }
+            }
+            key.reset()
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import com.cplusedition.bot.core.Fun31
+import com.cplusedition.bot.core.ObjectPool
+import com.cplusedition.bot.core.ObjectPoolDelegate
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.*
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+
+/// Gzip compression of response bodies with pooled Deflaters.
+object Gzip {
+    const val ENCODING = "gzip"
+
+    /// Responses smaller than this are not worth compressing.
+    const val MIN_SIZE = 1024
+
+    private const val BUFSIZE = 16 * 1024
+    private val HEADER = byteArrayOf(0x1f, 0x8b.toByte(), Deflater.DEFLATED.toByte(), 0, 0, 0, 0, 0, 0, 0xff.toByte())
+
+    private val deflaters = ObjectPool(object : ObjectPoolDelegate<Deflater>() {
+        override fun ctor(): Deflater {
+            return Deflater(Deflater.DEFAULT_COMPRESSION, true)
+        }
+
+        override fun onunget(a: Deflater, size: Int): Deflater? {
+            if (size >= Runtime.getRuntime().availableProcessors()) {
+                a.end()
+                return null
+            }
+            a.reset()
+            return a
+        }
+    })
+
+    fun isCompressible(mime: String?): Boolean {
+        if (mime == null) return false
+        val lcmime = mime.lowercase(Locale.ROOT)
+        return lcmime.startsWith("text/")
+                || lcmime.contains("json")
+                || lcmime.contains("javascript")
+                || lcmime.contains("xml")
+    }
+
+    fun gzip(data: ByteArray, offset: Int = 0, length: Int = data.size): ByteArray {
+        val output = ByteArrayOutputStream(length / 4 + HEADER.size + 8)
+        withDeflater(output) { deflater, crc, b ->
+            crc.update(data, offset, length)
+            deflater.setInput(data, offset, length)
+            deflater.finish()
+            deflate(output, deflater, b)
+            length.toLong()
+        }
+        return output.toByteArray()
+    }
+
+    fun gzip(output: OutputStream, input: InputStream) {
+        withDeflater(output) { deflater, crc, b ->
+            val inbuf = ByteArray(BUFSIZE)
+            var total = 0L
+            while (true) {
+                val n = input.read(inbuf)
+                if (n < 0) break
+                if (n == 0) continue
+                crc.update(inbuf, 0, n)
+                deflater.setInput(inbuf, 0, n)
+                while (!deflater.needsInput()) {
+                    val len = deflater.deflate(b)
+                    if (len > 0) output.write(b, 0, len)
+                }
+                total += n
+            }
+            deflater.finish()
+            deflate(output, deflater, b)
+            total
+        }
+    }
+
+    private fun withDeflater(output: OutputStream, code: Fun31<Deflater, CRC32, ByteArray, Long>) {
+        deflaters.use { deflater ->
+            val crc = CRC32()
+            val b = ByteArray(BUFSIZE)
+            output.write(HEADER)
+            val size = code(deflater, crc, b)
+            writeLE32(output, crc.value)
+            writeLE32(output, size)
+        }
+    }
+
+    private fun deflate(output: OutputStream, deflater: Deflater, b: ByteArray) {
+        while (!deflater.finished()) {
+            val len = deflater.deflate(b)
+            if (len > 0) output.write(b, 0, len)
+        }
+    }
+
+    private fun writeLE32(output: OutputStream, value: Long) {
+        output.write(value.toInt() and 0xff)
+        output.write((value ushr 8).toInt() and 0xff)
+        output.write((value ushr 16).toInt() and 0xff)
+        output.write((value ushr 24).toInt() and 0xff)
+    }
+}
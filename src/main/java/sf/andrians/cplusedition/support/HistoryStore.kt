@@ -0,0 +1,570 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import com.cplusedition.bot.core.Basepath
+import com.cplusedition.bot.core.FS
+import com.cplusedition.bot.core.Fun01
+import com.cplusedition.bot.core.Fun10
+import com.cplusedition.bot.core.Fun11
+import com.cplusedition.bot.core.Hex
+import com.cplusedition.bot.core.SumKind
+import com.cplusedition.bot.core.SumUt
+import com.cplusedition.bot.core.With
+import com.cplusedition.bot.core.listOrEmpty
+import org.json.JSONObject
+import sf.andrians.cplusedition.support.IFileInfo.Key
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.SequenceInputStream
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import kotlin.concurrent.withLock
+
+/// Versions of the files of a FileRootInfo, recorded before a file is overwritten or deleted.
+/// The content is cut into content defined chunks, kept as gzip compressed blobs named by the
+/// SHA-256 digest of the chunk, so identical chunks of any versions share a blob and a small edit
+/// to a document only adds the chunks around the edit. The version index is kept in memory, keyed
+/// by rpath and by id for O(log n) lookups. It is persisted as a snapshot on close with a journal
+/// of the changes since the snapshot. Retention is bounded by age and by the total size of the blobs.
+/// The file to record is hard linked, or copied if that is not supported, and compressed by a
+/// background thread.
+class HistoryStore constructor(
+    private val dir: File,
+    private val rootname: String,
+    /// Versions older than this in ms are pruned.
+    private val maxAge: Long,
+    /// Oldest versions are pruned while the total size of the blobs exceeds this.
+    private val maxBytes: Long,
+    /// Files larger than this are not recorded.
+    private val maxFileSize: Long,
+    /// Max. total size of the files recorded by a bulk() operation.
+    private val maxBulkBytes: Long,
+) : Closeable {
+
+    private inner class Version constructor(
+        override val id: Long,
+        val rpath: String,
+        /// Of the whole content.
+        val digest: String,
+        val chunks: List<String>,
+        override val length: Long,
+        override val lastModified: Long,
+        override val lastDeleted: Long,
+        override val isDeleted: Boolean,
+    ) : IDeletedFileStat, IFileStat {
+        override val stat: IFileStat get() = this
+        override val name: String get() = Basepath.name(rpath)
+        override val dir: String get() = Basepath.joinRpath(rootname, Basepath.dir(rpath) ?: "")
+        override val isDir: Boolean get() = false
+        override val isFile: Boolean get() = true
+        override val perm: String get() = FileInfoUtil.perm(readable, writable)
+        override val readable: Boolean get() = true
+        override val writable: Boolean get() = false
+        override val checksumBytes: ByteArray get() = Hex.decode(digest)
+
+        override fun cpath(): String {
+            return Basepath.joinRpath(rootname, rpath)
+        }
+
+        override fun toJSON(): JSONObject {
+            return toJSON(this, lastDeleted)
+                .put(Key.id, id)
+                .put(Key.isDeleted, isDeleted)
+        }
+    }
+
+    /// A directory that contains versions, for history(listdir = true).
+    private inner class DirStat constructor(
+        val rpath: String,
+        override val lastDeleted: Long,
+    ) : IDeletedFileStat, IFileStat {
+        override val stat: IFileStat get() = this
+        override val id: Long get() = 0L
+        override val name: String get() = if (rpath.isEmpty()) rootname else Basepath.name(rpath)
+        override val dir: String
+            get() = if (rpath.isEmpty()) "" else Basepath.joinRpath(rootname, Basepath.dir(rpath) ?: "")
+        override val isDeleted: Boolean get() = false
+        override val isDir: Boolean get() = true
+        override val isFile: Boolean get() = false
+        override val length: Long get() = 0L
+        override val lastModified: Long get() = lastDeleted
+        override val perm: String get() = FileInfoUtil.perm(readable, writable)
+        override val readable: Boolean get() = true
+        override val writable: Boolean get() = false
+        override val checksumBytes: ByteArray? get() = null
+
+        override fun cpath(): String {
+            return Basepath.joinRpath(rootname, rpath)
+        }
+
+        override fun toJSON(): JSONObject {
+            return toJSON(this, lastDeleted).put(Key.id, 0L)
+        }
+    }
+
+    private class Blob(val size: Long) {
+        var refs = 0
+    }
+
+    /// Chunks of a file, with the temp files of the chunks that were not in the store.
+    private class Stored(val digest: String, val chunks: List<String>, val tmps: Map<String, File>)
+
+    private val lock = ReentrantLock()
+    /// Versions of each rpath, oldest first.
+    private val byPath = TreeMap<String, ArrayList<Version>>()
+    private val byId = TreeMap<Long, Version>()
+    private val blobs = HashMap<String, Blob>()
+    private val blobsDir = File(dir, "blobs")
+    private val indexFile = File(dir, "index")
+    private val journalFile = File(dir, "journal")
+    private val pendingDir = File(dir, "pending")
+    private val digesters = SumUt.digesterPool(SumKind.SHA256)
+    private val executor = Executors.newSingleThreadExecutor {
+        Thread(it, "history-$rootname").also { thread -> thread.isDaemon = true }
+    }
+    private val serial = AtomicLong()
+    /// Remaining bytes of the bulk() operation of the thread, if any.
+    private val bulkBudget = ThreadLocal<LongArray>()
+    private var journal: DataOutputStream? = null
+    private var nextId = 1L
+    private var totalBytes = 0L
+
+    init {
+        blobsDir.mkdirs()
+        With.exceptionOrNull { load() }
+        removeOrphans()
+        pendingDir.mkdirs()
+    }
+
+    /// Total compressed size of the blobs in bytes.
+    val size: Long get() = lock.withLock { totalBytes }
+
+    /// Number of versions.
+    val count: Int get() = lock.withLock { byId.size }
+
+    /// Record the current content of file as a version of rpath, failures are ignored.
+    /// The content is captured before return, the version is added in the background.
+    /// @param deleted True if the file is being deleted, false if it is being overwritten.
+    fun record(rpath: String, file: File, deleted: Boolean) {
+        if (rpath.isEmpty() || rpath.split(FS).any { it.startsWith(".") }) return
+        With.exceptionOrNull {
+            val stat = FileStat.of(file) ?: return@exceptionOrNull
+            if (!stat.isFile || stat.length > maxFileSize) return@exceptionOrNull
+            val latest = lock.withLock { byPath[rpath]?.lastOrNull() }
+            if (!deleted && latest != null && !latest.isDeleted
+                && latest.lastModified == stat.lastModified && latest.length == stat.length
+            ) return@exceptionOrNull
+            bulkBudget.get()?.let {
+                if (it[0] < stat.length) return@exceptionOrNull
+                it[0] -= stat.length
+            }
+            val now = System.currentTimeMillis()
+            val link = File(pendingDir, serial.incrementAndGet().toString())
+            //// A hard link keeps the content after the file is replaced by a rename or deleted.
+            if (With.exceptionOrNull { Files.createLink(link.toPath(), file.toPath()) } != null) {
+                Files.copy(file.toPath(), link.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            }
+            try {
+                executor.execute {
+                    try {
+                        commit(rpath, link, stat, deleted, now)
+                    } finally {
+                        link.delete()
+                    }
+                }
+            } catch (e: RejectedExecutionException) {
+                link.delete()
+            }
+        }
+    }
+
+    /// Run code as a bulk operation, eg. deleting a tree, of the current thread. The files recorded
+    /// by it are limited to maxBulkBytes in total, so that it cannot push the rest of the history
+    /// out of retention.
+    fun <R> bulk(code: Fun01<R>): R {
+        if (bulkBudget.get() != null) return code()
+        bulkBudget.set(longArrayOf(maxBulkBytes))
+        try {
+            return code()
+        } finally {
+            bulkBudget.remove()
+        }
+    }
+
+    /// Wait for the pending records to be added.
+    fun flush() {
+        With.exceptionOrNull { executor.submit {}.get() }
+    }
+
+    private fun commit(rpath: String, file: File, stat: FileStat, deleted: Boolean, now: Long) {
+        With.exceptionOrNull {
+            while (true) {
+                val stored = store(file)
+                val ok = lock.withLock {
+                    //// A chunk found in the store may have been pruned since.
+                    if (stored.chunks.any { !blobs.containsKey(it) && !stored.tmps.containsKey(it) }) {
+                        return@withLock false
+                    }
+                    val last = byPath[rpath]?.lastOrNull()
+                    if (last != null && last.digest == stored.digest && last.isDeleted == deleted) {
+                        return@withLock true
+                    }
+                    for ((digest, tmp) in stored.tmps) {
+                        if (blobs.containsKey(digest)) continue
+                        val blob = blobFile(digest)
+                        blob.parentFile.mkdirs()
+                        Files.move(tmp.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING)
+                        blobs[digest] = Blob(blob.length()).also { totalBytes += it.size }
+                    }
+                    val version = Version(
+                        nextId++, rpath, stored.digest, stored.chunks,
+                        stat.length, stat.lastModified, now, deleted
+                    )
+                    add(version)
+                    journal { writeVersion(it, version) }
+                    prune(now)
+                    true
+                }
+                for (tmp in stored.tmps.values) tmp.delete()
+                if (ok) break
+            }
+        }
+    }
+
+    /// @param rpath Directory rpath, "" for the root.
+    /// @param name File name, empty for all files directly under rpath.
+    /// @param callback Called on each version, latest first.
+    fun history(rpath: String, name: String, callback: Fun10<IDeletedFileStat>) {
+        val ret = ArrayList<Version>()
+        lock.withLock {
+            if (name.isNotEmpty()) {
+                byPath[Basepath.joinRpath(rpath, name)]?.let { ret.addAll(it) }
+            } else {
+                val prefix = if (rpath.isEmpty()) "" else rpath + FS
+                for ((path, versions) in byPath.subMap(prefix, true, prefix + Char.MAX_VALUE, true)) {
+                    if (path.indexOf(FS, prefix.length) < 0) ret.addAll(versions)
+                }
+            }
+        }
+        ret.sortWith(latestFirst)
+        ret.forEach(callback)
+    }
+
+    /// Call callback on each directory that contains versions, including their ancestors.
+    fun dirs(callback: Fun10<IDeletedFileStat>) {
+        val ret = TreeMap<String, Long>()
+        lock.withLock {
+            for ((path, versions) in byPath) {
+                val latest = versions.maxOf { it.lastDeleted }
+                var dir = Basepath.dir(path) ?: ""
+                while (true) {
+                    ret[dir] = maxOf(latest, ret[dir] ?: 0L)
+                    if (dir.isEmpty()) break
+                    dir = Basepath.dir(dir) ?: ""
+                }
+            }
+        }
+        for ((dir, latest) in ret) callback(DirStat(dir, latest))
+    }
+
+    /// @param callback Called on each version, latest first.
+    fun scan(callback: Fun10<IDeletedFileStat>) {
+        val ret = lock.withLock { ArrayList<Version>(byId.values) }
+        ret.reverse()
+        ret.forEach(callback)
+    }
+
+    /// Remove the versions for which predicate return true and the versions beyond retention.
+    fun cleanup(predicate: Fun11<IDeletedFileStat, Boolean>?): CleanupTrashResult {
+        lock.withLock {
+            val before = byId.size
+            val bytes = totalBytes
+            if (predicate != null) {
+                for (version in ArrayList(byId.values)) {
+                    if (predicate(version)) remove(version)
+                }
+            }
+            prune(System.currentTimeMillis())
+            return CleanupTrashResult((before - byId.size).toLong(), 0, bytes - totalBytes)
+        }
+    }
+
+    /// @return An input stream of the content of version id, null if not found.
+    @Throws(IOException::class)
+    fun inputStream(id: Long): InputStream? {
+        val version = lock.withLock { byId[id] } ?: return null
+        val chunks = version.chunks.iterator()
+        //// Open the chunks one at a time.
+        return SequenceInputStream(object : Enumeration<InputStream> {
+            override fun hasMoreElements(): Boolean {
+                return chunks.hasNext()
+            }
+
+            override fun nextElement(): InputStream {
+                return GZIPInputStream(blobFile(chunks.next()).inputStream())
+            }
+        })
+    }
+
+    /// @return The version with the given id, null if not found.
+    fun version(id: Long): IDeletedFileStat? {
+        return lock.withLock { byId[id] }
+    }
+
+    /// Add the pending records, write a snapshot of the index and clear the journal.
+    override fun close() {
+        executor.shutdown()
+        With.exceptionOrNull { executor.awaitTermination(60, TimeUnit.SECONDS) }
+        lock.withLock {
+            With.exceptionOrNull {
+                journal?.close()
+                journal = null
+                AtomicFile.write(indexFile, null) { output ->
+                    DataOutputStream(output.buffered()).use { out ->
+                        out.writeInt(VERSION)
+                        out.writeLong(nextId)
+                        out.writeInt(byId.size)
+                        for (version in byId.values) writeVersion(out, version)
+                    }
+                }
+                journalFile.delete()
+            }
+        }
+    }
+
+    /// Must be called with lock held.
+    private fun prune(now: Long) {
+        while (true) {
+            val oldest = byId.firstEntry()?.value ?: break
+            if (oldest.lastDeleted >= now - maxAge && totalBytes <= maxBytes) break
+            remove(oldest)
+        }
+    }
+
+    /// Must be called with lock held.
+    private fun add(version: Version) {
+        byId[version.id] = version
+        byPath.getOrPut(version.rpath) { ArrayList() }.add(version)
+        for (chunk in version.chunks) blobs[chunk]?.let { it.refs += 1 }
+    }
+
+    /// Must be called with lock held.
+    private fun remove(version: Version) {
+        byId.remove(version.id) ?: return
+        byPath[version.rpath]?.let {
+            it.remove(version)
+            if (it.isEmpty()) byPath.remove(version.rpath)
+        }
+        journal { out ->
+            out.writeByte(OP_REMOVE)
+            out.writeLong(version.id)
+        }
+        for (chunk in version.chunks) {
+            val blob = blobs[chunk] ?: continue
+            if (--blob.refs <= 0) {
+                blobs.remove(chunk)
+                totalBytes -= blob.size
+                blobFile(chunk).delete()
+            }
+        }
+    }
+
+    /// Cut the content into chunks and compress the chunks that are not in the store to temp files.
+    private fun store(file: File): Stored {
+        val chunks = ArrayList<String>()
+        val tmps = HashMap<String, File>()
+        try {
+            val digest = digesters.use { whole ->
+                digesters.use { digester ->
+                    whole.reset()
+                    file.inputStream().use { input ->
+                        val chunker = Chunker(input, CHUNK_MIN, CHUNK_AVG, CHUNK_MAX)
+                        val buf = ByteArray(CHUNK_MAX)
+                        while (true) {
+                            val n = chunker.next(buf)
+                            if (n == 0) break
+                            whole.update(buf, 0, n)
+                            digester.reset()
+                            digester.update(buf, 0, n)
+                            val chunk = Hex.encode(digester.digest()).toString()
+                            chunks.add(chunk)
+                            if (tmps.containsKey(chunk) || lock.withLock { blobs.containsKey(chunk) }) continue
+                            val tmp = File.createTempFile("blob", ".tmp", dir)
+                            tmps[chunk] = tmp
+                            GZIPOutputStream(FileOutputStream(tmp).buffered()).use { it.write(buf, 0, n) }
+                        }
+                    }
+                    Hex.encode(whole.digest()).toString()
+                }
+            }
+            return Stored(digest, chunks, tmps)
+        } catch (e: Throwable) {
+            for (tmp in tmps.values) tmp.delete()
+            throw e
+        }
+    }
+
+    private fun blobFile(digest: String): File {
+        return File(File(blobsDir, digest.substring(0, 2)), digest.substring(2))
+    }
+
+    private fun journal(code: Fun10<DataOutputStream>) {
+        With.exceptionOrNull {
+            val out = journal ?: DataOutputStream(FileOutputStream(journalFile, true).buffered()).also { journal = it }
+            code(out)
+            out.flush()
+        }
+    }
+
+    private fun writeVersion(out: DataOutputStream, version: Version) {
+        out.writeByte(OP_ADD_CHUNKS)
+        out.writeLong(version.id)
+        out.writeUTF(version.rpath)
+        out.write(Hex.decode(version.digest))
+        out.writeLong(version.length)
+        out.writeLong(version.lastModified)
+        out.writeLong(version.lastDeleted)
+        out.writeBoolean(version.isDeleted)
+        out.writeInt(version.chunks.size)
+        for (chunk in version.chunks) out.write(Hex.decode(chunk))
+    }
+
+    /// A version written by OP_ADD is a single chunk with the digest of the whole content.
+    private fun readVersion(data: DataInputStream, op: Int): Version {
+        val id = data.readLong()
+        val rpath = data.readUTF()
+        val digest = readDigest(data)
+        val length = data.readLong()
+        val lastModified = data.readLong()
+        val lastDeleted = data.readLong()
+        val isDeleted = data.readBoolean()
+        val chunks = if (op == OP_ADD) listOf(digest) else (0 until data.readInt()).map { readDigest(data) }
+        return Version(id, rpath, digest, chunks, length, lastModified, lastDeleted, isDeleted)
+    }
+
+    private fun readDigest(data: DataInputStream): String {
+        return Hex.encode(ByteArray(DIGEST_SIZE).also { data.readFully(it) }).toString()
+    }
+
+    /// Read the index snapshot then replay the journal, a truncated journal entry is ignored.
+    private fun load() {
+        val versions = TreeMap<Long, Version>()
+        if (indexFile.exists()) {
+            DataInputStream(indexFile.inputStream().buffered()).use { data ->
+                if (data.readInt() != VERSION) return
+                nextId = data.readLong()
+                for (i in 0 until data.readInt()) {
+                    val op = data.readByte().toInt()
+                    if (op != OP_ADD && op != OP_ADD_CHUNKS) throw IOException()
+                    readVersion(data, op).let { versions[it.id] = it }
+                }
+            }
+        }
+        if (journalFile.exists()) {
+            DataInputStream(journalFile.inputStream().buffered()).use { data ->
+                try {
+                    while (true) {
+                        when (val op = data.readByte().toInt()) {
+                            OP_ADD, OP_ADD_CHUNKS -> readVersion(data, op).let { versions[it.id] = it }
+                            OP_REMOVE -> versions.remove(data.readLong())
+                            else -> break
+                        }
+                    }
+                } catch (e: EOFException) {
+                    //// Truncated by a crash.
+                }
+            }
+        }
+        lock.withLock {
+            for (version in versions.values) {
+                if (version.chunks.any { !blobFile(it).isFile }) continue
+                for (chunk in version.chunks) {
+                    blobs.getOrPut(chunk) { Blob(blobFile(chunk).length()).also { totalBytes += it.size } }
+                }
+                add(version)
+                nextId = maxOf(nextId, version.id + 1)
+            }
+            prune(System.currentTimeMillis())
+        }
+    }
+
+    /// Delete the blobs, temp files and pending records that are not referenced, ie. left behind by a crash.
+    private fun removeOrphans() {
+        for (name in dir.listOrEmpty()) {
+            if (name.endsWith(".tmp")) File(dir, name).delete()
+        }
+        for (name in pendingDir.listOrEmpty()) {
+            File(pendingDir, name).delete()
+        }
+        lock.withLock {
+            for (prefix in blobsDir.listOrEmpty()) {
+                for (name in File(blobsDir, prefix).listOrEmpty()) {
+                    if (!blobs.containsKey(prefix + name)) File(File(blobsDir, prefix), name).delete()
+                }
+            }
+        }
+    }
+
+    /// @return Rpath of the given cpath relative to the root, null if not under the root.
+    fun rpathOf(cpath: String): String? {
+        return when {
+            cpath == rootname -> ""
+            cpath.startsWith(rootname + FS) -> cpath.substring(rootname.length + 1)
+            else -> null
+        }
+    }
+
+    companion object {
+        private const val VERSION = 1
+        private const val OP_ADD = 1
+        private const val OP_REMOVE = 2
+        private const val OP_ADD_CHUNKS = 3
+        private const val DIGEST_SIZE = 32
+        private const val CHUNK_MIN = 2 * 1024
+        private const val CHUNK_AVG = 8 * 1024
+        private const val CHUNK_MAX = 64 * 1024
+
+        private val latestFirst = Comparator<IDeletedFileStat> { a, b ->
+            compareValues(b.lastDeleted, a.lastDeleted).let { if (it != 0) it else compareValues(b.id, a.id) }
+        }
+
+        internal fun toJSON(stat: IDeletedFileStat, lastDeleted: Long): JSONObject {
+            val ret = JSONObject()
+            ret.put(Key.name, stat.name)
+            ret.put(Key.dir, stat.dir)
+            ret.put(Key.cpath, stat.cpath())
+            FileInfoUtil.toJSONFileStat(ret, stat.stat)
+            ret.put(Key.lastDeleted, lastDeleted)
+            return ret
+        }
+    }
+}
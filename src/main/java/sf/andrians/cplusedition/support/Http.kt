@@ -17,6 +17,10 @@
 package sf.andrians.cplusedition.support
 
 import com.cplusedition.bot.core.Without
+import java.time.Instant
+import java.time.ZoneOffset
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
 
 object Http {
     object HttpHeader {
@@ -221,19 +225,24 @@ object Http {
             val contentLength: Long
     ) {
         companion object {
+            private const val MAX_RANGES = 32
             private val range1pat = Regex("^bytes=(-?[\\d]+)(-([-\\d+]+)?)?$")
             fun parse(value: String?, contentlength: Long, max: Long): HttpRange? {
                 if (value == null) return null
                 val match = range1pat.matchEntire(value) ?: return null
                 var first = Without.exceptionOrNull { java.lang.Long.parseLong(match.groupValues[1]) } ?: return null
+                if (first == 0L && match.groupValues[1].startsWith("-")) return null
                 var last = first
-                if (match.groupValues.size > 2 && match.groupValues[2].isNotEmpty()) {
+                if (first < 0 && match.groupValues[2].isEmpty()) {
+                    last = contentlength - 1
+                } else if (match.groupValues.size > 2 && match.groupValues[2].isNotEmpty()) {
                     last = contentlength - 1
                     if (match.groupValues.size > 3 && match.groupValues[3].isNotEmpty()) {
                         last = Without.exceptionOrNull { java.lang.Long.parseLong(match.groupValues[3]) } ?: return null
                     }
                 }
-                if (first < 0) first += contentlength
+                //// A suffix longer than the content selects the whole content.
+                if (first < 0) first = maxOf(0L, first + contentlength)
                 if (last < 0) last += contentlength
                 if (last >= contentlength) last = contentlength - 1
                 if (first > last) return null
@@ -241,6 +250,20 @@ object Http {
                 if (last - first + 1 > max) last = first + max - 1
                 return HttpRange(first, last, contentlength)
             }
+
+            /// @return The satisfiable ranges of a possibly multiple ranges header value, null if the header
+            /// is missing or invalid and should be ignored, empty if none of the ranges is satisfiable.
+            fun parseAll(value: String?, contentlength: Long, max: Long): List<HttpRange>? {
+                if (value == null || !value.startsWith("bytes=")) return null
+                val specs = value.substring("bytes=".length).split(',').map { "bytes=" + it.trim() }
+                if (specs.size > MAX_RANGES || specs.any { !range1pat.matches(it) }) return null
+                return specs.mapNotNull { parse(it, contentlength, max) }
+            }
+
+            /// @return The Content-Range value of a 416 response.
+            fun unsatisfiedRange(contentlength: Long): String {
+                return "bytes */$contentlength"
+            }
         }
 
         fun contentRange(): String {
@@ -255,4 +278,66 @@ object Http {
             return last - first + 1
         }
     }
+
+    /// Cache validators of a response entity.
+    class Validators(
+            val etag: String,
+            val lastModified: Long
+    ) {
+        /// @return true if the client copy described by the conditional request headers is still valid.
+        fun isNotModified(ifnonematch: String?, ifmodifiedsince: String?): Boolean {
+            if (ifnonematch != null) {
+                return ifnonematch.split(',').any {
+                    val tag = it.trim().removePrefix("W/")
+                    tag == "*" || tag == etag
+                }
+            }
+            if (ifmodifiedsince == null || lastModified <= 0L) return false
+            val since = parseHttpDate(ifmodifiedsince) ?: return false
+            return lastModified / 1000 <= since / 1000
+        }
+
+        /// @return Validators of another representation, eg. a content coding, of the same entity.
+        fun variant(suffix: String): Validators {
+            return Validators(etag.removeSuffix("\"") + "-" + suffix + "\"", lastModified)
+        }
+
+        companion object {
+            /// @param parts Long and Int are formatted in hex, others as is, nulls are skipped.
+            /// @return A strong validator, eg. from size, mtime and inode, or a checksum.
+            fun of(lastModified: Long, vararg parts: Any?): Validators {
+                val etag = parts.filterNotNull().joinToString("-", "\"", "\"") {
+                    when (it) {
+                        is Long -> java.lang.Long.toHexString(it)
+                        is Int -> Integer.toHexString(it)
+                        else -> it.toString()
+                    }
+                }
+                return Validators(etag, lastModified)
+            }
+        }
+    }
+
+    /// @return true if the Accept-Encoding header value accepts the given content coding.
+    fun acceptsEncoding(acceptencoding: String?, coding: String): Boolean {
+        if (acceptencoding == null) return false
+        for (value in acceptencoding.split(',')) {
+            val params = value.split(';')
+            val name = params[0].trim()
+            if (!name.equals(coding, ignoreCase = true) && name != "*") continue
+            val q = params.drop(1).map { it.trim() }.firstOrNull { it.startsWith("q=") }
+            return q == null || (Without.exceptionOrNull { q.substring(2).toDouble() } ?: 0.0) > 0.0
+        }
+        return false
+    }
+
+    fun httpDate(ms: Long): String {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(ms).atZone(ZoneOffset.UTC))
+    }
+
+    fun parseHttpDate(value: String): Long? {
+        return Without.exceptionOrNull {
+            ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli()
+        }
+    }
 }
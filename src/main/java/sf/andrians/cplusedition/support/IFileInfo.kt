@@ -36,6 +36,8 @@ import com.cplusedition.bot.core.IBasepath
 import com.cplusedition.bot.core.IOUt
 import com.cplusedition.bot.core.Serial
 import com.cplusedition.bot.core.TextUt
+import com.cplusedition.bot.core.With
+import com.cplusedition.bot.core.Without
 import com.cplusedition.bot.core.bot
 import com.cplusedition.bot.core.listOrEmpty
 import com.cplusedition.bot.core.mkparentOrNull
@@ -46,11 +48,27 @@ import sf.andrians.cplusedition.support.IFileInfo.Key
 import sf.andrians.cplusedition.support.IStorage.K
 import java.io.Closeable
 import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.FilterOutputStream
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 import java.io.Reader
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
 import java.nio.charset.Charset
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.FileAlreadyExistsException
+import java.nio.file.FileVisitResult
+import java.nio.file.Files
+import java.nio.file.LinkOption
+import java.nio.file.Path
+import java.nio.file.SimpleFileVisitor
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.attribute.FileTime
 import java.util.*
 import java.util.concurrent.locks.Lock
 import java.util.concurrent.locks.ReentrantLock
@@ -67,6 +85,58 @@ interface IFileStat {
     val checksumBytes: ByteArray?
 }
 
+/// An immutable IFileStat snapshot, filled from a single stat call.
+class FileStat constructor(
+    override val isDir: Boolean,
+    override val isFile: Boolean,
+    override val length: Long,
+    override val lastModified: Long,
+    override val readable: Boolean,
+    override val writable: Boolean,
+) : IFileStat {
+
+    override val perm: String get() = FileInfoUtil.perm(readable, writable)
+
+    override val checksumBytes: ByteArray? get() = null
+
+    companion object {
+        /// @return Snapshot of the given file or directory, null if not exists or not accessible.
+        fun of(file: File): FileStat? {
+            return of(file.toPath())
+        }
+
+        /// Readable and writable are checked with access(2) for the process, which takes the
+        /// owner, group and other permissions, ACLs and read-only mounts into account.
+        private fun of(path: Path): FileStat? {
+            return try {
+                val attrs = Files.readAttributes(path, BasicFileAttributes::class.java)
+                if (!attrs.isDirectory && !attrs.isRegularFile) return null
+                FileStat(
+                    attrs.isDirectory,
+                    attrs.isRegularFile,
+                    attrs.size(),
+                    attrs.lastModifiedTime().toMillis(),
+                    Files.isReadable(path),
+                    Files.isWritable(path)
+                )
+            } catch (e: Exception) {
+                null
+            }
+        }
+
+        /// Read the directory entries and their attributes in a single DirectoryStream pass.
+        /// @param callback(name, stat) where stat is null if it is not available.
+        @Throws(IOException::class)
+        fun readDir(dir: File, callback: Fun20<String, FileStat?>) {
+            Files.newDirectoryStream(dir.toPath()).use { stream ->
+                for (path in stream) {
+                    callback(path.fileName.toString(), of(path))
+                }
+            }
+        }
+    }
+}
+
 interface IDeletedFileStat {
     val stat: IFileStat
     val id: Long
@@ -221,7 +291,9 @@ interface IFileInfo : IBasepath {
 
     /**
      * @return The input collection with IFileInfo of files under the current directory.
+     * @throws IOException If the directory exists but cannot be read.
      */
+    @Throws(IOException::class)
     fun <R : MutableCollection<IFileInfo>> readDir(ret: R): R
 
     /** @return true if directory exists or directory is created successfully. */
@@ -635,10 +707,39 @@ open class ReadOnlyFileInfoWrapper(
 
 abstract class FileInfoBase(protected val f: File) : IFileInfo, IFileStat {
 
+    /// Attributes read ahead by readDir() of the parent, dropped on mutation.
+    @Volatile
+    private var snapshot: FileStat? = null
+
     override val exists: Boolean get() = (f.isFile || f.isDirectory)
 
+    /// @return An immutable snapshot of the file attributes.
     override fun stat(): IFileStat? {
-        return if (exists) this else null
+        return snapshot ?: FileStat.of(f)
+    }
+
+    /// The directory listing cache of the root, if any.
+    internal open val dirCache: DirCache? get() = null
+
+    /// The history store of the root, if any.
+    internal open val versions: HistoryStore? get() = null
+
+    /// Drop the cached attributes after a mutation through this info.
+    internal fun invalidate() {
+        snapshot = null
+        dirCache?.let {
+            it.invalidate(f)
+            it.invalidate(f.parentFile)
+        }
+    }
+
+    /// Drop the cached attributes of this file or directory tree, eg. after it is moved away.
+    internal fun invalidateTree() {
+        snapshot = null
+        dirCache?.let {
+            it.invalidateTree(f)
+            it.invalidate(f.parentFile)
+        }
     }
 
     override val isDir: Boolean get() = f.isDirectory
@@ -671,32 +772,52 @@ abstract class FileInfoBase(protected val f: File) : IFileInfo, IFileStat {
 
     override fun <T : MutableCollection<IFileInfo>> readDir(ret: T): T {
         if (!isDir) return ret
-        for (name in f.listOrEmpty()) {
-            ret.add(newfileinfo(name))
+        val callback: Fun20<String, FileStat?> = { name, stat ->
+            val info = newfileinfo(name)
+            if (info is FileInfoBase) info.snapshot = stat
+            ret.add(info)
         }
+        val cache = dirCache
+        if (cache != null) cache.readDir(f, callback) else FileStat.readDir(f, callback)
         return ret
     }
 
     override fun mkparent(): Boolean {
         val parent = f.parentFile ?: return false
+        invalidateMissing(parent)
         parent.mkdirs()
         return parent.isDirectory
     }
 
     override fun mkdirs(): Boolean {
+        invalidate()
+        invalidateMissing(f)
         f.mkdirs()
         return f.isDirectory
     }
 
+    /// Invalidate listings up to the first existing ancestor of dir.
+    private fun invalidateMissing(dir: File) {
+        val cache = dirCache ?: return
+        var d: File? = dir
+        while (d != null && !d.isDirectory) {
+            d = d.parentFile
+            cache.invalidate(d)
+        }
+    }
+
     override fun delete(prune: Boolean): Boolean {
+        invalidate()
         if (f.isDirectory) {
             return f.listOrEmpty().isEmpty() && FileUt.delete(f)
         }
+        if (!prune) versions?.record(rpath, f, true)
         return FileUt.delete(f)
     }
 
     /// Ovewrite file with random data, and delete it.
     override fun shred(): Boolean {
+        invalidate()
         FileUt.shred(f)
         return FileUt.delete(f)
     }
@@ -759,16 +880,20 @@ open class FileInfo @JvmOverloads constructor(
         }
     override val file: File? get() = fileContent.file
     override val supportHistory get() = root.supportHistory
+    override val dirCache: DirCache? get() = root.cache
+    override val versions: HistoryStore? get() = root.historyStore
 
     override fun content(): IFileContent {
         return fileContent
     }
 
     override fun setLastModified(timestamp: Long): Boolean {
+        invalidate()
         return f.setLastModified(timestamp)
     }
 
     override fun setWritable(writable: Boolean): Boolean {
+        invalidate()
         return f.setWritable(writable)
     }
 
@@ -797,10 +922,12 @@ open class FileContent(
     }
 
     override fun outputStream(): OutputStream {
+        info.invalidate()
         return f.outputStream()
     }
 
     override fun seekableOutputStream(truncate: Boolean): AbstractSeekableOutputStream {
+        info.invalidate()
         return SeekableFileOutputStream(f, truncate)
     }
 
@@ -813,32 +940,28 @@ open class FileContent(
     }
 
     override fun write(data: ByteArray, offset: Int, length: Int, timestamp: Long?) {
-        prepareToWrite()
-        this.outputStream().use { it.write(data, offset, length) }
-        f.setLastModified(timestamp ?: System.currentTimeMillis())
+        atomicWrite(timestamp) { it.write(data, offset, length) }
     }
 
     override fun write(data: InputStream, timestamp: Long?) {
-        prepareToWrite()
-        FileUt.copy(f, data)
-        f.setLastModified(timestamp ?: System.currentTimeMillis())
+        atomicWrite(timestamp) { FileUt.copy(it, data) }
     }
 
     override fun write(data: CharArray, offset: Int, length: Int, timestamp: Long?, charset: Charset) {
-        prepareToWrite()
-        outputStream().bufferedWriter(charset).use { it.write(data, offset, length) }
-        f.setLastModified(timestamp ?: System.currentTimeMillis())
+        atomicWrite(timestamp) { output ->
+            output.bufferedWriter(charset).use { it.write(data, offset, length) }
+        }
     }
 
     override fun write(data: Reader, timestamp: Long?, charset: Charset) {
-        prepareToWrite()
-        outputStream().bufferedWriter(charset).use { w ->
-            val tmpbuf = CharArray(IOUt.BUFSIZE)
-            IOUt.copyAll(tmpbuf, data) {
-                w.write(tmpbuf, 0, it)
+        atomicWrite(timestamp) { output ->
+            output.bufferedWriter(charset).use { w ->
+                val tmpbuf = CharArray(IOUt.BUFSIZE)
+                IOUt.copyAll(tmpbuf, data) {
+                    w.write(tmpbuf, 0, it)
+                }
             }
         }
-        f.setLastModified(timestamp ?: System.currentTimeMillis())
     }
 
     override fun copyTo(dst: OutputStream) {
@@ -859,9 +982,32 @@ open class FileContent(
         if (!f.delete()) throw IOException()
     }
 
+    /// Copy to dst with FileChannel.transferTo() in chunks of TRANSFER_CHUNK bytes.
+    /// @param progress Called with the number of bytes transferred after each chunk,
+    /// the copy is aborted with an IOException if it returns false.
+    @Throws(IOException::class)
+    fun transferTo(dst: FileContent, timestamp: Long?, progress: Fun11<Long, Boolean>) {
+        dst.prepareToWrite()
+        FileInputStream(f).channel.use { input ->
+            FileOutputStream(dst.f).channel.use { output ->
+                val size = input.size()
+                var position = 0L
+                while (position < size) {
+                    val n = input.transferTo(position, minOf(TRANSFER_CHUNK, size - position), output)
+                    if (n <= 0) break
+                    position += n
+                    if (!progress(n)) throw IOException()
+                }
+            }
+        }
+        dst.f.setLastModified(timestamp ?: System.currentTimeMillis())
+    }
+
     override fun renameTo(dst: IFileInfo, timestamp: Long?): Boolean {
         val dstcontent = dst.content()
         if (dstcontent is FileContent) {
+            info.invalidate()
+            dstcontent.info.invalidate()
             if (f.renameTo(dstcontent.f)) {
                 dstcontent.f.setLastModified(timestamp ?: System.currentTimeMillis())
                 return true
@@ -875,12 +1021,140 @@ open class FileContent(
     }
 
     private fun prepareToWrite() {
+        info.invalidate()
         if (f.exists()) {
             if (!f.isFile || !f.delete()) throw IOException()
             return
         }
         f.mkparentOrNull() ?: throw IOException()
     }
+
+    private fun atomicWrite(timestamp: Long?, code: Fun10<OutputStream>) {
+        info.invalidate()
+        info.versions?.record(info.rpath, f, false)
+        try {
+            AtomicFile.write(f, timestamp, code)
+        } finally {
+            info.invalidate()
+        }
+    }
+
+    companion object {
+        const val TRANSFER_CHUNK = 4L * 1024 * 1024
+    }
+}
+
+/// Replace a file by writing to a temp file in the same directory, fsync and rename it
+/// over the file, so that a crash leaves either the old or the new content, never a partial one.
+object AtomicFile {
+    const val TMP_SUFFIX = "~save~.tmp"
+    private const val MAX_LINKS = 40
+    private val random = Random()
+
+    /// If file is a symlink, its target is replaced. The permissions of an existing file are kept.
+    /// @param code Write the content to the given stream, it may close the stream.
+    /// @param timestamp If null, current time is used.
+    @Throws(IOException::class)
+    fun write(file: File, timestamp: Long?, code: Fun10<OutputStream>) {
+        val target = resolve(file.absoluteFile.toPath())
+        if (Files.exists(target) && !Files.isRegularFile(target)) throw IOException()
+        val dir = target.parent ?: throw IOException()
+        Files.createDirectories(dir)
+        val perms = if (!Files.exists(target)) null else Without.exceptionOrNull {
+            Files.getPosixFilePermissions(target)
+        }
+        val (tmp, channel) = create(dir, target.fileName.toString())
+        try {
+            SyncOutputStream(channel).use(code)
+            //// A new temp file is created with the default permissions, ie. 0666 masked by umask.
+            if (perms != null) Files.setPosixFilePermissions(tmp, perms)
+            Files.setLastModifiedTime(tmp, FileTime.fromMillis(timestamp ?: System.currentTimeMillis()))
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            } catch (e: AtomicMoveNotSupportedException) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING)
+            }
+        } catch (e: Throwable) {
+            channel.close()
+            Files.deleteIfExists(tmp)
+            throw e
+        }
+        //// Persist the rename, not supported on some platforms, eg. Windows.
+        With.exceptionOrNull {
+            FileChannel.open(dir, StandardOpenOption.READ).use { it.force(true) }
+        }
+    }
+
+    /// Delete the temp files left behind by an interrupted write under dir,
+    /// that were last changed before the given time.
+    /// @return Number of files deleted.
+    fun sweep(dir: File, before: Long): Int {
+        var ret = 0
+        With.exceptionOrNull {
+            Files.walkFileTree(dir.toPath(), object : SimpleFileVisitor<Path>() {
+                override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
+                    val name = file.fileName.toString()
+                    if (attrs.isRegularFile && name.startsWith(".") && name.endsWith(TMP_SUFFIX)
+                        && changed(file, attrs) < before
+                        && With.exceptionOrNull { Files.delete(file) } == null
+                    ) ++ret
+                    return FileVisitResult.CONTINUE
+                }
+
+                override fun visitFileFailed(file: Path, exc: IOException): FileVisitResult {
+                    return FileVisitResult.CONTINUE
+                }
+            })
+        }
+        return ret
+    }
+
+    /// The status change time where available, the temp file of a write in progress may have an older mtime.
+    private fun changed(file: Path, attrs: BasicFileAttributes): Long {
+        return Without.exceptionOrNull {
+            (Files.getAttribute(file, "unix:ctime", LinkOption.NOFOLLOW_LINKS) as FileTime).toMillis()
+        } ?: attrs.lastModifiedTime().toMillis()
+    }
+
+    @Throws(IOException::class)
+    private fun resolve(path: Path): Path {
+        var ret = path
+        var count = 0
+        while (Files.isSymbolicLink(ret)) {
+            if (++count > MAX_LINKS) throw IOException()
+            ret = ret.resolveSibling(Files.readSymbolicLink(ret))
+        }
+        return ret
+    }
+
+    @Throws(IOException::class)
+    private fun create(dir: Path, name: String): Pair<Path, FileChannel> {
+        while (true) {
+            val tmp = dir.resolve(".$name.${random.nextInt(Int.MAX_VALUE)}$TMP_SUFFIX")
+            try {
+                return Pair(tmp, FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+            } catch (e: FileAlreadyExistsException) {
+            }
+        }
+    }
+
+    /// Flush the content to the storage device on close.
+    private class SyncOutputStream(private val channel: FileChannel) :
+        FilterOutputStream(Channels.newOutputStream(channel)) {
+        private var closed = false
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            out.write(b, off, len)
+        }
+
+        override fun close() {
+            if (closed) return
+            closed = true
+            channel.use {
+                it.force(true)
+            }
+        }
+    }
 }
 
 /// RootInfo back up by a file.
@@ -889,7 +1163,26 @@ open class FileRootInfo @JvmOverloads constructor(
     final override val name: String = file.name
 ) : FileInfoBase(file), IRootInfo {
 
-    override val supportHistory = false
+    /// Directory listing cache for this root, disabled if null.
+    var cache: DirCache? = null
+
+    /// History of overwritten and deleted files of this root, disabled if null.
+    var historyStore: HistoryStore? = null
+
+    /// Trash for asynchronous deletion of trees of this root, disabled if null.
+    var trash: Trash? = null
+
+    override val supportHistory get() = historyStore != null
+
+    override val versions: HistoryStore? get() = historyStore
+
+    /// Directory aggregates for this root, disabled if null.
+    var aggregates: DirAggregates? = null
+
+    /// Filename index for find(), disabled if null.
+    var index: PathIndex? = null
+
+    override val dirCache: DirCache? get() = cache
 
     override val file: File get() = f
 
@@ -925,6 +1218,7 @@ open class FileRootInfo @JvmOverloads constructor(
     }
 
     override fun find(ret: MutableCollection<String>, subdir: String, searchtext: String) {
+        if (index?.find(ret, subdir, searchtext) == true) return
         FileInfoUtil.find(ret, f, subdir, name, searchtext)
     }
 
@@ -938,17 +1232,54 @@ open class FileRootInfo @JvmOverloads constructor(
         listdir: Boolean,
         callback: Fun10<IDeletedFileStat>
     ) {
+        val store = historyStore ?: return
+        val rpath = store.rpathOf(dir) ?: return
+        if (rpath.isEmpty() && name.isEmpty() && listdir) store.dirs(callback)
+        else store.history(rpath, name, callback)
     }
 
     override fun scanTrash(callback: Fun10<IDeletedFileStat>) {
+        trash?.scan(callback)
+        historyStore?.scan(callback)
     }
 
     override fun cleanupTrash(predicate: Fun11<IDeletedFileStat, Boolean>?): CleanupTrashResult {
-        return CleanupTrashResult(0, 0, 0)
+        val pending = trash?.cleanup(predicate) ?: CleanupTrashResult(0, 0, 0)
+        val versions = historyStore?.cleanup(predicate) ?: CleanupTrashResult(0, 0, 0)
+        return CleanupTrashResult(
+            pending.files + versions.files,
+            pending.dirs + versions.dirs,
+            pending.totalsize + versions.totalsize
+        )
     }
 
+    /// Recover the given versions into dst, or as dst if it is not a directory and only one version is given.
+    /// Entries pending in the trash, with negative ids, are moved back instead.
     override fun recover(dst: IFileInfo, infos: List<JSONObject>): Pair<Int, Int> {
-        return Pair(0, 0)
+        var oks = 0
+        var fails = 0
+        val todir = dst.isDir || infos.size > 1
+        for (info in infos) {
+            val ok = With.exceptionOrNull {
+                val id = JSONObjectDeletedFileStat(info).id
+                if (id < 0) {
+                    val trash = trash ?: throw IOException()
+                    val entry = trash.entry(id) ?: throw IOException()
+                    val file = (if (todir) dst.fileInfo(entry.name) else dst) as? FileInfoBase ?: throw IOException()
+                    if (!trash.restore(id, file.file ?: throw IOException())) throw IOException()
+                    file.invalidateTree()
+                    return@exceptionOrNull
+                }
+                val store = historyStore ?: throw IOException()
+                val version = store.version(id) ?: throw IOException()
+                val file = if (todir) dst.fileInfo(version.name) else dst
+                store.inputStream(id)?.use {
+                    file.content().write(it, version.stat.lastModified)
+                } ?: throw IOException()
+            } == null
+            if (ok) ++oks else ++fails
+        }
+        return Pair(oks, fails)
     }
 
     override fun newfileinfo(rpath: String): IFileInfo {
@@ -1466,6 +1797,25 @@ object TmpUt {
         }
     }
 
+    /// Write to a temp file next to dst and rename it over dst only if code completed,
+    /// otherwise the temp file is deleted and an existing dst is left untouched.
+    /// @param code Write the content to the given temp file.
+    @Throws(IOException::class)
+    fun replace(dst: IFileInfo, timestamp: Long?, code: Fun10<IFileInfo>) {
+        val parent = dst.parent ?: throw IOException()
+        if (!parent.mkdirs()) throw IOException()
+        val tmp = tmpfile(parent, ".${dst.name}.", AtomicFile.TMP_SUFFIX)
+        try {
+            code(tmp)
+            if (dst is FileInfoBase) dst.file?.let { dst.versions?.record(dst.rpath, it, false) }
+            val content = tmp.content()
+            if (!content.renameTo(dst, timestamp)) content.moveTo(dst, timestamp)
+        } catch (e: Throwable) {
+            tmp.delete(true)
+            throw e
+        }
+    }
+
 }
 
 object FileInfoUtil {
@@ -1556,21 +1906,44 @@ object FileInfoUtil {
         return TextUt.format("%c%c", if (readable) 'r' else '-', if (writable) 'w' else '-')
     }
 
-    /// Find rpaths, of file or directory, which filename containing the given searchtext under srcdir/subdir.
+    /// Find rpaths, of file or directory, which filename matches the given searchtext under srcdir/subdir.
     /// @return Paths in form dstdir/subdir/rpath.
     /// NOTE: This is used by the FilesPanel find files action.
     fun find(ret: MutableCollection<String>, srcdir: File, subdir: String, dstdir: String, searchtext: String) {
         if (!srcdir.isDirectory) return
-        val lcpat = searchtext.lowercase(Locale.ROOT)
+        val matcher = nameMatcher(searchtext)
         val todir = Basepath.joinPath(dstdir, subdir)
         val rpaths = File(srcdir, subdir).bot.collects(FilePathCollectors::pathOfAny)
         for (rpath in rpaths) {
-            if (Basepath.name(rpath).lowercase(Locale.ROOT).contains(lcpat)) {
+            if (matcher(Basepath.name(rpath).lowercase(Locale.ROOT))) {
                 ret.add(Basepath.joinPath(todir, rpath))
             }
         }
     }
 
+    /// @return true if searchtext is a glob pattern, ie. contains * or ?.
+    fun isGlob(searchtext: String): Boolean {
+        return searchtext.indexOf('*') >= 0 || searchtext.indexOf('?') >= 0
+    }
+
+    /// @return A case insensitive matcher of a lowercase filename. If searchtext is a glob pattern,
+    /// it must match the whole filename, otherwise the filename must contain searchtext.
+    fun nameMatcher(searchtext: String): Fun11<String, Boolean> {
+        val lcpat = searchtext.lowercase(Locale.ROOT)
+        if (!isGlob(lcpat)) return { it.contains(lcpat) }
+        val regex = StringBuilder()
+        var start = 0
+        for ((index, c) in lcpat.withIndex()) {
+            if (c != '*' && c != '?') continue
+            if (index > start) regex.append(Regex.escape(lcpat.substring(start, index)))
+            regex.append(if (c == '*') ".*" else ".")
+            start = index + 1
+        }
+        if (start < lcpat.length) regex.append(Regex.escape(lcpat.substring(start)))
+        val re = Regex(regex.toString(), RegexOption.DOT_MATCHES_ALL)
+        return { re.matches(it) }
+    }
+
     fun readonly(): JSONObject {
         return JSONObject()
             .put(Key.notwritable, true)
@@ -1730,7 +2103,14 @@ private object FileInfoExt {
         return ret
     }
 
+    /// The files deleted are recorded to the history as a single bulk operation.
     fun deleteTree(dir: IFileInfo, callback: Fun10<IFileInfo>?): Boolean {
+        val versions = (dir as? FileInfoBase)?.versions
+            ?: return deleteTree1(dir, callback)
+        return versions.bulk { deleteTree1(dir, callback) }
+    }
+
+    private fun deleteTree1(dir: IFileInfo, callback: Fun10<IFileInfo>?): Boolean {
         val stat = dir.stat() ?: return true
         if (!stat.isDir) {
             callback?.invoke(dir)
@@ -1738,7 +2118,7 @@ private object FileInfoExt {
         }
         var isempty = true
         for (file in dir.readDir(ArrayList())) {
-            if (!deleteTree(file, callback)) isempty = false
+            if (!deleteTree1(file, callback)) isempty = false
         }
         return if (isempty) dir.delete() else false
     }
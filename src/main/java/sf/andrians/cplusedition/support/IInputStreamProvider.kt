@@ -301,19 +301,24 @@ class ReadOnlySeekableInputStream constructor(
 
     private val input = inputStreamProvider()
     private var seekable = inputStreamProvider()
+    private var seekablePosition = 0L
     private var position = 0L
 
+    /// Sequential reads at the last readAt() position continue on the same stream,
+    /// otherwise the stream is reopened and skipped to the position.
     override fun readAt(pos: Long, b: ByteArray, off: Int, size: Int): Int {
-        if (pos != this.position) {
+        if (pos >= lengthProvider()) return -1
+        if (pos != this.seekablePosition) {
             seekable.close()
             seekable = inputStreamProvider()
-            seekable.skip(pos)
+            IOUt.skipFully(seekable, pos)
+            this.seekablePosition = pos
         }
         val count = seekable.read(b, off, size)
         if (count >= 0) {
-            this.position += count
+            this.seekablePosition += count
         } else {
-            this.position = lengthProvider()
+            this.seekablePosition = lengthProvider()
         }
         return count
     }
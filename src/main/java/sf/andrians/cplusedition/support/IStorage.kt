@@ -81,6 +81,8 @@ interface IStorage {
 
     object K {
         const val BUFSIZE = 16 * 1024
+        /// Max. number of concurrent file copies in a copy action.
+        const val COPY_PARALLELISM = 4
     }
 
     val rsrc: IResUtil
@@ -142,26 +144,55 @@ interface IStorage {
      */
     fun getSearchResult(id: Long /*, boolean isregex*/): JSONObject
 
-    fun <R> submit(task: Fun11<IStorageAccessor, R>): Future<R>
+    /// Run a task that only calls @Reads methods on the concurrent read pool.
+    /// Reads run in parallel with each other and with non-exclusive mutations,
+    /// but never overlap an exclusive mutation.
+    fun <R> read(task: Fun11<IStorageReader, R>): Future<R>
+
+    /// Run a task on the serial storage executor, excluding all concurrent reads.
+    fun <R> submit(task: Fun11<IStorageAccessor, R>): Future<R> {
+        return submit(true, task)
+    }
+
+    /// Run a task on the serial storage executor.
+    /// @param exclusive false if the task only creates files that readers do not depend on,
+    /// eg. a new backup file or the xrefs, so that reads may proceed while it runs.
+    fun <R> submit(exclusive: Boolean, task: Fun11<IStorageAccessor, R>): Future<R>
 
     /// Wait for exclusive access to cpath and call callback.
     fun <R> disk(cpath: String, provider: ICloseableProvider<R>): R
 
 }
 
-interface IStorageAccessor {
-    fun cleanHome()
-    fun factoryReset()
+/// Marks a storage method that only reads, safe to call from IStorage.read().
+@Target(AnnotationTarget.FUNCTION)
+@Retention(AnnotationRetention.SOURCE)
+@MustBeDocumented
+annotation class Reads
+
+/// Marks a storage method that mutates, only available through IStorage.submit().
+/// @param exclusive false if the method only writes files that readers do not depend on.
+@Target(AnnotationTarget.FUNCTION)
+@Retention(AnnotationRetention.SOURCE)
+@MustBeDocumented
+annotation class Mutates(val exclusive: Boolean = true)
+
+interface IStorageReader {
     /**
      * Copy file at given context relative path to the given OutputStream.
      * NOTE that this allow access to all custom resources NOT PRESENT in assetsRoot.
      */
+    @Reads
     fun resourceResponse(response: ICpluseditionResponse, info: IFileInfo)
+
+    @Reads
     fun heicResponse(response: ICpluseditionResponse, info: IFileInfo)
 
+    @Reads
     @Throws(IOException::class)
     fun readBytes(cpath: String): ByteArray
 
+    @Reads
     @Throws(IOException::class)
     fun readText(cpath: String, charset: Charset = Charsets.UTF_8): String
 
@@ -170,31 +201,59 @@ interface IStorageAccessor {
      * @return Context relative paths, with leading /, of resource paths under recursively
      * the fromdir that contains the given searchtext, ignore case.
      */
+    @Reads
     fun <T : MutableCollection<String>> find(ret: T, fromdir: String, searchtext: String): T
 
-    @Throws(SecureException::class)
-    fun backupData(backupfile: IFileInfo, aliases: List<String>, src: IFileInfo): BackupRestoreResult
-
-    fun backupKey(keyfile: IFileInfo)
-
-    fun restoreData(destdir: IFileInfo, backupfile: IFileInfo, srcpath: String, sync: Boolean): BackupRestoreResult
-
-    fun verifyBackup(backupfile: IFileInfo): BackupRestoreResult
-
-    fun forwardBackup(backupfile: IFileInfo, aliases: List<String>): JSONObject
-
+    /// @param structural Only check the filelist and the records, and that the archive blocks decrypt and
+    /// authenticate, without decompressing and digesting the files.
+    /// @param progress To poll the progress and to cancel the verification from another thread.
+    @Reads
+    fun verifyBackup(
+        backupfile: IFileInfo,
+        structural: Boolean = false,
+        progress: TaskProgress? = null
+    ): BackupRestoreResult
+
+    @Reads
     @Throws(SecureException::class)
     fun readBackupFiletree(backupfile: IFileInfo): JSONObject?
 
+    @Reads
     @Throws(SecureException::class)
     fun readBackupFileInfo(backupfile: IFileInfo): JSONObject
 
+    /// The key store is guarded by its own lock, so this is available to readers.
+    @Reads
     fun <R> secAction(task: Fun11<ISecUtilAccessor, R>): R
 
+    @Reads
     fun backupFileRoot(backupfile: IFileInfo): ReadOnlyBackupFileRoot?
 
+    @Reads
     fun getXrefs(to: IFileInfo): List<IFileInfo>
+}
+
+interface IStorageAccessor : IStorageReader {
+    @Mutates
+    fun cleanHome()
+
+    @Mutates
+    fun factoryReset()
+
+    @Mutates(exclusive = false)
+    @Throws(SecureException::class)
+    fun backupData(backupfile: IFileInfo, aliases: List<String>, src: IFileInfo): BackupRestoreResult
+
+    @Mutates(exclusive = false)
+    fun backupKey(keyfile: IFileInfo)
+
+    @Mutates
+    fun restoreData(destdir: IFileInfo, backupfile: IFileInfo, srcpath: String, sync: Boolean): BackupRestoreResult
+
+    @Mutates
+    fun forwardBackup(backupfile: IFileInfo, aliases: List<String>): JSONObject
 
+    @Mutates(exclusive = false)
     fun rebuildXrefs(at: IFileInfo?): JSONObject
 }
 
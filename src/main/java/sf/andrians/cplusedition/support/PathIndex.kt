@@ -0,0 +1,422 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import com.cplusedition.bot.core.Basepath
+import com.cplusedition.bot.core.FS
+import com.cplusedition.bot.core.FileUt
+import com.cplusedition.bot.core.With
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.file.Files
+import java.nio.file.LinkOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/// Trigram index of the filenames of a FileRootInfo for find(). Each path is given an id, and each trigram
+/// of the lowercase filename maps to the ascending ids of the paths that contain it, so a query only verifies
+/// the paths in the intersection of the posting lists of its trigrams. A change reported by the DirCache
+/// marks the directory dirty, dirty directories are listed again and diffed against the index before the
+/// next query. Removed paths are left in the posting lists as tombstones until compacted. Changes made
+/// outside of the app to directories not watched by the DirCache are picked up on next start, where the
+/// directory mtimes of a loaded index are verified, or the whole tree is indexed, in parallel.
+class PathIndex constructor(
+    private val root: FileRootInfo,
+    cache: DirCache,
+) : DirCache.IListener, Closeable {
+
+    private class Dir(var mtime: Long, val names: HashSet<String>)
+
+    /// Ascending ids, without duplicates.
+    private class IdList(capacity: Int = 4) {
+        var ids = IntArray(capacity)
+        var size = 0
+
+        fun add(id: Int) {
+            if (size > 0 && ids[size - 1] == id) return
+            if (size == ids.size) ids = ids.copyOf(size * 2)
+            ids[size++] = id
+        }
+
+        fun contains(id: Int): Boolean {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0
+        }
+    }
+
+    private class Scanned(val rpath: String, val isDir: Boolean, val mtime: Long)
+
+    private val lock = ReentrantLock()
+    /// Path of each id, null if removed.
+    private val paths = ArrayList<String?>()
+    private val ids = HashMap<String, Int>()
+    private val dirs = HashMap<String, Dir>()
+    private val postings = HashMap<Long, IdList>()
+    private val dirty = HashSet<String>()
+    private var dead = 0
+    private var loaded = false
+    @Volatile
+    private var ready = false
+    @Volatile
+    private var closed = false
+
+    /// Number of paths indexed.
+    val size: Int get() = lock.withLock { ids.size }
+
+    init {
+        cache.addListener(this)
+    }
+
+    /// Verify a loaded index, or index the whole tree, in the background. Queries fall back to a
+    /// walk of the tree till it is done.
+    fun start() {
+        Thread({
+            With.exceptionOrNull {
+                if (lock.withLock { loaded }) verify() else build()
+                ready = true
+            }?.let { Support.e("ERROR: PathIndex: ${root.name}: ${it.message}") }
+        }, "pathindex-${root.name}").also { it.isDaemon = true }.start()
+    }
+
+    /// Find paths, of file or directory, under subdir which filename matches searchtext, see FileInfoUtil.find().
+    /// @return false if the index is not yet ready, in which case ret is untouched.
+    fun find(ret: MutableCollection<String>, subdir: String, searchtext: String): Boolean {
+        if (!ready) return false
+        val matcher = FileInfoUtil.nameMatcher(searchtext)
+        val lcpat = searchtext.lowercase(Locale.ROOT)
+        val keys = TreeSet<Long>()
+        val literals = if (FileInfoUtil.isGlob(lcpat)) lcpat.split('*', '?') else listOf(lcpat)
+        for (literal in literals) trigrams(literal) { keys.add(it) }
+        val todir = Basepath.joinPath(root.name, subdir)
+        val prefix = if (subdir.isEmpty()) "" else subdir + FS
+        lock.withLock {
+            syncDirty()
+            fun under(rpath: String?): Boolean {
+                return rpath != null && rpath.startsWith(prefix) && rpath.length > prefix.length
+            }
+            fun check(rpath: String) {
+                if (matcher(Basepath.name(rpath).lowercase(Locale.ROOT))) {
+                    ret.add(Basepath.joinPath(todir, rpath.substring(prefix.length)))
+                }
+            }
+            if (keys.isEmpty()) {
+                for (rpath in paths) if (under(rpath)) check(rpath!!)
+                return true
+            }
+            val lists = keys.map { postings[it] ?: return true }.sortedBy { it.size }
+            val first = lists[0]
+            for (index in 0 until first.size) {
+                val id = first.ids[index]
+                //// The prefix is checked first, it is cheaper than the lookups in the other lists.
+                val rpath = paths[id]
+                if (!under(rpath)) continue
+                if (lists.all { it === first || it.contains(id) }) check(rpath!!)
+            }
+        }
+        return true
+    }
+
+    override fun changed(file: File) {
+        val rpath = FileUt.rpathOrNull(file, root.file) ?: return
+        lock.withLock { dirty.add(rpath) }
+    }
+
+    override fun unwatched(dir: File) {
+    }
+
+    @Throws(IOException::class)
+    fun save(output: OutputStream) {
+        lock.withLock {
+            syncDirty()
+            compact()
+            val out = DataOutputStream(output.buffered())
+            out.writeInt(VERSION)
+            out.writeLong(dirs[""]?.mtime ?: 0L)
+            out.writeInt(paths.size)
+            for (rpath in paths) {
+                val dir = dirs[rpath!!]
+                out.writeUTF(rpath)
+                out.writeBoolean(dir != null)
+                if (dir != null) out.writeLong(dir.mtime)
+            }
+            out.writeInt(postings.size)
+            for ((key, list) in postings) {
+                out.writeLong(key)
+                writeVarint(out, list.size)
+                var prev = 0
+                for (index in 0 until list.size) {
+                    writeVarint(out, list.ids[index] - prev)
+                    prev = list.ids[index]
+                }
+            }
+            out.flush()
+        }
+    }
+
+    /// An index loaded is verified against the directory mtimes on start().
+    @Throws(IOException::class)
+    fun load(input: InputStream) {
+        val data = DataInputStream(input.buffered())
+        if (data.readInt() != VERSION) return
+        lock.withLock {
+            clear()
+            try {
+                dirs[""] = Dir(data.readLong(), HashSet())
+                for (id in 0 until data.readInt()) {
+                    val rpath = data.readUTF()
+                    val mtime = if (data.readBoolean()) data.readLong() else null
+                    paths.add(rpath)
+                    ids[rpath] = id
+                    dirs[Basepath.dir(rpath) ?: ""]?.names?.add(Basepath.name(rpath))
+                    if (mtime != null) dirs[rpath] = Dir(mtime, HashSet())
+                }
+                for (k in 0 until data.readInt()) {
+                    val key = data.readLong()
+                    val size = readVarint(data)
+                    val list = IdList(maxOf(size, 1))
+                    var id = 0
+                    for (index in 0 until size) {
+                        id += readVarint(data)
+                        list.ids[index] = id
+                    }
+                    list.size = size
+                    postings[key] = list
+                }
+                loaded = true
+            } catch (e: IOException) {
+                clear()
+                throw e
+            }
+        }
+    }
+
+    override fun close() {
+        closed = true
+    }
+
+    /// Mark the directories that changed since the index is saved as dirty.
+    private fun verify() {
+        val snapshot = lock.withLock { dirs.map { Pair(it.key, it.value.mtime) } }
+        val chunk = maxOf(1024, snapshot.size / (PARALLELISM * 4) + 1)
+        val futures = snapshot.chunked(chunk).map { pairs ->
+            workerThreadPool.submit(Callable {
+                val ret = ArrayList<String>()
+                for ((rpath, mtime) in pairs) {
+                    if (closed) break
+                    if (attrsOf(rpath)?.lastModifiedTime()?.toMillis() != mtime) ret.add(rpath)
+                }
+                ret
+            })
+        }
+        for (future in futures) {
+            val changed = future.get()
+            lock.withLock { dirty.addAll(changed) }
+        }
+    }
+
+    /// Index the whole tree, the tree is split breadth first into enough subtrees to keep the workers busy.
+    private fun build() {
+        val rootattrs = attrsOf("") ?: throw IOException()
+        val scanned = ArrayList<Scanned>()
+        var frontier = listOf("")
+        var depth = 0
+        while (frontier.isNotEmpty() && frontier.size < PARALLELISM * 4 && depth++ < 4) {
+            val next = ArrayList<String>()
+            for (rpath in frontier) list(rpath, scanned, next)
+            frontier = next
+        }
+        val futures = frontier.map { rpath ->
+            workerThreadPool.submit(Callable {
+                val ret = ArrayList<Scanned>()
+                val stack = arrayListOf(rpath)
+                while (stack.isNotEmpty() && !closed) list(stack.removeAt(stack.size - 1), ret, stack)
+                ret
+            })
+        }
+        val subtrees = futures.map { it.get() }
+        if (closed) return
+        lock.withLock {
+            clear()
+            dirs[""] = Dir(rootattrs.lastModifiedTime().toMillis(), HashSet())
+            for (entry in scanned) add(entry.rpath, entry.isDir, entry.mtime)
+            for (subtree in subtrees) {
+                for (entry in subtree) add(entry.rpath, entry.isDir, entry.mtime)
+            }
+        }
+    }
+
+    /// List the directory rpath into ret, and its subdirectories into subdirs.
+    private fun list(rpath: String, ret: MutableList<Scanned>, subdirs: MutableList<String>) {
+        val names = File(root.file, rpath).list() ?: return
+        for (name in names) {
+            val child = Basepath.joinRpath(rpath, name)
+            val attrs = attrsOf(child) ?: continue
+            ret.add(Scanned(child, attrs.isDirectory, attrs.lastModifiedTime().toMillis()))
+            if (attrs.isDirectory) subdirs.add(child)
+        }
+    }
+
+    private fun attrsOf(rpath: String): BasicFileAttributes? {
+        return try {
+            Files.readAttributes(File(root.file, rpath).toPath(), BasicFileAttributes::class.java, LinkOption.NOFOLLOW_LINKS)
+        } catch (e: Exception) {
+            null
+        }
+    }
+
+    private fun clear() {
+        paths.clear()
+        ids.clear()
+        dirs.clear()
+        postings.clear()
+        dead = 0
+        loaded = false
+    }
+
+    //// Below are called with lock held.
+
+    private fun syncDirty() {
+        if (dirty.isEmpty()) return
+        //// Parents first, so the subtrees of removed directories need not be listed.
+        val todo = dirty.sortedBy { it.length }
+        dirty.clear()
+        for (rpath in todo) sync(rpath)
+        if (dead > COMPACT_THRESHOLD && dead > paths.size / 2) compact()
+    }
+
+    /// List the directory rpath again and update the index with the differences.
+    /// Nothing is done if rpath is not a known directory, its parent is marked dirty on change anyway.
+    private fun sync(rpath: String) {
+        val dir = dirs[rpath] ?: return
+        val attrs = attrsOf(rpath)
+        if (attrs == null || !attrs.isDirectory) {
+            if (rpath.isEmpty()) return
+            remove(rpath)
+            if (attrs != null) add(rpath, false, attrs.lastModifiedTime().toMillis())
+            return
+        }
+        val names = File(root.file, rpath).list()?.toHashSet() ?: return
+        for (name in ArrayList(dir.names)) {
+            if (name !in names) remove(Basepath.joinRpath(rpath, name))
+        }
+        for (name in names) {
+            val child = Basepath.joinRpath(rpath, name)
+            val known = ids.containsKey(child)
+            val childattrs = attrsOf(child) ?: continue
+            if (known && dirs.containsKey(child) == childattrs.isDirectory) continue
+            if (known) remove(child)
+            add(child, childattrs.isDirectory, childattrs.lastModifiedTime().toMillis())
+            if (childattrs.isDirectory) addTree(child)
+        }
+        dir.mtime = attrs.lastModifiedTime().toMillis()
+    }
+
+    private fun addTree(rpath: String) {
+        val scanned = ArrayList<Scanned>()
+        val stack = arrayListOf(rpath)
+        while (stack.isNotEmpty()) list(stack.removeAt(stack.size - 1), scanned, stack)
+        for (entry in scanned) add(entry.rpath, entry.isDir, entry.mtime)
+    }
+
+    private fun add(rpath: String, isdir: Boolean, mtime: Long) {
+        if (ids.containsKey(rpath)) return
+        val id = paths.size
+        paths.add(rpath)
+        ids[rpath] = id
+        val name = Basepath.name(rpath)
+        dirs[Basepath.dir(rpath) ?: ""]?.names?.add(name)
+        if (isdir) dirs[rpath] = Dir(mtime, HashSet())
+        trigrams(name.lowercase(Locale.ROOT)) { postings.getOrPut(it) { IdList() }.add(id) }
+    }
+
+    private fun remove(rpath: String) {
+        val id = ids.remove(rpath) ?: return
+        paths[id] = null
+        ++dead
+        dirs[Basepath.dir(rpath) ?: ""]?.names?.remove(Basepath.name(rpath))
+        //// Removed from dirs first, so the children need not be removed from its names.
+        val dir = dirs.remove(rpath) ?: return
+        for (name in dir.names) remove(Basepath.joinRpath(rpath, name))
+    }
+
+    /// Renumber the ids to drop the tombstones, preserving the order.
+    private fun compact() {
+        if (dead == 0) return
+        val remap = IntArray(paths.size)
+        var next = 0
+        for ((id, rpath) in paths.withIndex()) {
+            remap[id] = if (rpath == null) -1 else next++
+        }
+        paths.removeAll { it == null }
+        for ((id, rpath) in paths.withIndex()) ids[rpath!!] = id
+        val iterator = postings.values.iterator()
+        while (iterator.hasNext()) {
+            val list = iterator.next()
+            var size = 0
+            for (index in 0 until list.size) {
+                val id = remap[list.ids[index]]
+                if (id >= 0) list.ids[size++] = id
+            }
+            list.size = size
+            if (size == 0) iterator.remove()
+        }
+        dead = 0
+    }
+
+    companion object {
+        private const val VERSION = 1
+        private const val COMPACT_THRESHOLD = 1024
+        private val PARALLELISM = Runtime.getRuntime().availableProcessors()
+
+        private inline fun trigrams(lcname: String, callback: (Long) -> Unit) {
+            for (index in 0..lcname.length - 3) {
+                callback(
+                    (lcname[index].code.toLong() shl 32)
+                            or (lcname[index + 1].code.toLong() shl 16)
+                            or lcname[index + 2].code.toLong()
+                )
+            }
+        }
+
+        private fun writeVarint(out: DataOutputStream, value: Int) {
+            var v = value
+            while (v and 0x7f.inv() != 0) {
+                out.writeByte((v and 0x7f) or 0x80)
+                v = v ushr 7
+            }
+            out.writeByte(v)
+        }
+
+        private fun readVarint(input: DataInputStream): Int {
+            var ret = 0
+            var shift = 0
+            while (true) {
+                val b = input.readUnsignedByte()
+                ret = ret or ((b and 0x7f) shl shift)
+                if (b and 0x80 == 0) return ret
+                shift += 7
+            }
+        }
+    }
+}
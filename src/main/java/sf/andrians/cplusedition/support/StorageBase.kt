@@ -38,6 +38,7 @@ import com.cplusedition.bot.core.Fun01
 import com.cplusedition.bot.core.Fun11
 import com.cplusedition.bot.core.Fun20
 import com.cplusedition.bot.core.Fun31
+import com.cplusedition.bot.core.Hex
 import com.cplusedition.bot.core.IBotResult
 import com.cplusedition.bot.core.ILog
 import com.cplusedition.bot.core.IOUt
@@ -46,6 +47,7 @@ import com.cplusedition.bot.core.ResourceLocker
 import com.cplusedition.bot.core.Serial
 import com.cplusedition.bot.core.StepWatch
 import com.cplusedition.bot.core.StructUt
+import com.cplusedition.bot.core.SumKind
 import com.cplusedition.bot.core.TextUt
 import com.cplusedition.bot.core.With
 import com.cplusedition.bot.core.Without
@@ -56,10 +58,13 @@ import org.json.JSONObject
 import sf.andrians.cplusedition.R
 import sf.andrians.cplusedition.support.An.SessionPreferencesKey
 import sf.andrians.cplusedition.support.An.SettingsKey
+import sf.andrians.cplusedition.support.Http.HttpHeader
+import sf.andrians.cplusedition.support.Http.HttpStatus
 import sf.andrians.cplusedition.support.ISecUtil.EtcPaths
 import sf.andrians.cplusedition.support.StorageBase.ReadOnlyJSONRoot
 import sf.andrians.cplusedition.support.Support.FontInfo
 import sf.andrians.cplusedition.support.css.CSSGenerator
+import sf.andrians.cplusedition.support.handler.ICpluseditionResponse
 import sf.andrians.cplusedition.support.handler.IResUtil
 import sf.andrians.cplusedition.support.media.MimeUtil.Suffix
 import sf.andrians.org.json.MyJSONTokener
@@ -71,7 +76,10 @@ import java.io.InputStream
 import java.io.OutputStream
 import java.io.PrintStream
 import java.nio.charset.Charset
+import java.nio.file.Files
+import java.nio.file.attribute.BasicFileAttributes
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.TimeUnit.SECONDS
 import java.util.concurrent.locks.Lock
@@ -338,6 +346,8 @@ abstract class StorageBase constructor(
     abstract class AbstractCustomResources {
         protected val resources: MutableMap<String, ByteArray> = TreeMap()
         protected val resourcesLock: ReadWriteLock = ReentrantReadWriteLock()
+        /// Representations of the resources, cleared whenever the resources are modified.
+        protected val variants: MutableMap<String, Variant> = ConcurrentHashMap()
         private val hostcss: String = An.PATH.assetsCss_ + "host" + RandomUt.getLong() + ".css"
         private var timestamp: Long = 0
 
@@ -361,11 +371,34 @@ abstract class StorageBase constructor(
             }
         }
 
+        /**
+         * @param rpath Context relative path without leading /.
+         * @param gzip true to return the gzip encoded content if it is smaller.
+         * @return The content with its cache validators.
+         */
+        fun asVariant(rpath: String, gzip: Boolean): Variant? {
+            resourcesLock.readLock().lock()
+            try {
+                val bytes = resources[rpath] ?: return null
+                val identity = variants.computeIfAbsent(rpath) {
+                    Variant(bytes, Http.Validators.of(timestamp, Hex.encode(SumKind.SHA1.digest(bytes), true).toString()), null)
+                }
+                if (!gzip || bytes.size < Gzip.MIN_SIZE) return identity
+                val gzipped = variants.computeIfAbsent(rpath + "#" + Gzip.ENCODING) {
+                    Variant(Gzip.gzip(bytes), identity.validators.variant(Gzip.ENCODING), Gzip.ENCODING)
+                }
+                return if (gzipped.bytes.size < bytes.size) gzipped else identity
+            } finally {
+                resourcesLock.readLock().unlock()
+            }
+        }
+
         protected fun generateCss(conf: CSSGenerator.IConf, fontscss: ByteArray, symbolscss: ByteArray) {
             resourcesLock.writeLock().lock()
             timestamp = System.currentTimeMillis()
             try {
                 resources.clear()
+                variants.clear()
                 resources[An.PATH.assetsClientCss] =
                     StructUt.concat(serialize(CSSGenerator.Clientv1CSS(conf).build()), fontscss, symbolscss)
                 resources[getHostCss()] = StructUt.concat(serialize(CSSGenerator.HostCSS(conf).build()), fontscss)
@@ -596,6 +629,14 @@ abstract class StorageBase constructor(
 
     }
 
+    /// A representation of a custom resource.
+    class Variant constructor(
+        val bytes: ByteArray,
+        val validators: Http.Validators,
+        /// The content coding, null for identity.
+        val encoding: String?,
+    )
+
     class AssetsRoot constructor(
         assetjson: JSONObject,
         private val provider: Fun11<String, InputStream>
@@ -665,10 +706,10 @@ abstract class StorageBase constructor(
         }
 
         override fun find(ret: MutableCollection<String>, subdir: String, searchtext: String) {
-            val lcpat = searchtext.lowercase(Locale.ROOT)
+            val matcher = FileInfoUtil.nameMatcher(searchtext)
             val dir = fileInfo(subdir)
             dir.walk2 { file, _ ->
-                if (file.name.lowercase(Locale.ROOT).contains(lcpat)) {
+                if (matcher(file.name.lowercase(Locale.ROOT))) {
                     ret.add(file.apath)
                 }
             }
@@ -724,7 +765,17 @@ abstract class StorageBase constructor(
         }, {
             root.inputStream(rpath)
         })
-    )
+    ) {
+        /// Cache validators, precomputed from the json info when the tree is created.
+        val validators = Http.Validators.of(
+            info.optLong(IFileInfo.Key.lastModified, 0L),
+            info.optLong(IFileInfo.Key.length, 0L),
+            info.optLong(IFileInfo.Key.lastModified, 0L),
+            info.stringOrNull(IFileInfo.Key.checksum),
+            info.optLong(IFileInfo.Key.offset, 0L),
+            cpath.hashCode(),
+        )
+    }
 
     //////////////////////////////////////////////////////////////////////
 
@@ -743,6 +794,47 @@ abstract class StorageBase constructor(
     protected abstract class StorageAccessorBase(
         private val storage: IStorage
     ) : IStorageAccessor {
+
+        /// @return Cache validators from size, mtime and inode of the given file.
+        protected fun validatorsOf(file: File): Http.Validators {
+            val attrs = Files.readAttributes(file.toPath(), BasicFileAttributes::class.java)
+            val lastmodified = attrs.lastModifiedTime().toMillis()
+            return Http.Validators.of(lastmodified, attrs.size(), lastmodified, attrs.fileKey()?.hashCode())
+        }
+
+        /// @return Cache validators of the given file, null if not available.
+        protected fun validatorsOf(info: IFileInfo): Http.Validators? {
+            if (info is AssetFileInfo) return info.validators
+            info.file?.let { return Without.exceptionOrNull { validatorsOf(it) } }
+            val stat = info.stat() ?: return null
+            return Http.Validators.of(
+                stat.lastModified,
+                stat.length,
+                stat.lastModified,
+                stat.checksumBytes?.let { Hex.encode(it, true).toString() },
+                info.cpath.hashCode(),
+            )
+        }
+
+        /// Set the validator headers and send a 304 response if the request is conditional
+        /// and the client copy is still valid.
+        /// @return true if a 304 response has been sent.
+        protected fun notModified(response: ICpluseditionResponse, validators: Http.Validators?): Boolean {
+            if (validators == null) return false
+            response.setHeader(HttpHeader.CacheControl, "no-cache")
+            response.setHeader(HttpHeader.Etag, validators.etag)
+            if (validators.lastModified > 0L) {
+                response.setHeader(HttpHeader.LastModified, Http.httpDate(validators.lastModified))
+            }
+            val request = response.getRequest() ?: return false
+            if (!validators.isNotModified(
+                    request.getHeader(HttpHeader.IfNoneMatch),
+                    request.getHeader(HttpHeader.IfModifiedSince)
+                )
+            ) return false
+            response.setStatus(HttpStatus.NotModified)
+            return true
+        }
         override fun readBytes(cpath: String): ByteArray {
             return storage.fileInfoAt(cpath).result()?.content()?.readBytes() ?: throw IOException()
         }
@@ -1403,13 +1495,29 @@ class DiskManager constructor(
     private val locker = ResourceLocker<String>()
     fun <R> lock(key: String, provider: ICloseableProvider<R>): R {
         return locker.async(key) { done ->
-            provider.run(done)
+            provider.run {
+                //// Writes under the lock may have bypassed FileInfoBase, drop the cached listing.
+                rpathOf(key)?.let { (storage.fileInfo(it) as? FileInfoBase)?.invalidate() }
+                done()
+            }
         }
     }
 
     fun join(timeout: Long, timeunit: TimeUnit) {
         locker.join(timeout, timeunit)
     }
+
+    /// @return The clean rpath locked by key, null if key is not a path, eg. a request scope like #events.
+    private fun rpathOf(key: String): String? {
+        val path = key.removePrefix(REQUEST_PREFIX)
+        if (path.startsWith("#")) return null
+        return Support.getcleanrpath(path)
+    }
+
+    companion object {
+        /// Prefix of the keys taken by the request dispatcher, followed by the rpath or the scope of the request.
+        const val REQUEST_PREFIX = "#request:"
+    }
 }
 
 class ZipFileRoot constructor(
@@ -0,0 +1,64 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import org.json.JSONArray
+import org.json.JSONObject
+import sf.andrians.cplusedition.support.An.Key
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/// Progress of a long running task, eg. a copy or a backup verification, updated concurrently by the
+/// workers and polled or cancelled from another request.
+class TaskProgress {
+    private val files = AtomicInteger()
+    private val bytes = AtomicLong()
+    private val doneFiles = AtomicInteger()
+    private val doneBytes = AtomicLong()
+
+    @Volatile
+    var cancelled = false
+        private set
+
+    fun cancel() {
+        cancelled = true
+    }
+
+    fun add(length: Long) {
+        files.incrementAndGet()
+        bytes.addAndGet(length)
+    }
+
+    /// @return false if cancelled.
+    fun transferred(length: Long): Boolean {
+        doneBytes.addAndGet(length)
+        return !cancelled
+    }
+
+    fun done(length: Long) {
+        doneBytes.addAndGet(length)
+        doneFiles.incrementAndGet()
+    }
+
+    /// @return { An.Key.total: [files, bytes], An.Key.count: [files, bytes], An.Key.status: cancelled }
+    fun toJSON(): JSONObject {
+        return JSONObject()
+            .put(Key.total, JSONArray().put(files.get()).put(bytes.get()))
+            .put(Key.count, JSONArray().put(doneFiles.get()).put(doneBytes.get()))
+            .put(Key.status, cancelled)
+    }
+}
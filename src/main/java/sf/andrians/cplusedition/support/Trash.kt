@@ -0,0 +1,260 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import com.cplusedition.bot.core.Basepath
+import com.cplusedition.bot.core.Fun10
+import com.cplusedition.bot.core.Fun11
+import com.cplusedition.bot.core.With
+import com.cplusedition.bot.core.Without
+import com.cplusedition.bot.core.listOrEmpty
+import org.json.JSONObject
+import sf.andrians.cplusedition.support.IFileInfo.Key
+import java.io.Closeable
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.LinkOption
+import java.nio.file.StandardCopyOption
+import java.util.*
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/// Deleted trees of a FileRootInfo are renamed into the trash directory, which must be on the same
+/// file system as the root, and physically deleted by a low priority background thread. The files
+/// are not recorded to the history store, a pending entry can be restored until it is purged. Each
+/// entry is kept in its own directory named by its id, with the content as DATA and the rpath and
+/// deletion time in INFO.
+/// Entries left over from the last session are purged on start.
+class Trash constructor(
+    private val dir: File,
+    private val root: FileRootInfo,
+) : Closeable {
+
+    private inner class Entry constructor(
+        val serial: Long,
+        val rpath: String,
+        override val isDir: Boolean,
+        override val length: Long,
+        override val lastModified: Long,
+        override val lastDeleted: Long,
+    ) : IDeletedFileStat, IFileStat {
+        /// True if removed by cleanup(), content is still deleted by the background thread.
+        @Volatile
+        var pruned = false
+        var purging = false
+        val entrydir: File get() = File(dir, serial.toString())
+        override val stat: IFileStat get() = this
+        /// Negative to distinguish from the ids of the history store.
+        override val id: Long get() = -serial
+        override val name: String get() = Basepath.name(rpath)
+        override val dir: String get() = Basepath.joinRpath(root.name, Basepath.dir(rpath) ?: "")
+        override val isDeleted: Boolean get() = true
+        override val isFile: Boolean get() = !isDir
+        override val perm: String get() = FileInfoUtil.perm(readable, writable)
+        override val readable: Boolean get() = true
+        override val writable: Boolean get() = false
+        override val checksumBytes: ByteArray? get() = null
+
+        override fun cpath(): String {
+            return Basepath.joinRpath(root.name, rpath)
+        }
+
+        override fun toJSON(): JSONObject {
+            return HistoryStore.toJSON(this, lastDeleted)
+                .put(Key.id, id)
+                .put(Key.isDeleted, true)
+        }
+    }
+
+    private val lock = ReentrantLock()
+    private val entries = TreeMap<Long, Entry>()
+    private val queue = LinkedBlockingQueue<Entry>()
+    private var nextSerial = 1L
+    @Volatile
+    private var closed = false
+    private val _purged = LongAdder()
+    private val worker = Thread(this::run, "trash-${root.name}").also {
+        it.isDaemon = true
+        it.priority = Thread.MIN_PRIORITY
+    }
+
+    /// Number of files and directories physically deleted.
+    val purged: Long get() = _purged.sum()
+
+    /// Number of entries pending to be deleted.
+    val size: Int get() = lock.withLock { entries.size }
+
+    init {
+        dir.mkdirs()
+        load()
+        worker.start()
+    }
+
+    /// Move the given file or directory into the trash, the caller is responsible for the xrefs.
+    /// @return false if the file cannot be moved, eg. on another file system, in which case it is untouched.
+    fun put(info: FileInfoBase): Boolean {
+        val rpath = info.rpath
+        if (closed || rpath.isEmpty() || info.root !== root) return false
+        val file = info.file ?: return false
+        val stat = FileStat.of(file) ?: return false
+        val entry = lock.withLock {
+            Entry(nextSerial++, rpath, stat.isDir, if (stat.isDir) 0L else stat.length, stat.lastModified, System.currentTimeMillis())
+        }
+        val entrydir = entry.entrydir
+        val ok = With.exceptionOrNull {
+            entrydir.mkdirs()
+            File(entrydir, INFO).writeText("${entry.lastDeleted}\n${entry.lastModified}\n$rpath")
+            move(file, File(entrydir, DATA))
+        } == null
+        if (!ok) {
+            File(entrydir, INFO).delete()
+            entrydir.delete()
+            return false
+        }
+        info.invalidateTree()
+        lock.withLock { entries[entry.serial] = entry }
+        queue.add(entry)
+        return true
+    }
+
+    /// Move the content of entry id back to dst, provided that it is not yet being deleted.
+    /// @return true if restored.
+    fun restore(id: Long, dst: File): Boolean {
+        val entry = lock.withLock {
+            val entry = entries[-id]
+            if (entry == null || entry.purging || dst.exists()) return false
+            entries.remove(entry.serial)
+            entry
+        }
+        val entrydir = entry.entrydir
+        val ok = With.exceptionOrNull { move(File(entrydir, DATA), dst) } == null
+        if (!ok) {
+            lock.withLock { entries[entry.serial] = entry }
+            return false
+        }
+        File(entrydir, INFO).delete()
+        entrydir.delete()
+        return true
+    }
+
+    /// @return The pending entry with the given id, null if not found.
+    fun entry(id: Long): IDeletedFileStat? {
+        return lock.withLock { entries[-id] }
+    }
+
+    /// @param callback Called on each pending entry, latest first.
+    fun scan(callback: Fun10<IDeletedFileStat>) {
+        val ret = lock.withLock { ArrayList<Entry>(entries.values) }
+        ret.reverse()
+        ret.forEach(callback)
+    }
+
+    /// Remove the pending entries for which predicate return true, they can no longer be restored.
+    fun cleanup(predicate: Fun11<IDeletedFileStat, Boolean>?): CleanupTrashResult {
+        if (predicate == null) return CleanupTrashResult(0, 0, 0)
+        var files = 0L
+        var dirs = 0L
+        var size = 0L
+        lock.withLock {
+            for (entry in ArrayList(entries.values)) {
+                if (!predicate(entry)) continue
+                entry.pruned = true
+                entries.remove(entry.serial)
+                if (entry.isDir) ++dirs else ++files
+                size += entry.length
+            }
+        }
+        return CleanupTrashResult(files, dirs, size)
+    }
+
+    /// Stop the background thread, pending entries are purged on next start.
+    override fun close() {
+        closed = true
+        worker.interrupt()
+        worker.join(5000)
+    }
+
+    private fun load() {
+        for (name in dir.listOrEmpty()) {
+            val serial = name.toLongOrNull() ?: continue
+            val entrydir = File(dir, name)
+            val lines = Without.exceptionOrNull { File(entrydir, INFO).readLines() }
+            val data = File(entrydir, DATA)
+            if (lines == null || lines.size < 3 || !Files.exists(data.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                purge(data)
+                File(entrydir, INFO).delete()
+                entrydir.delete()
+                continue
+            }
+            val isdir = Files.isDirectory(data.toPath(), LinkOption.NOFOLLOW_LINKS)
+            val entry = Entry(
+                serial, lines[2], isdir, if (isdir) 0L else data.length(),
+                lines[1].toLongOrNull() ?: 0L, lines[0].toLongOrNull() ?: 0L
+            )
+            entries[serial] = entry
+            if (serial >= nextSerial) nextSerial = serial + 1
+        }
+        queue.addAll(entries.values)
+    }
+
+    private fun run() {
+        while (!closed) {
+            val entry = try {
+                queue.take()
+            } catch (e: InterruptedException) {
+                break
+            }
+            lock.withLock {
+                //// Skip if restored, but still delete if pruned by cleanup().
+                if (!entry.pruned && entries[entry.serial] !== entry) return@withLock null
+                entry.purging = true
+                entry
+            } ?: continue
+            val entrydir = entry.entrydir
+            val data = File(entrydir, DATA)
+            if (!purge(data)) continue
+            File(entrydir, INFO).delete()
+            entrydir.delete()
+            lock.withLock { entries.remove(entry.serial) }
+        }
+    }
+
+    /// Delete file or directory tree depth first.
+    /// @return false if interrupted by close().
+    private fun purge(file: File): Boolean {
+        if (closed) return false
+        if (Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            for (name in file.listOrEmpty()) {
+                if (!purge(File(file, name))) return false
+            }
+        }
+        if (file.delete()) _purged.increment()
+        return true
+    }
+
+    /// Only a rename is O(1), so there is no fallback to a copy across file systems.
+    private fun move(src: File, dst: File) {
+        Files.move(src.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    companion object {
+        private const val DATA = "data"
+        private const val INFO = "info"
+    }
+}
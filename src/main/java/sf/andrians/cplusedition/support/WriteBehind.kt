@@ -0,0 +1,170 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import com.cplusedition.bot.core.FSC
+import com.cplusedition.bot.core.Fun00
+import com.cplusedition.bot.core.Fun11
+import java.io.Closeable
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/// Coalesce rapid saves of the same file, only the last save within the delay is written.
+/// Writes are serialized, the flush() calls write the pending saves immediately and wait for the
+/// running write, if any, so that the caller is ordered after all the saves of the flushed keys.
+/// The failure of a background write is kept until it is taken by failure() or the key is written again.
+class WriteBehind constructor(
+    /// Delay in ms from the first pending save of a key to its write.
+    private val delay: Long,
+    /// Max. size in bytes of a save to be buffered, larger saves should be written with write().
+    val maxBuffered: Int,
+) : Closeable {
+
+    private val pending = LinkedHashMap<String, Fun00>()
+    private val failed = HashMap<String, Throwable>()
+    private val lock = ReentrantLock()
+    private val writing = ReentrantLock()
+    /// Key of the save being written, guarded by lock.
+    private var running: String? = null
+    private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "write-behind").also { thread -> thread.isDaemon = true }
+    }
+
+    private val _writes = LongAdder()
+    private val _coalesced = LongAdder()
+    private val _failures = LongAdder()
+
+    /// Number of saves written.
+    val writes: Long get() = _writes.sum()
+
+    /// Number of saves replaced by a later save before they are written.
+    val coalesced: Long get() = _coalesced.sum()
+
+    /// Number of saves that failed in the background.
+    val failures: Long get() = _failures.sum()
+
+    /// Number of saves not yet written.
+    val size: Int get() = lock.withLock { pending.size }
+
+    /// Replace the pending save of key, if any, with the given save.
+    /// @param save Write the content, it should capture the content to be written.
+    fun put(key: String, save: Fun00) {
+        lock.withLock {
+            if (pending.put(key, save) != null) {
+                _coalesced.increment()
+                return
+            }
+        }
+        executor.schedule({ flush(key) }, delay, TimeUnit.MILLISECONDS)
+    }
+
+    /// Write the pending save of key, if any.
+    fun flush(key: String) {
+        writing.withLock {
+            val save = take { it == key } ?: return
+            run(key, save.second)
+        }
+    }
+
+    /// Write the given save of key now, replacing the pending save of key, if any.
+    /// @throws Exception If the save failed.
+    fun write(key: String, save: Fun00) {
+        writing.withLock {
+            lock.withLock {
+                if (pending.remove(key) != null) _coalesced.increment()
+                failed.remove(key)
+                running = key
+            }
+            try {
+                save()
+                _writes.increment()
+            } finally {
+                lock.withLock { running = null }
+            }
+        }
+    }
+
+    /// @return The failure of the last background write of key, if any, and clear it.
+    fun failure(key: String): Throwable? {
+        return lock.withLock { failed.remove(key) }
+    }
+
+    /// Write all the pending saves.
+    fun flush() {
+        flush { true }
+    }
+
+    /// Write the pending saves of path and of the keys under path, ie. with path/ as prefix.
+    /// Return immediately if none is pending or being written.
+    fun flushUnder(path: String) {
+        val prefix = path.trimEnd(FSC) + FSC
+        flush { it == path || it.startsWith(prefix) }
+    }
+
+    private fun flush(predicate: Fun11<String, Boolean>) {
+        lock.withLock {
+            if (running?.let(predicate) != true && pending.keys.none(predicate)) return
+        }
+        writing.withLock {
+            while (true) {
+                val (key, save) = take(predicate) ?: break
+                run(key, save)
+            }
+        }
+    }
+
+    /// Remove the first pending save with a key matching predicate, to be run by the caller while holding writing.
+    private fun take(predicate: Fun11<String, Boolean>): Pair<String, Fun00>? {
+        return lock.withLock {
+            val iterator = pending.entries.iterator()
+            while (iterator.hasNext()) {
+                val entry = iterator.next()
+                if (!predicate(entry.key)) continue
+                iterator.remove()
+                running = entry.key
+                return@withLock Pair(entry.key, entry.value)
+            }
+            null
+        }
+    }
+
+    /// Flush and stop accepting saves.
+    override fun close() {
+        flush()
+        executor.shutdown()
+        executor.awaitTermination(5, TimeUnit.SECONDS)
+        flush()
+    }
+
+    private fun run(key: String, save: Fun00) {
+        try {
+            save()
+            _writes.increment()
+            lock.withLock { failed.remove(key) }
+        } catch (e: Throwable) {
+            _failures.increment()
+            lock.withLock { failed[key] = e }
+            Support.e("ERROR: WriteBehind: $key: ${e.message}")
+        } finally {
+            lock.withLock { running = null }
+        }
+    }
+}
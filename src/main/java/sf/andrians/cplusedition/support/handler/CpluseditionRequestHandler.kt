@@ -32,6 +32,7 @@ import com.cplusedition.bot.core.Fun31
 import com.cplusedition.bot.core.IBotResult
 import com.cplusedition.bot.core.IInputStreamProvider
 import com.cplusedition.bot.core.MyByteOutputStream
+import com.cplusedition.bot.core.RandomUt
 import com.cplusedition.bot.core.TextUt
 import com.cplusedition.bot.core.Without
 import com.cplusedition.bot.core.XMLUt
@@ -54,17 +55,24 @@ import sf.andrians.cplusedition.support.BackupUtil
 import sf.andrians.cplusedition.support.FileInfoUtil
 import sf.andrians.cplusedition.support.GalleryGenerator
 import sf.andrians.cplusedition.support.GalleryParams
+import sf.andrians.cplusedition.support.Gzip
 import sf.andrians.cplusedition.support.Http
 import sf.andrians.cplusedition.support.Http.HttpHeader
 import sf.andrians.cplusedition.support.Http.HttpStatus
+import sf.andrians.cplusedition.support.IFileContent
 import sf.andrians.cplusedition.support.IFileInfo
 import sf.andrians.cplusedition.support.IFileStat
 import sf.andrians.cplusedition.support.IStorage
 import sf.andrians.cplusedition.support.IStorageAccessor
+import sf.andrians.cplusedition.support.IStorageReader
 import sf.andrians.cplusedition.support.MySeekableInputStream
+import sf.andrians.cplusedition.support.ReadOnlySeekableInputStream
+import sf.andrians.cplusedition.support.SeekableFileInputStream
 import sf.andrians.cplusedition.support.StorageBase
 import sf.andrians.cplusedition.support.Support
 import sf.andrians.cplusedition.support.Support.FilepickerCmdUtil
+import sf.andrians.cplusedition.support.TaskProgress
+import sf.andrians.cplusedition.support.WriteBehind
 import sf.andrians.cplusedition.support.XrefUt
 import sf.andrians.cplusedition.support.asChars
 import sf.andrians.cplusedition.support.handler.IFilepickerHandler.IThumbnailCallback
@@ -90,10 +98,12 @@ import java.io.FileNotFoundException
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
+import java.io.SequenceInputStream
 import java.io.UnsupportedEncodingException
 import java.io.Writer
 import java.net.URLDecoder
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.regex.Pattern
 import kotlin.math.min
 
@@ -107,11 +117,18 @@ abstract class CpluseditionRequestHandler constructor(
 
     protected val storage = context.getStorage()
     protected val rsrc = storage.rsrc
+
+    /// If not null, html and css saves are written behind, the owner must flush it
+    /// before any request that may read the saved files.
+    protected open val writeBehind: WriteBehind? get() = null
     protected val historyFilepicker: IFilepickerHandler
     private val linkVerifier: LinkVerifier
     private val recentsHandler: IRecentsHandler
     private val filepicker: IFilepickerHandler
 
+    /// Running backup verifications by request serial.
+    private val verifies = ConcurrentHashMap<Long, TaskProgress>()
+
     init {
         filepicker = FilepickerHandler(storage, ajax, thumbnailcallback)
         recentsHandler = RecentsHandler(context)
@@ -508,14 +525,41 @@ window.AnSettings=${ret}
         }
     }
 
-    protected fun actionVerifyBackup(st: IStorageAccessor, backuppath: String): JSONObject {
+    /// @param structural See IStorage.verifyBackup().
+    /// @param serial If not negative, the progress can be polled and cancelled with this serial.
+    protected fun actionVerifyBackup(
+        st: IStorageReader,
+        backuppath: String,
+        structural: Boolean = false,
+        serial: Long = -1L
+    ): JSONObject {
         val backupfile = storage.fileInfoAt(backuppath).let {
             it.result() ?: return rsrc.jsonObjectError(it.failure()!!)
         }
         backupfile.stat()
             ?: return rsrc.jsonObjectNotFound(backuppath)
-        val result = BackupUtil.actionVerifyBackup1(st, backupfile)
-        return BackupUtil.backupRestoreResult(rsrc, R.string.BackupVerify, result)
+        val progress = TaskProgress()
+        if (serial >= 0) verifies[serial] = progress
+        try {
+            val result = BackupUtil.actionVerifyBackup1(st, backupfile, structural, progress)
+            return BackupUtil.backupRestoreResult(rsrc, R.string.BackupVerify, result)
+        } finally {
+            if (serial >= 0) verifies.remove(serial)
+        }
+    }
+
+    /// @return { An.Key.total: [files, bytes], An.Key.count: [files, bytes], An.Key.status: cancelled }
+    protected fun actionVerifyBackupProgress(serial: Long): JSONObject {
+        return verifies[serial]?.toJSON()
+            ?: rsrc.jsonObjectError(R.string.NotFound_, "$serial")
+    }
+
+    /// Cancel the backup verification with the given serial.
+    /// @return { An.Key.result: true if the verification is running }
+    protected fun actionVerifyBackupCancel(serial: Long): JSONObject {
+        val progress = verifies[serial]
+        progress?.cancel()
+        return JSONObject().put(Key.result, progress != null)
     }
 
     protected fun actionBackupConversion(
@@ -546,7 +590,7 @@ window.AnSettings=${ret}
         })
     }
 
-    protected fun actionBackupFileInfo(st: IStorageAccessor, cpath: String): JSONObject {
+    protected fun actionBackupFileInfo(st: IStorageReader, cpath: String): JSONObject {
         return storage.fileInfoAt(cpath).onResult({
             rsrc.jsonObjectError(it)
         }, {
@@ -554,7 +598,7 @@ window.AnSettings=${ret}
         })
     }
 
-    protected fun actionReadBackupFiletree(st: IStorageAccessor, backuppath: String): JSONObject {
+    protected fun actionReadBackupFiletree(st: IStorageReader, backuppath: String): JSONObject {
         try {
             val backupfile = StorageBase.existingFileInfoAt(storage, backuppath).let {
                 it.result() ?: return rsrc.jsonObjectError(it.failure()!!)
@@ -566,7 +610,7 @@ window.AnSettings=${ret}
         }
     }
 
-    protected fun actionGetBackupKeyAliases(st: IStorageAccessor): JSONObject {
+    protected fun actionGetBackupKeyAliases(st: IStorageReader): JSONObject {
         return Without.exceptionOrNull {
             val aliases = st.secAction { sec ->
                 sec.getBackupPublicKeys().mapValues { sec.descOf(it.key, it.value) }
@@ -717,6 +761,10 @@ window.AnSettings=${ret}
     }
 
     protected fun actionSaveCSS(cpath: String, content: String, infos: JSONObject?): JSONObject {
+        return actionSaveCSS(cpath, content.byteInputStream(), infos)
+    }
+
+    protected fun actionSaveCSS(cpath: String, content: InputStream, infos: JSONObject?): JSONObject {
         val lcsuffix = Basepath.from(cpath).lcSuffix
         if (Suffix.CSS != lcsuffix) {
             return rsrc.jsonObjectError(R.string.InvalidPath)
@@ -728,6 +776,10 @@ window.AnSettings=${ret}
     }
 
     protected fun actionSaveHtml(cpath: String, content: String, infos: JSONObject?): JSONObject {
+        return actionSaveHtml(cpath, content.byteInputStream(), infos)
+    }
+
+    protected fun actionSaveHtml(cpath: String, content: InputStream, infos: JSONObject?): JSONObject {
         val lcsuffix = Basepath.from(cpath).lcSuffix
         if (Suffix.HTML != lcsuffix) {
             return rsrc.jsonObjectError(R.string.InvalidPath)
@@ -735,16 +787,40 @@ window.AnSettings=${ret}
         return savefile(cpath, content, infos?.optJSONObject(XrefKey.LINKS))
     }
 
-    private fun savefile(cpath: String, content: String, info: JSONObject?): JSONObject {
+    /// With write behind, a save is acknowledged before it is written. If the background write
+    /// failed, the next save of the file is written immediately so that the failure, if it persists,
+    /// is reported to the client, the last save of a document is reported by actionCloseDocument().
+    /// Saves larger than WriteBehind.maxBuffered are streamed to the file immediately.
+    private fun savefile(cpath: String, content: InputStream, info: JSONObject?): JSONObject {
         val fileinfo = storage.fileInfoAt(cpath).let {
             it.result() ?: return rsrc.jsonObjectError(it.failure()!!)
         }
         if (!fileinfo.root.stat().writable) return rsrc.jsonObjectError(R.string.DestinationNotWritable_, cpath)
-        return try {
-            fileinfo.content().write(content.byteInputStream(), null)
-            info?.optJSONObject(XrefKey.LINKS)?.let { xrefs ->
+        val xrefs = info?.optJSONObject(XrefKey.LINKS)?.keyList()
+        val save = { input: InputStream ->
+            fileinfo.content().write(input, null)
+            if (xrefs != null) {
                 storage.getSettingsStore().invoke {
-                    it.updateXrefs(fileinfo.apath, xrefs.keyList())
+                    it.updateXrefs(fileinfo.apath, xrefs)
+                }
+            }
+        }
+        return try {
+            content.use { input ->
+                val writebehind = writeBehind
+                val key = fileinfo.apath
+                if (writebehind == null) {
+                    save(input)
+                } else {
+                    val failure = writebehind.failure(key)
+                    if (failure != null) Support.w("Retry failed save: $cpath: ${failure.message}")
+                    val head = if (failure != null) null else input.readNBytes(writebehind.maxBuffered + 1)
+                    if (head != null && head.size <= writebehind.maxBuffered) {
+                        writebehind.put(key) { save(head.inputStream()) }
+                    } else {
+                        val rest = if (head == null) input else SequenceInputStream(head.inputStream(), input)
+                        writebehind.write(key) { save(rest) }
+                    }
                 }
             }
             JSONObject()
@@ -753,12 +829,30 @@ window.AnSettings=${ret}
         }
     }
 
+    /// Write the buffered save of the document being closed, if any.
+    /// @return An error if the last background save of the document failed.
+    protected fun actionCloseDocument(cpath: String): JSONObject {
+        val writebehind = writeBehind ?: return JSONObject()
+        val fileinfo = storage.fileInfoAt(cpath).let {
+            it.result() ?: return rsrc.jsonObjectError(it.failure()!!)
+        }
+        writebehind.flush(fileinfo.apath)
+        val failure = writebehind.failure(fileinfo.apath)
+            ?: return JSONObject()
+        Support.e("ERROR: Save failed: $cpath: ${failure.message}")
+        return rsrc.jsonObjectError(R.string.WriteFailed)
+    }
+
     protected fun actionSaveRecovery(cpath: String, content: String): JSONObject {
+        return actionSaveRecovery(cpath, content.byteInputStream())
+    }
+
+    protected fun actionSaveRecovery(cpath: String, content: InputStream): JSONObject {
         try {
             val fileinfo = storage.fileInfoAt(cpath).let {
                 it.result() ?: return rsrc.jsonObjectError(R.string.InvalidPath)
             }
-            content.byteInputStream().use {
+            content.use {
                 fileinfo.content().writeRecovery(it)
             }
             return JSONObject()
@@ -957,7 +1051,7 @@ window.AnSettings=${ret}
     protected fun actionFindFiles(fromdir: String?, pattern: String?): JSONObject {
         if (fromdir == null || pattern == null) return rsrc.jsonObjectError(R.string.InvalidArguments)
         try {
-            val paths = storage.submit {
+            val paths = storage.read {
                 it.find(TreeSet(), fromdir, pattern)
             }.get()
             return JSONObject().put(Key.result, JSONArray(paths))
@@ -1369,6 +1463,11 @@ window.AnSettings=${ret}
         response.setStatus(HttpStatus.NotFound)
     }
 
+    protected fun unavailable(response: ICpluseditionResponse, path: String) {
+        context.w("# CpluseditionRequestHandler: unavailable: $path")
+        response.setStatus(HttpStatus.ServiceUnavailable)
+    }
+
     protected fun unsatifiableRangeError(response: ICpluseditionResponse, path: String) {
         context.w("# CpluseditionRequestHandler: unsatifiableRangeError: $path")
         response.setStatus(HttpStatus.RequestedRangeNotSatisfiable)
@@ -1551,6 +1650,10 @@ window.AnSettings=${ret}
             data.writer().use {
                 element.accept(Html5Serializer<Writer>("    ").indent("").noXmlEndTag(true), it)
             }
+            if (data.size() >= Gzip.MIN_SIZE && acceptsGzip(response)) {
+                gzipResponse(response, data.toByteArray())
+                return
+            }
             response.setContentLength(data.size().toLong())
             response.setData(data.inputStream())
         } catch (e: Throwable) {
@@ -1565,6 +1668,10 @@ window.AnSettings=${ret}
     private fun htmlResponse(response: ICpluseditionResponse, bytes: ByteArray) {
         try {
             response.setupHtmlResponse()
+            if (bytes.size >= Gzip.MIN_SIZE && acceptsGzip(response)) {
+                gzipResponse(response, bytes)
+                return
+            }
             response.setContentLength(bytes.size.toLong())
             response.setData(bytes.inputStream())
         } catch (e: Throwable) {
@@ -1583,11 +1690,11 @@ window.AnSettings=${ret}
     private fun resourceResponse(response: ICpluseditionResponse, mime: String, info: IFileInfo, path: String) {
         try {
             if (mime == Mime.HEIC) {
-                storage.submit { it.heicResponse(response, info) }.get()
+                storage.read { it.heicResponse(response, info) }.get()
                 return
             }
             response.setContentType(mime)
-            storage.submit { it.resourceResponse(response, info) }.get()
+            storage.read { it.resourceResponse(response, info) }.get()
         } catch (e: FileNotFoundException) {
             notfound(response, path)
         } catch (e: Throwable) {
@@ -1608,24 +1715,39 @@ window.AnSettings=${ret}
             response.setHeader(HttpHeader.NoCache, "true")
             response.setHeader(HttpHeader.CacheControl, "no-cache")
             response.setHeader(HttpHeader.KeepAlive, "timeout=20")
-            var range: Http.HttpRange? = null
-            val value = request.getHeader(HttpHeader.Range)
-            if (value != null) {
-                range = Http.HttpRange.parse(value, info.content().getContentLength(), Long.MAX_VALUE)
+            val length = info.content().getContentLength()
+            val ranges = request.getHeader(HttpHeader.Range)?.let {
+                Http.HttpRange.parseAll(it, length, Long.MAX_VALUE)
+            }
+            if (ranges == null) {
+                storage.read { it.resourceResponse(response, info) }.get()
+                return
             }
-            if (range == null) {
-                storage.submit { it.resourceResponse(response, info) }.get()
+            if (ranges.isEmpty()) {
+                response.setHeader(HttpHeader.ContentRange, Http.HttpRange.unsatisfiedRange(length))
+                unsatifiableRangeError(response, path)
                 return
             }
-            val size = range.size()
+            val content = info.content()
             response.setStatus(HttpStatus.PartialContent)
             response.setHeader(HttpHeader.AcceptRanges, "bytes")
-            response.setHeader(HttpHeader.ContentRange, range.contentRange())
-            response.setContentLength(size)
-            val content = info.content().inputStream()
-            storage.submit {
-                response.setData(PartialInputStream(content, range.first, size))
-            }.get()
+            if (ranges.size == 1) {
+                val range = ranges[0]
+                response.setHeader(HttpHeader.ContentRange, range.contentRange())
+                response.setContentLength(range.size())
+                val file = info.file
+                response.setData(
+                    if (file != null) FileRangeInputStream(file, range.first, range.size())
+                    else PartialSeekableInputStream(seekableOf(content), range.first, range.size())
+                )
+                return
+            }
+            val seekable = seekableOf(content)
+            val boundary = java.lang.Long.toHexString(RandomUt.getLong())
+            val data = MultipartRangesInputStream(seekable, ranges, mime, boundary)
+            response.setContentType("multipart/byteranges; boundary=$boundary")
+            response.setContentLength(data.length)
+            response.setData(data)
         } catch (e: FileNotFoundException) {
             notfound(response, path)
         } catch (e: Throwable) {
@@ -1633,17 +1755,40 @@ window.AnSettings=${ret}
         }
     }
 
+    private fun seekableOf(content: IFileContent): MySeekableInputStream {
+        return content.seekableInputStream()
+            ?: ReadOnlySeekableInputStream({ content.getContentLength() }, { content.inputStream() })
+    }
+
     protected fun jsonResponse(response: ICpluseditionResponse, json: JSONObject) {
         try {
             response.setHeader("no-cache", "true")
             response.setContentType("application/json;charset=UTF-8")
-            response.setData(json.toString().byteInputStream())
+            val bytes = json.toString().toByteArray(Charsets.UTF_8)
+            if (bytes.size >= Gzip.MIN_SIZE && acceptsGzip(response)) {
+                gzipResponse(response, bytes)
+                return
+            }
+            response.setData(bytes.inputStream())
         } catch (e: IOException) {
             Support.e("ERROR: Sending JSON response", e);
             response.setStatus(HttpStatus.InternalServerError)
         }
     }
 
+    private fun acceptsGzip(response: ICpluseditionResponse): Boolean {
+        return Http.acceptsEncoding(response.getRequest()?.getHeader(HttpHeader.AcceptEncoding), Gzip.ENCODING)
+    }
+
+    /// Compress a dynamic response on the fly.
+    private fun gzipResponse(response: ICpluseditionResponse, bytes: ByteArray) {
+        val gzipped = Gzip.gzip(bytes)
+        response.setHeader(HttpHeader.Vary, HttpHeader.AcceptEncoding)
+        response.setHeader(HttpHeader.ContentEncoding, Gzip.ENCODING)
+        response.setContentLength(gzipped.size.toLong())
+        response.setData(gzipped.inputStream())
+    }
+
     companion object {
         private val CSSURLQQ = Pattern.compile("url\\(\\s*\"([^\"]+?)(\")\\s*\\)")
         private val CSSURLQ = Pattern.compile("url\\(\\s*'([^']+?)(')\\s*\\)")
@@ -1894,36 +2039,29 @@ window.AnSettings=${ret}
 
 }
 
-internal class PartialInputStream(
-    private val input: InputStream,
-    start: Long,
-    size: Long
+/// A range of a plain file. A response on a one-shot connection sends it with UnixSocket.sendfile()
+/// instead of reading it, the file is opened only when the stream is read.
+internal class FileRangeInputStream(
+    val file: File,
+    val offset: Long,
+    val count: Long
 ) : InputStream() {
-    var position = start
-    var end = start + size
+    private var input: PartialSeekableInputStream? = null
 
-    init {
-        if (start > 0 && input.skip(start) != start) throw IOException()
+    private fun input(): InputStream {
+        return input ?: PartialSeekableInputStream(SeekableFileInputStream(file), offset, count).also { input = it }
     }
 
     override fun read(): Int {
-        val oposition = position
-        val ret = input.read()
-        position += oposition + 1
-        return ret
+        return input().read()
     }
 
     override fun read(b: ByteArray, off: Int, len: Int): Int {
-        if (position >= end) return -1
-        val oposition = position
-        val length = min(end - position, len.toLong()).toInt()
-        val n = input.read(b, off, length)
-        if (n > 0) position = oposition + n
-        return n
+        return input().read(b, off, len)
     }
 
     override fun close() {
-        input.close()
+        input?.close()
     }
 }
 
@@ -1956,6 +2094,71 @@ internal class PartialSeekableInputStream(
     }
 }
 
+/// A multipart/byteranges body of the given ranges, read with positional reads.
+internal class MultipartRangesInputStream(
+    private val input: MySeekableInputStream,
+    ranges: List<Http.HttpRange>,
+    mime: String,
+    boundary: String,
+) : InputStream() {
+    /// A part header or trailer if bytes is not null, otherwise a range of the input.
+    private class Segment(val bytes: ByteArray?, val first: Long, val size: Long)
+
+    private val segments = ArrayList<Segment>()
+    private val buf = ByteArray(1)
+    private var index = 0
+    private var offset = 0L
+    val length: Long
+
+    init {
+        fun text(value: String) {
+            val bytes = value.toByteArray(Charsets.US_ASCII)
+            segments.add(Segment(bytes, 0L, bytes.size.toLong()))
+        }
+        for (range in ranges) {
+            text("--$boundary\r\n${HttpHeader.ContentType}: $mime\r\n${HttpHeader.ContentRange}: ${range.contentRange()}\r\n\r\n")
+            segments.add(Segment(null, range.first, range.size()))
+            text("\r\n")
+        }
+        text("--$boundary--\r\n")
+        length = segments.sumOf { it.size }
+    }
+
+    override fun read(): Int {
+        while (true) {
+            val n = read(buf, 0, 1)
+            if (n < 0) return -1
+            if (n > 0) return buf[0].toInt() and 0xff
+        }
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        while (index < segments.size) {
+            val segment = segments[index]
+            val remaining = segment.size - offset
+            if (remaining <= 0L) {
+                ++index
+                offset = 0L
+                continue
+            }
+            val length = min(remaining, len.toLong()).toInt()
+            val n = segment.bytes?.let {
+                it.copyInto(b, off, offset.toInt(), offset.toInt() + length)
+                length
+            } ?: input.readAt(segment.first + offset, b, off, length)
+            if (n < 0) throw IOException()
+            offset += n
+            return n
+        }
+        return -1
+    }
+
+    override fun close() {
+        input.close()
+    }
+}
+
 internal class ChunkedInputStream(
     private val input: MySeekableInputStream,
     private val start: Long,
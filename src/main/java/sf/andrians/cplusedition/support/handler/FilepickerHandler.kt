@@ -16,11 +16,13 @@
 */
 package sf.andrians.cplusedition.support.handler
 
+import com.cplusedition.bot.core.Fun01
 import org.json.JSONObject
 import sf.andrians.cplusedition.R
 import sf.andrians.cplusedition.support.An
 import sf.andrians.cplusedition.support.IStorage
 import sf.andrians.cplusedition.support.handler.IFilepickerHandler.IThumbnailCallback
+import java.util.concurrent.Future
 
 class FilepickerHandler(
     storage: IStorage,
@@ -30,13 +32,18 @@ class FilepickerHandler(
 
     @Throws(Exception::class)
     override fun handle(cmd: Int, params: JSONObject): JSONObject {
+        //// Progress and cancel requests must not wait for the copy holding the storage lock.
+        when (cmd) {
+            An.FilepickerCmd.COPY_PROGRESS -> return actionCopyProgress(params)
+            An.FilepickerCmd.COPY_CANCEL -> return actionCopyCancel(params)
+        }
         val serial = params.optLong(An.Key.serial, -1L)
         if (ajax == null || serial < 0) {
-            return storage.submit {
+            return submit(cmd) {
                 handle1(cmd, params)
             }.get()
         }
-        storage.submit {
+        submit(cmd) {
             try {
                 val result = handle1(cmd, params)
                 result.put(An.Key.serial, serial)
@@ -48,6 +55,11 @@ class FilepickerHandler(
         return JSONObject()
     }
 
+    /// Commands that only read run concurrently on the storage read pool.
+    private fun <R> submit(cmd: Int, task: Fun01<R>): Future<R> {
+        return if (cmd in READS) storage.read { task() } else storage.submit { task() }
+    }
+
     override fun listDir(ret: JSONObject, cpath: String): JSONObject {
         return listdir(ret, cpath)
     }
@@ -79,4 +91,17 @@ class FilepickerHandler(
         }
     }
 
+    companion object {
+        private val READS = setOf(
+            An.FilepickerCmd.FILEINFO,
+            An.FilepickerCmd.FILEINFOS,
+            An.FilepickerCmd.LISTDIR,
+            An.FilepickerCmd.LIST_RECURSIVE,
+            An.FilepickerCmd.DIRINFO,
+            An.FilepickerCmd.COPY_INFO,
+            An.FilepickerCmd.DELETE_INFO,
+            An.FilepickerCmd.LOCAL_IMAGE_INFOS,
+            An.FilepickerCmd.LOCAL_IMAGE_THUMBNAILS,
+        )
+    }
 }
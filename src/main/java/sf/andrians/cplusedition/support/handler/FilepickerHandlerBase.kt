@@ -32,11 +32,19 @@ import sf.andrians.cplusedition.support.*
 import sf.andrians.cplusedition.support.An.Key
 import sf.andrians.cplusedition.support.An.Key.dirpath
 import sf.andrians.cplusedition.support.An.Key.fileinfo
+import sf.andrians.cplusedition.support.IStorage.K
 import sf.andrians.cplusedition.support.handler.IFilepickerHandler.IThumbnailCallback
 import sf.andrians.cplusedition.support.media.ImageUtil
 import sf.andrians.cplusedition.support.media.MediaInfo
 import sf.andrians.cplusedition.support.media.MimeUtil
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.min
 
 ////////////////////////////////////////////////////////////////////////
 
@@ -45,6 +53,12 @@ abstract class FilepickerHandlerBase(
 ) : IFilepickerHandler {
     protected val rsrc = storage.rsrc
 
+    /// Progress of the running copy actions by request serial.
+    private val copies = ConcurrentHashMap<Long, TaskProgress>()
+
+    /// Max. number of concurrent file copies in a copy action.
+    protected open val copyParallelism: Int get() = K.COPY_PARALLELISM
+
     ////////////////////////////////////////////////////////////////////////
 
     /// @param path A context relative path.
@@ -67,6 +81,8 @@ abstract class FilepickerHandlerBase(
         }
     }
 
+    /// @return {result: [files, dirs, size, directfiles, directdirs, directsize, newest]} where files, dirs and size
+    /// are totals of the subtree and newest is the newest file mtime in the subtree.
     @Throws(JSONException::class)
     fun actionDirInfo(params: JSONObject): JSONObject {
         val cpath = params.stringOrNull(Key.path)
@@ -77,44 +93,69 @@ abstract class FilepickerHandlerBase(
         var files = 0L
         var dirs = 0L
         var size = 0L
+        var newest = 0L
         fun count(dir: IFileInfo) {
             for (file in dir.readDir(ArrayList())) {
                 if (file.isDir) {
                     ++dirs
                     count(file)
                 } else {
+                    val stat = file.stat()!!
                     ++files
-                    size += file.stat()!!.length
+                    size += stat.length
+                    newest = maxOf(newest, stat.lastModified)
                 }
             }
         }
 
+        /// @return The maintained Pair(direct, total) aggregates of dir, null if not available.
+        fun aggregates(dir: IFileInfo): Pair<DirAggregates.Aggregate, DirAggregates.Aggregate>? {
+            return (dir.root as? FileRootInfo)?.aggregates?.get(dir)
+        }
+
         val errors = TreeSet<String>()
         val cleanrpath = Support.getcleanrpathStrict(errors, rsrc, cpath)
         if (errors.size > 0)
             return rsrc.jsonObjectError(errors)
         if (cleanrpath == "") {
             for (root in storage.getRoots()) {
-                count(root)
+                val total = aggregates(root)?.second
+                if (total == null) count(root) else {
+                    files += total.files
+                    dirs += total.dirs
+                    size += total.size
+                    newest = maxOf(newest, total.newest)
+                }
             }
         } else {
             val info = storage.fileInfo(cleanrpath)
                 ?: return rsrc.jsonObjectError(R.string.InvalidPath)
             if (!info.isDir)
                 return rsrc.jsonObjectError(R.string.DestinationExpectingADir)
+            aggregates(info)?.let { (direct, total) ->
+                return JSONObject().put(
+                    Key.result, JSONArray()
+                        .put(total.files).put(total.dirs).put(total.size)
+                        .put(direct.files).put(direct.dirs).put(direct.size)
+                        .put(total.newest)
+                )
+            }
             for (file in info.readDir(ArrayList())) {
                 if (file.isDir) {
                     ++dirs1
                     count(file)
                 } else {
+                    val stat = file.stat()!!
                     ++files1
-                    size1 += file.stat()!!.length
+                    size1 += stat.length
+                    newest = maxOf(newest, stat.lastModified)
                 }
             }
         }
         return JSONObject().put(
             Key.result, JSONArray()
                 .put(files + files1).put(dirs + dirs1).put(size + size1).put(files1).put(dirs1).put(size1)
+                .put(newest)
         )
     }
 
@@ -605,7 +646,33 @@ abstract class FilepickerHandlerBase(
         val dstdir = storage.fileInfoAt(dstdirpath).result()
             ?: return rsrc.jsonObjectError(R.string.DestinationNotValid_, dstdirpath)
         val rpaths = params.stringSequenceOrEmpty(Key.rpaths).toList()
-        return CopyAction(this, storage, cut, preservetimestamp, fixxrefs, dstdir, src, rpaths).copy()
+        val serial = params.optLong(Key.serial, -1L)
+        val progress = TaskProgress()
+        if (serial >= 0) copies[serial] = progress
+        try {
+            return CopyAction(
+                this, storage, cut, preservetimestamp, fixxrefs, dstdir, src, rpaths, copyParallelism, progress
+            ).copy()
+        } finally {
+            if (serial >= 0) copies.remove(serial)
+        }
+    }
+
+    /// @param An.Key.id Serial of the copy request.
+    /// @return { An.Key.total: [files, bytes], An.Key.count: [files, bytes], An.Key.status: cancelled }
+    fun actionCopyProgress(params: JSONObject): JSONObject {
+        val id = params.optLong(Key.id, -1L)
+        return copies[id]?.toJSON()
+            ?: rsrc.jsonObjectError(R.string.NotFound_, "$id")
+    }
+
+    /// Cancel the copy request with the given serial, files already copied are kept.
+    /// @param An.Key.id Serial of the copy request.
+    /// @return { An.Key.result: true if the copy is running }
+    fun actionCopyCancel(params: JSONObject): JSONObject {
+        val progress = copies[params.optLong(Key.id, -1L)]
+        progress?.cancel()
+        return JSONObject().put(Key.result, progress != null)
     }
 
     internal class CopyAction constructor(
@@ -616,12 +683,20 @@ abstract class FilepickerHandlerBase(
         private val fixXrefs: Boolean,
         private val dst: IFileInfo,
         private val src: IFileInfo,
-        private val rpaths: List<String>
+        private val rpaths: List<String>,
+        private val parallelism: Int = K.COPY_PARALLELISM,
+        private val progress: TaskProgress = TaskProgress(),
     ) {
         private val rsrc = storage.rsrc
         private val warns = JSONArray()
         private val oks = JSONArray()
 
+        /// File copies collected by the walk, to be run by transfer().
+        private val pending = ArrayList<Transfer>()
+
+        /// Source directories to delete after the pending transfers completed on cut.
+        private val emptytrees = ArrayList<IFileInfo>()
+
         @Throws(JSONException::class)
         fun copy(): JSONObject {
             if (rpaths.isEmpty()) {
@@ -635,6 +710,9 @@ abstract class FilepickerHandlerBase(
                     return it
                 }
             }
+            if (progress.cancelled) {
+                return rsrc.jsonObjectError(R.string.PromptCopyCancelled)
+            }
             val ret = JSONObject()
             if (warns.length() > 0) {
                 ret.put(Key.warns, warns)
@@ -652,6 +730,7 @@ abstract class FilepickerHandlerBase(
             val dststat = dst.stat()
             if (srcstat.isFile) {
                 return copyfile1(st, dst, dststat, src, srcstat) { it == src.apath }
+                    ?: transfer(st).let { if (it.isNotEmpty()) rsrc.jsonObjectError(it) else null }
             }
             if (srcstat.isDir) {
                 if (dststat == null) {
@@ -664,9 +743,12 @@ abstract class FilepickerHandlerBase(
                 }
                 return dst.root.transaction {
                     val base = src.apath + FS
-                    copydir1(st, dst, src, rpath) {
+                    val ret = copydir1(st, dst, src, rpath) {
                         it.startsWith(base)
                     }
+                    val errors = transfer(st)
+                    deleteEmptyTrees()
+                    ret ?: if (errors.isNotEmpty()) rsrc.jsonObjectError(errors) else null
                 }
             }
             return null
@@ -694,7 +776,7 @@ abstract class FilepickerHandlerBase(
                 }
             }
             val ret = copyfiles(st, dstsrcs, incopyset)
-            if (cut) src.deleteEmptyTree()
+            if (cut) emptytrees.add(src)
             return ret
         }
 
@@ -734,8 +816,12 @@ abstract class FilepickerHandlerBase(
                     copydir1(st, info.first, info.second, info.third, incopyset)
                 }
                 copyfiles(st, fileinfos, incopyset)
+                for (error in transfer(st)) {
+                    warns.put(error)
+                }
             }
-            if (cut) {
+            emptytrees.clear()
+            if (cut && !progress.cancelled) {
                 for (s in srcs) {
                     s.deleteEmptyTree()
                 }
@@ -765,7 +851,8 @@ abstract class FilepickerHandlerBase(
                         }
                         continue
                     }
-                    if (!d.deleteTree { st.deleteXrefsFrom(it) }) {
+                    //// A pending transfer replaces the file only after the copy completed.
+                    if ((fixXrefs || !dstat.isFile) && !d.deleteTree { st.deleteXrefsFrom(it) }) {
                         errors.add(rsrc.jsonError(R.string.DeleteFailed_, rpath))
                         continue
                     }
@@ -803,6 +890,8 @@ abstract class FilepickerHandlerBase(
             return ret?.let { rsrc.jsonObjectError(it) }
         }
 
+        /// Validate the copy, files that need xrefs fixes are copied immediately,
+        /// others are queued for transfer().
         /// @return An error message or nil if copy OK.
         private fun copy1(
             st: ISettingsStoreAccessor,
@@ -830,21 +919,17 @@ abstract class FilepickerHandlerBase(
             if (dstext != srcext) {
                 return rsrc.get(R.string.ChangeFileExtIsNotAllowed, ": ", rpath)
             }
+            if (!fixXrefs) {
+                val timestamp = if (preserveTimestamp) srcstat.lastModified else System.currentTimeMillis()
+                pending.add(Transfer(dst, src, rpath, srcstat.length, timestamp))
+                progress.add(srcstat.length)
+                return null
+            }
             try {
-                if (fixXrefs) {
-                    val lcsuffix = src.lcSuffix
-                    XrefUt.onCopy(st, dst, src, lcsuffix, cut, preserveTimestamp, incopyset)
-                    if (cut) {
-                        XrefUt.onMove(storage, st, dst, src, incopyset)
-                    }
-                } else {
-                    val timestamp = if (preserveTimestamp) srcstat.lastModified else System.currentTimeMillis()
-                    if (cut) src.content().moveTo(dst, timestamp)
-                    else src.content().copyTo(dst, timestamp)
-                    XrefUt.buildXrefs(dst) { apath, xrefs ->
-                        st.updateXrefs(apath, xrefs)
-                    }
-                    if (cut) st.deleteXrefsFrom(src)
+                val lcsuffix = src.lcSuffix
+                XrefUt.onCopy(st, dst, src, lcsuffix, cut, preserveTimestamp, incopyset)
+                if (cut) {
+                    XrefUt.onMove(storage, st, dst, src, incopyset)
                 }
                 oks.put(rpath)
                 return null
@@ -853,6 +938,126 @@ abstract class FilepickerHandlerBase(
                 return rsrc.get(R.string.CopyFailed_, rpath)
             }
         }
+
+        /// Run the pending transfers on the worker pool, at most parallelism at a time,
+        /// then update the xrefs and results in the queued order.
+        /// @return Error messages for the failed transfers.
+        private fun transfer(st: ISettingsStoreAccessor): List<String> {
+            if (pending.isEmpty()) return emptyList()
+            val transfers = ArrayList(pending)
+            pending.clear()
+            val next = AtomicInteger()
+            val runners = (0 until min(parallelism, transfers.size)).map {
+                workerThreadPool.submit(Callable {
+                    while (!progress.cancelled) {
+                        val index = next.getAndIncrement()
+                        if (index >= transfers.size) break
+                        transfers[index].run()
+                    }
+                })
+            }
+            for (runner in runners) {
+                runner.get()
+            }
+            val errors = ArrayList<String>()
+            for (t in transfers) {
+                val xrefs = t.xrefs
+                if (xrefs == null) {
+                    if (!progress.cancelled) errors.add(rsrc.get(R.string.CopyFailed_, t.rpath))
+                    continue
+                }
+                st.deleteXrefsFrom(t.dst)
+                for ((apath, refs) in xrefs) {
+                    st.updateXrefs(apath, refs)
+                }
+                if (cut) st.deleteXrefsFrom(t.src)
+                oks.put(t.rpath)
+            }
+            return errors
+        }
+
+        private fun deleteEmptyTrees() {
+            if (!progress.cancelled) {
+                for (dir in emptytrees) {
+                    dir.deleteEmptyTree()
+                }
+            }
+            emptytrees.clear()
+        }
+
+        private inner class Transfer(
+            val dst: IFileInfo,
+            val src: IFileInfo,
+            val rpath: String,
+            val length: Long,
+            val timestamp: Long,
+        ) {
+            /// The xrefs of the copied file, null if the copy has not completed.
+            @Volatile
+            var xrefs: List<Pair<String, Collection<String>>>? = null
+
+            /// Copy to a temp file and rename it over dst only when complete,
+            /// so that a cancelled or failed copy leaves an existing dst untouched.
+            fun run() {
+                try {
+                    val srccontent = src.content()
+                    if (cut && srccontent.renameTo(dst, timestamp)) {
+                        progress.done(length)
+                    } else {
+                        TmpUt.replace(dst, timestamp) { tmp ->
+                            val tmpcontent = tmp.content()
+                            if (srccontent is FileContent && tmpcontent is FileContent) {
+                                srccontent.transferTo(tmpcontent, timestamp) {
+                                    progress.transferred(it)
+                                }
+                                progress.done(0)
+                            } else {
+                                val input = ProgressInputStream(srccontent.inputStream())
+                                input.use {
+                                    tmpcontent.write(it, timestamp)
+                                }
+                                progress.done(input.pending)
+                            }
+                        }
+                        if (cut && !src.delete(true)) throw IOException()
+                    }
+                    val ret = ArrayList<Pair<String, Collection<String>>>()
+                    XrefUt.buildXrefs(dst) { apath, refs ->
+                        ret.add(Pair(apath, refs))
+                    }
+                    xrefs = ret
+                } catch (e: Throwable) {
+                    //// xrefs stays null to report the failure.
+                }
+            }
+        }
+
+        /// Report progress for copies from or to an encrypted root, abort the copy if cancelled.
+        private inner class ProgressInputStream(input: InputStream) : FilterInputStream(input) {
+            /// Number of bytes read but not yet reported.
+            var pending = 0L
+                private set
+
+            override fun read(): Int {
+                val ret = super.read()
+                if (ret >= 0) count(1)
+                return ret
+            }
+
+            override fun read(b: ByteArray, off: Int, len: Int): Int {
+                val ret = super.read(b, off, len)
+                if (ret > 0) count(ret)
+                return ret
+            }
+
+            private fun count(n: Int) {
+                pending += n
+                if (pending >= FileContent.TRANSFER_CHUNK) {
+                    if (!progress.transferred(pending)) throw IOException()
+                    pending = 0
+                }
+            }
+        }
     }
 
     /**
@@ -886,22 +1091,38 @@ abstract class FilepickerHandlerBase(
 
     private fun deletedirsubtree(warns: JSONArray, dir: IFileInfo): Boolean {
         var ok = true
-        storage.getSettingsStore().invoke {
-            dir.walk2(true) { info, stat ->
+        storage.getSettingsStore().invoke { st ->
+            fun delete(info: IFileInfo, stat: IFileStat) {
                 val isfile = stat.isFile
                 if (!info.delete()) {
                     warns.put(rsrc.get(R.string.DeleteFailed_, info.apath))
                     ok = false
-                    return@walk2
+                    return
                 }
                 if (isfile) {
-                    it.deleteXrefsFrom(info)
+                    st.deleteXrefsFrom(info)
                 }
             }
+            for (info in dir.readDir(ArrayList())) {
+                if (trash(st, info)) continue
+                val stat = info.stat() ?: continue
+                info.walk2(true, ::delete)
+                if (stat.isDir) delete(info, stat)
+            }
         }
         return ok
     }
 
+    /// Move info into the trash of its root, if any, to be deleted in the background.
+    /// @return true if moved, otherwise info is untouched and should be deleted in place.
+    private fun trash(st: ISettingsStoreAccessor, info: IFileInfo): Boolean {
+        val trash = (info.root as? FileRootInfo)?.trash ?: return false
+        if (info !is FileInfoBase || info.stat() == null) return false
+        //// Xrefs are matched by the apath prefix if info is a directory, so it must be done before the move.
+        st.deleteXrefsFrom(info)
+        return trash.put(info)
+    }
+
     @Throws(JSONException::class)
     fun actionDeleteAll(params: JSONObject): JSONObject {
         val src = params.stringOrNull(Key.src)
@@ -937,7 +1158,7 @@ abstract class FilepickerHandlerBase(
                 srcinfo.root.transaction {
                     for (rpath in rpaths) {
                         val sinfo = srcinfo.fileInfo(rpath)
-                        deleteall2(oks, sinfo, rpath, ::callback)?.let {
+                        deleteall2(st, oks, sinfo, rpath, ::callback)?.let {
                             warns.put(it)
                         }
                     }
@@ -945,7 +1166,7 @@ abstract class FilepickerHandlerBase(
                 null
             } else {
                 val rpath = srcinfo.name
-                deleteall2(oks, srcinfo, rpath, ::callback)?.let {
+                deleteall2(st, oks, srcinfo, rpath, ::callback)?.let {
                     rsrc.jsonObjectError(it)
                 }
             }
@@ -953,11 +1174,17 @@ abstract class FilepickerHandlerBase(
     }
 
     /// @return nil if OK, otherwise the error message
-    private fun deleteall2(oks: JSONArray, sinfo: IFileInfo, rpath: String, callback: Fun10<IFileInfo>): String? {
+    private fun deleteall2(
+        st: ISettingsStoreAccessor,
+        oks: JSONArray,
+        sinfo: IFileInfo,
+        rpath: String,
+        callback: Fun10<IFileInfo>
+    ): String? {
         val sstat = sinfo.stat()
         if (sstat == null || !sstat.readable)
             return rsrc.get(R.string.NotFound_, rpath)
-        if (!sinfo.deleteTree(callback))
+        if (!trash(st, sinfo) && !sinfo.deleteTree(callback))
             return rsrc.get(R.string.DeleteFailed_, rpath)
         oks.put(rpath)
         return null
@@ -23,6 +23,7 @@ import com.cplusedition.anjson.JSONUtil.stringOrNull
 import com.cplusedition.bot.core.Basepath
 import com.cplusedition.bot.core.FS
 import com.cplusedition.bot.core.Fun10
+import com.cplusedition.bot.core.Fun11
 import com.cplusedition.bot.core.TextUt
 import com.cplusedition.bot.core.Without
 import org.json.JSONArray
@@ -47,7 +48,7 @@ class HistoryFilepickerHandler(
         if (ajax == null || serial < 0) {
             return handle1(cmd, params)
         }
-        storage.submit {
+        val task: Fun11<IStorageReader, Unit> = {
             try {
                 val result = handle1(cmd, params)
                 result.put(An.Key.serial, serial)
@@ -56,6 +57,13 @@ class HistoryFilepickerHandler(
                 ajax.error(serial, R.string.CommandFailed)
             }
         }
+        when (cmd) {
+            An.FilepickerCmd.FILEINFO,
+            An.FilepickerCmd.LISTDIR,
+            An.FilepickerCmd.LIST_RECURSIVE,
+            An.FilepickerCmd.DIRINFO -> storage.read(task)
+            else -> storage.submit(task)
+        }
         return JSONObject()
     }
 
@@ -189,12 +197,27 @@ class HistoryFilepickerHandler(
                 it.result() ?: return rsrc.jsonObjectError(it.failure()!!)
             }
             val infos = srcinfos.mapsJSONObjectNotNull { it }.toList()
+            val todir = dst.isDir || infos.size > 1
             val result = src.root.recover(dst, infos)
+            //// Xrefs of trashed entries were removed on delete, so rebuild them for whatever was recovered.
+            rebuildXrefs(if (todir) infos.map { dst.fileInfo(JSONObjectDeletedFileStat(it).name) } else listOf(dst))
             return recoverCounts(result)
         }
         return run() ?: rsrc.jsonObjectError(R.string.InvalidArguments)
     }
 
+    private fun rebuildXrefs(infos: List<IFileInfo>) {
+        val xrefs = TreeMap<String, Collection<String>>()
+        for (info in infos) {
+            if (info.isDir) XrefUt.buildXrefs(xrefs, info)
+            else XrefUt.buildXrefs(info) { apath, refs -> xrefs[apath] = refs }
+        }
+        storage.getSettingsStore().invoke { st ->
+            infos.forEach { st.deleteXrefsFrom(it) }
+            st.updateXrefs(xrefs)
+        }
+    }
+
     private fun actionDeleteDirSubtree(params: JSONObject): JSONObject {
         val cpath = params.stringOrNull(Key.path)
             ?: return rsrc.jsonObjectError(R.string.InvalidPath)
@@ -27,4 +27,8 @@ interface ICpluseditionResponse {
     fun getStatus(): Int
     fun getRequest(): ICpluseditionRequest?
     fun setupHtmlResponse()
+
+    /// Called after the handler returned, send an empty response with the current status
+    /// if neither setData() nor an error setStatus() was called.
+    fun finish() {}
 }
@@ -36,7 +36,32 @@ object Conf {
     const val HOST = "localhost"
     const val APP = "Cplusedition"
     const val COPY_BUFSIZE = 16 * 1024
+    /// Max. bytes sent by a single sendfile call, the response watchdog is fed between the calls.
+    const val SENDFILE_CHUNK = 4 * 1024 * 1024L
     const val QRCODE_SCALE = 2
+    const val REQUEST_THREADS = 8
+    const val REQUEST_QUEUE = 256
+    const val RESPONSE_WRITERS = 32
+    const val RESPONSE_QUEUE = 1024
+    const val STORAGE_READERS = 4
+    /// Max. number of directory entries in the listing cache of each root.
+    const val DIRCACHE_ENTRIES = 64 * 1024
+    /// Delay in ms before a html or css save is written, later saves of the same file within the delay replace it.
+    const val SAVE_DELAY = 1000L
+    /// Max. size in bytes of a save to be written behind, larger saves are streamed to the file immediately.
+    const val SAVE_BUFFER_MAX = 4 * 1024 * 1024
+    /// Max. age in ms of the versions in the history of the home root.
+    const val HISTORY_MAX_AGE = 30L * 24 * 60 * 60 * 1000
+    /// Max. total compressed size in bytes of the history of the home root.
+    const val HISTORY_MAX_BYTES = 256L * 1024 * 1024
+    /// Files larger than this in bytes are not kept in the history.
+    const val HISTORY_MAX_FILE_SIZE = 16L * 1024 * 1024
+    /// Max. total size in bytes of the files kept in the history by a single tree delete.
+    const val HISTORY_MAX_BULK_BYTES = HISTORY_MAX_BYTES / 8
+    /// Max. total bytes of the decrypted blocks cached for the encrypted roots.
+    const val BLOCK_CACHE_BYTES = 16L * 1024 * 1024
+    /// System property of the interval in seconds to log the request metrics, disabled if not set.
+    const val METRICS_LOG_INTERVAL = "cplusedition.metrics.interval"
 
     @JvmStatic
     val logger: ILog = ConsoleLoggerAdapter()
@@ -75,6 +100,10 @@ object Conf {
         return "$APP.$key"
     }
 
+    fun metricsLogInterval(): Long? {
+        return System.getProperty(METRICS_LOG_INTERVAL)?.toLongOrNull()
+    }
+
     fun getEtcDir(datadir: File): File {
         return File(datadir, "etc").mkdirsOrFail()
     }
@@ -105,6 +134,15 @@ object Conf {
         return File(cachedir, rpathx)
     }
 
+    fun getHistoryDir(datadir: File, rootname: String): File {
+        return File(datadir.file(Paths.HISTORY_DIR), rootname).also { it.mkdirs() }
+    }
+
+    /// Trash of the given root, it must be on the same file system as the root.
+    fun getTrashDir(datadir: File, rootname: String): File {
+        return File(datadir.file(Paths.TRASH_DIR), rootname).also { it.mkdirs() }
+    }
+
     fun getTempDir(datadir: File): File {
         return datadir.file(Paths.TEMP_DIR)
     }
@@ -200,6 +238,8 @@ object Conf {
         const val loginCf = "login.cf"
         const val _cache = ".cache"
         const val TEMP_DIR = ".tmp"
+        const val HISTORY_DIR = ".history"
+        const val TRASH_DIR = ".trash"
         const val keystore = ".keystore"
     }
 
@@ -211,6 +251,7 @@ object Conf {
         const val thumbnails = "tn"
         const val images = "im"
         const val indexes = "ix"
+        const val gzip = "gz"
     }
 
     internal object RequestCode {
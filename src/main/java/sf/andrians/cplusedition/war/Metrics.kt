@@ -0,0 +1,215 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.war
+
+import com.cplusedition.bot.core.Fun01
+import org.json.JSONArray
+import org.json.JSONObject
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAdder
+import kotlin.math.min
+
+/**
+ * Per endpoint request metrics. Recording a request takes a few System.nanoTime() calls
+ * and uncontended LongAdder/AtomicLongArray updates, so it stays well under a microsecond.
+ */
+object Metrics {
+
+    /// Latency histogram with log-linear, HDR style, buckets of SUB_BUCKETS per power of two microseconds.
+    class Histogram {
+        private val buckets = AtomicLongArray(BUCKETS)
+        private val max = AtomicLong()
+
+        fun record(nanos: Long) {
+            val us = nanos / 1000
+            buckets.incrementAndGet(indexOf(us))
+            var m = max.get()
+            while (us > m && !max.compareAndSet(m, us)) m = max.get()
+        }
+
+        /// @return Upper bound in microseconds of the bucket at the given percentile, 0 if empty.
+        fun percentile(total: Long, p: Double): Long {
+            if (total <= 0L) return 0L
+            val threshold = (total * p).toLong().coerceAtLeast(1L)
+            var count = 0L
+            for (index in 0 until BUCKETS) {
+                count += buckets.get(index)
+                if (count >= threshold) return min(upperOf(index), max.get())
+            }
+            return max.get()
+        }
+
+        fun toJSON(): JSONObject {
+            var total = 0L
+            val a = JSONArray()
+            for (index in 0 until BUCKETS) {
+                val n = buckets.get(index)
+                if (n == 0L) continue
+                total += n
+                a.put(JSONArray().put(upperOf(index)).put(n))
+            }
+            return JSONObject()
+                .put("p50", percentile(total, 0.50))
+                .put("p90", percentile(total, 0.90))
+                .put("p99", percentile(total, 0.99))
+                .put("max", max.get())
+                .put("buckets", a)
+        }
+
+        companion object {
+            private const val SUB_BITS = 2
+            private const val SUB_BUCKETS = 1 shl SUB_BITS
+            /// Up to 2^40 us.
+            private const val BUCKETS = 40 * SUB_BUCKETS
+
+            fun indexOf(us: Long): Int {
+                if (us < SUB_BUCKETS) return us.coerceAtLeast(0L).toInt()
+                val exp = 63 - java.lang.Long.numberOfLeadingZeros(us)
+                val sub = ((us ushr (exp - SUB_BITS)) and (SUB_BUCKETS - 1).toLong()).toInt()
+                return min((exp - SUB_BITS + 1) * SUB_BUCKETS + sub, BUCKETS - 1)
+            }
+
+            fun upperOf(index: Int): Long {
+                if (index < SUB_BUCKETS) return index.toLong()
+                val exp = index / SUB_BUCKETS + SUB_BITS - 1
+                val sub = index % SUB_BUCKETS
+                val width = 1L shl (exp - SUB_BITS)
+                return ((SUB_BUCKETS + sub).toLong() shl (exp - SUB_BITS)) + width - 1
+            }
+        }
+    }
+
+    class Endpoint(val name: String) {
+        val count = LongAdder()
+        val errors = LongAdder()
+        val bytesIn = LongAdder()
+        val bytesOut = LongAdder()
+        /// Time from submit to the dispatcher until the handler starts, including lock waits.
+        val waitNanos = LongAdder()
+        /// Time spent in the handler.
+        val execNanos = LongAdder()
+        val storageCount = LongAdder()
+        /// Time spent waiting for the storage executor.
+        val storageWaitNanos = LongAdder()
+        /// Time spent executing on the storage executor.
+        val storageExecNanos = LongAdder()
+        val latency = Histogram()
+
+        fun toJSON(): JSONObject {
+            return JSONObject()
+                .put("count", count.sum())
+                .put("errors", errors.sum())
+                .put("bytesIn", bytesIn.sum())
+                .put("bytesOut", bytesOut.sum())
+                .put("waitUs", waitNanos.sum() / 1000)
+                .put("execUs", execNanos.sum() / 1000)
+                .put("storageCount", storageCount.sum())
+                .put("storageWaitUs", storageWaitNanos.sum() / 1000)
+                .put("storageExecUs", storageExecNanos.sum() / 1000)
+                .put("latencyUs", latency.toJSON())
+        }
+    }
+
+    /// An InputStream that adds the bytes read to the given counter.
+    class CountingInputStream(input: InputStream, private val counter: LongAdder) : FilterInputStream(input) {
+        override fun read(): Int {
+            val ret = super.read()
+            if (ret >= 0) counter.increment()
+            return ret
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            val ret = super.read(b, off, len)
+            if (ret > 0) counter.add(ret.toLong())
+            return ret
+        }
+    }
+
+    private val endpoints = ConcurrentHashMap<String, Endpoint>()
+    private val gauges = ConcurrentHashMap<String, Fun01<Number>>()
+    private val current = ThreadLocal<Endpoint?>()
+    private var logger: ScheduledExecutorService? = null
+
+    fun endpoint(name: String): Endpoint {
+        return endpoints[name] ?: endpoints.computeIfAbsent(name) { Endpoint(it) }
+    }
+
+    /// @return The endpoint of the request the current thread is executing, if any.
+    fun current(): Endpoint? {
+        return current.get()
+    }
+
+    fun gauge(name: String, value: Fun01<Number>) {
+        gauges[name] = value
+    }
+
+    /// Run a request handler for the given endpoint.
+    /// @param queued System.nanoTime() when the request was submitted.
+    fun <R> measure(endpoint: Endpoint, queued: Long, code: Fun01<R>): R {
+        val start = System.nanoTime()
+        endpoint.waitNanos.add(start - queued)
+        current.set(endpoint)
+        try {
+            return code()
+        } catch (e: Throwable) {
+            endpoint.errors.increment()
+            throw e
+        } finally {
+            current.remove()
+            val end = System.nanoTime()
+            endpoint.count.increment()
+            endpoint.execNanos.add(end - start)
+            endpoint.latency.record(end - queued)
+        }
+    }
+
+    fun toJSON(): JSONObject {
+        val ret = JSONObject()
+        for ((name, endpoint) in endpoints.entries.sortedBy { it.key }) {
+            ret.put(name, endpoint.toJSON())
+        }
+        val g = JSONObject()
+        for ((name, value) in gauges.entries.sortedBy { it.key }) {
+            g.put(name, value())
+        }
+        return JSONObject().put("endpoints", ret).put("gauges", g)
+    }
+
+    /// Log the metrics every given seconds until stopLogging().
+    @Synchronized
+    fun startLogging(seconds: Long) {
+        if (logger != null || seconds <= 0L) return
+        logger = Executors.newSingleThreadScheduledExecutor { r ->
+            Thread(r, "metrics").also { it.isDaemon = true }
+        }.also {
+            it.scheduleAtFixedRate({ Conf.logger.i("# Metrics: ${toJSON()}") }, seconds, seconds, TimeUnit.SECONDS)
+        }
+    }
+
+    @Synchronized
+    fun stopLogging() {
+        logger?.shutdownNow()
+        logger = null
+    }
+}
@@ -0,0 +1,131 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.war
+
+import com.cplusedition.bot.core.Fun00
+import sf.andrians.cplusedition.support.DiskManager
+import sf.andrians.cplusedition.support.IStorage
+import sf.andrians.cplusedition.support.MyCloseableProvider
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.RejectedExecutionHandler
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+/**
+ * Run requests on a bounded pool according to their access class.
+ * Read requests run concurrently, path scoped writes are serialized per key
+ * through the DiskManager and exclusive requests run alone.
+ */
+class RequestDispatcher constructor(
+    private val storage: IStorage,
+    threads: Int = Conf.REQUEST_THREADS,
+    queueSize: Int = Conf.REQUEST_QUEUE,
+) {
+    enum class Access {
+        Read,
+        Write,
+        Exclusive,
+        /// Not serialized with anything, for requests that only touch their own state.
+        None,
+    }
+
+    private val rwlock = ReentrantReadWriteLock()
+    private val pool = ThreadPoolExecutor(
+        threads, threads, 60L, TimeUnit.SECONDS,
+        ArrayBlockingQueue(queueSize),
+        object : ThreadFactory {
+            private val count = AtomicInteger()
+            override fun newThread(r: Runnable): Thread {
+                return Thread(r, "request-${count.incrementAndGet()}").also { it.isDaemon = true }
+            }
+        },
+        /// Throttle the accepting thread when the queue is full, reject once shutdown.
+        object : RejectedExecutionHandler {
+            override fun rejectedExecution(r: Runnable, executor: ThreadPoolExecutor) {
+                if (executor.isShutdown) throw RejectedExecutionException()
+                r.run()
+            }
+        }
+    ).also { it.allowCoreThreadTimeOut(true) }
+
+    /// Number of requests waiting for a thread.
+    val queueDepth: Int get() = pool.queue.size
+
+    /// Number of requests being handled, including those waiting for a lock.
+    val activeRequests: Int get() = pool.activeCount
+
+    /// @param endpoint If not null, record the request metrics to it.
+    /// @return false if the task is rejected because the dispatcher is shutdown.
+    fun submit(access: Access, key: String?, endpoint: Metrics.Endpoint?, task: Fun00): Boolean {
+        val queued = System.nanoTime()
+        try {
+            pool.execute {
+                if (endpoint == null) run(access, key, task)
+                else run(access, key) { Metrics.measure(endpoint, queued, task) }
+            }
+            return true
+        } catch (e: RejectedExecutionException) {
+            return false
+        }
+    }
+
+    /// @param key The lock key for Access.Write, null to serialize with the other keyless writes.
+    fun run(access: Access, key: String?, task: Fun00) {
+        when (access) {
+            Access.Exclusive -> {
+                val lock = rwlock.writeLock()
+                lock.lock()
+                try {
+                    task()
+                } finally {
+                    lock.unlock()
+                }
+            }
+            Access.Read -> {
+                val lock = rwlock.readLock()
+                lock.lock()
+                try {
+                    task()
+                } finally {
+                    lock.unlock()
+                }
+            }
+            Access.None -> task()
+            Access.Write -> {
+                val lock = rwlock.readLock()
+                lock.lock()
+                try {
+                    //// Keys are prefixed so they never collide with the disk() locks taken by the handlers.
+                    storage.disk(DiskManager.REQUEST_PREFIX + (key ?: ""), MyCloseableProvider()).use {
+                        task()
+                    }
+                } finally {
+                    lock.unlock()
+                }
+            }
+        }
+    }
+
+    fun shutdown() {
+        pool.shutdown()
+        pool.awaitTermination(5, TimeUnit.SECONDS)
+    }
+}
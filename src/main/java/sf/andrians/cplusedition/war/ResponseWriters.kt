@@ -0,0 +1,63 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.war
+
+import com.cplusedition.bot.core.Fun00
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A bounded pool of named threads that pump response data to the client sockets.
+ * Idle writers are kept around so that a burst of responses, eg. thumbnails of a
+ * gallery page, reuse the same threads.
+ */
+class ResponseWriters constructor(
+    threads: Int = Conf.RESPONSE_WRITERS,
+    queueSize: Int = Conf.RESPONSE_QUEUE,
+) {
+    private val created = AtomicInteger()
+    private val pool = ThreadPoolExecutor(
+        threads, threads, 60L, TimeUnit.SECONDS,
+        ArrayBlockingQueue(queueSize),
+        ThreadFactory { r ->
+            Thread(r, "response-${created.incrementAndGet()}").also { it.isDaemon = true }
+        },
+        /// Let the handler thread write the response itself when the queue is full.
+        ThreadPoolExecutor.CallerRunsPolicy()
+    ).also { it.allowCoreThreadTimeOut(true) }
+
+    /// Number of responses waiting for a writer.
+    val queueDepth: Int get() = pool.queue.size
+
+    /// Number of writers currently writing a response.
+    val activeWriters: Int get() = pool.activeCount
+
+    /// Number of writer threads created so far.
+    val threadsCreated: Int get() = created.get()
+
+    fun submit(task: Fun00) {
+        pool.execute(task)
+    }
+
+    fun shutdown() {
+        pool.shutdown()
+        pool.awaitTermination(2, TimeUnit.SECONDS)
+    }
+}
@@ -29,6 +29,7 @@ import sf.andrians.cplusedition.R
 import sf.andrians.cplusedition.R.string
 import sf.andrians.cplusedition.support.BackupKeyPair
 import sf.andrians.cplusedition.support.Best
+import sf.andrians.cplusedition.support.BlockCache
 import sf.andrians.cplusedition.support.EncryptedRootInfo
 import sf.andrians.cplusedition.support.IFileInfo
 import sf.andrians.cplusedition.support.ISecUtil
@@ -140,6 +141,8 @@ class SecUtil(
         private var protection = PasswordProtection(pass)
         private val etcRootInfo = EncryptedRootInfo(getEtcKey(), Conf.getEtcDir(datadir), "etc") {
             EtcPaths.isValid(it)
+        }.also {
+            it.blockCache = BlockCache(Conf.BLOCK_CACHE_BYTES)
         }
 
         override fun reset() {
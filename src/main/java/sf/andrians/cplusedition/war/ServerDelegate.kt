@@ -21,12 +21,14 @@ import com.cplusedition.anjson.JSONUtil.mapsStringNotNull
 import com.cplusedition.anjson.JSONUtil.stringOrDef
 import com.cplusedition.anjson.JSONUtil.stringOrNull
 import com.cplusedition.bot.core.Basepath
+import com.cplusedition.bot.core.ByteReader
 import com.cplusedition.bot.core.FS
 import com.cplusedition.bot.core.FSC
 import com.cplusedition.bot.core.IBotResult
 import com.cplusedition.bot.core.IOUt
 import com.cplusedition.bot.core.RandomUt
 import com.cplusedition.bot.core.TextUt
+import com.cplusedition.bot.core.Without
 import com.cplusedition.bot.core.bot
 import com.cplusedition.bot.core.file
 import org.json.JSONArray
@@ -56,6 +58,7 @@ import sf.andrians.cplusedition.support.RecentsRoot
 import sf.andrians.cplusedition.support.Support
 import sf.andrians.cplusedition.support.Support.Def.recentsSize
 import sf.andrians.cplusedition.support.Support.PathUtil
+import sf.andrians.cplusedition.support.WriteBehind
 import sf.andrians.cplusedition.support.handler.CpluseditionRequestHandler
 import sf.andrians.cplusedition.support.handler.IAjaxResponder
 import sf.andrians.cplusedition.support.handler.ICpluseditionContext
@@ -71,6 +74,7 @@ import sf.andrians.cplusedition.support.media.MediaInfo
 import sf.andrians.cplusedition.support.media.MimeUtil
 import sf.andrians.cplusedition.support.media.MimeUtil.Mime
 import sf.andrians.cplusedition.support.media.MimeUtil.Suffix
+import sf.andrians.cplusedition.war.RequestDispatcher.Access
 import java.io.File
 import java.io.FileNotFoundException
 import java.io.IOException
@@ -78,9 +82,6 @@ import java.io.InputStream
 import java.io.InputStreamReader
 import java.util.*
 import java.util.concurrent.CountDownLatch
-import java.util.concurrent.Executors
-import java.util.concurrent.locks.Lock
-import java.util.concurrent.locks.ReentrantLock
 import javax.imageio.ImageIO
 
 open class ServerDelegate constructor(
@@ -98,12 +99,21 @@ open class ServerDelegate constructor(
         datadir, Storage(datadir, backend, pass, ConfigRoot(FileRootInfo(datadir.file(PATH.assetsConfig))))
     )
 
-    private val lock: Lock = ReentrantLock()
-    private val pool = Executors.newCachedThreadPool()
+    private val dispatcher = RequestDispatcher(storage)
     private val eventUtil = EventUtil(storage)
+    private val getEndpoint = Metrics.endpoint("get")
+    private val saveEndpoint = Metrics.endpoint("save")
+    override val writeBehind = WriteBehind(Conf.SAVE_DELAY, Conf.SAVE_BUFFER_MAX)
 
     init {
         dataDir.file("etc").mkdirs()
+        Metrics.gauge("request.queueDepth") { dispatcher.queueDepth }
+        Metrics.gauge("request.active") { dispatcher.activeRequests }
+        Metrics.gauge("writebehind.pending") { writeBehind.size.toLong() }
+        Metrics.gauge("writebehind.writes") { writeBehind.writes }
+        Metrics.gauge("writebehind.coalesced") { writeBehind.coalesced }
+        Metrics.gauge("writebehind.failures") { writeBehind.failures }
+        Conf.metricsLogInterval()?.let { Metrics.startLogging(it) }
         storage.getSettingsStore().invoke { st ->
             recentsAction {
                 it.recentsRestore(st.getSession())
@@ -119,7 +129,9 @@ open class ServerDelegate constructor(
             }
             st.saveSession(session)
         }
-        pool.shutdownNow()
+        Metrics.stopLogging()
+        dispatcher.shutdown()
+        writeBehind.close()
         storage.onDestroy()
     }
 
@@ -127,12 +139,20 @@ open class ServerDelegate constructor(
         response: ICpluseditionResponse,
         request: ICpluseditionRequest,
     ) {
-        lock.lock()
-        try {
-            handle2(response, request)
-        } finally {
-            lock.unlock()
-        }
+        val save = request.getParam(Param.save) != null
+        val path = request.getPathInfo()
+        val endpoint = if (save) saveEndpoint else getEndpoint
+        val access = if (save) Access.Write else Access.Read
+        val cpath = Support.getcleanrpath(path)
+        if (!dispatcher.submit(access, if (save) cpath ?: path else null, endpoint) {
+                try {
+                    flushWriteBehind(access, cpath)
+                    handle2(MeteredResponse(response, endpoint), MeteredRequest(request, endpoint))
+                } finally {
+                    response.finish()
+                }
+            }
+        ) this.unavailable(response, path)
     }
 
     fun handlea(response: ICpluseditionResponse, request: ICpluseditionRequest) {
@@ -141,18 +161,82 @@ open class ServerDelegate constructor(
         val cleanrpath = Support.getcleanrpathStrict(errors, storage.rsrc, path)
             ?: return this.badrequest(response, arrayOf(path, *errors.toTypedArray()).bot.joinln())
         val cleanpath = FSC + cleanrpath
-        lock.lock()
-        try {
-            handlea(response, request, cleanpath)
-        } catch (e: FileNotFoundException) {
-            this.notfound(response, path)
+        val jof = _JOF[cleanpath]
+            ?: return this.notfound(response, cleanpath)
+        val endpoint = jof.endpoint
+        val res = MeteredResponse(response, endpoint)
+        val req = try {
+            val metered = MeteredRequest(request, endpoint)
+            if (request.getParam(Param.stream) != null) StreamedRequest(metered)
+            else if (jof.scope == Scope.path) BufferedRequest(metered)
+            else metered
         } catch (e: Throwable) {
-            this.servererror(response, path, e)
-        } finally {
-            lock.unlock()
+            return this.servererror(res, path, e)
+        }
+        val (access, key) = accessOf(jof, req)
+        val cpath = if (jof.scope == Scope.path) pathOf(req) else null
+        if (!dispatcher.submit(access, key, endpoint) {
+                try {
+                    if (jof != _JOF.saveHtml && jof != _JOF.saveCSS) flushWriteBehind(access, cpath)
+                    handlea(res, req, jof)
+                } catch (e: FileNotFoundException) {
+                    this.notfound(res, path)
+                } catch (e: Throwable) {
+                    this.servererror(res, path, e)
+                } finally {
+                    res.finish()
+                }
+            }
+        ) this.unavailable(res, path)
+    }
+
+    /// Order the request after the buffered saves it may touch, ie. all of them for an exclusive request,
+    /// otherwise the saves of cpath and under it. Requests without a path are not held up by the saves.
+    private fun flushWriteBehind(access: Access, cpath: String?) {
+        when {
+            access == Access.Exclusive -> writeBehind.flush()
+            access == Access.None || cpath == null -> return
+            else -> writeBehind.flushUnder(FSC + cpath)
+        }
+    }
+
+    private fun accessOf(jof: _JOF, request: ICpluseditionRequest): Pair<Access, String?> {
+        return when (jof) {
+            _JOF.filepicker, _JOF.historyFilepicker -> {
+                when (TextUt.parseInt(request.getParam("kind"), -1)) {
+                    An.FilepickerCmd.MKDIRS,
+                    An.FilepickerCmd.DELETE,
+                    -> Pair(Access.Write, pathOf(request))
+                    An.FilepickerCmd.COPY,
+                    An.FilepickerCmd.RENAME,
+                    An.FilepickerCmd.DELETE_ALL,
+                    An.FilepickerCmd.DELETE_DIRSUBTREE,
+                    An.FilepickerCmd.DELETE_EMPTY_DIRS,
+                    An.FilepickerCmd.SHRED,
+                    -> Pair(Access.Exclusive, null)
+                    An.FilepickerCmd.COPY_PROGRESS,
+                    An.FilepickerCmd.COPY_CANCEL,
+                    -> Pair(Access.None, null)
+                    else -> Pair(Access.Read, null)
+                }
+            }
+            else -> Pair(jof.access, if (jof.scope == Scope.path) pathOf(request) else jof.scope)
         }
     }
 
+    /// @return The clean rpath of the first argument or the path property of the post data, null if not available.
+    private fun pathOf(request: ICpluseditionRequest): String? {
+        val cpath = if (request is StreamedRequest) request.args.stringOrNull(0) else Without.exceptionOrNull {
+            val data = getPostAsString(request).trim()
+            when {
+                data.startsWith("[") -> JSONArray(data).stringOrNull(0)
+                data.startsWith("{") -> JSONObject(data).stringOrNull(Key.path)
+                else -> data
+            }
+        } ?: return null
+        return Support.getcleanrpath(cpath) ?: cpath
+    }
+
     private fun handle2(
         response: ICpluseditionResponse,
         request: ICpluseditionRequest
@@ -171,7 +255,7 @@ open class ServerDelegate constructor(
                 )
                     return this.notfound(response, path)
                 try {
-                    getPostAsBytes(request).inputStream().use { fileinfo.content().write(it) }
+                    request.getInputStream().use { fileinfo.content().write(it) }
                     val ret = JSONObject()
                     ret.put(Key.result, fileinfo.apath)
                     ret.put(Key.status, HttpStatus.NotModified)
@@ -198,13 +282,8 @@ open class ServerDelegate constructor(
     private fun handlea(
         response: ICpluseditionResponse,
         request: ICpluseditionRequest,
-        path: String
+        jof: _JOF
     ) {
-        val jof = _JOF[path]
-        if (jof == null) {
-            this.notfound(response, path)
-            return
-        }
         when (jof) {
 
             ///// Setting actions
@@ -249,7 +328,7 @@ open class ServerDelegate constructor(
             _JOF.rebuildXrefs -> {
                 val params = getPostAsJSONArray(request)
                 val cpath = params.getString(0)
-                val ret = storage.submit {
+                val ret = storage.submit(false) {
                     val file = if (cpath.isEmpty() || cpath == FS) null else {
                         storage.fileInfoAt(cpath).result()
                             ?: return@submit rsrc.jsonObjectError(R.string.InvalidPath)
@@ -279,6 +358,10 @@ open class ServerDelegate constructor(
                 jsonResponse(response, actionQuitFromClient())
             }
 
+            _JOF.metrics -> {
+                jsonResponse(response, Metrics.toJSON())
+            }
+
             _JOF.actionPrint -> {
                 jsonResponse(response, rsrc.jsonObjectResult(R.string.PrintServiceNotAvailable))
                 return
@@ -312,6 +395,12 @@ open class ServerDelegate constructor(
 
             ///// Browser actions
 
+            _JOF.onIFrameUnload -> {
+                val params = getPostAsJSONArray(request)
+                jsonResponse(response, actionCloseDocument(params.getString(0)))
+                return
+            }
+
             _JOF.onDocumentLoaded -> {
                 jsonResponse(response, onDocumentLoaded())
                 return
@@ -330,7 +419,7 @@ open class ServerDelegate constructor(
                 val backuppath = params.getString(0)
                 val aliases = params.getJSONArray(1).mapsStringNotNull { it }.toList()
                 val srcdir = params.getString(2)
-                val ret = storage.submit {
+                val ret = storage.submit(false) {
                     actionBackupData(it, backuppath, aliases, srcdir)
                 }.get()
                 jsonResponse(response, ret)
@@ -340,7 +429,7 @@ open class ServerDelegate constructor(
             _JOF.actionBackupKey -> {
                 val params = getPostAsJSONArray(request)
                 val keypath = params.getString(0)
-                val ret = storage.submit {
+                val ret = storage.submit(false) {
                     actionBackupKey(it, keypath)
                 }.get()
                 jsonResponse(response, ret)
@@ -363,13 +452,27 @@ open class ServerDelegate constructor(
             _JOF.actionBackupVerify -> {
                 val params = getPostAsJSONArray(request)
                 val backuppath = params.getString(0)
-                val ret = storage.submit {
-                    actionVerifyBackup(it, backuppath)
+                val structural = params.optBoolean(1)
+                val serial = params.optLong(2, -1L)
+                val ret = storage.read {
+                    actionVerifyBackup(it, backuppath, structural, serial)
                 }.get()
                 jsonResponse(response, ret)
                 return
             }
 
+            _JOF.actionBackupVerifyProgress -> {
+                val params = getPostAsJSONArray(request)
+                jsonResponse(response, actionVerifyBackupProgress(params.getLong(0)))
+                return
+            }
+
+            _JOF.actionBackupVerifyCancel -> {
+                val params = getPostAsJSONArray(request)
+                jsonResponse(response, actionVerifyBackupCancel(params.getLong(0)))
+                return
+            }
+
             _JOF.actionBackupConversion -> {
                 val params = getPostAsJSONArray(request)
                 val dstpath = params.getString(0)
@@ -396,7 +499,7 @@ open class ServerDelegate constructor(
 
             _JOF.getBackupFileInfo -> {
                 val cpath = getPostAsJSONArray(request).getString(0)
-                val ret = storage.submit {
+                val ret = storage.read {
                     actionBackupFileInfo(it, cpath)
                 }.get()
                 jsonResponse(response, ret)
@@ -406,7 +509,7 @@ open class ServerDelegate constructor(
             _JOF.readBackupFiletree -> {
                 val params = getPostAsJSONArray(request)
                 val backupfile = params.getString(0)
-                val ret = storage.submit {
+                val ret = storage.read {
                     actionReadBackupFiletree(it, backupfile)
                 }.get()
                 jsonResponse(response, ret)
@@ -414,7 +517,7 @@ open class ServerDelegate constructor(
             }
 
             _JOF.getBackupKeyAliases -> {
-                val ret = storage.submit {
+                val ret = storage.read {
                     actionGetBackupKeyAliases(it)
                 }.get()
                 jsonResponse(response, ret)
@@ -485,6 +588,12 @@ open class ServerDelegate constructor(
             }
 
             _JOF.saveCSS -> {
+                if (request is StreamedRequest) {
+                    val cpath = request.args.stringOrNull(0)
+                        ?: return illegalArgumentResponse(response)
+                    jsonResponse(response, actionSaveCSS(cpath, request.getInputStream(), request.args.optJSONObject(2)))
+                    return
+                }
                 val args = getPostAsJSONArray(request)
                 val cpath = args.stringOrNull(0)
                 val content = args.stringOrNull(1)
@@ -495,6 +604,12 @@ open class ServerDelegate constructor(
             }
 
             _JOF.saveHtml -> {
+                if (request is StreamedRequest) {
+                    val cpath = request.args.stringOrNull(0)
+                        ?: return illegalArgumentResponse(response)
+                    jsonResponse(response, actionSaveHtml(cpath, request.getInputStream(), request.args.optJSONObject(2)))
+                    return
+                }
                 val args = getPostAsJSONArray(request)
                 val cpath = args.stringOrNull(0)
                 val content = args.stringOrNull(1)
@@ -505,6 +620,11 @@ open class ServerDelegate constructor(
             }
 
             _JOF.saveRecovery -> {
+                if (request is StreamedRequest) {
+                    val cpath = request.args.getString(0)
+                    jsonResponse(response, actionSaveRecovery(cpath, request.getInputStream()))
+                    return
+                }
                 val params = getPostAsJSONArray(request)
                 val cpath = params.getString(0)
                 val content = params.getString(1)
@@ -1024,51 +1144,115 @@ open class ServerDelegate constructor(
         }
     }
 
-    internal enum class _JOF(var value: String) {
-        actionBackupConversion("/a/XxXJQ"),
-        actionBackupData("/a/XxX7B"),
-        actionBackupForward("/a/XxX7H"),
-        actionBackupKey("/a/XxXfD"),
+    private object Scope {
+        /// Lock on the clean rpath of the first argument or the path property of the post data.
+        const val path = "@path"
+        const val events = "#events"
+        const val keystore = "#keystore"
+        const val recents = "#recents"
+        const val settings = "#settings"
+        const val xrefs = "#xrefs"
+    }
+
+    /// A request that counts the post data bytes read.
+    private class MeteredRequest(
+        private val request: ICpluseditionRequest,
+        private val endpoint: Metrics.Endpoint,
+    ) : ICpluseditionRequest by request {
+        override fun getInputStream(): InputStream {
+            return Metrics.CountingInputStream(request.getInputStream(), endpoint.bytesIn)
+        }
+    }
+
+    /// A response that counts the response data bytes sent and the error status.
+    private class MeteredResponse(
+        private val response: ICpluseditionResponse,
+        private val endpoint: Metrics.Endpoint,
+    ) : ICpluseditionResponse by response {
+        override fun setData(data: InputStream) {
+            response.setData(Metrics.CountingInputStream(data, endpoint.bytesOut))
+        }
+
+        override fun setStatus(status: Int) {
+            if (status >= HttpStatus.BadRequest) endpoint.errors.increment()
+            response.setStatus(status)
+        }
+    }
+
+    /// A request with the post data read in advance so that it can be read again by the handler.
+    private class BufferedRequest(
+        private val request: ICpluseditionRequest
+    ) : ICpluseditionRequest by request {
+        private val data = IOUt.readBytes(request.getInputStream())
+
+        override fun getInputStream(): InputStream {
+            return data.inputStream()
+        }
+    }
+
+    /// A streamed post has the 32BE length prefixed JSON arguments, with the content argument set to null,
+    /// followed by the raw content. Only the arguments are read in advance, the content is streamed
+    /// straight to its destination by the handler.
+    private class StreamedRequest(
+        private val request: ICpluseditionRequest
+    ) : ICpluseditionRequest by request {
+        private val input = request.getInputStream()
+        val args = JSONArray(String(ByteReader(input).read32BEBytes(MAX_STREAMED_ARGS_SIZE)))
+
+        override fun getInputStream(): InputStream {
+            return input
+        }
+    }
+
+    /// @param access Default to Access.Read.
+    /// @param scope The lock key for Access.Write, null to serialize with the other unscoped writes.
+    internal enum class _JOF(var value: String, val access: Access = Access.Read, val scope: String? = null) {
+        actionBackupConversion("/a/XxXJQ", Access.Exclusive),
+        actionBackupData("/a/XxX7B", Access.Write, Scope.path),
+        actionBackupForward("/a/XxX7H", Access.Write, Scope.path),
+        actionBackupKey("/a/XxXfD", Access.Write, Scope.keystore),
         actionBackupVerify("/a/XxXfU"),
-        actionCleanHome("/a/XxX0k"),
-        actionFactoryReset("/a/XxXSa"),
-        actionFsck("/a/XxXwv"),
+        actionBackupVerifyCancel("/a/XxXfUc", Access.None),
+        actionBackupVerifyProgress("/a/XxXfUp", Access.None),
+        actionCleanHome("/a/XxX0k", Access.Exclusive),
+        actionFactoryReset("/a/XxXSa", Access.Exclusive),
+        actionFsck("/a/XxXwv", Access.Exclusive),
         actionView("/a/XxXkW"),
         actionPrint("/a/XxXCW"),
-        actionQuit("/a/XxXx1"),
-        actionResetUserSettings("/a/XxXWf"),
-        actionRestoreData("/a/XxXTL"),
+        actionQuit("/a/XxXx1", Access.Exclusive),
+        actionResetUserSettings("/a/XxXWf", Access.Exclusive),
+        actionRestoreData("/a/XxXTL", Access.Exclusive),
         actionShare("/a/XxXdU"),
         audioInfos("/a/XxXFQ"),
         audioPause("/a/XxXOA"),
         audioPlay("/a/XxX6s"),
         audioSeek("/a/XxX30"),
-        cleanupTrash("/a/XxXcz"),
-        clearEvents("/a/XxXY7"),
+        cleanupTrash("/a/XxXcz", Access.Exclusive),
+        clearEvents("/a/XxXY7", Access.Write, Scope.events),
         clearFocus("/a/XxX2A"),
         copyToClipboard("/a/XxXwW"),
         createAudioPlayer("/a/XxXvv"),
-        createFromTemplate("/a/XxXmh"),
-        deleteBackupKey("/a/XxXgA"),
+        createFromTemplate("/a/XxXmh", Access.Write, Scope.path),
+        deleteBackupKey("/a/XxXgA", Access.Write, Scope.keystore),
         destroyAudioPlayer("/a/XxXkJ"),
-        exportBackupKey("/a/XxXTa"),
+        exportBackupKey("/a/XxXTa", Access.Write, Scope.keystore),
         exportEvents("/a/XxXgy"),
         exportToPhotoLibrary("/a/XxXxI"),
         exportToPhotoLibraryInfos("/a/XxXuF"),
-        filepicker("/a/XxX7s"),
+        filepicker("/a/XxX7s", Access.Read, Scope.path),
         findBlog("/a/XxXs9"),
         findFiles("/a/XxXah"),
         focus("/a/XxXIx"),
         formatCSS("/a/XxXFS"),
         generateBarcode("/a/XxXPh"),
-        generateGallery("/a/XxXAY"),
+        generateGallery("/a/XxXAY", Access.Write),
         gestureEnable("/a/XxXmT"),
         getAudioStatus("/a/XxXR6"),
         getBackupFileInfo("/a/XxXOD"),
         getBackupKeyAliases("/a/XxXSI"),
         getDeviceSize("/a/XxXpk"),
-        getEvents("/a/XxX61"),
-        getPendingAlarmCount("/a/XxXqX"),
+        getEvents("/a/XxX61", Access.Write, Scope.events),
+        getPendingAlarmCount("/a/XxXqX", Access.Write, Scope.events),
         getSessionPreferences("/a/XxXfA"),
         getSettings("/a/XxXo2"),
         getTemplatesInfo("/a/XxXiF"),
@@ -1078,10 +1262,10 @@ open class ServerDelegate constructor(
         heartbeat("/a/XxXyI"),
         hideCaret("/a/XxXyN"),
         hideKeyboard("/a/XxXwH"),
-        historyFilepicker("/a/XxXvt"),
-        imageConversion("/a/XxXUM"),
-        importBackupKey("/a/XxXNz"),
-        importImageFromPhotoLibrary("/a/XxXaN"),
+        historyFilepicker("/a/XxXvt", Access.Read, Scope.path),
+        imageConversion("/a/XxXUM", Access.Exclusive),
+        importBackupKey("/a/XxXNz", Access.Write, Scope.keystore),
+        importImageFromPhotoLibrary("/a/XxXaN", Access.Write),
         importVideoFromPhotoLibrary("/a/XxX56"),
         isKeyboardShown("/a/XxX8J"),
         linkVerifier("/a/XxX6J"),
@@ -1089,11 +1273,12 @@ open class ServerDelegate constructor(
         listZip("/a/XxXCs"),
         localImageInfo("/a/XxXLW"),
         localImageThumbnail("/a/XxXmw"),
+        metrics("/a/XxXmtr"),
         onBoot("/a/XxXVq"),
         onDocumentLoaded("/a/XxXtN"),
         onDocumentUnload("/a/XxXGW"),
         onIFrameLoaded("/a/XxXDW"),
-        onIFrameUnload("/a/XxXnw"),
+        onIFrameUnload("/a/XxXnw", Access.Read, Scope.path),
         onWindowSizeChanged("/a/XxXcF"),
         openDatabaseForTesting("/a/XxX9x"),
         pasteFromClipboard("/a/XxXcx"),
@@ -1102,25 +1287,25 @@ open class ServerDelegate constructor(
         photoLibraryThumbnails("/a/XxXVm"),
         playVideo("/a/XxXQC"),
         pollAudioPlayer("/a/XxXgi"),
-        postEvent("/a/XxX43"),
+        postEvent("/a/XxX43", Access.Write, Scope.events),
         previewImage("/a/XxXGL"),
         readBackupFiletree("/a/XxX2e"),
         readCSS("/a/XxXgE"),
-        rebuildXrefs("/a/XxXrxr"),
+        rebuildXrefs("/a/XxXrxr", Access.Write, Scope.xrefs),
         requestFixBrokenLinks("/a/XxXrfb"),
-        confirmFixBrokenLinks("/a/XxXcfb"),
-        recents("/a/XxXbz"),
-        recentsPut("/a/XxXrz"),
+        confirmFixBrokenLinks("/a/XxXcfb", Access.Exclusive),
+        recents("/a/XxXbz", Access.Write, Scope.recents),
+        recentsPut("/a/XxXrz", Access.Write, Scope.recents),
         recordVideo("/a/XxXVZ"),
         releaseAudioPlayer("/a/XxXuT"),
-        removeEvents("/a/XxX4z"),
+        removeEvents("/a/XxX4z", Access.Write, Scope.events),
         requestAudioRecordingPermission("/a/XxXJe"),
         requestVideoRecordingPermission("/a/XxXYU"),
         sanitize("/a/XxXsS"),
-        saveBase64Image("/a/XxX9P"),
-        saveCSS("/a/XxXNS"),
-        saveHtml("/a/XxXVa"),
-        saveRecovery("/a/XxX2S"),
+        saveBase64Image("/a/XxX9P", Access.Write, Scope.path),
+        saveCSS("/a/XxXNS", Access.Write, Scope.path),
+        saveHtml("/a/XxXVa", Access.Write, Scope.path),
+        saveRecovery("/a/XxX2S", Access.Write, Scope.path),
         scanBarcode("/a/XxX9v"),
         showKeyboard("/a/XxXrI"),
         sidepanelChanged("/a/XxXkP"),
@@ -1129,18 +1314,20 @@ open class ServerDelegate constructor(
         takePhoto("/a/XxXts"),
         takePhotoCancelled("/a/XxXEI"),
         takeScreenshot("/a/XxXA2"),
-        toggleNobackup("/a/XxXWu"),
+        toggleNobackup("/a/XxXWu", Access.Write, Scope.path),
         undead("/a/XxXbf"),
-        unzip("/a/XxXIj"),
-        updateSessionPreferences("/a/XxX03"),
-        updateUISettings("/a/XxXsu"),
+        unzip("/a/XxXIj", Access.Exclusive),
+        updateSessionPreferences("/a/XxX03", Access.Write, Scope.settings),
+        updateUISettings("/a/XxXsu", Access.Write, Scope.settings),
         videoInfos("/a/XxXFi"),
         videoPoster("/a/XxXvpo"),
         viewPhotoLibraryThumbnail("/a/XxX4K"),
-        writeImage("/a/XxXOE"),
-        zip("/a/XxX8F"),
+        writeImage("/a/XxXOE", Access.Write),
+        zip("/a/XxX8F", Access.Write, Scope.path),
         ;
 
+        val endpoint = Metrics.endpoint(name)
+
         companion object {
             private var table = lazy {
                 val t = TreeMap<String, _JOF>()
@@ -1157,10 +1344,7 @@ open class ServerDelegate constructor(
     }
 
     companion object {
-        @Throws(IOException::class)
-        private fun getPostAsBytes(request: ICpluseditionRequest): ByteArray {
-            return IOUt.readBytes(request.getInputStream())
-        }
+        private const val MAX_STREAMED_ARGS_SIZE = 1024 * 1024
 
         @Throws(IOException::class)
         private fun getPostAsString(request: ICpluseditionRequest): String {
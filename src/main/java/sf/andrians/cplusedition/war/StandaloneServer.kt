@@ -26,6 +26,7 @@ import sf.andrians.cplusedition.support.Backend
 import sf.andrians.cplusedition.support.Http.HttpHeader
 import sf.andrians.cplusedition.support.Http.HttpStatus
 import sf.andrians.cplusedition.support.ServerKey
+import sf.andrians.cplusedition.support.handler.FileRangeInputStream
 import sf.andrians.cplusedition.support.handler.ICpluseditionRequest
 import sf.andrians.cplusedition.support.handler.ICpluseditionResponse
 import sf.unixsocket.UnixClientSocket
@@ -39,11 +40,72 @@ import java.net.URLDecoder
 import java.time.ZonedDateTime
 import java.time.format.DateTimeFormatter
 import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.math.min
 import kotlin.system.exitProcess
 
 open class StandaloneServer(datadir: File, backend: Backend, pass: CharArray, sockdir: File, private val sockfile: File) {
     private val socket: UnixServerSocket
     private val delegate: ServerDelegate = ServerDelegate(datadir, backend, pass)
+    val writers = ResponseWriters()
+    private val handlers = ThreadPoolExecutor(
+        0, Mux.MAX_HANDLERS, 60L, TimeUnit.SECONDS, SynchronousQueue(),
+        object : ThreadFactory {
+            private val count = AtomicInteger()
+            override fun newThread(r: Runnable): Thread {
+                return Thread(r, "mux-handler-${count.incrementAndGet()}").also { it.isDaemon = true }
+            }
+        })
+
+    /**
+     * A multiplexed connection starts with the 32BE HELLO marker in place of the length
+     * of a one-shot request. Both sides then exchange frames of
+     * { id: 32BE, type: U8, length: 32BE, payload: byte[length] } until the client closes its output.
+     * Each REQUEST frame carries the same JSON as a one-shot request. The response of a request
+     * is a HEADER frame with the JSON header, zero or more DATA frames and an END frame, or an ABORT
+     * frame on error. Frames of different responses may interleave.
+     *
+     * A request with the ServerKey.length property instead of ServerKey.data has a streamed body.
+     * For a one-shot request the body follows the request JSON on the socket.
+     * For a multiplexed request the body is sent in BODY frames with the request id,
+     * terminated by an empty BODY frame. The body is consumed by the handler as it arrives.
+     * Each multiplexed request is handled on its own thread, the connection thread only reads
+     * the frames. Body frames not consumed when the response completes are discarded.
+     * The connection stops reading while Mux.MAX_PENDING_REQUESTS requests are pending. A request
+     * that cannot be admitted within Mux.BODY_TIMEOUT, or when all Mux.MAX_HANDLERS threads are busy,
+     * is rejected with HttpStatus.ServiceUnavailable.
+     */
+    object Mux {
+        const val HELLO = -0x4d555831
+        const val REQUEST = 1
+        const val HEADER = 2
+        const val DATA = 3
+        const val END = 4
+        const val ABORT = 5
+        const val BODY = 6
+        const val FRAME_HEADER_SIZE = 9
+        const val MAX_REQUEST_SIZE = 256 * 1024 * 1024
+        const val MAX_BODY_FRAME_SIZE = 256 * 1024
+        /// Max. number of body frames buffered per request before the connection stop reading.
+        const val BODY_QUEUE_SIZE = 8
+        /// Max. time in ms the connection waits for a handler to take a body frame before aborting the body.
+        const val BODY_TIMEOUT = 60 * 1000L
+        /// Max. number of requests pending on a connection before the connection stop reading.
+        const val MAX_PENDING_REQUESTS = 32
+        /// Max. number of threads handling the multiplexed requests of all connections.
+        const val MAX_HANDLERS = 128
+    }
 
     companion object {
         const val SERVER = ".server"
@@ -87,6 +149,9 @@ open class StandaloneServer(datadir: File, backend: Backend, pass: CharArray, so
     }
 
     init {
+        Metrics.gauge("response.queueDepth") { writers.queueDepth }
+        Metrics.gauge("response.activeWriters") { writers.activeWriters }
+        Metrics.gauge("response.threadsCreated") { writers.threadsCreated }
         Runtime.getRuntime().addShutdownHook(Thread {
             this.destroy()
         })
@@ -123,6 +188,8 @@ open class StandaloneServer(datadir: File, backend: Backend, pass: CharArray, so
 
     fun destroy() {
         delegate.destroy()
+        handlers.shutdown()
+        writers.shutdown()
         socket.close()
         sockfile.delete()
         sockfile.resolveSibling(SERVER_PID).delete()
@@ -145,39 +212,286 @@ open class StandaloneServer(datadir: File, backend: Backend, pass: CharArray, so
     }
 
     private fun handle(client: UnixSocket): Boolean {
+        val reader = ByteReader(client.inputStream)
+        val len = reader.read32BE()
+        if (len == Mux.HELLO) {
+            MuxConnection(client, writers, handlers, ::dispatch).start()
+            return true
+        }
+        if (len < 0) {
+            client.close()
+            return false
+        }
+        val input = String(reader.read(ByteArray(len)))
+        var streaming = false
+        try {
+            return dispatch(input, { length ->
+                streaming = true
+                object : LimitedInputStream(client.inputStream, length) {
+                    override fun close() {
+                        super.close()
+                        client.inputStream.close()
+                    }
+                }
+            }) { ResponseAdapter(writers, client, it) }
+        } finally {
+            if (!streaming) client.inputStream.close()
+        }
+    }
+
+    /// @param streamer(length) Create the input stream for a streamed body of the given length.
+    /// @param responder(request) Create a response for the request, request is null for a bad request.
+    private fun dispatch(
+        input: String,
+        streamer: Fun11<Long, InputStream>,
+        responder: Fun11<ICpluseditionRequest?, ICpluseditionResponse>
+    ): Boolean {
         fun badrequest(input: String): Boolean {
-            val response = ResponseAdapter(client, null)
+            val response = responder(null)
             
             badrequest(response)
             return true
         }
 
-        val input = client.inputStream.use {
-            String(ByteReader(it).read32BEBytes())
-        }
         val json = JSONUtil.jsonObjectOrNull(input)
-        if (json != null) {
-            val url = json.stringOrNull(ServerKey.url) ?: return badrequest(input)
-            val headers = json.stringMapOrNull(ServerKey.headers) ?: return badrequest(input)
-            val data = json.stringOrNull(ServerKey.data) ?: return badrequest(input)
-            val uri = Without.exceptionOrNull { URI(url) } ?: return badrequest(input)
-            val isipc = json.getBoolean(ServerKey.ipc)
-            val request = RequestAdapter(uri, headers, Base64.getDecoder().decode(data))
-            val response = ResponseAdapter(client, request)
+            ?: return badrequest(input)
+        val url = json.stringOrNull(ServerKey.url) ?: return badrequest(input)
+        val headers = json.stringMapOrNull(ServerKey.headers) ?: return badrequest(input)
+        val length = json.optLong(ServerKey.length, -1L)
+        val data = if (length >= 0) null else json.stringOrNull(ServerKey.data) ?: return badrequest(input)
+        val uri = Without.exceptionOrNull { URI(url) } ?: return badrequest(input)
+        val isipc = json.getBoolean(ServerKey.ipc)
+        val request = if (data != null) RequestAdapter(uri, headers, Base64.getDecoder().decode(data))
+        else RequestAdapter(uri, headers, ByteArray(0), streamer(length))
+        val response = responder(request)
+        try {
             if (isipc) delegate.handlea(response, request)
             else delegate.handle1(response, request)
+        } catch (e: Throwable) {
+            response.setStatus(HttpStatus.InternalServerError)
         }
         return true
     }
 
+    /// A long lived connection that serves interleaved requests, see Mux.
+    /// @param handlers Executor to run the requests on, it must not queue the requests since
+    /// a request may be waiting for its body to be read by the connection.
+    /// A request rejected by the executor is responded with HttpStatus.ServiceUnavailable.
+    /// @param dispatch(input, streamer, responder) Handle a request, see StandaloneServer.dispatch().
+    internal class MuxConnection(
+        private val socket: UnixSocket,
+        private val writers: ResponseWriters,
+        private val handlers: Executor,
+        private val dispatch: (String, Fun11<Long, InputStream>, Fun11<ICpluseditionRequest?, ICpluseditionResponse>) -> Boolean,
+    ) {
+        private val lock = ReentrantLock()
+        private val pending = AtomicInteger(1)
+        private val bodies = ConcurrentHashMap<Int, MuxBody>()
+        private val admission = ReentrantLock()
+        private val released = admission.newCondition()
+
+        fun start() {
+            Thread {
+                try {
+                    serve()
+                } catch (e: Exception) {
+                    
+                } finally {
+                    bodies.values.forEach { it.abort() }
+                    bodies.clear()
+                    done()
+                }
+            }.start()
+        }
+
+        private fun serve() {
+            val reader = ByteReader(socket.inputStream)
+            while (true) {
+                val id = try {
+                    reader.read32BE()
+                } catch (e: EOFException) {
+                    break
+                }
+                val type = reader.readU8()
+                val len = reader.read32BE()
+                if (len < 0 || len > (if (type == Mux.BODY) Mux.MAX_BODY_FRAME_SIZE else Mux.MAX_REQUEST_SIZE))
+                    throw IOException()
+                val payload = reader.read(ByteArray(len))
+                when (type) {
+                    Mux.REQUEST -> {
+                        val admitted = admit()
+                        pending.incrementAndGet()
+                        if (!admitted) {
+                            //// Its body frames, if any, are discarded since it is not registered.
+                            reject(id)
+                            continue
+                        }
+                        //// Registered before the handler starts so that no body frame is missed.
+                        bodies[id] = MuxBody()
+                        handle(id, String(payload))
+                    }
+                    Mux.BODY -> {
+                        val body = bodies[id] ?: continue
+                        if (len == 0) bodies.remove(id)
+                        body.put(payload)
+                    }
+                }
+            }
+        }
+
+        /// Wait till less than Mux.MAX_PENDING_REQUESTS requests are pending.
+        /// @return false if timeout, eg. the pending requests are waiting for body frames behind this request.
+        private fun admit(): Boolean {
+            admission.withLock {
+                var nanos = TimeUnit.MILLISECONDS.toNanos(Mux.BODY_TIMEOUT)
+                //// The connection itself holds one count.
+                while (pending.get() > Mux.MAX_PENDING_REQUESTS) {
+                    if (nanos <= 0) return false
+                    nanos = released.awaitNanos(nanos)
+                }
+                return true
+            }
+        }
+
+        private fun reject(id: Int) {
+            MuxResponseAdapter(writers, this, id, null).setStatus(HttpStatus.ServiceUnavailable)
+        }
+
+        private fun handle(id: Int, input: String) {
+            try {
+                handlers.execute {
+                    var response: ICpluseditionResponse? = null
+                    try {
+                        dispatch(input, { bodies[id] ?: ByteArray(0).inputStream() }) {
+                            MuxResponseAdapter(writers, this, id, it).also { response = it }
+                        }
+                    } catch (e: Throwable) {
+                        
+                        response?.setStatus(HttpStatus.InternalServerError) ?: done(id)
+                    }
+                }
+            } catch (e: RejectedExecutionException) {
+                reject(id)
+            }
+        }
+
+        /// Called when the response of the given request completed, discard the rest of its body.
+        fun done(id: Int) {
+            bodies.remove(id)?.close()
+            done()
+        }
+
+        /// Called when a response completed, the connection is closed when the client stops
+        /// sending and all responses are completed.
+        private fun done() {
+            if (pending.decrementAndGet() == 0) {
+                socket.close()
+            }
+            admission.withLock {
+                released.signal()
+            }
+        }
+
+        fun send(id: Int, type: Int) {
+            send(id, type, ByteArray(Mux.FRAME_HEADER_SIZE), 0)
+        }
+
+        /// @param frame The payload starting at Mux.FRAME_HEADER_SIZE, the header is filled in here.
+        fun send(id: Int, type: Int, frame: ByteArray, len: Int) {
+            put32BE(frame, 0, id)
+            frame[4] = type.toByte()
+            put32BE(frame, 5, len)
+            lock.withLock {
+                socket.outputStream.write(frame, 0, Mux.FRAME_HEADER_SIZE + len)
+            }
+        }
+
+        private fun put32BE(b: ByteArray, off: Int, value: Int) {
+            b[off] = (value ushr 24).toByte()
+            b[off + 1] = (value ushr 16).toByte()
+            b[off + 2] = (value ushr 8).toByte()
+            b[off + 3] = value.toByte()
+        }
+    }
+
     private fun badrequest(res: ICpluseditionResponse) {
         res.setStatus(HttpStatus.BadRequest)
     }
 
+    /// The body of a multiplexed request, filled in by the connection as BODY frames arrive.
+    /// The connection blocks when Mux.BODY_QUEUE_SIZE frames are pending, for at most Mux.BODY_TIMEOUT.
+    private class MuxBody : InputStream() {
+        companion object {
+            private val ABORTED = ByteArray(0)
+        }
+
+        private val queue = ArrayBlockingQueue<ByteArray>(Mux.BODY_QUEUE_SIZE)
+        private var chunk: ByteArray? = null
+        private var offset = 0
+        private var eof = false
+
+        @Volatile
+        private var closed = false
+
+        @Volatile
+        private var aborted = false
+
+        /// @param chunk An empty chunk for end of body.
+        fun put(chunk: ByteArray) {
+            val deadline = System.currentTimeMillis() + Mux.BODY_TIMEOUT
+            while (!closed && !aborted) {
+                if (queue.offer(chunk, 1, TimeUnit.SECONDS)) return
+                if (System.currentTimeMillis() > deadline) abort()
+            }
+        }
+
+        fun abort() {
+            aborted = true
+            queue.clear()
+            queue.offer(ABORTED)
+        }
+
+        override fun read(): Int {
+            val b = ByteArray(1)
+            while (true) {
+                val n = read(b, 0, 1)
+                if (n < 0) return -1
+                if (n == 1) return b[0].toInt() and 0xff
+            }
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (closed) throw IOException()
+            if (eof) return -1
+            if (len == 0) return 0
+            var c = chunk
+            if (c == null || offset >= c.size) {
+                c = queue.take()
+                if (c === ABORTED) throw IOException()
+                if (c.isEmpty()) {
+                    eof = true
+                    return -1
+                }
+                chunk = c
+                offset = 0
+            }
+            val n = if (len > c.size - offset) c.size - offset else len
+            c.copyInto(b, off, offset, offset + n)
+            offset += n
+            return n
+        }
+
+        override fun close() {
+            closed = true
+            queue.clear()
+        }
+    }
+
     private class RequestAdapter(
         private val url: URI,
         private val headers: Map<String, String>,
-        private val data: ByteArray
+        private val data: ByteArray,
+        private val body: InputStream? = null
     ) : ICpluseditionRequest {
         private val queries = run {
             val ret = TreeMap<String, String>()
@@ -204,14 +518,14 @@ open class StandaloneServer(datadir: File, backend: Backend, pass: CharArray, so
             return headers.get(name)
         }
 
+        /// A streamed body can only be read once.
         @Throws(IOException::class)
         override fun getInputStream(): InputStream {
-            return data.inputStream()
+            return body ?: data.inputStream()
         }
     }
 
-    private class ResponseAdapter(
-        private val socket: UnixSocket,
+    private abstract class ResponseAdapterBase(
         private val request: ICpluseditionRequest?
     ) : ICpluseditionResponse {
 
@@ -219,8 +533,8 @@ open class StandaloneServer(datadir: File, backend: Backend, pass: CharArray, so
             val TIMEOUT = 60 * 1000L
         }
 
-        private var watchdog: WatchDog? = null
-        private var status = HttpStatus.Ok
+        protected var watchdog: WatchDog? = null
+        protected var statusCode = HttpStatus.Ok
         private val headers = mutableMapOf<String, String>(
             HttpHeader.ContentType to "text/html;charset=UTF-8",
             HttpHeader.Connection to "keep-alive",
@@ -236,8 +550,69 @@ open class StandaloneServer(datadir: File, backend: Backend, pass: CharArray, so
             setHeader(HttpHeader.ContentType, type)
         }
 
+        override fun setHeader(name: String, value: String) {
+            headers[name] = value
+        }
+
+        override fun setupHtmlResponse() {
+            setHeader(HttpHeader.NoCache, "true")
+            setHeader(HttpHeader.CacheControl, "no-cache")
+            setContentType("text/html;charset=UTF-8")
+            setHeader(
+                "Content-Security-Policy",
+                "default-src 'self';" +
+                        " script-src 'self' 'unsafe-inline';" +
+                        " style-src 'self' 'unsafe-inline';" +
+                        " img-src data: 'self';" +
+                        " object-src 'none';" +
+                        " navigate-to 'self';" +
+                        " form-action 'none';" +
+                        " frame-ancestors 'self';"
+            )
+        }
+
+        override fun getStatus(): Int {
+            return statusCode
+        }
+
+        /// Set when a terminal setData() or setStatus() is called.
+        protected val responded = AtomicBoolean()
+
+        override fun getRequest(): ICpluseditionRequest? {
+            return request
+        }
+
+        protected fun jsonHeader(): ByteArray {
+            fun jsonheaders(): JSONObject {
+                val ret = JSONObject()
+                for ((key, value) in headers.entries) {
+                    ret.put(key, value)
+                }
+                return ret
+            }
+
+            return JSONObject()
+                .put(ServerKey.statusCode, statusCode)
+                .put(ServerKey.headers, jsonheaders())
+                .toString().toByteArray(Charsets.UTF_8)
+        }
+
+        protected fun httpHeaders(): String {
+            return headers.map { (k, v) ->
+                "${k}: ${v}\r\n"
+            }.joinToString("") + "\r\n"
+        }
+    }
+
+    private class ResponseAdapter(
+        private val writers: ResponseWriters,
+        private val socket: UnixSocket,
+        request: ICpluseditionRequest?
+    ) : ResponseAdapterBase(request) {
+
         override fun setData(data: InputStream) {
-            Thread {
+            responded.set(true)
+            writers.submit {
                 val total = arrayOf(0L)
                 try {
                     socket.outputStream.use { output ->
@@ -248,7 +623,9 @@ open class StandaloneServer(datadir: File, backend: Backend, pass: CharArray, so
                                 input.close()
                             }
                             total[0] = total[0] + writeJSONHeader(output)
-                            copy(output, input, total)
+                            if (input !is FileRangeInputStream || !sendfile(input, total)) {
+                                copy(output, input, total)
+                            }
                         }
                     }
                 } catch (e: Exception) {
@@ -259,7 +636,27 @@ open class StandaloneServer(datadir: File, backend: Backend, pass: CharArray, so
                     watchdog?.close()
                     watchdog = null
                 }
-            }.start()
+            }
+        }
+
+        /// Send the file range in kernel, in chunks of Conf.SENDFILE_CHUNK.
+        /// @return false if sendfile is not supported and nothing is sent.
+        private fun sendfile(input: FileRangeInputStream, total: Array<Long>): Boolean {
+            val path = input.file.absolutePath
+            var sent = 0L
+            while (sent < input.count) {
+                watchdog?.watch()
+                val n = socket.sendfile(path, input.offset + sent, min(Conf.SENDFILE_CHUNK, input.count - sent))
+                if (n < 0) {
+                    if (sent == 0L) return false
+                    throw IOException()
+                }
+                //// The file is truncated, the response would be shorter than its content length.
+                if (n == 0L) throw IOException()
+                sent += n
+                total[0] = total[0] + n
+            }
+            return true
         }
 
         private fun copy(output: OutputStream, input: InputStream, total: Array<Long>) {
@@ -274,73 +671,122 @@ open class StandaloneServer(datadir: File, backend: Backend, pass: CharArray, so
             }
         }
 
-        override fun setHeader(name: String, value: String) {
-            headers[name] = value
-        }
-
         override fun setStatus(status: Int) {
-            this.status = status
+            statusCode = status
             if (status >= HttpStatus.MultipleChoices) {
+                responded.set(true)
                 socket.outputStream.use { output ->
                     writeJSONHeader(output)
                 }
             }
         }
 
-        override fun setupHtmlResponse() {
-            setHeader(HttpHeader.NoCache, "true")
-            setHeader(HttpHeader.CacheControl, "no-cache")
-            setContentType("text/html;charset=UTF-8")
-            setHeader(
-                "Content-Security-Policy",
-                "default-src 'self';" +
-                        " script-src 'self' 'unsafe-inline';" +
-                        " style-src 'self' 'unsafe-inline';" +
-                        " img-src data: 'self';" +
-                        " object-src 'none';" +
-                        " navigate-to 'self';" +
-                        " form-action 'none';" +
-                        " frame-ancestors 'self';"
-            )
-        }
-
-        override fun getStatus(): Int {
-            return status
-        }
-
-        override fun getRequest(): ICpluseditionRequest? {
-            return request
-        }
-
-        private fun writeJSONHeader(output: OutputStream): Int {
-            fun jsonheaders(): JSONObject {
-                val ret = JSONObject()
-                for ((key, value) in headers.entries) {
-                    ret.put(key, value)
+        override fun finish() {
+            if (responded.compareAndSet(false, true)) {
+                try {
+                    socket.outputStream.use { output ->
+                        writeJSONHeader(output)
+                    }
+                } catch (e: Exception) {
+                    
+                    socket.close()
                 }
-                return ret
             }
+        }
 
-            val b = JSONObject()
-                .put(ServerKey.statusCode, status)
-                .put(ServerKey.headers, jsonheaders())
-                .toString().toByteArray(Charsets.UTF_8)
+        private fun writeJSONHeader(output: OutputStream): Int {
+            val b = jsonHeader()
             ByteWriter(output).write32BE(b.size)
             output.write(b)
             return b.size
         }
 
         private fun writeHttpStatusLine(output: OutputStream) {
-            "HTTP/1.1 ${status}\r\n".byteInputStream().use {
+            "HTTP/1.1 ${statusCode}\r\n".byteInputStream().use {
                 FileUt.copy(output, it)
             }
         }
 
         private fun writeHttpHeaders(output: OutputStream) {
-            val content = headers.map { (k, v) ->
-                "${k}: ${v}\r\n"
-            }.joinToString("") + "\r\n"
-            content.byteInputStream().use { FileUt.copy(output, it) }
+            httpHeaders().byteInputStream().use { FileUt.copy(output, it) }
+        }
+    }
+
+    /// A response of a multiplexed connection. The connection is only closed on write error.
+    private class MuxResponseAdapter(
+        private val writers: ResponseWriters,
+        private val connection: MuxConnection,
+        private val id: Int,
+        request: ICpluseditionRequest?
+    ) : ResponseAdapterBase(request) {
+
+        private val completed = AtomicBoolean()
+
+        override fun setData(data: InputStream) {
+            responded.set(true)
+            writers.submit {
+                try {
+                    data.use { input ->
+                        watchdog?.close()
+                        watchdog = WatchDog(TIMEOUT) {
+                            input.close()
+                        }
+                        sendHeader()
+                        val b = ByteArray(Mux.FRAME_HEADER_SIZE + Conf.COPY_BUFSIZE)
+                        while (true) {
+                            watchdog?.watch()
+                            val n = input.read(b, Mux.FRAME_HEADER_SIZE, Conf.COPY_BUFSIZE)
+                            if (n < 0) break
+                            if (n > 0) connection.send(id, Mux.DATA, b, n)
+                        }
+                        connection.send(id, Mux.END)
+                    }
+                } catch (e: Exception) {
+                    
+                    With.exceptionOrNull { connection.send(id, Mux.ABORT) }
+                } finally {
+                    watchdog?.close()
+                    watchdog = null
+                    complete()
+                }
+            }
+        }
+
+        override fun setStatus(status: Int) {
+            statusCode = status
+            if (status >= HttpStatus.MultipleChoices) {
+                responded.set(true)
+                end()
+            }
+        }
+
+        /// Send an empty response with the current status if the handler did not respond.
+        override fun finish() {
+            if (responded.compareAndSet(false, true)) {
+                With.exceptionOrNull { end() }
+            }
+        }
+
+        private fun end() {
+            try {
+                sendHeader()
+                connection.send(id, Mux.END)
+            } finally {
+                complete()
+            }
+        }
+
+        private fun sendHeader() {
+            val header = jsonHeader()
+            val frame = ByteArray(Mux.FRAME_HEADER_SIZE + header.size)
+            header.copyInto(frame, Mux.FRAME_HEADER_SIZE)
+            connection.send(id, Mux.HEADER, frame, header.size)
+        }
+
+        private fun complete() {
+            if (completed.compareAndSet(false, true)) {
+                connection.done(id)
+            }
         }
     }
 }
@@ -21,11 +21,13 @@ import com.cplusedition.bot.core.FileUt
 import com.cplusedition.bot.core.Fun01
 import com.cplusedition.bot.core.Fun11
 import com.cplusedition.bot.core.Hex
+import com.cplusedition.bot.core.ResourceLocker
 import com.cplusedition.bot.core.StepWatch
 import com.cplusedition.bot.core.With
 import com.cplusedition.bot.core.Without
 import com.cplusedition.bot.core.bot
 import com.cplusedition.bot.core.changeSuffix
+import com.cplusedition.bot.core.deleteSubtreesOrNull
 import com.cplusedition.bot.core.deleteSubtreesOrFail
 import com.cplusedition.bot.core.file
 import com.cplusedition.bot.core.mkdirsOrFail
@@ -38,24 +40,36 @@ import sf.andrians.cplusedition.support.An
 import sf.andrians.cplusedition.support.An.DEF
 import sf.andrians.cplusedition.support.An.LinkInfoStatus
 import sf.andrians.cplusedition.support.An.PATH
+import sf.andrians.cplusedition.support.AtomicFile
 import sf.andrians.cplusedition.support.Backend
 import sf.andrians.cplusedition.support.BackupRestoreResult
 import sf.andrians.cplusedition.support.BackupUtil
 
 
+import sf.andrians.cplusedition.support.DirAggregates
+import sf.andrians.cplusedition.support.DirCache
 import sf.andrians.cplusedition.support.EncryptedRootInfo
 import sf.andrians.cplusedition.support.FileRootInfo
+import sf.andrians.cplusedition.support.Gzip
+import sf.andrians.cplusedition.support.HistoryStore
+import sf.andrians.cplusedition.support.Http
+import sf.andrians.cplusedition.support.Http.HttpHeader
 import sf.andrians.cplusedition.support.IFileInfo
 import sf.andrians.cplusedition.support.IRootInfo
 import sf.andrians.cplusedition.support.ISecUtilAccessor
 import sf.andrians.cplusedition.support.ISettingsStore
 import sf.andrians.cplusedition.support.IStorageAccessor
+import sf.andrians.cplusedition.support.IStorageReader
+import sf.andrians.cplusedition.support.PathIndex
 import sf.andrians.cplusedition.support.ReadOnlyBackupFileRoot
 import sf.andrians.cplusedition.support.StorageBase
 import sf.andrians.cplusedition.support.StorageException
 import sf.andrians.cplusedition.support.Support
 import sf.andrians.cplusedition.support.Support.DefaultSettings
+import sf.andrians.cplusedition.support.TaskProgress
+import sf.andrians.cplusedition.support.Trash
 import sf.andrians.cplusedition.support.css.CSSGenerator
+import sf.andrians.cplusedition.support.handler.FileRangeInputStream
 import sf.andrians.cplusedition.support.handler.ICpluseditionResponse
 import sf.andrians.cplusedition.support.handler.IResUtil
 import sf.andrians.cplusedition.support.handler.ResUtil
@@ -63,14 +77,13 @@ import sf.andrians.cplusedition.support.media.MimeUtil
 import sf.andrians.cplusedition.support.media.MimeUtil.Mime
 import sf.andrians.cplusedition.support.media.MimeUtil.Suffix
 import sf.andrians.cplusedition.war.Conf.Defs
+import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.FileInputStream
 import java.io.IOException
 import java.io.InputStream
 import java.net.URI
-import java.util.concurrent.Executors
 import java.util.concurrent.Future
-import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantLock
 import javax.crypto.SecretKey
 import kotlin.concurrent.withLock
@@ -90,12 +103,15 @@ class Storage constructor(
     private val internalBackupRoot: IRootInfo
     private val homeRoot: IRootInfo
     private val rootList: List<IRootInfo>
+    private val dirCaches: List<DirCache>
+    private val trashes: List<Trash>
     private val customResourcesRoot: CustomResourceRoot
     private val secUtil = SecUtil(dataDir, pass)
     private val backupUtil = BackupUtil(rsrc, secUtil)
-    private val pool = Executors.newSingleThreadExecutor()
+    private val executors = StorageExecutors()
     protected val customResources: CustomResources
     private val cacheLock = ReentrantLock()
+    private val gzipLocker = ResourceLocker<String>()
 
     init {
         settingsStore = SettingsStore(
@@ -119,7 +135,45 @@ class Storage constructor(
                         Backend.PLAIN -> FileRootInfo(dataDir.file(PATH.Home).mkdirsOrFail(), PATH.Home)
                         else -> throw AssertionError()
                     }
+        (homeRoot as? FileRootInfo)?.let { root ->
+            root.historyStore = HistoryStore(
+                Conf.getHistoryDir(dataDir, root.name), root.name,
+                Conf.HISTORY_MAX_AGE, Conf.HISTORY_MAX_BYTES, Conf.HISTORY_MAX_FILE_SIZE, Conf.HISTORY_MAX_BULK_BYTES
+            ).also { store ->
+                Metrics.gauge("history.${root.name}.versions") { store.count }
+                Metrics.gauge("history.${root.name}.bytes") { store.size }
+            }
+        }
         rootList = arrayListOf(this.assetsRoot, homeRoot, /* privateRoot, */ internalBackupRoot, externalBackupRoot)
+        dirCaches = rootList.mapNotNull { root ->
+            if (root !is FileRootInfo) null else DirCache(Conf.DIRCACHE_ENTRIES, root.name).also { cache ->
+                root.cache = cache
+                root.aggregates = DirAggregates(root, cache).also { aggregates ->
+                    With.exceptionOrNull {
+                        getCached(Conf.CacheType.indexes, 0, aggregatesPath(root))?.use { aggregates.load(it) }
+                    }
+                }
+                root.index = PathIndex(root, cache).also { index ->
+                    With.exceptionOrNull {
+                        getCached(Conf.CacheType.indexes, 0, pathIndexPath(root))?.use { index.load(it) }
+                    }
+                    index.start()
+                    Metrics.gauge("pathindex.${root.name}.paths") { index.size }
+                }
+                Metrics.gauge("dircache.${root.name}.hits") { cache.hits.sum() }
+                Metrics.gauge("dircache.${root.name}.misses") { cache.misses.sum() }
+                Metrics.gauge("dircache.${root.name}.invalidations") { cache.invalidations.sum() }
+                Metrics.gauge("dircache.${root.name}.evictions") { cache.evictions.sum() }
+                Metrics.gauge("dircache.${root.name}.entries") { cache.entries }
+            }
+        }
+        trashes = rootList.mapNotNull { root ->
+            if (root !is FileRootInfo) null else Trash(Conf.getTrashDir(dataDir, root.name), root).also { trash ->
+                root.trash = trash
+                Metrics.gauge("trash.${root.name}.pending") { trash.size }
+                Metrics.gauge("trash.${root.name}.purged") { trash.purged }
+            }
+        }
         customResources = CustomResources(
             rsrc,
             dataDir.file(Paths.assetsResourcesJs).readBytes(),
@@ -134,11 +188,74 @@ class Storage constructor(
             customResources.asBytes(rpath) ?: throw IOException()
         }
         setupHomeRoot()
+        sweepSaves()
+    }
+
+    override fun <R> read(task: Fun11<IStorageReader, R>): Future<R> {
+        return executors.read(metered { task(accessor) })
+    }
+
+    override fun <R> submit(exclusive: Boolean, task: Fun11<IStorageAccessor, R>): Future<R> {
+        return executors.submit(exclusive, metered { task(accessor) })
+    }
+
+    /// The wait time includes the time waiting for the storage lock.
+    private fun <R> metered(task: Fun01<R>): Fun01<R> {
+        val endpoint = Metrics.current()
+        val queued = System.nanoTime()
+        return {
+            val start = System.nanoTime()
+            try {
+                task()
+            } finally {
+                if (endpoint != null) {
+                    endpoint.storageCount.increment()
+                    endpoint.storageWaitNanos.add(start - queued)
+                    endpoint.storageExecNanos.add(System.nanoTime() - start)
+                }
+            }
+        }
+    }
+
+    /// Delete the temp files of atomic writes interrupted by a crash in the background.
+    private fun sweepSaves() {
+        val started = System.currentTimeMillis()
+        Thread({
+            val count = AtomicFile.sweep(dataDir, started)
+            if (count > 0) Support.w("Deleted $count orphaned temp files")
+        }, "save-sweep").also { it.isDaemon = true }.start()
+    }
+
+    private fun aggregatesPath(root: IRootInfo): String {
+        return "dirinfo/${root.name}"
     }
 
-    override fun <R> submit(task: Fun11<IStorageAccessor, R>): Future<R> {
-        return pool.submit<R> {
-            task(accessor)
+    /// Persist the directory aggregates so that they are only revalidated on next start.
+    private fun saveAggregates() {
+        for (root in rootList) {
+            val aggregates = (root as? FileRootInfo)?.aggregates ?: continue
+            With.exceptionOrNull {
+                val output = ByteArrayOutputStream()
+                aggregates.save(output)
+                putCached(Conf.CacheType.indexes, aggregatesPath(root), output.toByteArray().inputStream())
+            }
+        }
+    }
+
+    private fun pathIndexPath(root: IRootInfo): String {
+        return "pathindex/${root.name}"
+    }
+
+    /// Persist the filename indexes so that they are only verified on next start.
+    private fun savePathIndexes() {
+        for (root in rootList) {
+            val index = (root as? FileRootInfo)?.index ?: continue
+            index.close()
+            With.exceptionOrNull {
+                val output = ByteArrayOutputStream()
+                index.save(output)
+                putCached(Conf.CacheType.indexes, pathIndexPath(root), output.toByteArray().inputStream())
+            }
         }
     }
 
@@ -173,8 +290,12 @@ class Storage constructor(
     override fun onDestroy() {
         
         this.onPause()
-        pool.shutdown()
-        pool.awaitTermination(2, TimeUnit.SECONDS)
+        saveAggregates()
+        savePathIndexes()
+        dirCaches.forEach { it.close() }
+        trashes.forEach { it.close() }
+        (homeRoot as? FileRootInfo)?.historyStore?.close()
+        executors.shutdown()
         super.onDestroy()
     }
 
@@ -262,6 +383,29 @@ class Storage constructor(
         }
     }
 
+    /// Only content that is not encrypted at rest should be cached here.
+    /// @return The gzip encoded content from the cache, keyed by cpath and the validators, ie. mtime and size,
+    /// of the content. null if not available or not smaller than the content.
+    private fun gzipCached(cpath: String, validators: Http.Validators, length: Long, provider: Fun01<InputStream>): File? {
+        val dir = Conf.getCacheFile(dataDir, Conf.CacheType.gzip, cachefilename(cpath)) ?: return null
+        val cached = File(dir, validators.etag.trim('"') + ".gz")
+        //// Compress under a per path lock, a large asset must not hold up the other cached requests.
+        val ok = cached.exists() || gzipLocker.sync(cpath) {
+            if (cached.exists()) return@sync true
+            With.exceptionOrNull {
+                dir.deleteSubtreesOrNull()
+                dir.mkdirsOrFail()
+                val tmpfile = File(dir, cached.name + ".tmp")
+                provider().use { input ->
+                    tmpfile.outputStream().use { Gzip.gzip(it, input) }
+                }
+                if (!tmpfile.renameTo(cached)) tmpfile.delete()
+            }
+            cached.exists()
+        }
+        return if (ok && cached.length() < length) cached else null
+    }
+
     override fun clearCached(includediskfiles: Boolean) {
         cacheLock.withLock {
             if (includediskfiles) {
@@ -367,27 +511,62 @@ class Storage constructor(
         override fun resourceResponse(response: ICpluseditionResponse, info: IFileInfo) {
             val rpathx = info.cpath
             try {
-                customResources.asBytes(rpathx)?.let {
-                    response.setContentLength(it.size.toLong())
-                    response.setData(it.inputStream())
+                val compressible = Gzip.isCompressible(MimeUtil.mimeFromPath(rpathx))
+                if (compressible) response.setHeader(HttpHeader.Vary, HttpHeader.AcceptEncoding)
+                val gzip = compressible
+                        && Http.acceptsEncoding(response.getRequest()?.getHeader(HttpHeader.AcceptEncoding), Gzip.ENCODING)
+                customResources.asVariant(rpathx, gzip)?.let { variant ->
+                    if (notModified(response, variant.validators)) return
+                    variant.encoding?.let { response.setHeader(HttpHeader.ContentEncoding, it) }
+                    response.setContentLength(variant.bytes.size.toLong())
+                    response.setData(variant.bytes.inputStream())
                     return
                 }
                 if (rpathx.startsWith(PATH.assetsJs_) || rpathx.startsWith(PATH.assetsFonts_)) {
                     val file = dataDir.file(rpathx)
                     if (file.exists()) {
-                        response.setContentLength(file.length())
-                        response.setData(file.inputStream())
+                        val length = file.length()
+                        cachedResponse(response, gzip, rpathx, validatorsOf(file), length) { FileRangeInputStream(file, 0, length) }
                         return
                     }
                 }
-                val content = info.content().inputStream()
-                response.setContentLength(info.content().getContentLength())
-                response.setData(content)
+                if (info is AssetFileInfo && info.root === assetsRoot) {
+                    val content = info.content()
+                    cachedResponse(response, gzip, rpathx, info.validators, content.getContentLength()) { content.inputStream() }
+                    return
+                }
+                if (notModified(response, validatorsOf(info))) return
+                val length = info.content().getContentLength()
+                val file = info.file
+                response.setContentLength(length)
+                response.setData(if (file != null) FileRangeInputStream(file, 0, length) else info.content().inputStream())
             } catch (e: Exception) {
                 throw rsrc.storageException(e, R.string.FailedToCopy_, rpathx)
             }
         }
 
+        /// Send the gzip encoded content from the cache if requested, otherwise the content.
+        private fun cachedResponse(
+            response: ICpluseditionResponse,
+            gzip: Boolean,
+            cpath: String,
+            validators: Http.Validators,
+            length: Long,
+            provider: Fun01<InputStream>
+        ) {
+            val gzipped = if (gzip && length >= Gzip.MIN_SIZE) gzipCached(cpath, validators, length, provider) else null
+            if (gzipped != null) {
+                if (notModified(response, validators.variant(Gzip.ENCODING))) return
+                response.setHeader(HttpHeader.ContentEncoding, Gzip.ENCODING)
+                response.setContentLength(gzipped.length())
+                response.setData(gzipped.inputStream())
+                return
+            }
+            if (notModified(response, validators)) return
+            response.setContentLength(length)
+            response.setData(provider())
+        }
+
         @Throws(StorageException::class)
         override fun heicResponse(response: ICpluseditionResponse, info: IFileInfo) {
             MediaUtil.readImageAsJpeg(info, Mime.HEIC, DEF.jpegQualityHigh)?.let { blob ->
@@ -440,10 +619,14 @@ class Storage constructor(
             }
         }
 
-        override fun verifyBackup(backupfile: IFileInfo): BackupRestoreResult {
+        override fun verifyBackup(
+            backupfile: IFileInfo,
+            structural: Boolean,
+            progress: TaskProgress?
+        ): BackupRestoreResult {
             val timer = StepWatch()
             try {
-                return backupUtil.verifyBackup(backupfile)
+                return backupUtil.verifyBackup(backupfile, structural, progress)
             } finally {
                 
             }
@@ -534,6 +717,7 @@ class Storage constructor(
             resourcesLock.writeLock().lock()
             try {
                 resources[An.PATH.assetsResourcesJs] = resourcesJs
+                variants.clear()
             } finally {
                 resourcesLock.writeLock().unlock()
             }
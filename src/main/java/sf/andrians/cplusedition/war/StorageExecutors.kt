@@ -0,0 +1,72 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.war
+
+import com.cplusedition.bot.core.Fun01
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.Lock
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+/**
+ * Executors of the storage tasks. Reads run concurrently on a small pool while holding the read lock,
+ * mutations run one at a time on a serial executor and by default hold the write lock.
+ * The lock is fair so that a steady stream of reads cannot hold up a mutation for long.
+ */
+class StorageExecutors constructor(
+    readers: Int = Conf.STORAGE_READERS,
+) {
+    private val pool = Executors.newSingleThreadExecutor()
+    private val readPool = Executors.newFixedThreadPool(readers, object : ThreadFactory {
+        private val count = AtomicInteger()
+        override fun newThread(r: Runnable): Thread {
+            return Thread(r, "storage-reader-${count.incrementAndGet()}").also { it.isDaemon = true }
+        }
+    })
+    private val rwLock = ReentrantReadWriteLock(true)
+
+    fun <R> read(task: Fun01<R>): Future<R> {
+        return readPool.submit(locked(rwLock.readLock(), task))
+    }
+
+    /// @param exclusive true to hold the write lock, false for mutations that only create files readers do not depend on.
+    fun <R> submit(exclusive: Boolean, task: Fun01<R>): Future<R> {
+        return pool.submit(locked(if (exclusive) rwLock.writeLock() else null, task))
+    }
+
+    fun shutdown() {
+        readPool.shutdown()
+        pool.shutdown()
+        pool.awaitTermination(2, TimeUnit.SECONDS)
+        readPool.awaitTermination(2, TimeUnit.SECONDS)
+    }
+
+    private fun <R> locked(lock: Lock?, task: Fun01<R>): Callable<R> {
+        return Callable {
+            lock?.lock()
+            try {
+                task()
+            } finally {
+                lock?.unlock()
+            }
+        }
+    }
+}
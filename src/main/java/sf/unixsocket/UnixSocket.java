@@ -19,6 +19,7 @@ package sf.unixsocket;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
@@ -30,6 +31,9 @@ public class UnixSocket {
         DGRAM, STREAM;
     }
 
+    /** Size of the copy buffer used when the native buffer calls are not available. */
+    public static final int COPY_BUFSIZE = 16 * 1024;
+
     protected UnixSocketInputStream in;
     protected UnixSocketOutputStream out;
     protected int nativeSocketHandle;
@@ -70,6 +74,17 @@ public class UnixSocket {
         }
     }
 
+    /**
+     * Send the given range of a file to the socket, in kernel where supported.
+     * This bypasses any framing of the output, so it is only for a connection that sends
+     * the file as is.
+     * @return Number of bytes sent, less than count only if end of file is reached,
+     * -1 if the native library does not support sendfile and nothing is sent.
+     */
+    public long sendfile(String path, long offset, long count) throws IOException {
+        return out.sendfile(path, offset, count);
+    }
+
     public UnixSocket onClose(Runnable listener) {
         this.onCloseListeners.add(listener);
         return this;
@@ -79,16 +94,47 @@ public class UnixSocket {
 
     protected class UnixSocketInputStream extends InputStream {
         private int nativeHandle;
+        private final byte[] one = new byte[1];
         protected UnixSocketInputStream(int sockhandle) {
             this.nativeHandle = sockhandle;
         }
         @Override
         public int read() throws IOException {
-            byte[] b = new byte[1];
-            int count = Native.read(nativeHandle, b, 0, 1);
+            int count = Native.read(nativeHandle, one, 0, 1);
             if (count == -1)
                 throw new IOException();
-            return count > 0 ? (b[0] & 0xff) : -1;
+            return count > 0 ? (one[0] & 0xff) : -1;
+        }
+        /**
+         * Read into the remaining of the given buffer and advance its position.
+         * A direct buffer is filled in without an intermediate copy.
+         * @return Number of bytes read, -1 on EOF.
+         */
+        public int read(ByteBuffer b) throws IOException {
+            int len = b.remaining();
+            if (len == 0) return 0;
+            if (b.isDirect() && Native.hasBufferCalls) {
+                try {
+                    int count = Native.readBuffer(nativeHandle, b, b.position(), len);
+                    if (count == -1)
+                        throw new IOException();
+                    if (count == 0)
+                        return -1;
+                    b.position(b.position() + count);
+                    return count;
+                } catch (UnsatisfiedLinkError e) {
+                    Native.hasBufferCalls = false;
+                }
+            }
+            if (b.hasArray()) {
+                int count = read(b.array(), b.arrayOffset() + b.position(), len);
+                if (count > 0) b.position(b.position() + count);
+                return count;
+            }
+            byte[] tmp = new byte[Math.min(len, COPY_BUFSIZE)];
+            int count = read(tmp, 0, tmp.length);
+            if (count > 0) b.put(tmp, 0, count);
+            return count;
         }
         @Override
         public int read(byte[] b, int off, int len) throws IOException {
@@ -117,6 +163,7 @@ public class UnixSocket {
         private int nativeHandle;
         private boolean closed = false;
         private Lock lock = new ReentrantLock();
+        private final byte[] one = new byte[1];
         protected UnixSocketOutputStream(int sockhandle) {
             this.nativeHandle = sockhandle;
         }
@@ -125,14 +172,70 @@ public class UnixSocket {
             lock.lock();
             try {
                 if (closed) throw new IOException();
-                byte[] data = new byte[1];
-                data[0] = (byte) b;
-                if (Native.write(nativeHandle, data, 0, 1) != 1)
+                one[0] = (byte) b;
+                if (Native.write(nativeHandle, one, 0, 1) != 1)
                     throw new IOException();
             } finally {
                 lock.unlock();
             }
         }
+        /**
+         * Write all the remaining of the given buffer and advance its position.
+         * A direct buffer is written without an intermediate copy.
+         */
+        public void write(ByteBuffer b) throws IOException {
+            lock.lock();
+            try {
+                if (closed) throw new IOException();
+                if (b.isDirect() && Native.hasBufferCalls) {
+                    try {
+                        while (b.hasRemaining()) {
+                            int count = Native.writeBuffer(nativeHandle, b, b.position(), b.remaining());
+                            if (count <= 0) throw new IOException();
+                            b.position(b.position() + count);
+                        }
+                        return;
+                    } catch (UnsatisfiedLinkError e) {
+                        Native.hasBufferCalls = false;
+                    }
+                }
+                if (b.hasArray()) {
+                    int len = b.remaining();
+                    write(b.array(), b.arrayOffset() + b.position(), len);
+                    b.position(b.position() + len);
+                    return;
+                }
+                byte[] tmp = new byte[Math.min(b.remaining(), COPY_BUFSIZE)];
+                while (b.hasRemaining()) {
+                    int len = Math.min(b.remaining(), tmp.length);
+                    b.get(tmp, 0, len);
+                    write(tmp, 0, len);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        /**
+         * @return Number of bytes sent, -1 if sendfile is not supported, see UnixSocket.sendfile().
+         */
+        public long sendfile(String path, long offset, long count) throws IOException {
+            lock.lock();
+            try {
+                if (closed) throw new IOException();
+                if (!Native.hasSendfile) return -1;
+                long ret;
+                try {
+                    ret = Native.sendfile(nativeHandle, path, offset, count);
+                } catch (UnsatisfiedLinkError e) {
+                    Native.hasSendfile = false;
+                    return -1;
+                }
+                if (ret < 0) throw new IOException();
+                return ret;
+            } finally {
+                lock.unlock();
+            }
+        }
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
             lock.lock();
@@ -169,12 +272,21 @@ public class UnixSocket {
 
     ////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Native entry points. The buffer and sendfile calls are missing in a library built
+     * before they were added, the callers then fall back to copy through a byte array.
+     */
     protected static class Native {
+        static volatile boolean hasBufferCalls = true;
+        static volatile boolean hasSendfile = true;
         native static int listen(String sockfile, int socktype, int backlog);
         native static int accept(int nativehandle, int socktype);
         native static int open(String sockfile, int socktype);
         native static int read(int nativehandle, byte[] b, int off, int len);
         native static int write(int nativehandle, byte[] b, int off, int len);
+        native static int readBuffer(int nativehandle, ByteBuffer b, int off, int len);
+        native static int writeBuffer(int nativehandle, ByteBuffer b, int off, int len);
+        native static long sendfile(int nativehandle, String path, long offset, long count);
         native static int close(int nativehandle);
         native static int closeInput(int nativehandle);
         native static int closeOutput(int nativehandle);
@@ -0,0 +1,125 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.attribute.PosixFilePermissions
+
+class AtomicFileTest {
+
+    private val tmpdir = Files.createTempDirectory("atomicfile").toFile()
+
+    @After
+    fun teardown() {
+        tmpdir.deleteRecursively()
+    }
+
+    /// A write that fails midway keeps the original content and leaves no temp file behind.
+    @Test
+    fun testFaultInjection() {
+        val file = File(tmpdir, "a.html")
+        file.writeText("original")
+        for (failat in listOf(0, 1, 4096, 100_000)) {
+            try {
+                AtomicFile.write(file, null) { output ->
+                    for (i in 0 until failat) output.write('x'.code)
+                    throw IOException("fail at $failat")
+                }
+                fail()
+            } catch (e: IOException) {
+                assertEquals("fail at $failat", e.message)
+            }
+            assertEquals("original", file.readText())
+            assertEquals(listOf("a.html"), tmpdir.list()!!.toList())
+        }
+        AtomicFile.write(file, TIMESTAMP) { it.write("new".toByteArray()) }
+        assertEquals("new", file.readText())
+        assertEquals(TIMESTAMP, file.lastModified())
+        assertEquals(listOf("a.html"), tmpdir.list()!!.toList())
+    }
+
+    @Test
+    fun testPermissions() {
+        val file = File(tmpdir, "a.html")
+        for (perms in listOf("rw-r-----", "rw-rw-r--", "rwx------")) {
+            file.writeText("old")
+            Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString(perms))
+            AtomicFile.write(file, null) { it.write("new".toByteArray()) }
+            assertEquals("new", file.readText())
+            assertEquals(perms, PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())))
+        }
+        //// A new file gets the same permissions as one created directly.
+        val expected = File(tmpdir, "expected.html").also { it.writeText("") }
+        val created = File(tmpdir, "created.html")
+        AtomicFile.write(created, null) { it.write("new".toByteArray()) }
+        assertEquals(
+            Files.getPosixFilePermissions(expected.toPath()),
+            Files.getPosixFilePermissions(created.toPath())
+        )
+    }
+
+    @Test
+    fun testSymlink() {
+        val dir = File(tmpdir, "dir").also { it.mkdirs() }
+        val target = File(dir, "target.html")
+        target.writeText("old")
+        Files.setPosixFilePermissions(target.toPath(), PosixFilePermissions.fromString("rw-r-----"))
+        val relative = File(tmpdir, "relative.html")
+        Files.createSymbolicLink(relative.toPath(), File("dir/target.html").toPath())
+        val chained = File(tmpdir, "chained.html")
+        Files.createSymbolicLink(chained.toPath(), relative.absoluteFile.toPath())
+        AtomicFile.write(relative, null) { it.write("1".toByteArray()) }
+        assertTrue(Files.isSymbolicLink(relative.toPath()))
+        assertEquals("1", target.readText())
+        AtomicFile.write(chained, null) { it.write("2".toByteArray()) }
+        assertTrue(Files.isSymbolicLink(chained.toPath()))
+        assertTrue(Files.isSymbolicLink(relative.toPath()))
+        assertEquals("2", target.readText())
+        assertEquals("rw-r-----", PosixFilePermissions.toString(Files.getPosixFilePermissions(target.toPath())))
+        assertEquals(listOf("target.html"), dir.list()!!.toList())
+        //// A dangling link creates its target.
+        val dangling = File(tmpdir, "dangling.html")
+        Files.createSymbolicLink(dangling.toPath(), File("dir/new.html").toPath())
+        AtomicFile.write(dangling, null) { it.write("3".toByteArray()) }
+        assertTrue(Files.isSymbolicLink(dangling.toPath()))
+        assertEquals("3", File(dir, "new.html").readText())
+    }
+
+    @Test
+    fun testSweep() {
+        val dir = File(tmpdir, "a/b").also { it.mkdirs() }
+        val orphans = listOf(File(tmpdir, ".x.html.1${AtomicFile.TMP_SUFFIX}"), File(dir, ".y.css.2${AtomicFile.TMP_SUFFIX}"))
+        val others = listOf(File(tmpdir, "x.html"), File(dir, "y${AtomicFile.TMP_SUFFIX}"), File(dir, ".y.css.tmp"))
+        for (file in orphans + others) file.writeText("")
+        assertEquals(0, AtomicFile.sweep(tmpdir, 0L))
+        assertEquals(2, AtomicFile.sweep(tmpdir, System.currentTimeMillis() + 1000))
+        for (file in orphans) assertFalse(file.exists())
+        for (file in others) assertTrue(file.exists())
+    }
+
+    companion object {
+        private const val TIMESTAMP = 1_500_000_000_000L
+    }
+}
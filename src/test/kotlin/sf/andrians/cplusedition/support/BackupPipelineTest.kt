@@ -0,0 +1,160 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import sf.andrians.cplusedition.support.handler.ResUtil
+import sf.andrians.cplusedition.war.MSG
+import sf.andrians.cplusedition.war.SecUtil
+import java.io.File
+import java.nio.file.Files
+import java.util.*
+
+class BackupPipelineTest {
+
+    private val tmpdir = Files.createTempDirectory("backuppipeline").toFile()
+    private val random = Random(1)
+    //// The backup key is created with keytool, which requires a password of at least 6 characters.
+    private val secUtil = SecUtil(dir("data"), "password".toCharArray())
+    private val backupUtil = BackupUtil(ResUtil(MSG.get()), secUtil)
+    private val src = FileRootInfo(dir("src"), "src")
+    private val backups = FileRootInfo(dir("backups"), "backups")
+
+    @After
+    fun teardown() {
+        tmpdir.deleteRecursively()
+    }
+
+    /// A backup of a tree with files of all sizes, written by the parallel pipeline, verifies and
+    /// restores byte for byte.
+    @Test
+    fun testBackupRestore() {
+        populate(src.file, 3)
+        val backupfile = backups.fileInfo("a.backup")
+        val result = backupUtil.backupData(backupfile, listOf(ISecUtil.ALIAS_BACKUP), src)
+        assertTrue(result.fails.toString(), result.fails.isEmpty())
+        verify(backupfile)
+        assertRestored(src.file, restore(backupfile, "dst"))
+    }
+
+    /// Incremental backups over modified, added and deleted files restore to the last state.
+    @Test
+    fun testIncrementalBackupRestore() {
+        populate(src.file, 2)
+        val first = backups.fileInfo("b-1.ibackup")
+        assertTrue(backupUtil.backupData(first, listOf(ISecUtil.ALIAS_BACKUP), src).fails.isEmpty())
+        val files = src.file.walkTopDown().filter { it.isFile }.toList()
+        for ((index, file) in files.withIndex()) {
+            when (index % 4) {
+                0 -> file.writeBytes(bytes(random.nextInt(100_000)))
+                1 -> file.appendBytes(bytes(100))
+                2 -> assertTrue(file.delete())
+            }
+            file.setLastModified(System.currentTimeMillis() + 10_000)
+        }
+        File(src.file, "new").mkdirs()
+        File(src.file, "new/added.txt").writeText(text(50_000))
+        val second = backups.fileInfo("b-2.ibackup")
+        assertTrue(backupUtil.backupData(second, listOf(ISecUtil.ALIAS_BACKUP), src).fails.isEmpty())
+        verify(second)
+        assertRestored(src.file, restore(second, "dst"))
+    }
+
+    /// An incremental backup stores the chunks of a modified file that are in the previous archives as
+    /// references to them, and verifies, restores and reads through the chain.
+    @Test
+    fun testIncrementalChunksReferParent() {
+        val large = File(src.file, "large.bin")
+        large.writeBytes(bytes(8 * 1024 * 1024))
+        val first = backups.fileInfo("c-1.ibackup")
+        assertTrue(backupUtil.backupData(first, listOf(ISecUtil.ALIAS_BACKUP), src).fails.isEmpty())
+        val archives = ArrayList<IFileInfo>()
+        for (i in 2..3) {
+            large.appendBytes(bytes(100))
+            large.setLastModified(System.currentTimeMillis() + i * 10_000L)
+            val backupfile = backups.fileInfo("c-$i.ibackup")
+            assertTrue(backupUtil.backupData(backupfile, listOf(ISecUtil.ALIAS_BACKUP), src).fails.isEmpty())
+            assertTrue(File(backups.file, backupfile.name).length() < 1024 * 1024)
+            archives.add(backupfile)
+        }
+        for (backupfile in archives) verify(backupfile)
+        assertRestored(src.file, restore(archives.last(), "dst"))
+        val root = secUtil.invoke { ReadOnlyBackupFileRoot.of(it, backupUtil, archives.last()) }
+        assertTrue(root != null)
+        root!!.use {
+            assertArrayEquals(large.readBytes(), it.inputStream("large.bin").readBytes())
+        }
+    }
+
+    private fun verify(backupfile: IFileInfo) {
+        for (structural in listOf(false, true)) {
+            val progress = TaskProgress()
+            val result = backupUtil.verifyBackup(backupfile, structural, progress)
+            assertTrue(result.fails.toString(), result.fails.isEmpty())
+        }
+    }
+
+    private fun restore(backupfile: IFileInfo, name: String): File {
+        val dst = FileRootInfo(dir(name), name)
+        val result = backupUtil.restoreData(dst, backupfile, "")
+        assertTrue(result.fails.toString(), result.fails.isEmpty())
+        return dst.file
+    }
+
+    private fun assertRestored(expected: File, actual: File) {
+        val expectedfiles = expected.walkTopDown().filter { it.isFile }.map { it.relativeTo(expected).path }.sorted().toList()
+        val actualfiles = actual.walkTopDown().filter { it.isFile }.map { it.relativeTo(actual).path }.sorted().toList()
+        assertEquals(expectedfiles, actualfiles)
+        for (rpath in expectedfiles) {
+            assertArrayEquals(rpath, File(expected, rpath).readBytes(), File(actual, rpath).readBytes())
+        }
+    }
+
+    /// Empty, tiny, block sized and multi MB files, both compressible and random, and duplicates.
+    private fun populate(dir: File, depth: Int) {
+        dir.mkdirs()
+        File(dir, "empty.txt").writeBytes(ByteArray(0))
+        File(dir, "tiny.txt").writeText("x")
+        File(dir, "text.html").writeText(text(200_000 + random.nextInt(1000)))
+        File(dir, "random.bin").writeBytes(bytes(64 * 1024 + random.nextInt(3)))
+        File(dir, "large.jpg").writeBytes(bytes(3 * 1024 * 1024 + random.nextInt(1000)))
+        File(dir, "copy.jpg").writeBytes(File(dir, "large.jpg").readBytes())
+        for (i in 0 until 20) File(dir, "small$i.css").writeText(text(random.nextInt(5000)))
+        if (depth > 0) {
+            for (i in 0 until 2) populate(File(dir, "dir$i"), depth - 1)
+        }
+    }
+
+    private fun dir(name: String): File {
+        return File(tmpdir, name).also { it.mkdirs() }
+    }
+
+    private fun bytes(size: Int): ByteArray {
+        return ByteArray(size).also { random.nextBytes(it) }
+    }
+
+    private fun text(size: Int): String {
+        val words = listOf("backup ", "restore ", "verify ", "<p>", "</p>\n", "chunk ", "block ")
+        val b = StringBuilder(size + 16)
+        while (b.length < size) b.append(words[random.nextInt(words.size)])
+        return b.substring(0, size)
+    }
+}
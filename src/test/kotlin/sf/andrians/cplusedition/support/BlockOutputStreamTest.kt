@@ -0,0 +1,103 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.*
+import javax.crypto.spec.SecretKeySpec
+
+class BlockOutputStreamTest {
+
+    private val tmpdir = Files.createTempDirectory("blockoutput").toFile()
+    private val random = Random(1)
+    private val root = EncryptedRootInfo(SecretKeySpec(bytes(32), "AES"), tmpdir, "enc")
+    private val blocksize = root.format.BLOCKSIZE
+
+    @After
+    fun teardown() {
+        tmpdir.deleteRecursively()
+    }
+
+    /// The content round trips around and across the block boundaries, with both bulk and small writes.
+    @Test
+    fun testRoundTrip() {
+        val b = blocksize
+        for (size in listOf(0, 1, b - 1, b, b + 1, 2 * b, 2 * b + 1, 10 * b + 7, 3 * 1024 * 1024 + 5)) {
+            val content = bytes(size)
+            val bulk = root.fileInfo("bulk$size")
+            bulk.content().outputStream().use { it.write(content) }
+            assertArrayEquals("$size", content, bulk.content().inputStream().use { it.readBytes() })
+            val mixed = root.fileInfo("mixed$size")
+            mixed.content().outputStream().use {
+                var offset = 0
+                while (offset < size) {
+                    if (random.nextInt(8) == 0) {
+                        it.write(content[offset++].toInt())
+                        continue
+                    }
+                    val n = minOf(size - offset, random.nextInt(3 * b / 2) + 1)
+                    it.write(content, offset, n)
+                    offset += n
+                }
+            }
+            assertArrayEquals("$size", content, mixed.content().inputStream().use { it.readBytes() })
+            //// The block layout does not depend on how the content is written.
+            assertEquals("$size", File(tmpdir, "bulk$size").length(), File(tmpdir, "mixed$size").length())
+            assertEquals(size.toLong(), bulk.content().getContentLength())
+        }
+    }
+
+    /// Blocks encrypted on the pool can be read back from any position.
+    @Test
+    fun testSeekableRead() {
+        val content = bytes(20 * blocksize + 13)
+        val info = root.fileInfo("seek")
+        info.content().outputStream().use { it.write(content) }
+        info.content().seekableInputStream()!!.use { input ->
+            for (i in 0 until 50) {
+                val pos = random.nextInt(content.size)
+                val len = minOf(content.size - pos, random.nextInt(3 * blocksize))
+                val buf = ByteArray(len)
+                assertEquals(len, input.readAt(pos.toLong(), buf, 0, len))
+                assertArrayEquals(content.copyOfRange(pos, pos + len), buf)
+            }
+        }
+    }
+
+    @Test
+    fun testWriteBenchmark() {
+        val content = bytes(1024 * 1024)
+        val info = root.fileInfo("bench")
+        val count = 128
+        for (warmup in 0 until 2) {
+            val start = System.nanoTime()
+            info.content().outputStream().use { repeat(count) { _ -> it.write(content) } }
+            val ms = (System.nanoTime() - start) / 1_000_000
+            println("# Write ${count}MB in ${blocksize / 1024}KB blocks with ${Runtime.getRuntime().availableProcessors()} cores: ${ms}ms, ${count * 1000L / maxOf(1L, ms)}MB/s")
+        }
+        assertEquals(count.toLong() * content.size, info.content().getContentLength())
+    }
+
+    private fun bytes(size: Int): ByteArray {
+        return ByteArray(size).also { random.nextBytes(it) }
+    }
+}
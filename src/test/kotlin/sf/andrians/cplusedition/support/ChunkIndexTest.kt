@@ -0,0 +1,97 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.*
+
+class ChunkIndexTest {
+
+    private val random = Random(1)
+
+    /// Lookups across the growths of the table, the first offset of a digest is kept.
+    @Test
+    fun testPutGet() {
+        val index = ChunkIndex(Int.MAX_VALUE)
+        val digests = (0 until COUNT).map { digest() }
+        for ((i, digest) in digests.withIndex()) {
+            assertTrue(index.put(digest, i * 100L))
+            assertTrue(index.put(digest, 1L))
+        }
+        assertEquals(COUNT, index.size)
+        for ((i, digest) in digests.withIndex()) {
+            assertEquals(i * 100L, index.get(digest))
+        }
+        for (i in 0 until COUNT) assertNull(index.get(digest()))
+    }
+
+    /// Digests that only differ after the first 64 bits are distinct chunks.
+    @Test
+    fun testSamePrefix() {
+        val index = ChunkIndex(Int.MAX_VALUE)
+        val a = digest()
+        val b = a.copyOf().also { it[8] = (it[8] + 1).toByte() }
+        val c = a.copyOf().also { it[0] = (it[0] + 1).toByte() }
+        assertTrue(index.put(a, 1L))
+        assertNull(index.get(b))
+        assertNull(index.get(c))
+        assertTrue(index.put(b, 2L))
+        assertEquals(1L, index.get(a))
+        assertEquals(2L, index.get(b))
+    }
+
+    @Test
+    fun testMax() {
+        val index = ChunkIndex(10)
+        val digests = (0 until 20).map { digest() }
+        for ((i, digest) in digests.withIndex()) {
+            assertEquals(i < 10, index.put(digest, i.toLong()))
+        }
+        assertEquals(10, index.size)
+        for ((i, digest) in digests.withIndex()) {
+            if (i < 10) assertEquals(i.toLong(), index.get(digest)) else assertNull(index.get(digest))
+        }
+    }
+
+    /// An index copied with forEach() and put() has the same entries.
+    @Test
+    fun testCopy() {
+        val index = ChunkIndex(Int.MAX_VALUE)
+        val digests = (0 until 5000).map { digest() }
+        for ((i, digest) in digests.withIndex()) index.put(digest, i.toLong())
+        val copy = ChunkIndex(Int.MAX_VALUE)
+        var count = 0
+        index.forEach { k0, k1, offset ->
+            assertTrue(copy.put(k0, k1, offset))
+            ++count
+        }
+        assertEquals(digests.size, count)
+        assertEquals(digests.size, copy.size)
+        for ((i, digest) in digests.withIndex()) assertEquals(i.toLong(), copy.get(digest))
+    }
+
+    private fun digest(): ByteArray {
+        return ByteArray(32).also { random.nextBytes(it) }
+    }
+
+    companion object {
+        private const val COUNT = 100_000
+    }
+}
@@ -0,0 +1,92 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class DirAggregatesTest {
+
+    private val tmpdir = Files.createTempDirectory("diraggregates").toFile()
+    private val cache = DirCache(BUDGET, "test")
+    private val root = FileRootInfo(tmpdir).also { it.cache = cache }
+    private val aggregates = DirAggregates(root, cache)
+
+    @After
+    fun teardown() {
+        cache.close()
+        tmpdir.deleteRecursively()
+    }
+
+    @Test
+    fun testTotals() {
+        mkfile("a/1", 1)
+        mkfile("a/b/2", 2)
+        mkfile("a/b/c/3", 3)
+        val (direct, total) = aggregates.get(root.fileInfo("a"))!!
+        assertEquals(1L, direct.files)
+        assertEquals(1L, direct.dirs)
+        assertEquals(1L, direct.size)
+        assertEquals(3L, total.files)
+        assertEquals(2L, total.dirs)
+        assertEquals(6L, total.size)
+        assertEquals(File(tmpdir, "a/b/c/3").lastModified(), total.newest)
+        root.fileInfo("a/b/4").content().write(ByteArray(4))
+        assertEquals(4L, aggregates.get(root.fileInfo("a"))!!.second.files)
+    }
+
+    /// A change in a subtree that is no longer watched must show up in the totals of its ancestors.
+    @Test
+    fun testUnwatchedDescendant() {
+        mkfile("a/1", 1)
+        mkfile("a/b/2", 2)
+        mkfile("a/b/c/3", 3)
+        val a = File(tmpdir, "a")
+        val b = File(a, "b")
+        val c = File(b, "c")
+        assertEquals(3L, aggregates.get(root.fileInfo("a"))!!.second.files)
+        assertTrue(cache.isCached(c))
+        //// Touch a and b so that c is the least recently used, then evict it.
+        cache.readDir(a) { _, _ -> }
+        cache.readDir(b) { _, _ -> }
+        for (i in 0 until BUDGET - 4) mkfile("x/$i", 1)
+        cache.readDir(File(tmpdir, "x")) { _, _ -> }
+        assertFalse(cache.isCached(c))
+        assertTrue(cache.isCached(a))
+        assertTrue(cache.isCached(b))
+        mkfile("a/b/c/4", 4)
+        Thread.sleep(200)
+        val total = aggregates.get(root.fileInfo("a"))!!.second
+        assertEquals(4L, total.files)
+        assertEquals(10L, total.size)
+    }
+
+    private fun mkfile(rpath: String, size: Int) {
+        val file = File(tmpdir, rpath)
+        file.parentFile.mkdirs()
+        file.writeBytes(ByteArray(size))
+    }
+
+    companion object {
+        private const val BUDGET = 10
+    }
+}
@@ -0,0 +1,189 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class DirCacheTest {
+
+    private val tmpdir = Files.createTempDirectory("dircache").toFile()
+    private val cache = DirCache(BUDGET, "test")
+
+    @After
+    fun teardown() {
+        cache.close()
+        tmpdir.deleteRecursively()
+    }
+
+    @Test
+    fun testExternalCreate() {
+        val dir = mkdirs("a")
+        File(dir, "1").writeText("1")
+        assertEquals(listOf("1"), list(dir))
+        assertTrue(cache.isCached(dir))
+        File(dir, "2").writeText("2")
+        awaitInvalidated(dir)
+        assertEquals(listOf("1", "2"), list(dir))
+    }
+
+    @Test
+    fun testExternalDelete() {
+        val dir = mkdirs("a")
+        File(dir, "1").writeText("1")
+        File(dir, "2").writeText("2")
+        assertEquals(listOf("1", "2"), list(dir))
+        assertTrue(File(dir, "1").delete())
+        awaitInvalidated(dir)
+        assertEquals(listOf("2"), list(dir))
+    }
+
+    @Test
+    fun testExternalModify() {
+        val dir = mkdirs("a")
+        val file = File(dir, "1")
+        file.writeText("1")
+        assertEquals(1L, stats(dir).getValue("1").length)
+        file.appendText("23")
+        awaitInvalidated(dir)
+        assertEquals(3L, stats(dir).getValue("1").length)
+    }
+
+    @Test
+    fun testExternalRename() {
+        val dir1 = mkdirs("a")
+        val dir2 = mkdirs("b")
+        File(dir1, "1").writeText("1")
+        assertEquals(listOf("1"), list(dir1))
+        assertEquals(listOf<String>(), list(dir2))
+        assertTrue(File(dir1, "1").renameTo(File(dir1, "2")))
+        awaitInvalidated(dir1)
+        assertEquals(listOf("2"), list(dir1))
+        assertTrue(File(dir1, "2").renameTo(File(dir2, "3")))
+        awaitInvalidated(dir1)
+        awaitInvalidated(dir2)
+        assertEquals(listOf<String>(), list(dir1))
+        assertEquals(listOf("3"), list(dir2))
+    }
+
+    /// Changes inside an uncached subdirectory are not reported to the cached parent.
+    @Test
+    fun testUnwatchedSubtree() {
+        val dir = mkdirs("a")
+        val sub = mkdirs("a/sub")
+        val deep = mkdirs("a/sub/deep")
+        assertTrue(sub.setLastModified(OLD))
+        assertEquals(OLD, stats(dir).getValue("sub").lastModified)
+        assertTrue(cache.isCached(dir))
+        assertFalse(cache.isCached(sub))
+        File(sub, "1").writeText("1")
+        File(deep, "2").writeText("2")
+        Thread.sleep(200)
+        val hits = cache.hits.sum()
+        assertEquals(sub.lastModified(), stats(dir).getValue("sub").lastModified)
+        assertEquals(hits + 1, cache.hits.sum())
+        assertEquals(listOf("1", "deep"), list(sub))
+        assertEquals(listOf("2"), list(deep))
+    }
+
+    /// A change inside a cached subdirectory invalidates the parent that holds its attributes.
+    @Test
+    fun testWatchedSubtree() {
+        val dir = mkdirs("a")
+        val sub = mkdirs("a/sub")
+        assertEquals(listOf("sub"), list(dir))
+        assertEquals(listOf<String>(), list(sub))
+        File(sub, "1").writeText("1")
+        awaitInvalidated(sub)
+        awaitInvalidated(dir)
+        assertEquals(listOf("1"), list(sub))
+    }
+
+    /// Mutations through FileInfoBase invalidate the listings synchronously.
+    @Test
+    fun testInternalMutations() {
+        val root = FileRootInfo(tmpdir).also { it.cache = cache }
+        val dir = mkdirs("a")
+        val info = root.fileInfo("a/1")
+        assertEquals(listOf<String>(), names(root.fileInfo("a")))
+        info.content().write("1".toByteArray())
+        assertFalse(cache.isCached(dir))
+        assertEquals(listOf("1"), names(root.fileInfo("a")))
+        assertTrue(info.content().renameTo(root.fileInfo("a/2")))
+        assertFalse(cache.isCached(dir))
+        assertEquals(listOf("2"), names(root.fileInfo("a")))
+        assertTrue(root.fileInfo("a/2").delete())
+        assertFalse(cache.isCached(dir))
+        assertEquals(listOf<String>(), names(root.fileInfo("a")))
+    }
+
+    @Test
+    fun testEviction() {
+        val dirs = (0 until 4).map { i ->
+            mkdirs("d$i").also { dir ->
+                for (n in 0 until BUDGET / 3) File(dir, "$n").writeText("$n")
+            }
+        }
+        for (dir in dirs) list(dir)
+        assertTrue(cache.entries <= BUDGET)
+        assertFalse(cache.isCached(dirs[0]))
+        assertTrue(cache.isCached(dirs[3]))
+        assertEquals(1L, cache.evictions.sum())
+        assertEquals(4L, cache.misses.sum())
+        list(dirs[3])
+        assertEquals(1L, cache.hits.sum())
+    }
+
+    private fun mkdirs(rpath: String): File {
+        return File(tmpdir, rpath).also { assertTrue(it.mkdirs()) }
+    }
+
+    private fun list(dir: File): List<String> {
+        val ret = ArrayList<String>()
+        cache.readDir(dir) { name, _ -> ret.add(name) }
+        return ret.sorted()
+    }
+
+    private fun stats(dir: File): Map<String, FileStat> {
+        val ret = HashMap<String, FileStat>()
+        cache.readDir(dir) { name, stat -> if (stat != null) ret[name] = stat }
+        return ret
+    }
+
+    private fun names(dir: IFileInfo): List<String> {
+        return dir.readDir(ArrayList()).map { it.name }.sorted()
+    }
+
+    private fun awaitInvalidated(dir: File) {
+        val end = System.currentTimeMillis() + TIMEOUT
+        while (cache.isCached(dir)) {
+            if (System.currentTimeMillis() > end) throw AssertionError("Not invalidated: $dir")
+            Thread.sleep(10)
+        }
+    }
+
+    companion object {
+        private const val BUDGET = 30
+        private const val TIMEOUT = 10_000L
+        private const val OLD = 1_000_000_000_000L
+    }
+}
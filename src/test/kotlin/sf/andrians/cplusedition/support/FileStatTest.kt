@@ -0,0 +1,132 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.attribute.PosixFilePermissions
+
+class FileStatTest {
+
+    private val tmpdir = Files.createTempDirectory("filestat").toFile()
+
+    @After
+    fun teardown() {
+        tmpdir.walkBottomUp().forEach { it.setWritable(true); it.delete() }
+    }
+
+    @Test
+    fun testPermissions() {
+        for (perms in listOf("rw-------", "r--------", "-w-------", "---------", "rw-rw-rw-", "---r--r--", "------rw-")) {
+            val file = File(tmpdir, "f$perms")
+            file.writeText("test")
+            Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString(perms))
+            val stat = FileStat.of(file)
+            assertNotNull(stat)
+            //// Effective access depends on the uid running the test, eg. root can read everything.
+            assertEquals(perms, Files.isReadable(file.toPath()), stat!!.readable)
+            assertEquals(perms, Files.isWritable(file.toPath()), stat.writable)
+            assertEquals(4L, stat.length)
+            assertTrue(stat.isFile)
+        }
+    }
+
+    @Test
+    fun testReadDirError() {
+        val missing = File(tmpdir, "missing")
+        assertThrows { FileStat.readDir(missing) { _, _ -> } }
+        val file = File(tmpdir, "file")
+        file.writeText("test")
+        assertThrows { FileStat.readDir(file) { _, _ -> } }
+        DirCache(1000, "test").use { cache ->
+            assertThrows { cache.readDir(missing) { _, _ -> } }
+            assertFalse(cache.isCached(missing))
+            missing.mkdirs()
+            File(missing, "a").writeText("a")
+            val names = ArrayList<String>()
+            cache.readDir(missing) { name, _ -> names.add(name) }
+            assertEquals(listOf("a"), names)
+        }
+    }
+
+    /// Compare listing a large directory with one attribute read per entry against
+    /// the per attribute java.io.File calls.
+    @Test
+    fun testReadDirBenchmark() {
+        val dir = File(tmpdir, "bench")
+        dir.mkdirs()
+        for (i in 0 until COUNT) File(dir, "file$i.txt").writeText("$i")
+        val root = FileRootInfo(dir)
+        var files = 0L
+        var dirs = 0L
+        fun legacy() {
+            for (name in dir.list()!!) {
+                val file = File(dir, name)
+                if (file.isDirectory) ++dirs
+                if (file.isFile) files += file.length() + file.lastModified() % 2
+                if (file.canRead() && file.canWrite()) ++files
+            }
+        }
+
+        fun stat() {
+            for (info in root.readDir(ArrayList())) {
+                val stat = info.stat() ?: continue
+                if (stat.isDir) ++dirs
+                if (stat.isFile) files += stat.length + stat.lastModified % 2
+                if (stat.readable && stat.writable) ++files
+            }
+        }
+        for (i in 0 until 3) {
+            legacy(); stat()
+        }
+        var legacyms = 0L
+        var statms = 0L
+        for (i in 0 until ROUNDS) {
+            legacyms += measure { legacy() }
+            statms += measure { stat() }
+        }
+        println("# readDir of $COUNT entries x $ROUNDS: java.io.File: $legacyms ms, FileStat: $statms ms")
+        assertEquals(0L, dirs)
+    }
+
+    private fun measure(code: () -> Unit): Long {
+        val start = System.nanoTime()
+        code()
+        return (System.nanoTime() - start) / 1000_000
+    }
+
+    private fun assertThrows(code: () -> Unit) {
+        try {
+            code()
+        } catch (e: IOException) {
+            return
+        }
+        throw AssertionError("Expected IOException")
+    }
+
+    companion object {
+        private const val COUNT = 5000
+        private const val ROUNDS = 10
+    }
+}
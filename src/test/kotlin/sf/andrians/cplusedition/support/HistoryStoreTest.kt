@@ -0,0 +1,169 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import com.cplusedition.bot.core.Basepath
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.*
+
+class HistoryStoreTest {
+
+    private val tmpdir = Files.createTempDirectory("historystore").toFile()
+    private val files = File(tmpdir, "files").also { it.mkdirs() }
+    private val historydir = File(tmpdir, "history")
+    private val random = Random(1)
+    private var store = open()
+
+    @After
+    fun teardown() {
+        store.close()
+        tmpdir.deleteRecursively()
+    }
+
+    /// The content is captured by record(), not when the version is added in the background.
+    @Test
+    fun testRecordCapturesContent() {
+        val file = File(files, "a.html")
+        val contents = (0 until 5).map { bytes(10_000 + it) }
+        for (content in contents) {
+            if (file.exists()) store.record("a.html", file, false)
+            AtomicFile.write(file, null) { it.write(content) }
+        }
+        store.record("a.html", file, true)
+        assertTrue(file.delete())
+        store.flush()
+        val versions = versions("a.html")
+        assertEquals(5, versions.size)
+        assertTrue(versions[0].isDeleted)
+        for ((index, version) in versions.withIndex()) {
+            assertArrayEquals(contents[contents.size - 1 - index], read(version.id))
+        }
+    }
+
+    /// Near identical versions share the unchanged chunks.
+    @Test
+    fun testNearIdenticalVersions() {
+        val file = File(files, "doc.html")
+        var content = bytes(DOCSIZE)
+        for (i in 0 until SAVES) {
+            AtomicFile.write(file, null) { it.write(content) }
+            store.record("doc.html", file, false)
+            store.flush()
+            val at = random.nextInt(content.size)
+            content = content.copyOfRange(0, at) + bytes(100) + content.copyOfRange(at, content.size)
+        }
+        val versions = versions("doc.html")
+        assertEquals(SAVES, versions.size)
+        val bytes = versions.sumOf { it.stat.length }
+        println("# $SAVES versions of a ${DOCSIZE / 1024}KB document with 100 bytes inserted each: $bytes bytes in ${store.size} bytes of blobs")
+        assertTrue(store.size < 3L * DOCSIZE)
+        assertArrayEquals(file.readBytes(), read(versions[0].id))
+    }
+
+    /// A bulk delete cannot push the rest of the history out of retention.
+    @Test
+    fun testBulk() {
+        val file = File(files, "a.html")
+        for (i in 0 until 5) {
+            AtomicFile.write(file, null) { it.write(bytes(10_000)) }
+            store.record("a.html", file, false)
+        }
+        store.flush()
+        assertEquals(5, versions("a.html").size)
+        val dir = File(files, "dir").also { it.mkdirs() }
+        for (i in 0 until 100) File(dir, "$i").writeBytes(bytes(10_000))
+        store.bulk {
+            for (name in dir.list()!!) store.record("dir/$name", File(dir, name), true)
+        }
+        store.flush()
+        assertEquals(5, versions("a.html").size)
+        assertEquals((MAX_BULK / 10_000).toInt(), store.count - 5)
+        assertTrue(store.size <= MAX_BYTES)
+    }
+
+    @Test
+    fun testReload() {
+        val file = File(files, "a.html")
+        val contents = (0 until 3).map { bytes(50_000) }
+        for (content in contents) {
+            AtomicFile.write(file, null) { it.write(content) }
+            store.record("a.html", file, false)
+        }
+        store.close()
+        store = open()
+        assertEquals(3, versions("a.html").size)
+        //// Replay the journal without a snapshot.
+        AtomicFile.write(file, null) { it.write(bytes(50_000)) }
+        store.record("a.html", file, false)
+        store.flush()
+        store = open()
+        val versions = versions("a.html")
+        assertEquals(4, versions.size)
+        assertArrayEquals(contents[0], read(versions[3].id))
+        assertArrayEquals(file.readBytes(), read(versions[0].id))
+    }
+
+    /// Compare the time record() takes on the calling thread with the time to add the versions.
+    @Test
+    fun testRecordLatency() {
+        val count = 20
+        val sources = (0 until count).map { i -> File(files, "$i.html").also { it.writeBytes(bytes(1024 * 1024)) } }
+        val start = System.nanoTime()
+        var max = 0L
+        for ((i, file) in sources.withIndex()) {
+            val t = System.nanoTime()
+            store.record("$i.html", file, true)
+            max = maxOf(max, System.nanoTime() - t)
+        }
+        val recorded = System.nanoTime() - start
+        store.flush()
+        val added = System.nanoTime() - start
+        println("# record() of $count 1MB files: avg ${recorded / count / 1000} us, max ${max / 1000} us, all added in ${added / 1000_000} ms")
+        assertEquals(count, store.count)
+    }
+
+    private fun open(): HistoryStore {
+        return HistoryStore(historydir, "home", 24L * 60 * 60 * 1000, MAX_BYTES, 16L * 1024 * 1024, MAX_BULK)
+    }
+
+    private fun versions(rpath: String): List<IDeletedFileStat> {
+        val ret = ArrayList<IDeletedFileStat>()
+        store.history(Basepath.dir(rpath) ?: "", Basepath.name(rpath)) { ret.add(it) }
+        return ret
+    }
+
+    private fun read(id: Long): ByteArray {
+        return store.inputStream(id)!!.use { it.readBytes() }
+    }
+
+    private fun bytes(size: Int): ByteArray {
+        return ByteArray(size).also { random.nextBytes(it) }
+    }
+
+    companion object {
+        private const val DOCSIZE = 256 * 1024
+        private const val SAVES = 20
+        private const val MAX_BYTES = 32L * 1024 * 1024
+        private const val MAX_BULK = 200_000L
+    }
+}
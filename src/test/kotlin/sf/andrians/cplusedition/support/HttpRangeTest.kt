@@ -0,0 +1,63 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import sf.andrians.cplusedition.support.Http.HttpRange
+
+class HttpRangeTest {
+
+    @Test
+    fun testSuffix() {
+        check(HttpRange.parse("bytes=-500", 100, Long.MAX_VALUE)!!, 0, 99)
+        check(HttpRange.parse("bytes=-10", 100, Long.MAX_VALUE)!!, 90, 99)
+        assertNull(HttpRange.parse("bytes=-0", 100, Long.MAX_VALUE))
+    }
+
+    @Test
+    fun testRanges() {
+        check(HttpRange.parse("bytes=10-", 100, Long.MAX_VALUE)!!, 10, 99)
+        check(HttpRange.parse("bytes=10-19", 100, Long.MAX_VALUE)!!, 10, 19)
+        check(HttpRange.parse("bytes=10-1000", 100, Long.MAX_VALUE)!!, 10, 99)
+        check(HttpRange.parse("bytes=10-", 100, 20)!!, 10, 29)
+        assertNull(HttpRange.parse("bytes=100-", 100, Long.MAX_VALUE))
+        assertNull(HttpRange.parse("bytes=20-10", 100, Long.MAX_VALUE))
+    }
+
+    @Test
+    fun testParseAll() {
+        assertNull(HttpRange.parseAll(null, 100, Long.MAX_VALUE))
+        assertNull(HttpRange.parseAll("items=0-1", 100, Long.MAX_VALUE))
+        assertNull(HttpRange.parseAll("bytes=0-1,x", 100, Long.MAX_VALUE))
+        val ranges = HttpRange.parseAll("bytes=0-9, 200-300, -5", 100, Long.MAX_VALUE)!!
+        assertEquals(2, ranges.size)
+        check(ranges[0], 0, 9)
+        check(ranges[1], 95, 99)
+        val unsatisfiable = HttpRange.parseAll("bytes=100-,200-300", 100, Long.MAX_VALUE)!!
+        assertTrue(unsatisfiable.isEmpty())
+        assertEquals("bytes */100", HttpRange.unsatisfiedRange(100))
+    }
+
+    private fun check(range: HttpRange, first: Long, last: Long) {
+        assertEquals(first, range.first)
+        assertEquals(last, range.last)
+        assertEquals("bytes $first-$last/${range.contentLength}", range.contentRange())
+    }
+}
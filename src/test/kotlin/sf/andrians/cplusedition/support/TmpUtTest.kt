@@ -0,0 +1,92 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+
+class TmpUtTest {
+
+    private val tmpdir = Files.createTempDirectory("tmput").toFile()
+    private val root = FileRootInfo(tmpdir)
+
+    @After
+    fun teardown() {
+        tmpdir.deleteRecursively()
+    }
+
+    @Test
+    fun testReplace() {
+        val file = File(tmpdir, "a/1.txt")
+        file.parentFile.mkdirs()
+        file.writeText("old")
+        TmpUt.replace(root.fileInfo("a/1.txt"), TIMESTAMP) {
+            assertTrue(file.exists())
+            it.content().write("new".toByteArray())
+        }
+        assertEquals("new", file.readText())
+        assertEquals(TIMESTAMP, file.lastModified())
+        assertEquals(listOf("1.txt"), file.parentFile.list()!!.toList())
+    }
+
+    @Test
+    fun testReplaceCreate() {
+        TmpUt.replace(root.fileInfo("a/b/1.txt"), null) {
+            it.content().write("new".toByteArray())
+        }
+        assertEquals("new", File(tmpdir, "a/b/1.txt").readText())
+        assertEquals(listOf("1.txt"), File(tmpdir, "a/b").list()!!.toList())
+    }
+
+    /// A failed or cancelled write must keep the original and leave no temp file behind.
+    @Test
+    fun testReplaceFailure() {
+        val file = File(tmpdir, "1.txt")
+        file.writeText("old")
+        try {
+            TmpUt.replace(root.fileInfo("1.txt"), null) {
+                it.content().outputStream().use { output -> output.write("partial".toByteArray()) }
+                throw IOException("cancelled")
+            }
+            fail()
+        } catch (e: IOException) {
+            assertEquals("cancelled", e.message)
+        }
+        assertEquals("old", file.readText())
+        assertEquals(listOf("1.txt"), tmpdir.list()!!.toList())
+        try {
+            TmpUt.replace(root.fileInfo("2.txt"), null) {
+                throw IOException()
+            }
+            fail()
+        } catch (e: IOException) {
+        }
+        assertFalse(File(tmpdir, "2.txt").exists())
+        assertEquals(listOf("1.txt"), tmpdir.list()!!.toList())
+    }
+
+    companion object {
+        private const val TIMESTAMP = 1_500_000_000_000L
+    }
+}
@@ -0,0 +1,61 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class TrashTest {
+
+    private val tmpdir = Files.createTempDirectory("trash").toFile()
+    private val root = FileRootInfo(File(tmpdir, "home").also { it.mkdirs() }).also {
+        it.historyStore = HistoryStore(File(tmpdir, "history"), "home", 24L * 60 * 60 * 1000, 1L shl 30, 16L * 1024 * 1024, 1L shl 27)
+        it.trash = Trash(File(tmpdir, "trash"), it)
+    }
+
+    @After
+    fun teardown() {
+        root.trash?.close()
+        root.historyStore?.close()
+        tmpdir.deleteRecursively()
+    }
+
+    /// Purged trees are deleted without recording their files to the history.
+    @Test
+    fun testPurgeSkipsHistory() {
+        val dir = File(root.file, "dir/sub").also { it.mkdirs() }
+        for (i in 0 until 10) File(dir, "$i.html").writeText("file $i")
+        val trash = root.trash!!
+        assertTrue(trash.put(root.fileInfo("dir") as FileInfoBase))
+        assertFalse(File(root.file, "dir").exists())
+        val end = System.currentTimeMillis() + 10_000
+        while (trash.size > 0 && System.currentTimeMillis() < end) Thread.sleep(10)
+        assertEquals(0, trash.size)
+        assertEquals(12L, trash.purged)
+        val store = root.historyStore!!
+        store.flush()
+        var count = 0
+        store.scan { ++count }
+        assertEquals(0, count)
+        assertEquals(0L, store.size)
+    }
+}
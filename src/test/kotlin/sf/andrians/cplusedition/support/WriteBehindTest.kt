@@ -0,0 +1,199 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.support
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class WriteBehindTest {
+
+    private val tmpdir = Files.createTempDirectory("writebehind").toFile()
+    private val writebehind = WriteBehind(DELAY, 1024)
+
+    @After
+    fun teardown() {
+        writebehind.close()
+        tmpdir.deleteRecursively()
+    }
+
+    @Test
+    fun testCoalesce() {
+        val file = File(tmpdir, "a.html")
+        for (i in 0 until 50) {
+            val data = "$i".toByteArray()
+            writebehind.put(file.path) { AtomicFile.write(file, null) { it.write(data) } }
+        }
+        assertEquals(1, writebehind.size)
+        writebehind.flush()
+        assertEquals("49", file.readText())
+        assertEquals(1L, writebehind.writes)
+        assertEquals(49L, writebehind.coalesced)
+    }
+
+    @Test
+    fun testDelayed() {
+        val count = AtomicInteger()
+        writebehind.put("a") { count.incrementAndGet() }
+        assertEquals(0, count.get())
+        val end = System.currentTimeMillis() + 10 * DELAY
+        while (count.get() == 0 && System.currentTimeMillis() < end) Thread.sleep(10)
+        assertEquals(1, count.get())
+        assertEquals(0, writebehind.size)
+    }
+
+    /// A failed background write is kept for the key until it is taken or the key is written again.
+    @Test
+    fun testFailure() {
+        writebehind.put("a") { throw IOException("disk full") }
+        writebehind.put("b") { }
+        writebehind.flush()
+        assertEquals(1L, writebehind.failures)
+        assertNull(writebehind.failure("b"))
+        assertEquals("disk full", writebehind.failure("a")?.message)
+        assertNull(writebehind.failure("a"))
+        writebehind.put("a") { throw IOException("disk full") }
+        writebehind.flush("a")
+        writebehind.put("a") { }
+        writebehind.flush("a")
+        assertNull(writebehind.failure("a"))
+    }
+
+    @Test
+    fun testWrite() {
+        val written = ArrayList<Int>()
+        writebehind.put("a") { written.add(1) }
+        writebehind.write("a") { written.add(2) }
+        writebehind.flush()
+        assertEquals(listOf(2), written)
+        try {
+            writebehind.write("a") { throw IOException("disk full") }
+            fail()
+        } catch (e: IOException) {
+        }
+        //// A failure of write() is reported to the caller, not kept.
+        assertNull(writebehind.failure("a"))
+    }
+
+    /// flush() waits for a scheduled save that is already running, even though it is no longer pending.
+    @Test
+    fun testFlushWaitsForRunningSave() {
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val done = AtomicBoolean()
+        writebehind.put("/home/a.html") {
+            started.countDown()
+            release.await()
+            done.set(true)
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS))
+        assertEquals(0, writebehind.size)
+        for (flush in listOf<() -> Unit>({ writebehind.flush() }, { writebehind.flushUnder("/home") })) {
+            val flushed = CountDownLatch(1)
+            val thread = Thread {
+                flush()
+                flushed.countDown()
+            }.also { it.start() }
+            if (!done.get()) {
+                assertFalse(flushed.await(200, TimeUnit.MILLISECONDS))
+                release.countDown()
+            }
+            assertTrue(flushed.await(10, TimeUnit.SECONDS))
+            assertTrue(done.get())
+            thread.join()
+        }
+    }
+
+    /// flushUnder() writes only the saves of the path and under it, and does not wait for other saves.
+    @Test
+    fun testFlushUnder() {
+        val written = Collections.synchronizedList(ArrayList<String>())
+        for (key in listOf("/home/a/x.html", "/home/a/b/y.html", "/home/ab.html", "/home/c.css", "/other/a/z.html")) {
+            writebehind.put(key) { written.add(key) }
+        }
+        writebehind.flushUnder("/home/a/")
+        assertEquals(listOf("/home/a/x.html", "/home/a/b/y.html"), written.toList())
+        writebehind.flushUnder("/home/c.css")
+        assertEquals("/home/c.css", written.last())
+        assertEquals(2, writebehind.size)
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        writebehind.put("/busy.html") {
+            started.countDown()
+            release.await()
+        }
+        writebehind.flush("/home/ab.html")
+        writebehind.flush("/other/a/z.html")
+        assertTrue(started.await(10, TimeUnit.SECONDS))
+        val start = System.nanoTime()
+        writebehind.flushUnder("/home")
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200))
+        release.countDown()
+    }
+
+    /// Autosave of a document every SAVE_INTERVAL ms, compare the save latency seen by the client and the
+    /// number of writes with direct atomic writes.
+    @Test
+    fun testAutosaveBenchmark() {
+        val file = File(tmpdir, "doc.html")
+        val data = ByteArray(DOCSIZE) { (it % 64 + 32).toByte() }
+        fun run(save: (ByteArray) -> Unit): Pair<Long, Long> {
+            var total = 0L
+            var max = 0L
+            for (i in 0 until SAVES) {
+                val start = System.nanoTime()
+                save(data)
+                val elapsed = System.nanoTime() - start
+                total += elapsed
+                max = maxOf(max, elapsed)
+                Thread.sleep(SAVE_INTERVAL)
+            }
+            return Pair(total / SAVES / 1000, max / 1000)
+        }
+
+        val direct = run { AtomicFile.write(file, null) { output -> output.write(it) } }
+        WriteBehind(AUTOSAVE_DELAY, DOCSIZE).use { wb ->
+            val behind = run { bytes -> wb.put(file.path) { AtomicFile.write(file, null) { it.write(bytes) } } }
+            wb.flush()
+            println("# $SAVES autosaves of $DOCSIZE bytes every $SAVE_INTERVAL ms:")
+            println("#   direct: $SAVES writes, avg ${direct.first} us, max ${direct.second} us")
+            println("#   write behind: ${wb.writes} writes, ${wb.coalesced} coalesced, avg ${behind.first} us, max ${behind.second} us")
+            assertEquals(SAVES.toLong(), wb.writes + wb.coalesced)
+            assertTrue(wb.writes < SAVES)
+        }
+    }
+
+    companion object {
+        private const val DELAY = 50L
+        private const val AUTOSAVE_DELAY = 200L
+        private const val SAVES = 100
+        private const val SAVE_INTERVAL = 10L
+        private const val DOCSIZE = 256 * 1024
+    }
+}
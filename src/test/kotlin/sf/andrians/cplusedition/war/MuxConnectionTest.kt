@@ -0,0 +1,302 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.war
+
+import com.cplusedition.bot.core.ByteReader
+import com.cplusedition.bot.core.ByteWriter
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import sf.andrians.cplusedition.support.Http.HttpStatus
+import sf.andrians.cplusedition.support.ServerKey
+import sf.andrians.cplusedition.support.handler.ICpluseditionRequest
+import sf.andrians.cplusedition.support.handler.ICpluseditionResponse
+import sf.andrians.cplusedition.war.StandaloneServer.Mux
+import sf.unixsocket.UnixSocket
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.channels.Channels
+import java.nio.channels.Pipe
+import java.util.Random
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class MuxConnectionTest {
+
+    private val writers = ResponseWriters(8, 64)
+    private val handlers = Executors.newFixedThreadPool(8)
+    private val connections = Executors.newCachedThreadPool()
+
+    @After
+    fun teardown() {
+        connections.shutdownNow()
+        handlers.shutdownNow()
+        writers.shutdown()
+    }
+
+    /// Many interleaved requests on one connection, each response must arrive complete and in order.
+    @Test
+    fun testConcurrentLoad() {
+        val count = 500
+        val expected = ConcurrentHashMap<Int, Pair<Int, ByteArray>>()
+        val client = connect { input, _, responder ->
+            val id = input.toInt()
+            val response = responder(null)
+            handlers.submit {
+                try {
+                    val random = Random(id.toLong())
+                    Thread.sleep(random.nextInt(3).toLong())
+                    when (id % 4) {
+                        0 -> {
+                            val data = ByteArray(random.nextInt(3 * Conf.COPY_BUFSIZE)).also { random.nextBytes(it) }
+                            expected[id] = Pair(HttpStatus.Ok, data)
+                            response.setData(data.inputStream())
+                        }
+                        1 -> {
+                            expected[id] = Pair(HttpStatus.NotFound, ByteArray(0))
+                            response.setStatus(HttpStatus.NotFound)
+                        }
+                        2 -> {
+                            //// A handler that never responds.
+                            expected[id] = Pair(HttpStatus.Ok, ByteArray(0))
+                        }
+                        else -> {
+                            expected[id] = Pair(HttpStatus.InternalServerError, ByteArray(0))
+                            throw IllegalStateException()
+                        }
+                    }
+                } catch (e: IllegalStateException) {
+                    response.setStatus(HttpStatus.InternalServerError)
+                } finally {
+                    response.finish()
+                }
+            }
+            true
+        }
+        val reader = Thread { client.readAll() }.also { it.start() }
+        for (id in 1..count) client.send(id, Mux.REQUEST, "$id".toByteArray())
+        client.output.close()
+        reader.join(60 * 1000)
+        assertTrue("Connection should be closed once all responses completed", client.eof)
+        assertEquals(count, client.responses.size)
+        for (id in 1..count) {
+            val response = client.responses[id]!!
+            val (status, data) = expected[id]!!
+            assertEquals(Mux.END, response.end)
+            assertEquals(status, JSONObject(String(response.header!!)).getInt(ServerKey.statusCode))
+            assertArrayEquals(data, response.data.toByteArray())
+        }
+    }
+
+    /// A handler that reads its body before it returns, as the BufferedRequest and StreamedRequest do,
+    /// must not block the connection that delivers the body frames.
+    @Test
+    fun testStreamedBody() {
+        val random = Random(1)
+        val bodies = (1..4).map { ByteArray(3 * Mux.MAX_BODY_FRAME_SIZE + random.nextInt(1000)).also { random.nextBytes(it) } }
+        val client = connect { input, streamer, responder ->
+            val data = streamer(-1).use { it.readBytes() }
+            responder(null).setData(data.inputStream())
+            true
+        }
+        val reader = Thread { client.readAll() }.also { it.start() }
+        for (id in 1..bodies.size) client.send(id, Mux.REQUEST, "$id".toByteArray())
+        for (offset in 0 until bodies[0].size step Mux.MAX_BODY_FRAME_SIZE) {
+            for ((index, body) in bodies.withIndex()) {
+                client.send(index + 1, Mux.BODY, body.copyOfRange(offset, minOf(body.size, offset + Mux.MAX_BODY_FRAME_SIZE)))
+            }
+        }
+        for (index in bodies.indices) client.send(index + 1, Mux.BODY, ByteArray(0))
+        client.output.close()
+        reader.join(60 * 1000)
+        assertTrue(client.eof)
+        for ((index, body) in bodies.withIndex()) {
+            val response = client.responses[index + 1]!!
+            assertEquals(Mux.END, response.end)
+            assertArrayEquals(body, response.data.toByteArray())
+        }
+    }
+
+    /// A handler that responds without reading its body must not block the connection.
+    @Test
+    fun testUndrainedBody() {
+        val frames = 4 * Mux.BODY_QUEUE_SIZE
+        val client = connect { input, _, responder ->
+            responder(null).setData(input.toByteArray().inputStream())
+            true
+        }
+        val reader = Thread { client.readAll() }.also { it.start() }
+        client.send(1, Mux.REQUEST, "1".toByteArray())
+        for (i in 0 until frames) client.send(1, Mux.BODY, ByteArray(Mux.MAX_BODY_FRAME_SIZE))
+        client.send(1, Mux.BODY, ByteArray(0))
+        client.send(2, Mux.REQUEST, "2".toByteArray())
+        client.output.close()
+        reader.join(30 * 1000)
+        assertTrue(client.eof)
+        assertArrayEquals("1".toByteArray(), client.responses[1]!!.data.toByteArray())
+        assertArrayEquals("2".toByteArray(), client.responses[2]!!.data.toByteArray())
+    }
+
+    /// A pipelining client must not get more than Mux.MAX_PENDING_REQUESTS requests handled at a time.
+    @Test
+    fun testPendingRequests() {
+        val count = 3 * Mux.MAX_PENDING_REQUESTS
+        val running = AtomicInteger()
+        val max = AtomicInteger()
+        val release = CountDownLatch(1)
+        val client = connect { _, _, responder ->
+            max.accumulateAndGet(running.incrementAndGet()) { a, b -> maxOf(a, b) }
+            release.await(30, TimeUnit.SECONDS)
+            running.decrementAndGet()
+            responder(null).setData(ByteArray(0).inputStream())
+            true
+        }
+        val reader = Thread { client.readAll() }.also { it.start() }
+        val sender = Thread {
+            for (id in 1..count) client.send(id, Mux.REQUEST, "$id".toByteArray())
+            client.output.close()
+        }.also { it.start() }
+        Thread.sleep(500)
+        assertEquals(Mux.MAX_PENDING_REQUESTS, running.get())
+        release.countDown()
+        sender.join(30 * 1000)
+        reader.join(30 * 1000)
+        assertTrue(client.eof)
+        assertEquals(Mux.MAX_PENDING_REQUESTS, max.get())
+        assertEquals(count, client.responses.size)
+        for (id in 1..count) {
+            assertEquals(HttpStatus.Ok, JSONObject(String(client.responses[id]!!.header!!)).getInt(ServerKey.statusCode))
+        }
+    }
+
+    /// A request rejected by the handlers executor is responded with ServiceUnavailable.
+    @Test
+    fun testRejectedRequest() {
+        val executor = ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, SynchronousQueue())
+        val release = CountDownLatch(1)
+        try {
+            val client = connect(executor) { _, _, responder ->
+                release.await(30, TimeUnit.SECONDS)
+                responder(null).setData(ByteArray(0).inputStream())
+                true
+            }
+            val reader = Thread { client.readAll() }.also { it.start() }
+            client.send(1, Mux.REQUEST, "1".toByteArray())
+            client.send(2, Mux.REQUEST, "2".toByteArray())
+            client.send(2, Mux.BODY, ByteArray(16))
+            client.send(2, Mux.BODY, ByteArray(0))
+            val deadline = System.currentTimeMillis() + 10 * 1000
+            while (client.responses[2]?.end != Mux.END && System.currentTimeMillis() < deadline) Thread.sleep(10)
+            release.countDown()
+            client.output.close()
+            reader.join(30 * 1000)
+            assertTrue(client.eof)
+            assertEquals(HttpStatus.Ok, JSONObject(String(client.responses[1]!!.header!!)).getInt(ServerKey.statusCode))
+            assertEquals(HttpStatus.ServiceUnavailable, JSONObject(String(client.responses[2]!!.header!!)).getInt(ServerKey.statusCode))
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private fun connect(
+        executor: Executor = connections,
+        dispatch: (String, com.cplusedition.bot.core.Fun11<Long, InputStream>, com.cplusedition.bot.core.Fun11<ICpluseditionRequest?, ICpluseditionResponse>) -> Boolean
+    ): Client {
+        val request = Pipe.open()
+        val response = Pipe.open()
+        val socket = PipeSocket(Channels.newInputStream(request.source()), Channels.newOutputStream(response.sink()))
+        StandaloneServer.MuxConnection(socket, writers, executor, dispatch).start()
+        return Client(Channels.newInputStream(response.source()), Channels.newOutputStream(request.sink()))
+    }
+
+    private class PipeSocket(
+        private val input: InputStream,
+        private val output: OutputStream,
+    ) : UnixSocket() {
+        override fun getInputStream(): InputStream {
+            return input
+        }
+
+        override fun getOutputStream(): OutputStream {
+            return output
+        }
+
+        override fun close() {
+            input.close()
+            output.close()
+        }
+    }
+
+    private class Response {
+        var header: ByteArray? = null
+        val data = ByteArrayOutputStream()
+        var end = 0
+    }
+
+    private class Client(
+        val input: InputStream,
+        val output: OutputStream,
+    ) {
+        val responses = ConcurrentHashMap<Int, Response>()
+        var eof = false
+
+        fun send(id: Int, type: Int, payload: ByteArray) {
+            synchronized(output) {
+                val w = ByteWriter(output)
+                w.write32BE(id)
+                w.write(type.toByte())
+                w.write32BE(payload.size)
+                w.write(payload)
+            }
+        }
+
+        fun readAll() {
+            val r = ByteReader(input)
+            while (true) {
+                val id = try {
+                    r.read32BE()
+                } catch (e: EOFException) {
+                    eof = true
+                    return
+                }
+                val type = r.readU8()
+                val payload = r.read(ByteArray(r.read32BE()))
+                val response = responses.getOrPut(id) { Response() }
+                assertEquals(0, response.end)
+                when (type) {
+                    Mux.HEADER -> {
+                        assertEquals(null, response.header)
+                        response.header = payload
+                    }
+                    Mux.DATA -> response.data.write(payload)
+                    else -> response.end = type
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.war
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import sf.andrians.cplusedition.support.DiskManager
+import sf.andrians.cplusedition.support.ICloseableProvider
+import sf.andrians.cplusedition.support.IStorage
+import sf.andrians.cplusedition.war.RequestDispatcher.Access
+import java.lang.reflect.Proxy
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class RequestDispatcherTest {
+
+    private val dispatcher = RequestDispatcher(storage(), THREADS, 16)
+
+    @After
+    fun teardown() {
+        dispatcher.shutdown()
+    }
+
+    @Test
+    fun testConcurrentReadWrite() {
+        val keys = 4
+        val rounds = 200
+        val counters = IntArray(keys)
+        val readers = AtomicInteger()
+        val writers = IntArray(keys)
+        val exclusives = AtomicInteger()
+        val maxreaders = AtomicInteger()
+        val errors = AtomicInteger()
+        val done = CountDownLatch(rounds * 3)
+        for (i in 0 until rounds) {
+            val key = i % keys
+            dispatcher.submit(Access.Write, "/doc$key.html", null) {
+                try {
+                    synchronized(writers) { if (writers[key]++ != 0 || exclusives.get() != 0) errors.incrementAndGet() }
+                    //// Not atomic on purpose, a concurrent write to the same key would lose updates.
+                    val value = counters[key]
+                    Thread.yield()
+                    counters[key] = value + 1
+                    synchronized(writers) { writers[key]-- }
+                } finally {
+                    done.countDown()
+                }
+            }
+            dispatcher.submit(Access.Read, null, null) {
+                try {
+                    if (exclusives.get() != 0) errors.incrementAndGet()
+                    val n = readers.incrementAndGet()
+                    maxreaders.accumulateAndGet(n) { a, b -> maxOf(a, b) }
+                    Thread.sleep(1)
+                    readers.decrementAndGet()
+                } finally {
+                    done.countDown()
+                }
+            }
+            dispatcher.submit(if (i % 20 == 0) Access.Exclusive else Access.Read, null, null) {
+                try {
+                    if (i % 20 == 0) {
+                        if (exclusives.incrementAndGet() != 1 || readers.get() != 0) errors.incrementAndGet()
+                        if (synchronized(writers) { writers.any { it != 0 } }) errors.incrementAndGet()
+                        exclusives.decrementAndGet()
+                    }
+                } finally {
+                    done.countDown()
+                }
+            }
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS))
+        assertEquals(0, errors.get())
+        for (key in 0 until keys) assertEquals(rounds / keys, counters[key])
+        assertTrue("Reads should run concurrently", maxreaders.get() > 1)
+    }
+
+    @Test
+    fun testRejectAfterShutdown() {
+        dispatcher.shutdown()
+        var ran = false
+        assertFalse(dispatcher.submit(Access.Read, null, null) { ran = true })
+        assertFalse(ran)
+    }
+
+    companion object {
+        private const val THREADS = 4
+
+        private fun storage(): IStorage {
+            var disk: DiskManager? = null
+            val storage = Proxy.newProxyInstance(IStorage::class.java.classLoader, arrayOf(IStorage::class.java)) { _, method, args ->
+                when (method.name) {
+                    "disk" -> {
+                        @Suppress("UNCHECKED_CAST")
+                        disk!!.lock(args[0] as String, args[1] as ICloseableProvider<Any?>)
+                    }
+                    "fileInfo" -> null
+                    else -> throw UnsupportedOperationException(method.name)
+                }
+            } as IStorage
+            disk = DiskManager(storage)
+            return storage
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.andrians.cplusedition.war
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class StorageExecutorsTest {
+
+    private val executors = StorageExecutors(READERS)
+    private val feeders = Executors.newFixedThreadPool(2 * READERS)
+
+    @After
+    fun teardown() {
+        feeders.shutdownNow()
+        executors.shutdown()
+    }
+
+    @Test
+    fun testExclusion() {
+        val readers = AtomicInteger()
+        val maxreaders = AtomicInteger()
+        val writing = AtomicBoolean()
+        val errors = AtomicInteger()
+        val futures = (0 until 400).map { i ->
+            if (i % 50 == 0) executors.submit(true) {
+                writing.set(true)
+                if (readers.get() != 0) errors.incrementAndGet()
+                Thread.sleep(2)
+                writing.set(false)
+            } else executors.read {
+                if (writing.get()) errors.incrementAndGet()
+                maxreaders.accumulateAndGet(readers.incrementAndGet()) { a, b -> maxOf(a, b) }
+                Thread.sleep(1)
+                readers.decrementAndGet()
+            }
+        }
+        futures.forEach { it.get(30, TimeUnit.SECONDS) }
+        assertEquals(0, errors.get())
+        assertTrue(maxreaders.get() > 1)
+    }
+
+    /// A non exclusive mutation, eg. rebuildXrefs, must not hold up the reads.
+    @Test
+    fun testReadsDuringMutation() {
+        val started = CountDownLatch(1)
+        val mutation = executors.submit(false) {
+            started.countDown()
+            Thread.sleep(1000)
+        }
+        started.await()
+        val latencies = (0 until 20).map {
+            val start = System.nanoTime()
+            executors.read { }.get()
+            System.nanoTime() - start
+        }
+        assertTrue("Reads should not wait for the mutation", !mutation.isDone)
+        report("read latency during mutation", latencies)
+        assertTrue(latencies.max() < TimeUnit.MILLISECONDS.toNanos(200))
+        mutation.get()
+    }
+
+    /// A steady stream of reads must not starve the exclusive mutations.
+    @Test
+    fun testWriterLatency() {
+        val stop = AtomicBoolean()
+        val reads = AtomicInteger()
+        repeat(2 * READERS) {
+            feeders.submit {
+                while (!stop.get()) {
+                    executors.read {
+                        Thread.sleep(2)
+                        reads.incrementAndGet()
+                    }.get()
+                }
+            }
+        }
+        Thread.sleep(100)
+        val latencies = (0 until 50).map {
+            val submitted = System.nanoTime()
+            val started = executors.submit(true) { System.nanoTime() }.get(30, TimeUnit.SECONDS)
+            Thread.sleep(5)
+            started - submitted
+        }
+        stop.set(true)
+        report("writer latency under $READERS busy readers, ${reads.get()} reads", latencies)
+        assertTrue(latencies.max() < TimeUnit.SECONDS.toNanos(1))
+    }
+
+    private fun report(label: String, latencies: List<Long>) {
+        val sorted = latencies.sorted()
+        fun ms(nanos: Long): String = String.format("%.2f", nanos / 1e6)
+        println("# $label: p50=${ms(sorted[sorted.size / 2])}ms, p99=${ms(sorted[sorted.size * 99 / 100])}ms, max=${ms(sorted.last())}ms")
+    }
+
+    companion object {
+        private const val READERS = 4
+    }
+}
@@ -0,0 +1,176 @@
+/*!            
+    C+edition for Desktop, Community Edition.
+    Copyright (C) 2021 Cplusedition Limited.  All rights reserved.
+    
+    The author licenses this file to You under the Apache License, Version 2.0
+    (the "License"); you may not use this file except in compliance with
+    the License.  You may obtain a copy of the License at
+    
+        http://www.apache.org/licenses/LICENSE-2.0
+    
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package sf.unixsocket
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import sf.unixsocket.UnixSocket.SockType
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.InputStream
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.Random
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+
+class UnixSocketTest {
+
+    companion object {
+        /// Path of the native library, defaults to the one the StandaloneServer loads from the ROOT directory.
+        private val LIBRARY = File(System.getProperty("unixsocket.lib", "ROOT/lib/libunixsocket-cc.so")).absoluteFile
+
+        init {
+            if (LIBRARY.exists()) System.load(LIBRARY.path)
+        }
+    }
+
+    private val tmpdir = Files.createTempDirectory("unixsocket").toFile()
+    private val random = Random(1)
+    private val executor = Executors.newCachedThreadPool()
+    private lateinit var server: UnixServerSocket
+
+    @Before
+    fun setup() {
+        assumeTrue("Native library not found: $LIBRARY", LIBRARY.exists())
+        server = UnixServerSocket(File(tmpdir, "s").path, SockType.STREAM).listen(1)
+    }
+
+    @After
+    fun teardown() {
+        if (this::server.isInitialized) server.close()
+        executor.shutdownNow()
+        tmpdir.deleteRecursively()
+    }
+
+    /// The direct buffer calls, or their fallback with a library that does not have them, round trip the data.
+    @Test
+    fun testByteBuffer() {
+        val data = bytes(3 * UnixSocket.COPY_BUFSIZE + 7)
+        val received = receive()
+        server.accept().use { socket ->
+            val output = socket.outputStream as UnixSocket.UnixSocketOutputStream
+            output.write(ByteBuffer.allocateDirect(data.size).put(data).flip())
+        }
+        assertArrayEquals(data, received.get(10, TimeUnit.SECONDS))
+        val client = UnixClientSocket(File(tmpdir, "s").path, SockType.STREAM)
+        val sender = executor.submit {
+            server.accept().use { it.outputStream.write(data) }
+        }
+        client.connect().use { socket ->
+            val input = socket.inputStream as UnixSocket.UnixSocketInputStream
+            val b = ByteBuffer.allocateDirect(data.size + 1)
+            while (input.read(b) >= 0) continue
+            assertArrayEquals(data, ByteArray(b.flip().remaining()).also { b.get(it) })
+        }
+        sender.get(10, TimeUnit.SECONDS)
+    }
+
+    /// sendfile() sends the given range, or returns -1 with nothing sent if the library does not support it.
+    @Test
+    fun testSendfile() {
+        val data = bytes(5 * UnixSocket.COPY_BUFSIZE + 3)
+        val file = File(tmpdir, "data").also { it.writeBytes(data) }
+        val received = receive()
+        val sent = server.accept().use { socket ->
+            socket.sendfile(file.path, 1000, data.size.toLong()).also {
+                if (it < 0) socket.outputStream.write(data, 1000, data.size - 1000)
+            }
+        }
+        assertArrayEquals(data.copyOfRange(1000, data.size), received.get(10, TimeUnit.SECONDS))
+        if (sent >= 0) assertEquals(data.size - 1000L, sent)
+        else println("# sendfile() is not supported by $LIBRARY")
+    }
+
+    /// Large file response throughput and CPU time of sendfile() against the Conf.COPY_BUFSIZE copy loop.
+    @Test
+    fun testSendfileBenchmark() {
+        val size = 64 * 1024 * 1024
+        val file = File(tmpdir, "data").also { f -> f.outputStream().use { repeat(size / (1024 * 1024)) { _ -> it.write(bytes(1024 * 1024)) } } }
+        val threads = ManagementFactory.getThreadMXBean()
+        for (warmup in 0 until 2) {
+            for (kernel in listOf(false, true)) {
+                val received = drain()
+                val start = System.nanoTime()
+                val cpu = threads.currentThreadCpuTime
+                val supported = server.accept().use { socket ->
+                    if (kernel) socket.sendfile(file.path, 0, size.toLong()) >= 0
+                    else {
+                        val b = ByteArray(UnixSocket.COPY_BUFSIZE)
+                        file.inputStream().use { input ->
+                            while (true) {
+                                val n = input.read(b)
+                                if (n < 0) break
+                                socket.outputStream.write(b, 0, n)
+                            }
+                        }
+                        true
+                    }
+                }
+                val ms = (System.nanoTime() - start) / 1_000_000
+                val cpums = (threads.currentThreadCpuTime - cpu) / 1_000_000
+                assertEquals(if (supported) size.toLong() else 0L, received.get(60, TimeUnit.SECONDS))
+                if (!supported) {
+                    println("# sendfile() is not supported by $LIBRARY")
+                    continue
+                }
+                println("# ${if (kernel) "sendfile" else "copy loop"} ${size / (1024 * 1024)}MB: ${ms}ms, ${size / 1024 / 1024 * 1000L / maxOf(1L, ms)}MB/s, cpu ${cpums}ms")
+            }
+        }
+    }
+
+    private fun receive(): Future<ByteArray> {
+        return client { input -> ByteArrayOutputStream().also { input.copyTo(it) }.toByteArray() }
+    }
+
+    private fun drain(): Future<Long> {
+        return client { input ->
+            val b = ByteArray(64 * 1024)
+            var total = 0L
+            while (true) {
+                val n = input.read(b)
+                if (n < 0) break
+                total += n
+            }
+            total
+        }
+    }
+
+    private fun <T> client(reader: (InputStream) -> T): Future<T> {
+        return executor.submit<T> {
+            UnixClientSocket(File(tmpdir, "s").path, SockType.STREAM).connect().use { reader(it.inputStream) }
+        }
+    }
+
+    private fun <T : UnixSocket, R> T.use(code: (T) -> R): R {
+        try {
+            return code(this)
+        } finally {
+            this.close()
+        }
+    }
+
+    private fun bytes(size: Int): ByteArray {
+        return ByteArray(size).also { random.nextBytes(it) }
+    }
+}
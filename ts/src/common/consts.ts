@@ -65,6 +65,7 @@ export abstract class ServerKey {
     static readonly referrer = "XxXYI";
     static readonly url = "XxXGV";
     static readonly ipc = "XxXr7";
+    static readonly length = "XxXbl";
     static readonly serial = "XxXds";
 }
 
@@ -6952,6 +6952,8 @@ abstract class FilepickerCmd {
     static readonly DELETE_EMPTY_DIRS = 20;
     static readonly LOCAL_IMAGE_THUMBNAILS = 18;
     static readonly SHRED = 24;
+    static readonly COPY_PROGRESS = 25;
+    static readonly COPY_CANCEL = 26;
     static readonly FILEINFO = 1;
     static readonly DIRINFO = 23;
     static readonly FILEINFOS = 22;
@@ -48014,6 +48016,8 @@ abstract class _JOF {
     static readonly exportBackupKey = "/a/XxXTa";
     static readonly actionCleanHome = "/a/XxX0k";
     static readonly actionBackupVerify = "/a/XxXfU";
+    static readonly actionBackupVerifyProgress = "/a/XxXfUp";
+    static readonly actionBackupVerifyCancel = "/a/XxXfUc";
     static readonly actionBackupForward = "/a/XxX7H";
     static readonly actionBackupConversion = "/a/XxXJQ";
     static readonly actionQuit = "/a/XxXx1";
@@ -48068,6 +48072,7 @@ abstract class _JOF {
     static readonly linkVerifier = "/a/XxX6J";
     static readonly localImageInfo = "/a/XxXLW";
     static readonly localImageThumbnail = "/a/XxXmw";
+    static readonly metrics = "/a/XxXmtr";
     static readonly onBoot = "/a/XxXVq";
     static readonly onDocumentLoaded = "/a/XxXtN";
     static readonly onDocumentUnload = "/a/XxXGW";
@@ -48778,8 +48783,12 @@ class Host {
         
     }
 
-    onIFrameUnload_(_uri: UriX): void {
-        
+    /// Write the buffered save of the closing document, if any, so that a failed save is not lost silently.
+    onIFrameUnload_(uri: UriX): void {
+        if (uri == null) return;
+        this.ajax_(_JOF.onIFrameUnload, 0, JSON.stringify([uri.path$]), (ret) => {
+            toasters$.warn_(ret);
+        });
     }
 
     clearFocus_(): void { }
@@ -48831,8 +48840,19 @@ class Host {
         new PromptRestore(accessories$, dateformat, backupfile, dstdirpath, callback).show_();
     }
 
-    actionBackupVerify_(backupfile: string, callback: JSONCallback): void {
-        this.ajaxWithSpinner_(_JOF.actionBackupVerify, 0, JSON.stringify([backupfile]), callback);
+    /// @param structural Only check that the archive blocks decrypt and authenticate, without digesting the files.
+    /// @param serial If not negative, to poll and cancel the verification with actionBackupVerifyProgress_()
+    /// and actionBackupVerifyCancel_().
+    actionBackupVerify_(backupfile: string, callback: JSONCallback, structural = false, serial = -1): void {
+        this.ajaxWithSpinner_(_JOF.actionBackupVerify, 0, JSON.stringify([backupfile, structural, serial]), callback);
+    }
+
+    actionBackupVerifyProgress_(serial: number, callback: JSONCallback): void {
+        this.ajax_(_JOF.actionBackupVerifyProgress, 0, JSON.stringify([serial]), callback);
+    }
+
+    actionBackupVerifyCancel_(serial: number, callback: JSONCallback | null = null): void {
+        this.ajax_(_JOF.actionBackupVerifyCancel, 0, JSON.stringify([serial]), callback);
     }
 
     actionBackupForward_(backupfile: string, aliases: string[], callback: JSONCallback): void {
@@ -1,3 +1,5 @@
+#include <errno.h>
+#include <fcntl.h>
 #include <unistd.h>
 #include <stdio.h>
 #include <stdlib.h>
@@ -5,6 +7,9 @@
 #include <sys/socket.h>
 #include <sys/types.h>
 #include <sys/un.h>
+#if defined(__linux__)
+#include <sys/sendfile.h>
+#endif
 
 #include "UnixSocket.h"
 
@@ -103,6 +108,97 @@ Java_sf_unixsocket_UnixSocket_00024Native_write(JNIEnv * env, jclass jClass, jin
 	return count;
 }
 
+/** Read into a direct ByteBuffer without copying through a Java array.
+ * @return 0 if EOF, -1 if error, otherwise number of bytes read. */
+JNIEXPORT jint JNICALL
+Java_sf_unixsocket_UnixSocket_00024Native_readBuffer(JNIEnv * env, jclass jClass, jint jSockHandle, jobject jbuf,
+	jint off, jint len) {
+	ssize_t count;
+	jbyte *cbuf = (*env)->GetDirectBufferAddress(env, jbuf);
+	ERROR_(cbuf == NULL, "Native.readBuffer: GetDirectBufferAddress");
+	do {
+		count = read(jSockHandle, &cbuf[off], len);
+	} while (count == -1 && errno == EINTR);
+	ERROR_(count == -1, "Native.readBuffer: read");
+	return count;
+}
+
+/** Write from a direct ByteBuffer without copying through a Java array.
+ * @return -1 if error, otherwise number of bytes written. */
+JNIEXPORT jint JNICALL
+Java_sf_unixsocket_UnixSocket_00024Native_writeBuffer(JNIEnv * env, jclass jClass, jint jSockHandle, jobject jbuf,
+	jint off, jint len) {
+	ssize_t count;
+	jbyte *cbuf = (*env)->GetDirectBufferAddress(env, jbuf);
+	ERROR_(cbuf == NULL, "Native.writeBuffer: GetDirectBufferAddress");
+	do {
+		count = write(jSockHandle, &cbuf[off], len);
+	} while (count == -1 && errno == EINTR);
+	ERROR_(count == -1, "Native.writeBuffer: write");
+	return count;
+}
+
+/** Send count bytes of the given file starting at offset to the socket, in kernel where supported.
+ * @return -1 if error, otherwise number of bytes sent, which is less than count only on EOF. */
+JNIEXPORT jlong JNICALL
+Java_sf_unixsocket_UnixSocket_00024Native_sendfile(JNIEnv * env, jclass jClass, jint jSockHandle, jstring jPath,
+	jlong jOffset, jlong jCount) {
+	int fd;
+	jlong total = 0;
+	const char *path = (*env)->GetStringUTFChars(env, jPath, NULL);
+	ERROR_(path == NULL, "Native.sendfile: GetStringUTFChars");
+	fd = open(path, O_RDONLY);
+	(*env)->ReleaseStringUTFChars(env, jPath, path);
+	ERROR_(fd == -1, "Native.sendfile: open");
+#if defined(__linux__)
+	{
+		off_t offset = jOffset;
+		while (total < jCount) {
+			size_t len = (jCount - total) > 0x40000000 ? 0x40000000 : (size_t)(jCount - total);
+			ssize_t count = sendfile(jSockHandle, fd, &offset, len);
+			if (count == -1 && errno == EINTR) continue;
+			if (count == -1) {
+				close(fd);
+				ERROR_(1, "Native.sendfile: sendfile");
+			}
+			if (count == 0) break;
+			total += count;
+		}
+	}
+#else
+	{
+		char buf[64 * 1024];
+		if (lseek(fd, jOffset, SEEK_SET) == -1) {
+			close(fd);
+			ERROR_(1, "Native.sendfile: lseek");
+		}
+		while (total < jCount) {
+			size_t len = (jCount - total) > sizeof(buf) ? sizeof(buf) : (size_t)(jCount - total);
+			ssize_t count = read(fd, buf, len);
+			ssize_t written = 0;
+			if (count == -1 && errno == EINTR) continue;
+			if (count == -1) {
+				close(fd);
+				ERROR_(1, "Native.sendfile: read");
+			}
+			if (count == 0) break;
+			while (written < count) {
+				ssize_t n = write(jSockHandle, &buf[written], count - written);
+				if (n == -1 && errno == EINTR) continue;
+				if (n == -1) {
+					close(fd);
+					ERROR_(1, "Native.sendfile: write");
+				}
+				written += n;
+			}
+			total += count;
+		}
+	}
+#endif
+	close(fd);
+	return total;
+}
+
 JNIEXPORT jint JNICALL
 Java_sf_unixsocket_UnixSocket_00024Native_close(JNIEnv * env, jclass jClass, jint jSockHandle) {
 	shutdown(jSockHandle, SHUT_RDWR);
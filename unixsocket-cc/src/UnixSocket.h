@@ -48,6 +48,30 @@ JNIEXPORT jint JNICALL Java_sf_unixsocket_UnixSocket_00024Native_read
 JNIEXPORT jint JNICALL Java_sf_unixsocket_UnixSocket_00024Native_write
   (JNIEnv *, jclass, jint, jbyteArray, jint, jint);
 
+/*
+ * Class:     sf_unixsocket_UnixSocket_Native
+ * Method:    readBuffer
+ * Signature: (ILjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_sf_unixsocket_UnixSocket_00024Native_readBuffer
+  (JNIEnv *, jclass, jint, jobject, jint, jint);
+
+/*
+ * Class:     sf_unixsocket_UnixSocket_Native
+ * Method:    writeBuffer
+ * Signature: (ILjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_sf_unixsocket_UnixSocket_00024Native_writeBuffer
+  (JNIEnv *, jclass, jint, jobject, jint, jint);
+
+/*
+ * Class:     sf_unixsocket_UnixSocket_Native
+ * Method:    sendfile
+ * Signature: (ILjava/lang/String;JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_sf_unixsocket_UnixSocket_00024Native_sendfile
+  (JNIEnv *, jclass, jint, jstring, jlong, jlong);
+
 /*
  * Class:     sf_unixsocket_UnixSocket_Native
  * Method:    close